@@ -440,6 +440,27 @@ public final class CloudMediaProviderContract {
      */
     public static final String EXTRA_PAGE_TOKEN = "android.provider.extra.PAGE_TOKEN";
 
+    /**
+     * Preferred number of items in each page (cursor) returned from a media or deleted media
+     * query.
+     * <p>
+     * The OS passes this hint as a {@link Bundle} parameter when querying for media, adjusting
+     * it between pages to keep each page cheap to transfer. Providers paginating with
+     * {@link #EXTRA_PAGE_TOKEN} should return pages close to this size, and may return fewer
+     * items if their backend can't serve that many at once.
+     * <p>
+     * If the provider handled the page size, they must add the {@link #EXTRA_PAGE_SIZE} key to
+     * the array of {@link ContentResolver#EXTRA_HONORED_ARGS} as part of the returned
+     * {@link Cursor#setExtras} {@link Bundle}.
+     *
+     * @see CloudMediaProvider#onQueryMedia
+     * @see CloudMediaProvider#onQueryDeletedMedia
+     * <p>
+     * Type: INT
+     * @hide
+     */
+    public static final String EXTRA_PAGE_SIZE = "android.provider.extra.PAGE_SIZE";
+
     /**
      * {@link MediaCollectionInfo#MEDIA_COLLECTION_ID} on which the media or album query occurred.
      *
@@ -81,6 +81,7 @@ import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.text.Collator;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
@@ -182,6 +183,8 @@ public final class MediaStore {
     /** {@hide} */
     public static final String SCAN_FILE_CALL = "scan_file";
     /** {@hide} */
+    public static final String SCAN_FILES_CALL = "scan_files";
+    /** {@hide} */
     public static final String SCAN_VOLUME_CALL = "scan_volume";
     /** {@hide} */
     public static final String CREATE_WRITE_REQUEST_CALL = "create_write_request";
@@ -196,6 +199,8 @@ public final class MediaStore {
     public static final String GET_VERSION_CALL = "get_version";
     /** {@hide} */
     public static final String GET_GENERATION_CALL = "get_generation";
+    /** {@hide} */
+    public static final String GET_DELETED_IDS_CALL = "get_deleted_ids";
 
     /** {@hide} */
     public static final String START_LEGACY_MIGRATION_CALL = "start_legacy_migration";
@@ -233,6 +238,8 @@ public final class MediaStore {
     /** {@hide} */
     public static final String EXTRA_RESULT = "result";
     /** {@hide} */
+    public static final String EXTRA_PAGE_TOKEN = "page_token";
+    /** {@hide} */
     public static final String EXTRA_FILE_DESCRIPTOR = "file_descriptor";
 
     /** {@hide} */
@@ -4363,6 +4370,46 @@ public final class MediaStore {
         return out.getLong(Intent.EXTRA_INDEX);
     }
 
+    /**
+     * Return the {@link BaseColumns#_ID} of every item on the given volume
+     * that was deleted after the given generation, in the order they were
+     * deleted. Items that were only trashed or made pending are not included.
+     * <p>
+     * Together with a query for items whose
+     * {@link MediaColumns#GENERATION_MODIFIED} is greater than the same
+     * generation, this lets clients synchronize in proportion to the number of
+     * changes rather than the size of the library.
+     * <p>
+     * Callers must have access to all media on external storage.
+     *
+     * @return deleted ids, or {@code null} if deletions that old are no longer
+     *         tracked, in which case a full synchronization pass is needed.
+     * @see #getGeneration(Context, String)
+     * @hide
+     */
+    @WorkerThread
+    public static @Nullable long[] getDeletedIds(@NonNull ContentResolver resolver,
+            @NonNull String volumeName, long generation) {
+        long[] ids = new long[0];
+        long pageToken = -1;
+        do {
+            final Bundle in = new Bundle();
+            in.putString(Intent.EXTRA_TEXT, volumeName);
+            in.putLong(Intent.EXTRA_INDEX, generation);
+            in.putLong(EXTRA_PAGE_TOKEN, pageToken);
+            final Bundle out = resolver.call(AUTHORITY, GET_DELETED_IDS_CALL, null, in);
+            final long[] page = out.getLongArray(EXTRA_RESULT);
+            if (page == null) {
+                return null;
+            }
+            final int offset = ids.length;
+            ids = Arrays.copyOf(ids, offset + page.length);
+            System.arraycopy(page, 0, ids, offset, page.length);
+            pageToken = out.getLong(EXTRA_PAGE_TOKEN, -1);
+        } while (pageToken != -1);
+        return ids;
+    }
+
     /**
      * Return a {@link DocumentsProvider} Uri that is an equivalent to the given
      * {@link MediaStore} Uri.
@@ -4626,6 +4673,29 @@ public final class MediaStore {
         return out.getParcelable(Intent.EXTRA_STREAM);
     }
 
+    /**
+     * Perform a blocking scan of the given files, returning the {@link Uri} of
+     * each scanned file in the same order, or {@code null} for files which
+     * couldn't be scanned. Files sharing a parent directory are scanned
+     * together, which is much cheaper than scanning each with
+     * {@link #scanFile}.
+     *
+     * @hide
+     */
+    @WorkerThread
+    @SuppressLint("StreamFiles")
+    public static @NonNull List<Uri> scanFiles(@NonNull ContentResolver resolver,
+            @NonNull List<File> files) {
+        final ArrayList<String> paths = new ArrayList<>(files.size());
+        for (File file : files) {
+            paths.add(file.getAbsolutePath());
+        }
+        final Bundle extras = new Bundle();
+        extras.putStringArrayList(Intent.EXTRA_TEXT, paths);
+        final Bundle out = resolver.call(AUTHORITY, SCAN_FILES_CALL, null, extras);
+        return out.getParcelableArrayList(Intent.EXTRA_STREAM);
+    }
+
     /**
      * Perform a blocking scan of the given storage volume.
      *
@@ -535,7 +535,8 @@ static inline bool is_transforms_dir_path(const string& path, struct fuse* fuse)
 
 static std::unique_ptr<mediaprovider::fuse::FileLookupResult> validate_node_path(
         const std::string& path, const std::string& name, fuse_req_t req, int* error_code,
-        struct fuse_entry_param* e, const FuseOp op) {
+        struct fuse_entry_param* e, const FuseOp op,
+        const mediaprovider::fuse::FileLookupResult* prefetched_lookup_result) {
     struct fuse* fuse = get_fuse(req);
     const struct fuse_ctx* ctx = fuse_req_ctx(req);
     memset(e, 0, sizeof(*e));
@@ -574,9 +575,11 @@ static std::unique_ptr<mediaprovider::fuse::FileLookupResult> validate_node_path
         return std::make_unique<mediaprovider::fuse::FileLookupResult>(0, 0, 0, true, false, "");
     }
 
-    // Handle potential file transforms
+    // Handle potential file transforms, reusing a result already fetched in a batch if any
     std::unique_ptr<mediaprovider::fuse::FileLookupResult> file_lookup_result =
-            fuse->mp->FileLookup(path, req->ctx.uid, req->ctx.pid);
+            prefetched_lookup_result ? std::make_unique<mediaprovider::fuse::FileLookupResult>(
+                                               *prefetched_lookup_result)
+                                     : fuse->mp->FileLookup(path, req->ctx.uid, req->ctx.pid);
 
     if (!file_lookup_result) {
         // Fail lookup if we can't fetch FileLookupResult for path
@@ -595,8 +598,10 @@ static std::unique_ptr<mediaprovider::fuse::FileLookupResult> validate_node_path
     return file_lookup_result;
 }
 
-static node* make_node_entry(fuse_req_t req, node* parent, const string& name, const string& path,
-                             struct fuse_entry_param* e, int* error_code, const FuseOp op) {
+static node* make_node_entry(
+        fuse_req_t req, node* parent, const string& name, const string& path,
+        struct fuse_entry_param* e, int* error_code, const FuseOp op,
+        const mediaprovider::fuse::FileLookupResult* prefetched_lookup_result = nullptr) {
     struct fuse* fuse = get_fuse(req);
     const struct fuse_ctx* ctx = fuse_req_ctx(req);
     node* node;
@@ -604,7 +609,7 @@ static node* make_node_entry(fuse_req_t req, node* parent, const string& name, c
     memset(e, 0, sizeof(*e));
 
     std::unique_ptr<mediaprovider::fuse::FileLookupResult> file_lookup_result =
-            validate_node_path(path, name, req, error_code, e, op);
+            validate_node_path(path, name, req, error_code, e, op, prefetched_lookup_result);
     if (!file_lookup_result) {
         // Fail lookup if we can't validate |path, |errno| would have already been set
         return nullptr;
@@ -840,9 +845,10 @@ void fuse_bpf_install(struct fuse* fuse, struct fuse_entry_param* e, const strin
 }
 
 static std::regex storage_emulated_regex("^\\/storage\\/emulated\\/([0-9]+)");
-static node* do_lookup(fuse_req_t req, fuse_ino_t parent, const char* name,
-                       struct fuse_entry_param* e, int* error_code, const FuseOp op,
-                       int* backing_fd = NULL) {
+static node* do_lookup(
+        fuse_req_t req, fuse_ino_t parent, const char* name, struct fuse_entry_param* e,
+        int* error_code, const FuseOp op, int* backing_fd = NULL,
+        const mediaprovider::fuse::FileLookupResult* prefetched_lookup_result = nullptr) {
     struct fuse* fuse = get_fuse(req);
     node* parent_node = fuse->FromInode(parent);
     if (!parent_node) {
@@ -875,7 +881,8 @@ static node* do_lookup(fuse_req_t req, fuse_ino_t parent, const char* name,
         }
     }
 
-    auto node = make_node_entry(req, parent_node, name, child_path, e, error_code, op);
+    auto node = make_node_entry(req, parent_node, name, child_path, e, error_code, op,
+                                prefetched_lookup_result);
 
     if (fuse->bpf && op == FuseOp::lookup) fuse_bpf_install(fuse, e, child_path, *backing_fd);
 
@@ -1796,6 +1803,61 @@ static void pf_opendir(fuse_req_t req,
 
 #define READDIR_BUF 8192LU
 
+// Upper bound on the number of FileLookupResults fetched in a single upcall while serving a
+// readdirplus reply. READDIR_BUF bounds the number of entries per reply well below this already;
+// this only guards against pathological directory entry sizes.
+#define MAX_PREFETCHED_FILE_LOOKUPS 128LU
+
+typedef std::unordered_map<string, std::unique_ptr<mediaprovider::fuse::FileLookupResult>>
+        FileLookupResults;
+
+/**
+ * Fetches FileLookupResults for the directory entries starting at |start| that are expected to fit
+ * in a readdirplus reply of |len| bytes with a single upcall into MediaProvider, keyed by entry
+ * name. Only entries that validate_node_path() would otherwise look up one by one are included;
+ * any entry missing from the returned map falls back to the single lookup path.
+ */
+static FileLookupResults prefetch_file_lookups(
+        fuse_req_t req, struct fuse* fuse, const string& parent_path,
+        const std::vector<std::shared_ptr<DirectoryEntry>>& entries, size_t start, size_t len) {
+    std::vector<string> names;
+    std::vector<string> paths;
+    size_t estimated_size = 0;
+    for (size_t i = start; i < entries.size() && paths.size() < MAX_PREFETCHED_FILE_LOOKUPS;
+         i++) {
+        const std::shared_ptr<DirectoryEntry>& de = entries[i];
+        // With a NULL buffer, fuse_add_direntry_plus only returns the size the entry would take
+        estimated_size += fuse_add_direntry_plus(req, NULL, 0, de->d_name.c_str(), NULL, 0);
+        if (estimated_size > len) {
+            break;
+        }
+        if (de->d_type == DT_DIR) {
+            continue;
+        }
+        const string child_path = parent_path + "/" + de->d_name;
+        if (!is_synthetic_path(child_path, fuse) && !fuse->IsTranscodeSupportedPath(child_path)) {
+            continue;
+        }
+        names.push_back(de->d_name);
+        paths.push_back(child_path);
+    }
+
+    FileLookupResults results;
+    if (paths.size() < 2) {
+        // Nothing to gain over the single lookup path
+        return results;
+    }
+
+    std::vector<std::unique_ptr<mediaprovider::fuse::FileLookupResult>> batch =
+            fuse->mp->FileLookupBatch(paths, req->ctx.uid, req->ctx.pid);
+    for (size_t i = 0; i < batch.size(); i++) {
+        if (batch[i]) {
+            results.emplace(names[i], std::move(batch[i]));
+        }
+    }
+    return results;
+}
+
 static void do_readdir_common(fuse_req_t req,
                               fuse_ino_t ino,
                               size_t size,
@@ -1847,13 +1909,24 @@ static void do_readdir_common(fuse_req_t req,
         return;
     }
 
+    FileLookupResults prefetched_lookup_results;
+    if (plus) {
+        prefetched_lookup_results =
+                prefetch_file_lookups(req, fuse, path, h->de, h->next_off, len);
+    }
+
     while (h->next_off < num_directory_entries) {
         de = h->de[h->next_off];
         entry_size = 0;
         h->next_off++;
         if (plus) {
             int error_code = 0;
-            if (do_lookup(req, ino, de->d_name.c_str(), &e, &error_code, FuseOp::readdir)) {
+            const auto prefetched = prefetched_lookup_results.find(de->d_name);
+            const mediaprovider::fuse::FileLookupResult* prefetched_lookup_result =
+                    prefetched == prefetched_lookup_results.end() ? nullptr
+                                                                  : prefetched->second.get();
+            if (do_lookup(req, ino, de->d_name.c_str(), &e, &error_code, FuseOp::readdir,
+                          NULL /* backing_fd */, prefetched_lookup_result)) {
                 entry_size = fuse_add_direntry_plus(req, buf + used, len - used, de->d_name.c_str(),
                                                     &e, h->next_off);
             } else {
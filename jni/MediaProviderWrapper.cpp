@@ -48,6 +48,12 @@ enum DirectoryAccessRequestType {
     kDeleteDirectoryRequest = 4,
 };
 
+// These need to stay in sync with FileLookupBatchResult.java's constants.
+constexpr int kFileLookupBatchValuesPerPath = 4;
+constexpr int kFileLookupBatchFlagValid = 1;
+constexpr int kFileLookupBatchFlagTransformsComplete = 1 << 1;
+constexpr int kFileLookupBatchFlagTransformsSupported = 1 << 2;
+
 /** Private helper functions **/
 
 inline bool shouldBypassMediaProvider(uid_t uid) {
@@ -240,6 +246,15 @@ MediaProviderWrapper::MediaProviderWrapper(JNIEnv* env, jobject media_provider)
     mid_file_lookup_ =
             CacheMethod(env, "onFileLookup",
                         "(Ljava/lang/String;II)Lcom/android/providers/media/FileLookupResult;");
+    mid_file_lookup_batch_ = CacheMethod(
+            env, "onFileLookupBatch",
+            "([Ljava/lang/String;II)Lcom/android/providers/media/FileLookupBatchResult;");
+
+    string_class_ = env->FindClass("java/lang/String");
+    if (!string_class_) {
+        LOG(FATAL) << "Could not find class String";
+    }
+    string_class_ = reinterpret_cast<jclass>(env->NewGlobalRef(string_class_));
 
     // FileLookupResult
     file_lookup_result_class_ = env->FindClass("com/android/providers/media/FileLookupResult");
@@ -259,6 +274,19 @@ MediaProviderWrapper::MediaProviderWrapper(JNIEnv* env, jobject media_provider)
     fid_file_lookup_io_path_ =
             CacheField(env, file_lookup_result_class_, "ioPath", "Ljava/lang/String;");
 
+    // FileLookupBatchResult
+    file_lookup_batch_result_class_ =
+            env->FindClass("com/android/providers/media/FileLookupBatchResult");
+    if (!file_lookup_batch_result_class_) {
+        LOG(FATAL) << "Could not find class FileLookupBatchResult";
+    }
+    file_lookup_batch_result_class_ =
+            reinterpret_cast<jclass>(env->NewGlobalRef(file_lookup_batch_result_class_));
+    fid_file_lookup_batch_values_ =
+            CacheField(env, file_lookup_batch_result_class_, "values", "[I");
+    fid_file_lookup_batch_io_paths_ =
+            CacheField(env, file_lookup_batch_result_class_, "ioPaths", "[Ljava/lang/String;");
+
     // FileOpenResult
     file_open_result_class_ = env->FindClass("com/android/providers/media/FileOpenResult");
     if (!file_open_result_class_) {
@@ -277,6 +305,8 @@ MediaProviderWrapper::~MediaProviderWrapper() {
     JNIEnv* env = MaybeAttachCurrentThread();
     env->DeleteGlobalRef(media_provider_object_);
     env->DeleteGlobalRef(media_provider_class_);
+    env->DeleteGlobalRef(file_lookup_batch_result_class_);
+    env->DeleteGlobalRef(string_class_);
 }
 
 int MediaProviderWrapper::InsertFile(const string& path, uid_t uid) {
@@ -490,6 +520,61 @@ std::unique_ptr<FileLookupResult> MediaProviderWrapper::FileLookup(const std::st
     return file_lookup_result;
 }
 
+std::vector<std::unique_ptr<FileLookupResult>> MediaProviderWrapper::FileLookupBatch(
+        const std::vector<std::string>& paths, uid_t uid, pid_t tid) {
+    std::vector<std::unique_ptr<FileLookupResult>> results(paths.size());
+    if (paths.empty()) {
+        return results;
+    }
+
+    JNIEnv* env = MaybeAttachCurrentThread();
+
+    ScopedLocalRef<jobjectArray> j_paths(
+            env, env->NewObjectArray(paths.size(), string_class_, /* initialElement */ nullptr));
+    for (size_t i = 0; i < paths.size(); i++) {
+        ScopedLocalRef<jstring> j_path(env, env->NewStringUTF(paths[i].c_str()));
+        env->SetObjectArrayElement(j_paths.get(), i, j_path.get());
+    }
+
+    ScopedLocalRef<jobject> j_res_file_lookup_batch_object(
+            env, env->CallObjectMethod(media_provider_object_, mid_file_lookup_batch_,
+                                       j_paths.get(), uid, tid));
+
+    if (CheckForJniException(env)) {
+        return results;
+    }
+
+    ScopedLocalRef<jintArray> j_values(
+            env, static_cast<jintArray>(env->GetObjectField(j_res_file_lookup_batch_object.get(),
+                                                            fid_file_lookup_batch_values_)));
+    ScopedLocalRef<jobjectArray> j_io_paths(
+            env, static_cast<jobjectArray>(env->GetObjectField(
+                         j_res_file_lookup_batch_object.get(), fid_file_lookup_batch_io_paths_)));
+    ScopedIntArrayRO values(env, j_values.get());
+    if (values.size() != paths.size() * kFileLookupBatchValuesPerPath) {
+        LOG(ERROR) << "Unexpected FileLookupBatchResult size " << values.size() << " for "
+                   << paths.size() << " paths";
+        return results;
+    }
+
+    for (size_t i = 0; i < paths.size(); i++) {
+        const size_t offset = i * kFileLookupBatchValuesPerPath;
+        const int flags = values[offset + 3];
+        if (!(flags & kFileLookupBatchFlagValid)) {
+            continue;
+        }
+
+        ScopedLocalRef<jstring> j_io_path(
+                env, static_cast<jstring>(env->GetObjectArrayElement(j_io_paths.get(), i)));
+        ScopedUtfChars j_io_path_utf(env, j_io_path.get());
+        results[i] = std::make_unique<FileLookupResult>(
+                values[offset], values[offset + 1], values[offset + 2],
+                flags & kFileLookupBatchFlagTransformsComplete,
+                flags & kFileLookupBatchFlagTransformsSupported, string(j_io_path_utf.c_str()));
+    }
+    return results;
+}
+
 bool MediaProviderWrapper::Transform(const std::string& src, const std::string& dst, int transforms,
                                      int transforms_reason, uid_t read_uid, uid_t open_uid,
                                      uid_t transforms_uid) {
@@ -29,6 +29,7 @@
 #include <queue>
 #include <string>
 #include <thread>
+#include <vector>
 
 #include "libfuse_jni/ReaddirHelper.h"
 #include "libfuse_jni/RedactionInfo.h"
@@ -226,6 +227,17 @@ class MediaProviderWrapper final {
      */
     std::unique_ptr<FileLookupResult> FileLookup(const std::string& path, uid_t uid, pid_t tid);
 
+    /**
+     * Returns FileLookupResult for each of |paths| on behalf of the same uid, resolved with a
+     * single upcall into MediaProvider. Useful when many independent lookups are known up front,
+     * such as all entries of a readdirplus reply.
+     *
+     * @return results in the same order as |paths|; an entry is nullptr if the lookup for that
+     * path failed.
+     */
+    std::vector<std::unique_ptr<FileLookupResult>> FileLookupBatch(
+            const std::vector<std::string>& paths, uid_t uid, pid_t tid);
+
     /** Transforms from src to dst file */
     bool Transform(const std::string& src, const std::string& dst, int transforms,
                    int transforms_reason, uid_t read_uid, uid_t open_uid, uid_t transforms_uid);
@@ -256,6 +268,8 @@ class MediaProviderWrapper final {
 
   private:
     jclass file_lookup_result_class_;
+    jclass file_lookup_batch_result_class_;
+    jclass string_class_;
     jclass file_open_result_class_;
     jclass media_provider_class_;
     jobject media_provider_object_;
@@ -273,6 +287,7 @@ class MediaProviderWrapper final {
     jmethodID mid_is_app_clone_user_;
     jmethodID mid_transform_;
     jmethodID mid_file_lookup_;
+    jmethodID mid_file_lookup_batch_;
     /** Cached FileLookupResult field IDs **/
     jfieldID fid_file_lookup_transforms_;
     jfieldID fid_file_lookup_transforms_reason_;
@@ -280,6 +295,9 @@ class MediaProviderWrapper final {
     jfieldID fid_file_lookup_transforms_complete_;
     jfieldID fid_file_lookup_transforms_supported_;
     jfieldID fid_file_lookup_io_path_;
+    /** Cached FileLookupBatchResult field IDs **/
+    jfieldID fid_file_lookup_batch_values_;
+    jfieldID fid_file_lookup_batch_io_paths_;
     /** Cached FileOpenResult field IDs **/
     jfieldID fid_file_open_status_;
     jfieldID fid_file_open_uid_;
@@ -31,8 +31,10 @@ import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ProviderInfo;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.mtp.MtpConstants;
 import android.net.Uri;
 import android.os.Build;
@@ -85,6 +87,7 @@ import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
@@ -94,6 +97,7 @@ import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.UnaryOperator;
 import java.util.regex.Matcher;
@@ -162,6 +166,13 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
      */
     public static final String CURRENT_GENERATION_CLAUSE = "SELECT generation FROM local_metadata";
 
+    /**
+     * Maximum number of entries kept in the {@code deletion_log} table by
+     * {@link #pruneDeletionLog}. Clients that fall further behind than this
+     * need a full synchronization pass.
+     */
+    static final int DELETION_LOG_MAX_ENTRIES = 20_000;
+
     private static final int NOTIFY_BATCH_SIZE = 256;
 
     final Context mContext;
@@ -206,6 +217,12 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
     private static Object sMigrationLockInternal = new Object();
     private static Object sMigrationLockExternal = new Object();
 
+    /** Number of legacy rows migrated per transaction and checkpoint. */
+    private static final int MIGRATION_BATCH_SIZE = 2_000;
+    /** Number of times an interrupted legacy migration is resumed before giving up. */
+    @VisibleForTesting
+    static final int MIGRATION_MAX_ATTEMPTS = 3;
+
     /**
      * Object used to synchronise sequence of next row id in database.
      */
@@ -349,20 +366,25 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
     public void onConfigure(SQLiteDatabase db) {
         Log.v(TAG, "onConfigure() for " + mName);
         db.setCustomScalarFunction("_INSERT", (arg) -> {
-            if (arg != null && mFilesListener != null
-                    && !mSchemaLock.isWriteLockedByCurrentThread()) {
-                final String[] split = arg.split(":", 5);
+            if (arg != null && mFilesListener != null && !isFilesListenerSuppressed()) {
+                final String[] split = arg.split(":", 8);
                 final String volumeName = split[0];
                 final long id = Long.parseLong(split[1]);
                 final int mediaType = Integer.parseInt(split[2]);
                 final boolean isDownload = Integer.parseInt(split[3]) != 0;
                 final boolean isPending = Integer.parseInt(split[4]) != 0;
+                final boolean isTrashed = Integer.parseInt(split[5]) != 0;
+                final String ownerPackage = split[6];
+                final String path = split[7].isEmpty() ? null : split[7];
 
                 FileRow insertedRow = FileRow.newBuilder(id)
                         .setVolumeName(volumeName)
                         .setMediaType(mediaType)
                         .setIsDownload(isDownload)
                         .setIsPending(isPending)
+                        .setIsTrashed(isTrashed)
+                        .setOwnerPackageName(ownerPackage)
+                        .setPath(path)
                         .build();
                 Trace.beginSection("_INSERT");
                 try {
@@ -374,9 +396,8 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
             return null;
         });
         db.setCustomScalarFunction("_UPDATE", (arg) -> {
-            if (arg != null && mFilesListener != null
-                    && !mSchemaLock.isWriteLockedByCurrentThread()) {
-                final String[] split = arg.split(":", 18);
+            if (arg != null && mFilesListener != null && !isFilesListenerSuppressed()) {
+                final String[] split = arg.split(":", 19);
                 final String volumeName = split[0];
                 final long oldId = Long.parseLong(split[1]);
                 final int oldMediaType = Integer.parseInt(split[2]);
@@ -394,7 +415,13 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
                 final int newSpecialFormat = Integer.parseInt(split[14]);
                 final String oldOwnerPackage = split[15];
                 final String newOwnerPackage = split[16];
-                final String oldPath = split[17];
+                // Both paths may contain separators, so the old one is prefixed by its length
+                // in characters
+                final int oldPathLength = Integer.parseInt(split[17]);
+                final int newPathStart = split[18].offsetByCodePoints(0, oldPathLength);
+                final String oldPath = split[18].substring(0, newPathStart);
+                final String newPath = (newPathStart + 1 < split[18].length())
+                        ? split[18].substring(newPathStart + 1) : null;
 
                 FileRow oldRow = FileRow.newBuilder(oldId)
                         .setVolumeName(volumeName)
@@ -416,6 +443,7 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
                         .setIsFavorite(newIsFavorite)
                         .setSpecialFormat(newSpecialFormat)
                         .setOwnerPackageName(newOwnerPackage)
+                        .setPath(newPath)
                         .build();
 
                 Trace.beginSection("_UPDATE");
@@ -428,8 +456,7 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
             return null;
         });
         db.setCustomScalarFunction("_DELETE", (arg) -> {
-            if (arg != null && mFilesListener != null
-                    && !mSchemaLock.isWriteLockedByCurrentThread()) {
+            if (arg != null && mFilesListener != null && !isFilesListenerSuppressed()) {
                 final String[] split = arg.split(":", 6);
                 final String volumeName = split[0];
                 final long id = Long.parseLong(split[1]);
@@ -465,6 +492,14 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
             }
             return null;
         });
+        db.setCustomScalarFunction("_BUCKET_ID", (arg) -> {
+            // Lets set-based statements which rewrite _data keep bucket_id consistent
+            if (arg == null) {
+                return null;
+            }
+            final Integer bucketId = FileUtils.extractBucketId(arg);
+            return (bucketId != null) ? String.valueOf(bucketId) : null;
+        });
     }
 
     @Override
@@ -609,16 +644,34 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
                 return;
             }
 
+            // Only a bounded number of attempts are made, so that a row which
+            // crashes us can't keep us from ever opening the database
+            final MigrationCheckpoint checkpoint = MigrationCheckpoint.read(migration);
+            final boolean shouldMigrate = checkpoint.attempts < MIGRATION_MAX_ATTEMPTS;
+            if (!shouldMigrate) {
+                Log.w(TAG, "Giving up migration from legacy provider after "
+                        + checkpoint.attempts + " attempts");
+            }
+            checkpoint.attempts++;
+            checkpoint.write(migration);
+
             mSchemaLock.writeLock().lock();
             try {
-                // Temporarily drop indexes to improve migration performance
+                // Temporarily drop indexes and triggers to improve migration performance
                 makePristineIndexes(db);
-                migrateFromLegacy(db);
+                makePristineTriggers(db);
+                if (shouldMigrate) {
+                    migrateFromLegacy(db, migration, checkpoint);
+                    rebuildFilesFts(db);
+                }
+                createLatestTriggers(db);
                 createLatestIndexes(db);
+
+                // Clear flag once done; if we die before this point, the next
+                // attempt resumes from the last checkpoint
+                migration.delete();
             } finally {
                 mSchemaLock.writeLock().unlock();
-                // Clear flag, since we should only attempt once
-                migration.delete();
                 Log.v(TAG, "onOpen() finished for " + mName);
             }
         }
@@ -702,6 +755,35 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
          * with other more important tasks.
          */
         public final ArrayList<Runnable> backgroundTasks = new ArrayList<>();
+
+        /**
+         * Map from consumer to the items collected for it during this
+         * transaction, which are handed over in a single batch once the
+         * transaction has been successfully finished.
+         */
+        public final ArrayMap<Consumer<List<Object>>, ArrayList<Object>> batches =
+                new ArrayMap<>();
+
+        /**
+         * Flag indicating if {@link OnFilesChangeListener} callbacks should be
+         * skipped for rows modified on this thread, typically because the
+         * caller is applying internal bulk writes and will dispatch its own
+         * coalesced notifications.
+         */
+        public boolean filesListenerSuppressed;
+    }
+
+    /**
+     * Return if {@link OnFilesChangeListener} callbacks should currently be
+     * skipped on the calling thread, either because a schema change is in
+     * progress or because of {@link #runWithTransactionWithoutFilesListener}.
+     */
+    private boolean isFilesListenerSuppressed() {
+        if (mSchemaLock.isWriteLockedByCurrentThread()) {
+            return true;
+        }
+        final TransactionState state = mTransactionState.get();
+        return state != null && state.filesListenerSuppressed;
     }
 
     public boolean isTransactionActive() {
@@ -778,6 +860,9 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
 
                 // Now that we've finished with all our important work, we can
                 // finally kick off any internal background tasks
+                for (int i = 0; i < state.batches.size(); i++) {
+                    state.batches.keyAt(i).accept(state.batches.valueAt(i));
+                }
                 for (int i = 0; i < state.backgroundTasks.size(); i++) {
                     BackgroundThread.getExecutor().execute(state.backgroundTasks.get(i));
                 }
@@ -811,6 +896,29 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
         }
     }
 
+    /**
+     * Execute the given operation inside a transaction, as with
+     * {@link #runWithTransaction}, but without dispatching
+     * {@link OnFilesChangeListener} callbacks for any rows it modifies.
+     * <p>
+     * This is only intended for internal bulk writes which don't change
+     * ownership, paths or visibility of rows; callers are responsible for
+     * sending any coalesced notifications once the work is finished.
+     */
+    public @NonNull <T> T runWithTransactionWithoutFilesListener(
+            @NonNull Function<SQLiteDatabase, T> op) {
+        return runWithTransaction((db) -> {
+            final TransactionState state = mTransactionState.get();
+            final boolean wasSuppressed = state.filesListenerSuppressed;
+            state.filesListenerSuppressed = true;
+            try {
+                return op.apply(db);
+            } finally {
+                state.filesListenerSuppressed = wasSuppressed;
+            }
+        });
+    }
+
     /**
      * Execute the given operation regardless of the calling thread being in an
      * active transaction or not.
@@ -916,6 +1024,30 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
         }
     }
 
+    /**
+     * Collect the given item into a batch that is handed to {@code consumer}
+     * once any current transaction has finished, together with all other items
+     * collected for the same consumer during that transaction. The consumer is
+     * expected to quickly hand the batch off to its own background worker. If
+     * there is no active transaction, a batch of just this item is immediately
+     * handed over.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> void postBatched(@NonNull Consumer<List<T>> consumer, @NonNull T item) {
+        final TransactionState state = mTransactionState.get();
+        if (state != null) {
+            final Consumer<List<Object>> key = (Consumer<List<Object>>) (Consumer<?>) consumer;
+            ArrayList<Object> batch = state.batches.get(key);
+            if (batch == null) {
+                batch = new ArrayList<>();
+                state.batches.put(key, batch);
+            }
+            batch.add(item);
+        } else {
+            consumer.accept(Collections.singletonList(item));
+        }
+    }
+
     /**
      * This method cleans up any files created by android.media.MiniThumbFile, removed after P.
      * It's triggered during database update only, in order to run only once.
@@ -1002,8 +1134,9 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
 
         makePristineSchema(db);
 
-        db.execSQL("CREATE TABLE local_metadata (generation INTEGER DEFAULT 0)");
-        db.execSQL("INSERT INTO local_metadata VALUES (0)");
+        db.execSQL("CREATE TABLE local_metadata (generation INTEGER DEFAULT 0,"
+                + "deletion_log_generation INTEGER DEFAULT 0)");
+        db.execSQL("INSERT INTO local_metadata (generation) VALUES (0)");
 
         db.execSQL("CREATE TABLE android_metadata (locale TEXT)");
         db.execSQL("CREATE TABLE thumbnails (_id INTEGER PRIMARY KEY,_data TEXT,image_id INTEGER,"
@@ -1051,6 +1184,10 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
         db.execSQL("CREATE TABLE log (time DATETIME, message TEXT)");
         db.execSQL("CREATE TABLE deleted_media (_id INTEGER PRIMARY KEY AUTOINCREMENT,"
                 + "old_id INTEGER UNIQUE, generation_modified INTEGER NOT NULL)");
+        db.execSQL("CREATE TABLE deletion_log (_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+                + "old_id INTEGER NOT NULL, volume_name TEXT,"
+                + "generation_modified INTEGER NOT NULL)");
+        createFilesFtsTable(db);
 
         if (isExternal()) {
             db.execSQL("CREATE TABLE audio_playlists_map (_id INTEGER PRIMARY KEY,"
@@ -1078,8 +1215,13 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
      * if present on this device. We only do this once during early database
      * creation, to help us preserve information like {@link MediaColumns#_ID}
      * and {@link MediaColumns#IS_FAVORITE}.
+     * <p>
+     * Rows are migrated in {@link MediaColumns#_ID} order and the last
+     * committed id is saved to {@code checkpoint} after every batch, so an
+     * interrupted migration continues where it left off.
      */
-    private void migrateFromLegacy(SQLiteDatabase db) {
+    private void migrateFromLegacy(SQLiteDatabase db, File migration,
+            MigrationCheckpoint checkpoint) {
         // TODO: focus this migration on secondary volumes once we have separate
         // databases for each volume; for now only migrate primary storage
 
@@ -1097,26 +1239,53 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
             extras.putInt(MediaStore.QUERY_ARG_MATCH_PENDING, MediaStore.MATCH_INCLUDE);
             extras.putInt(MediaStore.QUERY_ARG_MATCH_TRASHED, MediaStore.MATCH_INCLUDE);
             extras.putInt(MediaStore.QUERY_ARG_MATCH_FAVORITE, MediaStore.MATCH_INCLUDE);
+            extras.putString(ContentResolver.QUERY_ARG_SQL_SELECTION,
+                    MediaColumns._ID + ">?");
+            extras.putStringArray(ContentResolver.QUERY_ARG_SQL_SELECTION_ARGS,
+                    new String[] { String.valueOf(checkpoint.lastMigratedId) });
+            extras.putString(ContentResolver.QUERY_ARG_SQL_SORT_ORDER, MediaColumns._ID);
 
             db.beginTransaction();
-            Log.d(TAG, "Starting migration from legacy provider");
+            Log.d(TAG, "Starting migration from legacy provider after id "
+                    + checkpoint.lastMigratedId);
             if (mMigrationListener != null) {
                 mMigrationListener.onStarted(client, mVolumeName);
             }
             try (Cursor c = client.query(queryUri, sMigrateColumns.toArray(new String[0]),
-                    extras, null)) {
+                    extras, null);
+                    MigrationInserter inserter = new MigrationInserter(db)) {
+                // Resolve column indexes once instead of for every row
+                final int columnCount = sMigrateColumns.size();
+                final int[] columnIndexes = new int[columnCount];
+                for (int i = 0; i < columnCount; i++) {
+                    columnIndexes[i] = c.getColumnIndex(sMigrateColumns.valueAt(i));
+                }
+                final int idIndex = c.getColumnIndex(MediaColumns._ID);
+                final int dataIndex = c.getColumnIndex(MediaColumns.DATA);
+                final int mediaTypeIndex = c.getColumnIndex(FileColumns.MEDIA_TYPE);
+
                 final ContentValues values = new ContentValues();
+                long lastId = checkpoint.lastMigratedId;
                 while (c.moveToNext()) {
                     values.clear();
 
                     // Start by deriving all values from migrated data column,
                     // then overwrite with other migrated columns
-                    final String data = c.getString(c.getColumnIndex(MediaColumns.DATA));
+                    final String data = c.getString(dataIndex);
                     values.put(MediaColumns.DATA, data);
                     FileUtils.computeValuesFromData(values, /*isForFuse*/ false);
                     final String volumeNameFromPath = values.getAsString(MediaColumns.VOLUME_NAME);
-                    for (String column : sMigrateColumns) {
-                        DatabaseUtils.copyFromCursorToContentValues(column, c, values);
+                    for (int i = 0; i < columnCount; i++) {
+                        final int index = columnIndexes[i];
+                        if (index == -1) {
+                            continue;
+                        }
+                        final String column = sMigrateColumns.valueAt(i);
+                        if (c.isNull(index)) {
+                            values.putNull(column);
+                        } else {
+                            values.put(column, c.getString(index));
+                        }
                     }
                     final String volumeNameMigrated = values.getAsString(MediaColumns.VOLUME_NAME);
                     // While upgrading from P OS or below, VOLUME_NAME can be NULL in legacy
@@ -1130,7 +1299,7 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
 
                     // Handle playlist files which may need special handling if
                     // there are no "real" playlist files.
-                    final int mediaType = c.getInt(c.getColumnIndex(FileColumns.MEDIA_TYPE));
+                    final int mediaType = c.getInt(mediaTypeIndex);
                     if (isExternal() && volumePath != null &&
                             mediaType == FileColumns.MEDIA_TYPE_PLAYLIST) {
                         File playlistFile = new File(data);
@@ -1144,7 +1313,7 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
                             String playlistFilePath = data;
                             try {
                                 playlistFilePath = migratePlaylistFiles(client,
-                                        c.getLong(c.getColumnIndex(FileColumns._ID)));
+                                        c.getLong(idIndex));
                                 // Either migration didn't happen or is not necessary because
                                 // playlist file already exists
                                 if (playlistFilePath == null) playlistFilePath = data;
@@ -1178,21 +1347,24 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
                         }
                     }
 
-                    if (db.insert("files", null, values) == -1) {
+                    if (inserter.insert(values) == -1) {
                         // We only have one shot to migrate data, so log and
                         // keep marching forward
                         Log.w(TAG, "Failed to insert " + values + "; continuing");
                     }
+                    lastId = c.getLong(idIndex);
 
                     // To avoid SQLITE_NOMEM errors, we need to periodically
                     // flush the current transaction and start another one
-                    if ((c.getPosition() % 2_000) == 0) {
+                    if (((c.getPosition() + 1) % MIGRATION_BATCH_SIZE) == 0) {
                         db.setTransactionSuccessful();
                         db.endTransaction();
+                        checkpoint.lastMigratedId = lastId;
+                        checkpoint.write(migration);
                         db.beginTransaction();
 
                         // And announce that we're actively making progress
-                        final int progress = c.getPosition();
+                        final int progress = c.getPosition() + 1;
                         final int total = c.getCount();
                         Log.v(TAG, "Migrated " + progress + " of " + total + "...");
                         if (mMigrationListener != null) {
@@ -1212,6 +1384,10 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
             // only have one possible shot, so mark everything successful
             db.setTransactionSuccessful();
             db.endTransaction();
+
+            // Triggers were dropped while migrating, so reconcile the next row
+            // id backup once instead of for every inserted row
+            reconcileNextRowIdBackup(db);
             if (mMigrationListener != null) {
                 mMigrationListener.onFinished(client, mVolumeName);
             }
@@ -1219,6 +1395,101 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
 
     }
 
+    private void reconcileNextRowIdBackup(SQLiteDatabase db) {
+        if (!isNextRowIdBackupEnabled()) {
+            return;
+        }
+        final long maxId = android.database.DatabaseUtils.longForQuery(db,
+                "SELECT IFNULL(MAX(_id), 0) FROM files", null);
+        final Optional<Long> nextRowIdBackup = getNextRowId();
+        if (!nextRowIdBackup.isPresent() || maxId >= nextRowIdBackup.get()) {
+            backupNextRowId(maxId);
+        }
+    }
+
+    /**
+     * Progress of {@link #migrateFromLegacy}, persisted in the migration flag
+     * file so that an interrupted migration resumes after the last committed
+     * row instead of losing the remainder.
+     */
+    @VisibleForTesting
+    static class MigrationCheckpoint {
+        long lastMigratedId;
+        int attempts;
+
+        static MigrationCheckpoint read(File file) {
+            final MigrationCheckpoint checkpoint = new MigrationCheckpoint();
+            try {
+                final String value = FileUtils.readString(file).orElse("").trim();
+                if (!value.isEmpty()) {
+                    final String[] split = value.split(":", 2);
+                    checkpoint.lastMigratedId = Long.parseLong(split[0]);
+                    checkpoint.attempts = Integer.parseInt(split[1]);
+                }
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, "Failed to read migration checkpoint; starting over", e);
+            }
+            return checkpoint;
+        }
+
+        void write(File file) {
+            try {
+                FileUtils.writeString(file, Optional.of(lastMigratedId + ":" + attempts));
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to write migration checkpoint", e);
+            }
+        }
+    }
+
+    /**
+     * Inserts migrated rows into the files table through compiled statements,
+     * reused for all rows with the same set of columns.
+     */
+    private static class MigrationInserter implements AutoCloseable {
+        private final SQLiteDatabase mDb;
+        private final ArrayMap<String, SQLiteStatement> mStatements = new ArrayMap<>();
+
+        MigrationInserter(SQLiteDatabase db) {
+            mDb = db;
+        }
+
+        long insert(ContentValues values) {
+            final String[] columns = values.keySet().toArray(new String[0]);
+            Arrays.sort(columns);
+            final String key = String.join(",", columns);
+            SQLiteStatement statement = mStatements.get(key);
+            if (statement == null) {
+                final StringBuilder sql = new StringBuilder("INSERT INTO files(").append(key)
+                        .append(") VALUES (");
+                for (int i = 0; i < columns.length; i++) {
+                    sql.append(i == 0 ? "?" : ",?");
+                }
+                statement = mDb.compileStatement(sql.append(')').toString());
+                mStatements.put(key, statement);
+            }
+
+            final Object[] bindArgs = new Object[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                bindArgs[i] = values.get(columns[i]);
+            }
+            statement.clearBindings();
+            DatabaseUtils.bindArgs(statement, bindArgs);
+            try {
+                return statement.executeInsert();
+            } catch (SQLException e) {
+                Log.w(TAG, "Failed to insert migrated row", e);
+                return -1;
+            }
+        }
+
+        @Override
+        public void close() {
+            for (int i = 0; i < mStatements.size(); i++) {
+                mStatements.valueAt(i).close();
+            }
+        }
+    }
+
     @Nullable
     private String migratePlaylistFiles(ContentProviderClient client, long playlistId)
             throws IllegalStateException {
@@ -1523,7 +1794,8 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
 
         final String insertArg =
                 "new.volume_name||':'||new._id||':'||new.media_type||':'||new.is_download"
-                + "||':'||new.is_pending";
+                + "||':'||new.is_pending||':'||new.is_trashed"
+                + "||':'||ifnull(new.owner_package_name,'null')||':'||ifnull(new._data,'')";
         final String updateArg =
                 "old.volume_name||':'||old._id||':'||old.media_type||':'||old.is_download"
                         + "||':'||new._id||':'||new.media_type||':'||new.is_download"
@@ -1533,7 +1805,8 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
                         + "||':'||ifnull(old._special_format,0)"
                         + "||':'||ifnull(new._special_format,0)"
                         + "||':'||ifnull(old.owner_package_name,'null')"
-                        + "||':'||ifnull(new.owner_package_name,'null')||':'||old._data";
+                        + "||':'||ifnull(new.owner_package_name,'null')"
+                        + "||':'||length(old._data)||':'||old._data||':'||ifnull(new._data,'')";
         final String deleteArg =
                 "old.volume_name||':'||old._id||':'||old.media_type||':'||old.is_download"
                         + "||':'||ifnull(old.owner_package_name,'null')||':'||old._data";
@@ -1542,8 +1815,43 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
                 + " BEGIN SELECT _INSERT(" + insertArg + "); END");
         db.execSQL("CREATE TRIGGER files_update AFTER UPDATE ON files"
                 + " BEGIN SELECT _UPDATE(" + updateArg + "); END");
+        // Every row reported to _DELETE is also logged, in SQL rather than by the callback, so
+        // that deletions are recorded even while files listener callbacks are suppressed
         db.execSQL("CREATE TRIGGER files_delete AFTER DELETE ON files"
-                + " BEGIN SELECT _DELETE(" + deleteArg + "); END");
+                + " BEGIN INSERT INTO deletion_log (old_id,volume_name,generation_modified)"
+                + " VALUES (old._id,old.volume_name,(" + CURRENT_GENERATION_CLAUSE + "));"
+                + " SELECT _DELETE(" + deleteArg + "); END");
+
+        // Keep the display name search index in step with the files table
+        db.execSQL("CREATE TRIGGER files_fts_insert AFTER INSERT ON files"
+                + " BEGIN INSERT OR REPLACE INTO files_fts (docid,_display_name)"
+                + " VALUES (new._id,new._display_name); END");
+        db.execSQL("CREATE TRIGGER files_fts_update AFTER UPDATE OF _id,_display_name ON files"
+                + " WHEN old._id IS NOT new._id OR old._display_name IS NOT new._display_name"
+                + " BEGIN DELETE FROM files_fts WHERE docid=old._id;"
+                + " INSERT OR REPLACE INTO files_fts (docid,_display_name)"
+                + " VALUES (new._id,new._display_name); END");
+        db.execSQL("CREATE TRIGGER files_fts_delete AFTER DELETE ON files"
+                + " BEGIN DELETE FROM files_fts WHERE docid=old._id; END");
+    }
+
+    /**
+     * Create the {@code files_fts} full-text index of display names, keyed by
+     * {@code docid} matching {@link MediaColumns#_ID}. It's maintained by the
+     * {@code files_fts_*} triggers from {@link #createLatestTriggers}.
+     */
+    private static void createFilesFtsTable(SQLiteDatabase db) {
+        db.execSQL("CREATE VIRTUAL TABLE files_fts USING fts4(_display_name,tokenize=unicode61)");
+    }
+
+    /**
+     * Repopulate {@code files_fts} from the files table, for when rows were
+     * written while its triggers were missing.
+     */
+    private static void rebuildFilesFts(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM files_fts");
+        db.execSQL("INSERT INTO files_fts (docid,_display_name) SELECT _id,_display_name"
+                + " FROM files");
     }
 
     private static void makePristineIndexes(SQLiteDatabase db) {
@@ -1574,6 +1882,17 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
         db.execSQL("CREATE INDEX sort_index ON files(datetaken ASC, _id ASC)");
         db.execSQL("CREATE INDEX title_idx ON files(title)");
         db.execSQL("CREATE INDEX titlekey_index ON files(title_key)");
+        db.execSQL("CREATE INDEX generation_modified_index ON files(generation_modified)");
+        db.execSQL("CREATE INDEX deletion_log_generation_index"
+                + " ON deletion_log(generation_modified)");
+        db.execSQL("CREATE INDEX media_type_date_modified_index"
+                + " ON files(media_type,date_modified)");
+        db.execSQL("CREATE INDEX relative_path_index"
+                + " ON files(volume_name,relative_path,_display_name)");
+        db.execSQL("CREATE INDEX date_expires_index ON files(date_expires)"
+                + " WHERE date_expires IS NOT NULL");
+        db.execSQL("CREATE INDEX owner_package_name_index"
+                + " ON files(owner_package_name,_user_id)");
     }
 
     private static void updateCollationKeys(SQLiteDatabase db) {
@@ -1803,6 +2122,52 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
         db.execSQL("UPDATE files SET _modifier=3;");
     }
 
+    private static void updateAddGenerationModifiedIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX generation_modified_index ON files(generation_modified)");
+    }
+
+    private static void updateAddDeletionLog(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE local_metadata ADD COLUMN"
+                + " deletion_log_generation INTEGER DEFAULT 0;");
+        // Nothing deleted before now was logged
+        db.execSQL("UPDATE local_metadata SET deletion_log_generation=generation;");
+        db.execSQL("CREATE TABLE deletion_log (_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+                + "old_id INTEGER NOT NULL, volume_name TEXT,"
+                + "generation_modified INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX deletion_log_generation_index"
+                + " ON deletion_log(generation_modified)");
+    }
+
+    private static void updateAddFilesFts(SQLiteDatabase db) {
+        // Populated by rebuildFilesFts() once all other upgrade steps are done
+        createFilesFtsTable(db);
+    }
+
+    private static void updateAddMediaTypeDateModifiedIndex(SQLiteDatabase db) {
+        // Lets recents queries walk the most recently modified items of a type without sorting
+        db.execSQL("CREATE INDEX media_type_date_modified_index"
+                + " ON files(media_type,date_modified)");
+    }
+
+    private static void updateAddRelativePathIndex(SQLiteDatabase db) {
+        // Lets directory listings, such as FUSE readdir, find the children of a directory
+        // without scanning every item of the volume
+        db.execSQL("CREATE INDEX relative_path_index"
+                + " ON files(volume_name,relative_path,_display_name)");
+    }
+
+    private static void updateAddDateExpiresIndex(SQLiteDatabase db) {
+        // Only pending and trashed items expire, so the index stays small
+        db.execSQL("CREATE INDEX date_expires_index ON files(date_expires)"
+                + " WHERE date_expires IS NOT NULL");
+    }
+
+    private static void updateAddOwnerPackageNameIndex(SQLiteDatabase db) {
+        // Lets stale package pruning and orphaning go straight to the items of an owner
+        db.execSQL("CREATE INDEX owner_package_name_index"
+                + " ON files(owner_package_name,_user_id)");
+    }
+
     private static void updateAddDeletedMediaTable(SQLiteDatabase db) {
         db.execSQL("CREATE TABLE deleted_media (_id INTEGER PRIMARY KEY AUTOINCREMENT,"
                         + "old_id INTEGER UNIQUE, generation_modified INTEGER NOT NULL)");
@@ -1877,7 +2242,7 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
     static final int VERSION_S = 1209;
     // Leave some gaps in database version tagging to allow S schema changes
     // to go independent of T schema changes.
-    static final int VERSION_T = 1307;
+    static final int VERSION_T = 1315;
     public static final int VERSION_LATEST = VERSION_T;
 
     /**
@@ -2074,6 +2439,30 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
                 // This is to ensure Animated Webp files are tagged
                 updateSpecialFormatToNotDetected(db);
             }
+            if (fromVersion < 1308) {
+                updateAddGenerationModifiedIndex(db);
+            }
+            if (fromVersion < 1309) {
+                updateAddFilesFts(db);
+            }
+            if (fromVersion < 1310) {
+                updateAddMediaTypeDateModifiedIndex(db);
+            }
+            if (fromVersion < 1311) {
+                updateAddRelativePathIndex(db);
+            }
+            if (fromVersion < 1312) {
+                updateAddDateExpiresIndex(db);
+            }
+            if (fromVersion < 1313) {
+                updateAddOwnerPackageNameIndex(db);
+            }
+            if (fromVersion < 1314) {
+                // Empty version bump to ensure triggers are recreated
+            }
+            if (fromVersion < 1315) {
+                updateAddDeletionLog(db);
+            }
 
             // If this is the legacy database, it's not worth recomputing data
             // values locally, since they'll be recomputed after the migration
@@ -2084,6 +2473,9 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
             if (recomputeDataValues) {
                 recomputeDataValues(db);
             }
+            if (fromVersion < 1309) {
+                rebuildFilesFts(db);
+            }
         }
 
         // Always recreate latest views and triggers during upgrade; they're
@@ -2231,6 +2623,34 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
                 CURRENT_GENERATION_CLAUSE + ";", null);
     }
 
+    /**
+     * Return the generation after which the {@code deletion_log} table is
+     * complete. Deletions at or before this generation may have been pruned.
+     */
+    public static long getDeletionLogGeneration(@NonNull SQLiteDatabase db) {
+        return android.database.DatabaseUtils.longForQuery(db,
+                "SELECT deletion_log_generation FROM local_metadata;", null);
+    }
+
+    /**
+     * Drop the oldest entries of the {@code deletion_log} table so that at
+     * most {@code maxEntries} remain, remembering the newest generation that
+     * was dropped.
+     *
+     * @return number of entries dropped.
+     */
+    public int pruneDeletionLog(int maxEntries) {
+        return runWithTransaction((db) -> {
+            final long lastId = android.database.DatabaseUtils.longForQuery(db,
+                    "SELECT IFNULL(MAX(_id),0) FROM deletion_log", null);
+            final String[] args = new String[] { String.valueOf(lastId - maxEntries) };
+            db.execSQL("UPDATE local_metadata SET deletion_log_generation=MAX("
+                    + "deletion_log_generation,IFNULL((SELECT MAX(generation_modified)"
+                    + " FROM deletion_log WHERE _id<=?),0))", args);
+            return db.delete("deletion_log", "_id<=?", args);
+        });
+    }
+
     /**
      * Return total number of items tracked inside this database. This includes
      * only real media items, and does not include directories.
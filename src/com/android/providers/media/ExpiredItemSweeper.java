@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media;
+
+import static com.android.providers.media.util.DatabaseUtils.bindList;
+import static com.android.providers.media.util.Logging.TAG;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.CancellationSignal;
+import android.os.SystemClock;
+import android.provider.MediaStore.Files.FileColumns;
+import android.text.format.DateUtils;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
+import com.android.providers.media.util.FileUtils;
+import com.android.providers.media.util.LongArray;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Deletes expired pending and trashed items on mounted volumes, or extends them if they expired
+ * so long ago that the clock may have been wrong.
+ * <p>
+ * Expired items are found through {@code date_expires_index}, which only holds items with an
+ * expiry time, in {@code (date_expires, _id)} order. Each pass handles at most a bounded number
+ * of items in batches: each batch is read, deleted with one statement per volume and extended
+ * inside a single transaction. Passes resume from the position where the previous one stopped,
+ * so items which keep failing don't starve the ones behind them; once the queue is exhausted the
+ * next pass starts over from the beginning.
+ */
+public class ExpiredItemSweeper {
+    /**
+     * Items which expired less than this long ago are deleted; older ones are extended instead,
+     * since we're cautious about wildly changing clocks.
+     */
+    private static final long DELETE_WINDOW_MILLIS = DateUtils.WEEK_IN_MILLIS;
+
+    private static final String[] PROJECTION = new String[] { FileColumns._ID,
+            FileColumns.DATE_EXPIRES, FileColumns.VOLUME_NAME, FileColumns.DATA };
+
+    /**
+     * Performs the work on individual items, which needs {@link MediaProvider} internals.
+     */
+    public interface Callback {
+        /**
+         * Deletes the items with the given ids on {@code volumeName}, along with their files.
+         *
+         * @return the number of items deleted.
+         */
+        int deleteItems(@NonNull String volumeName, @NonNull LongArray ids);
+
+        /**
+         * Moves an item to a path expiring at {@code expiredTime}, falling back to
+         * {@code adjustedExpiredTime} if that path is taken.
+         *
+         * @return {@code true} if the item was extended.
+         */
+        boolean extendItem(@NonNull SQLiteDatabase db, @NonNull String path, long id,
+                long expiredTime, long adjustedExpiredTime);
+    }
+
+    private final DatabaseHelper mHelper;
+    private final int mBatchSize;
+    private final int mMaxItemsPerPass;
+    private final LongSupplier mClock;
+    private final Callback mCallback;
+
+    private final Object mLock = new Object();
+    private Result mLastResult;
+
+    /**
+     * @param clock source of the current wall clock time in milliseconds.
+     */
+    public ExpiredItemSweeper(@NonNull DatabaseHelper helper, int batchSize, int maxItemsPerPass,
+            @NonNull LongSupplier clock, @NonNull Callback callback) {
+        mHelper = helper;
+        mBatchSize = batchSize;
+        mMaxItemsPerPass = maxItemsPerPass;
+        mClock = clock;
+        mCallback = callback;
+    }
+
+    /**
+     * Result of a single {@link #run} pass.
+     */
+    public static class Result {
+        public final int deletedCount;
+        public final int extendedCount;
+        /** Number of expired items looked at, including the ones which couldn't be handled. */
+        public final int handledCount;
+        /** {@code date_expires} to resume from on the next pass. */
+        public final long resumeDateExpires;
+        /** {@code _id} to resume after on the next pass, among items at resumeDateExpires. */
+        public final long resumeId;
+        public final boolean complete;
+        public final long durationMillis;
+
+        Result(int deletedCount, int extendedCount, int handledCount, long resumeDateExpires,
+                long resumeId, boolean complete, long durationMillis) {
+            this.deletedCount = deletedCount;
+            this.extendedCount = extendedCount;
+            this.handledCount = handledCount;
+            this.resumeDateExpires = resumeDateExpires;
+            this.resumeId = resumeId;
+            this.complete = complete;
+            this.durationMillis = durationMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "handled %d items (deleted %d, extended %d) in %dms, %s",
+                    handledCount, deletedCount, extendedCount, durationMillis,
+                    complete ? "complete" : ("resume at " + resumeDateExpires + "/" + resumeId));
+        }
+    }
+
+    /**
+     * Delete or extend expired items on the given volumes, starting after the position
+     * ({@code resumeDateExpires}, {@code resumeId}) returned by the previous pass, or
+     * {@code (0, 0)} to start from the beginning.
+     */
+    public @NonNull Result run(long resumeDateExpires, long resumeId,
+            @NonNull Collection<String> volumeNames, @NonNull CancellationSignal signal) {
+        final long startTime = SystemClock.elapsedRealtime();
+        final long nowMillis = mClock.getAsLong();
+        final long now = nowMillis / 1000;
+        final long deleteAfter = (nowMillis - DELETE_WINDOW_MILLIS) / 1000;
+        final long expiredTime = now + (FileUtils.DEFAULT_DURATION_EXTENDED / 1000);
+        final String volumes = bindList(volumeNames.toArray());
+
+        long cursorDateExpires = resumeDateExpires;
+        long cursorId = resumeId;
+        int deletedCount = 0;
+        int extendedCount = 0;
+        int handledCount = 0;
+        int extendAttempts = 0;
+        boolean complete = false;
+        while (!signal.isCanceled() && handledCount < mMaxItemsPerPass) {
+            final int limit = Math.min(mBatchSize, mMaxItemsPerPass - handledCount);
+            final long afterDateExpires = cursorDateExpires;
+            final long afterId = cursorId;
+            final int attemptBase = extendAttempts;
+            final Batch batch = new Batch();
+            // Items are read and handled in the same transaction so that nothing can be
+            // restored or untrashed in between
+            final int[] counts = mHelper.runWithTransaction((db) -> {
+                readBatch(db, batch, volumes, now, afterDateExpires, afterId, limit, signal);
+                return handleBatch(db, batch, deleteAfter, expiredTime, attemptBase);
+            });
+            deletedCount += counts[0];
+            extendedCount += counts[1];
+            extendAttempts += counts[2];
+            if (batch.ids.size() > 0) {
+                handledCount += batch.ids.size();
+                cursorDateExpires = batch.dateExpires.get(batch.dateExpires.size() - 1);
+                cursorId = batch.ids.get(batch.ids.size() - 1);
+            }
+            if (batch.ids.size() < limit) {
+                complete = true;
+                break;
+            }
+        }
+
+        final Result result = new Result(deletedCount, extendedCount, handledCount,
+                complete ? 0 : cursorDateExpires, complete ? 0 : cursorId, complete,
+                SystemClock.elapsedRealtime() - startTime);
+        synchronized (mLock) {
+            mLastResult = result;
+        }
+        Log.d(TAG, "Expired items sweep " + result);
+        return result;
+    }
+
+    private void readBatch(@NonNull SQLiteDatabase db, @NonNull Batch batch,
+            @NonNull String volumes, long now, long afterDateExpires, long afterId, int limit,
+            @NonNull CancellationSignal signal) {
+        final String selection = buildSelection(volumes);
+        final String[] selectionArgs = new String[] { String.valueOf(afterDateExpires),
+                String.valueOf(now), String.valueOf(afterDateExpires), String.valueOf(afterId) };
+        try (Cursor c = db.query(/* distinct */ false, "files", PROJECTION, selection,
+                selectionArgs, null, null, FileColumns.DATE_EXPIRES + "," + FileColumns._ID,
+                String.valueOf(limit), signal)) {
+            while (c.moveToNext()) {
+                batch.ids.add(c.getLong(0));
+                batch.dateExpires.add(c.getLong(1));
+                batch.volumeNames.add(c.getString(2));
+                batch.paths.add(c.getString(3));
+            }
+        }
+    }
+
+    /**
+     * Selection of the expired items after a position, taking the resume {@code date_expires},
+     * the current time, the resume {@code date_expires} again and the resume {@code _id} as
+     * arguments.
+     */
+    @VisibleForTesting
+    static @NonNull String buildSelection(@NonNull String volumes) {
+        // The range on date_expires is served by the index, which also holds _id for the
+        // tie-break, so only rows in the queue are ever visited
+        return FileColumns.DATE_EXPIRES + ">=? AND " + FileColumns.DATE_EXPIRES + "<? AND ("
+                + FileColumns.DATE_EXPIRES + ">? OR " + FileColumns._ID + ">?) AND "
+                + FileColumns.VOLUME_NAME + " IN " + volumes;
+    }
+
+    private @NonNull int[] handleBatch(@NonNull SQLiteDatabase db, @NonNull Batch batch,
+            long deleteAfter, long expiredTime, int attemptBase) {
+        final Map<String, LongArray> toDelete = new ArrayMap<>();
+        int extendedCount = 0;
+        int index = attemptBase;
+        for (int i = 0; i < batch.ids.size(); i++) {
+            if (batch.dateExpires.get(i) > deleteAfter) {
+                LongArray ids = toDelete.get(batch.volumeNames.get(i));
+                if (ids == null) {
+                    ids = new LongArray();
+                    toDelete.put(batch.volumeNames.get(i), ids);
+                }
+                ids.add(batch.ids.get(i));
+            } else {
+                // Each item is moved to a path of its own, so this has to go one by one
+                if (mCallback.extendItem(db, batch.paths.get(i), batch.ids.get(i), expiredTime,
+                        expiredTime + index)) {
+                    extendedCount++;
+                }
+                index++;
+            }
+        }
+
+        int deletedCount = 0;
+        for (Map.Entry<String, LongArray> entry : toDelete.entrySet()) {
+            deletedCount += mCallback.deleteItems(entry.getKey(), entry.getValue());
+        }
+        return new int[] { deletedCount, extendedCount, index - attemptBase };
+    }
+
+    public void dump(@NonNull PrintWriter writer) {
+        synchronized (mLock) {
+            writer.println("Expired items sweeper: last pass "
+                    + ((mLastResult != null) ? mLastResult : "never ran"));
+        }
+    }
+
+    private static class Batch {
+        final LongArray ids = new LongArray();
+        final LongArray dateExpires = new LongArray();
+        final ArrayList<String> volumeNames = new ArrayList<>();
+        final ArrayList<String> paths = new ArrayList<>();
+    }
+}
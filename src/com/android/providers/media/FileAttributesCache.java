@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media;
+
+import static com.android.providers.media.util.Logging.TAG;
+
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.LruCache;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import com.android.providers.media.dao.FileRow;
+import com.android.providers.media.util.BackgroundThread;
+import com.android.providers.media.util.LatencyRecorder;
+import com.android.providers.media.util.XAttrUtils;
+
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tiered cache of the {@link FileAccessAttributes} checked on every FUSE file open.
+ * <p>
+ * Lookups are served from an in-memory LRU first, then from the {@code user.fattr} xattr of the
+ * file (if enabled), and finally from the database. Attributes read from the xattr don't carry
+ * the owner package, so they are only used when no ownership check is needed, that is for items
+ * which are neither pending nor trashed.
+ * <p>
+ * Consistency with the database is kept by {@link #onFilesChanged}, which must be called from
+ * every {@link DatabaseHelper.OnFilesChangeListener} callback. Affected paths are invalidated
+ * as soon as the row changes and again once the change is committed, at which point the xattr
+ * rewrite is handed to a background executor, so that no file system calls are made while the
+ * database is being written. The xattr tier is bypassed while any rewrite is still in flight.
+ * Loads record an invalidation token before reading a lower tier and are only cached if no
+ * invalidation happened in the meantime, so a load racing with a write can never leave stale
+ * attributes behind.
+ * <p>
+ * In verifier mode, every lookup not served from the database is cross-checked against it;
+ * mismatches are logged, counted, repaired, and the database attributes are returned.
+ */
+public class FileAttributesCache {
+    public static final int TIER_MEMORY = 0;
+    public static final int TIER_XATTR = 1;
+    public static final int TIER_DATABASE = 2;
+
+    private static final String[] TIER_NAMES = { "memory", "xattr", "database" };
+
+    /**
+     * Loads the attributes of a path from the database.
+     */
+    public interface Loader {
+        @NonNull
+        FileAccessAttributes load(@NonNull String path) throws FileNotFoundException;
+    }
+
+    /**
+     * Reads and writes attributes persisted alongside each file.
+     */
+    public interface XAttrStore {
+        @NonNull
+        Optional<FileAccessAttributes> read(@NonNull String path);
+
+        void write(@NonNull String path, @NonNull FileAccessAttributes attributes);
+
+        void remove(@NonNull String path);
+    }
+
+    /**
+     * {@link XAttrStore} backed by the {@link XAttrUtils#FILE_ACCESS_XATTR_KEY} xattr.
+     */
+    public static final XAttrStore FILE_ACCESS_XATTR_STORE = new XAttrStore() {
+        @Override
+        public Optional<FileAccessAttributes> read(String path) {
+            if (!XAttrUtils.isFileAccessXAttrSupported(path)) {
+                return Optional.empty();
+            }
+            return XAttrUtils.getFileAttributesFromXAttr(path, XAttrUtils.FILE_ACCESS_XATTR_KEY);
+        }
+
+        @Override
+        public void write(String path, FileAccessAttributes attributes) {
+            if (XAttrUtils.isFileAccessXAttrSupported(path)) {
+                XAttrUtils.setFileAttributesToXAttr(path, XAttrUtils.FILE_ACCESS_XATTR_KEY,
+                        attributes);
+            }
+        }
+
+        @Override
+        public void remove(String path) {
+            if (XAttrUtils.isFileAccessXAttrSupported(path)) {
+                XAttrUtils.removeFileAttributesXAttr(path, XAttrUtils.FILE_ACCESS_XATTR_KEY);
+            }
+        }
+    };
+
+    private final LruCache<String, FileAccessAttributes> mCache;
+    private final Loader mLoader;
+    @Nullable
+    private final XAttrStore mXAttrStore;
+    private final Executor mXAttrExecutor;
+    private final boolean mVerify;
+
+    /** Number of xattr rewrites handed to {@link #mXAttrExecutor} which haven't finished yet. */
+    private final AtomicInteger mPendingXAttrWrites = new AtomicInteger();
+
+    /** Bumped on every invalidation, used to reject loads which raced with a change. */
+    private final AtomicLong mInvalidations = new AtomicLong();
+    private final AtomicLong mMismatches = new AtomicLong();
+
+    private final LatencyRecorder[] mLatencies = {
+            new LatencyRecorder(), new LatencyRecorder(), new LatencyRecorder() };
+
+    /**
+     * @param maxSize maximum number of attributes held in memory.
+     * @param xattrStore store used as the second tier, or {@code null} to go straight to the
+     *            database on a memory miss.
+     * @param verify if {@code true}, cross-check every lookup against the database.
+     */
+    public FileAttributesCache(int maxSize, @NonNull Loader loader,
+            @Nullable XAttrStore xattrStore, boolean verify) {
+        this(maxSize, loader, xattrStore, BackgroundThread.getExecutor(), verify);
+    }
+
+    /**
+     * @param xattrExecutor executor running the xattr rewrites of committed changes.
+     */
+    @VisibleForTesting
+    FileAttributesCache(int maxSize, @NonNull Loader loader, @Nullable XAttrStore xattrStore,
+            @NonNull Executor xattrExecutor, boolean verify) {
+        mCache = new LruCache<>(maxSize);
+        mLoader = loader;
+        mXAttrStore = xattrStore;
+        mXAttrExecutor = xattrExecutor;
+        mVerify = verify;
+    }
+
+    /**
+     * Returns the attributes of {@code path} from the fastest tier able to answer.
+     *
+     * @throws FileNotFoundException if the database has no row for {@code path}.
+     */
+    @NonNull
+    public FileAccessAttributes get(@NonNull String path) throws FileNotFoundException {
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
+        final String key = toKey(path);
+
+        int tier = TIER_MEMORY;
+        FileAccessAttributes attributes = mCache.get(key);
+        if (attributes == null) {
+            final long token = mInvalidations.get();
+            attributes = readXAttr(path);
+            if (attributes != null) {
+                tier = TIER_XATTR;
+            } else {
+                attributes = mLoader.load(path);
+                tier = TIER_DATABASE;
+            }
+            putIfNotInvalidated(key, attributes, token);
+        }
+
+        if (mVerify && tier != TIER_DATABASE) {
+            attributes = verify(path, key, tier, attributes);
+        }
+
+        mLatencies[tier].record(SystemClock.elapsedRealtimeNanos() - startNanos);
+        return attributes;
+    }
+
+    /**
+     * Keeps all tiers consistent with a change of the files table. {@code oldRow} is
+     * {@code null} for inserts and {@code newRow} is {@code null} for deletes.
+     */
+    public void onFilesChanged(@NonNull DatabaseHelper helper, @Nullable FileRow oldRow,
+            @Nullable FileRow newRow) {
+        final String oldPath = (oldRow != null) ? oldRow.getPath() : null;
+        final String newPath = (newRow != null) ? newRow.getPath() : null;
+
+        // Readers on other connections keep seeing the old row until the change is committed, so
+        // anything they cache in between is dropped again once it is.
+        invalidate(oldPath);
+        invalidate(newPath);
+        helper.postBlocking(() -> {
+            invalidate(oldPath);
+            invalidate(newPath);
+            if (mXAttrStore == null) {
+                return;
+            }
+            mPendingXAttrWrites.incrementAndGet();
+            mXAttrExecutor.execute(() -> {
+                try {
+                    if (oldPath != null && !oldPath.equalsIgnoreCase(newPath)) {
+                        mXAttrStore.remove(oldPath);
+                    }
+                    if (newPath != null) {
+                        mXAttrStore.write(newPath, toAttributes(newRow));
+                    }
+                } finally {
+                    invalidate(oldPath);
+                    invalidate(newPath);
+                    mPendingXAttrWrites.decrementAndGet();
+                }
+            });
+        });
+    }
+
+    /**
+     * Drops any attributes cached in memory for {@code path}.
+     */
+    public void invalidate(@Nullable String path) {
+        if (path == null) {
+            return;
+        }
+        mInvalidations.incrementAndGet();
+        mCache.remove(toKey(path));
+    }
+
+    /**
+     * Drops all attributes cached in memory, for changes made without
+     * {@link DatabaseHelper.OnFilesChangeListener} callbacks.
+     */
+    public void invalidateAll() {
+        mInvalidations.incrementAndGet();
+        mCache.evictAll();
+    }
+
+    @VisibleForTesting
+    long getMismatchCount() {
+        return mMismatches.get();
+    }
+
+    @VisibleForTesting
+    long getLookupCount(int tier) {
+        return mLatencies[tier].getCount();
+    }
+
+    @Nullable
+    private FileAccessAttributes readXAttr(@NonNull String path) {
+        if (mXAttrStore == null || mPendingXAttrWrites.get() > 0) {
+            // Xattrs may still be stale until all committed changes have been written
+            return null;
+        }
+        final FileAccessAttributes attributes = mXAttrStore.read(path).orElse(null);
+        if (attributes == null || attributes.isPending() || attributes.isTrashed()) {
+            // Ownership checks need the owner package, which only the database has
+            return null;
+        }
+        return attributes;
+    }
+
+    private void putIfNotInvalidated(@NonNull String key, @NonNull FileAccessAttributes attributes,
+            long token) {
+        mCache.put(key, attributes);
+        if (mInvalidations.get() != token) {
+            // Something changed while we were loading; we can't tell whether it was this path
+            mCache.remove(key);
+        }
+    }
+
+    @NonNull
+    private FileAccessAttributes verify(@NonNull String path, @NonNull String key, int tier,
+            @NonNull FileAccessAttributes attributes) throws FileNotFoundException {
+        final FileAccessAttributes expected;
+        try {
+            expected = mLoader.load(path);
+        } catch (FileNotFoundException e) {
+            mMismatches.incrementAndGet();
+            Log.w(TAG, "Attributes for " + path + " served from " + TIER_NAMES[tier]
+                    + " but no longer in database");
+            mCache.remove(key);
+            if (mXAttrStore != null) {
+                mXAttrStore.remove(path);
+            }
+            throw e;
+        }
+
+        if (matches(attributes, expected)) {
+            return attributes;
+        }
+        mMismatches.incrementAndGet();
+        Log.w(TAG, "Attributes for " + path + " served from " + TIER_NAMES[tier]
+                + " were {" + attributes + "} but database has {" + expected + "}");
+        mCache.remove(key);
+        if (mXAttrStore != null) {
+            mXAttrStore.write(path, expected);
+        }
+        return expected;
+    }
+
+    private static boolean matches(@NonNull FileAccessAttributes actual,
+            @NonNull FileAccessAttributes expected) {
+        return actual.getId() == expected.getId()
+                && actual.getMediaType() == expected.getMediaType()
+                && actual.isPending() == expected.isPending()
+                && actual.isTrashed() == expected.isTrashed()
+                && (actual.getOwnerPackageName() == null
+                        || Objects.equals(actual.getOwnerPackageName(),
+                                expected.getOwnerPackageName()));
+    }
+
+    @NonNull
+    private static FileAccessAttributes toAttributes(@NonNull FileRow row) {
+        return new FileAccessAttributes(row.getId(), row.getMediaType(), row.isPending(),
+                row.isTrashed(), /* ownerId */ -1, row.getOwnerPackageName());
+    }
+
+    @NonNull
+    private static String toKey(@NonNull String path) {
+        // Paths are unique in the database regardless of case
+        return path.toLowerCase(Locale.ROOT);
+    }
+
+    public void dump(@NonNull PrintWriter writer) {
+        writer.println("File attributes cache: size=" + mCache.size() + "/" + mCache.maxSize()
+                + " xattr=" + (mXAttrStore != null) + " verify=" + mVerify
+                + " mismatches=" + mMismatches.get());
+        for (int tier = TIER_MEMORY; tier <= TIER_DATABASE; tier++) {
+            writer.println("  " + TIER_NAMES[tier] + ": " + mLatencies[tier]);
+        }
+    }
+}
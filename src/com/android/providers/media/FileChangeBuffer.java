@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media;
+
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.ArrayMap;
+import android.util.LongSparseArray;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import com.android.providers.media.dao.FileRow;
+import com.android.providers.media.util.LatencyRecorder;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * Buffer of the file changes seen by {@link DatabaseHelper.OnFilesChangeListener} whose side
+ * effects don't need to be applied before the change is committed.
+ * <p>
+ * Changes made within a transaction are collected for that transaction, and only queued once it
+ * has been successfully finished. A single worker then drains everything queued so far, merges
+ * all changes made to the same item into a single {@link Change}, and hands them to the
+ * {@link Callback} in one call for each database.
+ */
+public class FileChangeBuffer {
+    /**
+     * Receiver of the merged changes of a drained batch.
+     */
+    public interface Callback {
+        /**
+         * Called on the worker with all changes made to {@code helper} since the previous call,
+         * in the order that the items were first changed.
+         */
+        void onFilesChanged(@NonNull DatabaseHelper helper, @NonNull List<Change> changes);
+    }
+
+    /**
+     * All changes made to a single item since the previous drain.
+     */
+    public static class Change {
+        private final long mId;
+        private final @Nullable FileRow mOldRow;
+        private @NonNull FileRow mLastRow;
+        private boolean mDeleted;
+        private boolean mMediaTypeChanged;
+
+        Change(long id, @Nullable FileRow oldRow, @NonNull FileRow lastRow) {
+            mId = id;
+            mOldRow = oldRow;
+            mLastRow = lastRow;
+        }
+
+        public long getId() {
+            return mId;
+        }
+
+        /**
+         * Returns {@code true} if the item didn't exist before these changes.
+         */
+        public boolean isInserted() {
+            return mOldRow == null;
+        }
+
+        /**
+         * Returns {@code true} if the item no longer exists after these changes.
+         */
+        public boolean isDeleted() {
+            return mDeleted;
+        }
+
+        /**
+         * Returns {@code true} if the media type of the item changed at any point, even if it
+         * was later changed back.
+         */
+        public boolean isMediaTypeChanged() {
+            return mMediaTypeChanged;
+        }
+
+        /**
+         * Returns the item before these changes, or {@code null} if it was inserted.
+         */
+        public @Nullable FileRow getOldRow() {
+            return mOldRow;
+        }
+
+        /**
+         * Returns the item after these changes, or when it was deleted, the item just before
+         * its deletion.
+         */
+        public @NonNull FileRow getLastRow() {
+            return mLastRow;
+        }
+    }
+
+    /**
+     * A single change reported by {@link DatabaseHelper.OnFilesChangeListener}.
+     */
+    @VisibleForTesting
+    static class Event {
+        final DatabaseHelper helper;
+        final @Nullable FileRow oldRow;
+        final @Nullable FileRow newRow;
+
+        Event(@NonNull DatabaseHelper helper, @Nullable FileRow oldRow, @Nullable FileRow newRow) {
+            this.helper = helper;
+            this.oldRow = oldRow;
+            this.newRow = newRow;
+        }
+    }
+
+    private static class Batch {
+        final List<Event> events;
+        final long queuedTime;
+
+        Batch(@NonNull List<Event> events, long queuedTime) {
+            this.events = events;
+            this.queuedTime = queuedTime;
+        }
+    }
+
+    private final Callback mCallback;
+    private final Executor mExecutor;
+    private final Consumer<List<Event>> mEnqueue = this::enqueue;
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final ArrayList<Batch> mQueue = new ArrayList<>();
+    @GuardedBy("mLock")
+    private int mQueueLength;
+    @GuardedBy("mLock")
+    private boolean mDrainScheduled;
+    @GuardedBy("mLock")
+    private long mEventCount;
+    @GuardedBy("mLock")
+    private long mChangeCount;
+
+    /** Time from a batch being queued until it has been drained. */
+    private final LatencyRecorder mDrainLatency = new LatencyRecorder();
+
+    public FileChangeBuffer(@NonNull Callback callback, @NonNull Executor executor) {
+        mCallback = callback;
+        mExecutor = executor;
+    }
+
+    public void onInsert(@NonNull DatabaseHelper helper, @NonNull FileRow insertedRow) {
+        helper.postBatched(mEnqueue, new Event(helper, null, insertedRow));
+    }
+
+    public void onUpdate(@NonNull DatabaseHelper helper, @NonNull FileRow oldRow,
+            @NonNull FileRow newRow) {
+        helper.postBatched(mEnqueue, new Event(helper, oldRow, newRow));
+    }
+
+    public void onDelete(@NonNull DatabaseHelper helper, @NonNull FileRow deletedRow) {
+        helper.postBatched(mEnqueue, new Event(helper, deletedRow, null));
+    }
+
+    /**
+     * Returns the number of events queued but not yet drained.
+     */
+    public int getQueueLength() {
+        synchronized (mLock) {
+            return mQueueLength;
+        }
+    }
+
+    @VisibleForTesting
+    void enqueue(@NonNull List<Event> events) {
+        final Batch batch = new Batch(events, SystemClock.elapsedRealtimeNanos());
+        synchronized (mLock) {
+            mQueue.add(batch);
+            mQueueLength += events.size();
+            mEventCount += events.size();
+            if (mDrainScheduled) return;
+            mDrainScheduled = true;
+        }
+        mExecutor.execute(this::drain);
+    }
+
+    private void drain() {
+        final ArrayList<Batch> batches;
+        synchronized (mLock) {
+            batches = new ArrayList<>(mQueue);
+            mQueue.clear();
+            mDrainScheduled = false;
+        }
+
+        int drained = 0;
+        for (Batch batch : batches) {
+            drained += batch.events.size();
+        }
+
+        Trace.beginSection("FileChangeBuffer.drain");
+        try {
+            final ArrayMap<DatabaseHelper, List<Change>> changes = merge(batches);
+            int merged = 0;
+            for (int i = 0; i < changes.size(); i++) {
+                mCallback.onFilesChanged(changes.keyAt(i), changes.valueAt(i));
+                merged += changes.valueAt(i).size();
+            }
+            synchronized (mLock) {
+                mChangeCount += merged;
+            }
+        } finally {
+            final long now = SystemClock.elapsedRealtimeNanos();
+            for (Batch batch : batches) {
+                mDrainLatency.record(now - batch.queuedTime);
+            }
+            synchronized (mLock) {
+                mQueueLength -= drained;
+            }
+            Trace.endSection();
+        }
+    }
+
+    private static @NonNull ArrayMap<DatabaseHelper, List<Change>> merge(
+            @NonNull List<Batch> batches) {
+        final ArrayMap<DatabaseHelper, List<Change>> changes = new ArrayMap<>();
+        final ArrayMap<DatabaseHelper, LongSparseArray<Change>> pending = new ArrayMap<>();
+        for (Batch batch : batches) {
+            for (Event event : batch.events) {
+                List<Change> helperChanges = changes.get(event.helper);
+                LongSparseArray<Change> helperPending = pending.get(event.helper);
+                if (helperChanges == null) {
+                    helperChanges = new ArrayList<>();
+                    helperPending = new LongSparseArray<>();
+                    changes.put(event.helper, helperChanges);
+                    pending.put(event.helper, helperPending);
+                }
+
+                final long id = (event.oldRow != null) ? event.oldRow.getId()
+                        : event.newRow.getId();
+                Change change = helperPending.get(id);
+                if (change == null || change.mDeleted) {
+                    // First change to this item, or it's being inserted again after a delete
+                    change = new Change(id, event.oldRow,
+                            (event.newRow != null) ? event.newRow : event.oldRow);
+                    helperChanges.add(change);
+                    helperPending.put(id, change);
+                    if (event.oldRow != null && event.newRow != null) {
+                        change.mMediaTypeChanged =
+                                event.oldRow.getMediaType() != event.newRow.getMediaType();
+                    }
+                } else if (event.newRow != null) {
+                    change.mMediaTypeChanged |=
+                            change.mLastRow.getMediaType() != event.newRow.getMediaType();
+                    change.mLastRow = event.newRow;
+                } else {
+                    change.mLastRow = event.oldRow;
+                }
+                change.mDeleted = (event.newRow == null);
+            }
+        }
+        return changes;
+    }
+
+    public void dump(@NonNull PrintWriter writer) {
+        synchronized (mLock) {
+            writer.println("File change buffer: queued=" + mQueueLength + " events=" + mEventCount
+                    + " changes=" + mChangeCount);
+        }
+        writer.println("  drain: " + mDrainLatency);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Wrapper class which packs {@link FileLookupResult} values for many paths into flat arrays, so
+ * that the FUSE daemon can read back a batched transform lookup with a handful of JNI calls
+ * instead of one object per path.
+ */
+public final class FileLookupBatchResult {
+    /** Number of ints stored in {@link #values} for each path. */
+    public static final int VALUES_PER_PATH = 4;
+
+    /** Set when the lookup for a path succeeded; other values are meaningless otherwise. */
+    public static final int FLAG_VALID = 1;
+    public static final int FLAG_TRANSFORMS_COMPLETE = 1 << 1;
+    public static final int FLAG_TRANSFORMS_SUPPORTED = 1 << 2;
+
+    /**
+     * For each path in order: transforms, transformsReason, uid and a combination of the
+     * {@code FLAG_} values above.
+     */
+    public final int[] values;
+    /** ioPath for each path in order, never {@code null}. */
+    public final String[] ioPaths;
+
+    private FileLookupBatchResult(int[] values, String[] ioPaths) {
+        this.values = values;
+        this.ioPaths = ioPaths;
+    }
+
+    /**
+     * Pack the given results, where a {@code null} entry marks a failed lookup.
+     */
+    @NonNull
+    public static FileLookupBatchResult pack(@NonNull FileLookupResult[] results) {
+        final int[] values = new int[results.length * VALUES_PER_PATH];
+        final String[] ioPaths = new String[results.length];
+        for (int i = 0; i < results.length; i++) {
+            final FileLookupResult result = results[i];
+            final int offset = i * VALUES_PER_PATH;
+            if (result == null) {
+                ioPaths[i] = "";
+                continue;
+            }
+
+            int flags = FLAG_VALID;
+            if (result.transformsComplete) flags |= FLAG_TRANSFORMS_COMPLETE;
+            if (result.transformsSupported) flags |= FLAG_TRANSFORMS_SUPPORTED;
+            values[offset] = result.transforms;
+            values[offset + 1] = result.transformsReason;
+            values[offset + 2] = result.uid;
+            values[offset + 3] = flags;
+            ioPaths[i] = (result.ioPath != null) ? result.ioPath : "";
+        }
+        return new FileLookupBatchResult(values, ioPaths);
+    }
+
+    public int size() {
+        return ioPaths.length;
+    }
+
+    /**
+     * Unpack the result for the path at the given index, or {@code null} if that lookup failed.
+     */
+    @Nullable
+    public FileLookupResult get(int index) {
+        final int offset = index * VALUES_PER_PATH;
+        final int flags = values[offset + 3];
+        if ((flags & FLAG_VALID) == 0) {
+            return null;
+        }
+        return new FileLookupResult(values[offset], values[offset + 1], values[offset + 2],
+                (flags & FLAG_TRANSFORMS_COMPLETE) != 0, (flags & FLAG_TRANSFORMS_SUPPORTED) != 0,
+                ioPaths[index]);
+    }
+}
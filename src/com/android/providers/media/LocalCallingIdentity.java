@@ -291,6 +291,14 @@ public class LocalCallingIdentity {
     public static final int APPOP_REQUEST_INSTALL_PACKAGES_FOR_SHARED_UID = 1 << 25;
     public static final int PERMISSION_ACCESS_MTP = 1 << 26;
 
+    /**
+     * Permissions consulted on nearly every request before any item is looked at, which
+     * {@link #resolveCommonPermissions()} resolves up front. Media permissions and the manager
+     * check are left out, since checking them notes access to their app-ops.
+     */
+    public static final int COMMON_PERMISSIONS = PERMISSION_IS_SELF | PERMISSION_IS_SHELL
+            | PERMISSION_IS_DELEGATOR | PERMISSION_IS_LEGACY_GRANTED;
+
     private volatile int hasPermission;
     private volatile int hasPermissionResolved;
 
@@ -304,6 +312,20 @@ public class LocalCallingIdentity {
         return (hasPermission & permission) != 0;
     }
 
+    /**
+     * Resolves all of {@link #COMMON_PERMISSIONS} that aren't resolved yet in one pass.
+     */
+    public void resolveCommonPermissions() {
+        final int missing = COMMON_PERMISSIONS & ~hasPermissionResolved;
+        for (int remaining = missing; remaining != 0; remaining &= remaining - 1) {
+            final int permission = Integer.lowestOneBit(remaining);
+            if (hasPermissionInternal(permission)) {
+                hasPermission |= permission;
+            }
+        }
+        hasPermissionResolved |= missing;
+    }
+
     private boolean hasPermissionInternal(int permission) {
         boolean targetSdkIsAtLeastT = getTargetSdkVersion() > Build.VERSION_CODES.S_V2;
         // While we're here, enforce any broad user-level restrictions
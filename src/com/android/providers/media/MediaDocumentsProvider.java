@@ -295,8 +295,17 @@ public class MediaDocumentsProvider extends DocumentsProvider {
         final List<String> selectionArgs = new ArrayList<>();
 
         if (!displayName.isEmpty()) {
-            selection.append(columnDisplayName + " LIKE ?");
-            selectionArgs.add("%" + displayName + "%");
+            final String match = buildDisplayNameMatch(displayName);
+            if (match != null) {
+                // Served by the files_fts index that DatabaseHelper keeps in
+                // step with the files table
+                selection.append(BaseColumns._ID
+                        + " IN (SELECT docid FROM files_fts WHERE files_fts MATCH ?)");
+                selectionArgs.add(match);
+            } else {
+                selection.append(columnDisplayName + " LIKE ?");
+                selectionArgs.add("%" + displayName + "%");
+            }
         }
 
         if (lastModifiedAfter != -1) {
@@ -363,6 +372,45 @@ public class MediaDocumentsProvider extends DocumentsProvider {
         return new Pair<>(selection.toString(), selectionArgs.toArray(new String[0]));
     }
 
+    /**
+     * Returns a full-text {@code MATCH} expression finding display names with
+     * a word starting with each word of {@code displayName}, or {@code null}
+     * if {@code displayName} has no letters or digits to match on.
+     */
+    @Nullable
+    static String buildDisplayNameMatch(String displayName) {
+        final StringBuilder match = new StringBuilder();
+        // Only letters and digits are kept, so the user can't inject query syntax
+        for (String word : displayName.split("[^\\p{L}\\p{N}]+")) {
+            if (word.isEmpty()) continue;
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            match.append(word.toLowerCase(Locale.ROOT)).append('*');
+        }
+        return (match.length() > 0) ? match.toString() : null;
+    }
+
+    /**
+     * Returns the query arguments of a recents or search query, most recently
+     * modified items first, limited to {@code limit} items unless negative.
+     */
+    private static Bundle buildQueryArgs(@Nullable Pair<String, String[]> selectionPair,
+            String columnLastModified, int limit) {
+        final Bundle queryArgs = new Bundle();
+        if (selectionPair != null) {
+            queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SELECTION, selectionPair.first);
+            queryArgs.putStringArray(ContentResolver.QUERY_ARG_SQL_SELECTION_ARGS,
+                    selectionPair.second);
+        }
+        queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SORT_ORDER,
+                columnLastModified + " DESC");
+        if (limit >= 0) {
+            queryArgs.putString(QUERY_ARG_SQL_LIMIT, String.valueOf(limit));
+        }
+        return queryArgs;
+    }
+
     static Pair<String, String[]> addDocumentSelection(String selection,
             String[] selectionArgs) {
         String retSelection = "";
@@ -857,30 +905,31 @@ public class MediaDocumentsProvider extends DocumentsProvider {
 
         Cursor cursor = null;
         try {
+            // The limit is applied in SQL, so that walking media_type_date_modified_index
+            // backwards costs O(limit) regardless of the size of the library
             if (TYPE_IMAGES_ROOT.equals(rootId)) {
                 // include all unique buckets
-                cursor = resolver.query(Images.Media.EXTERNAL_CONTENT_URI,
-                        ImageQuery.PROJECTION, null, null, ImageColumns.DATE_MODIFIED + " DESC");
+                cursor = resolver.query(Images.Media.EXTERNAL_CONTENT_URI, ImageQuery.PROJECTION,
+                        buildQueryArgs(null, ImageColumns.DATE_MODIFIED, limit), signal);
                 result.setNotificationUri(resolver, Images.Media.EXTERNAL_CONTENT_URI);
-                while (cursor.moveToNext() && result.getCount() < limit) {
+                while (cursor.moveToNext()) {
                     includeImage(result, cursor);
                 }
             } else if (TYPE_VIDEOS_ROOT.equals(rootId)) {
                 // include all unique buckets
-                cursor = resolver.query(Video.Media.EXTERNAL_CONTENT_URI,
-                        VideoQuery.PROJECTION, null, null, VideoColumns.DATE_MODIFIED + " DESC");
+                cursor = resolver.query(Video.Media.EXTERNAL_CONTENT_URI, VideoQuery.PROJECTION,
+                        buildQueryArgs(null, VideoColumns.DATE_MODIFIED, limit), signal);
                 result.setNotificationUri(resolver, Video.Media.EXTERNAL_CONTENT_URI);
-                while (cursor.moveToNext() && result.getCount() < limit) {
+                while (cursor.moveToNext()) {
                     includeVideo(result, cursor);
                 }
             } else if (TYPE_DOCUMENTS_ROOT.equals(rootId)) {
                 // include all unique buckets
                 final Pair<String, String[]> selectionPair = addDocumentSelection(null, null);
                 cursor = resolver.query(Files.EXTERNAL_CONTENT_URI, DocumentQuery.PROJECTION,
-                        selectionPair.first, selectionPair.second,
-                        FileColumns.DATE_MODIFIED + " DESC");
+                        buildQueryArgs(selectionPair, FileColumns.DATE_MODIFIED, limit), signal);
                 result.setNotificationUri(resolver, Files.EXTERNAL_CONTENT_URI);
-                while (cursor.moveToNext() && result.getCount() < limit) {
+                while (cursor.moveToNext()) {
                     includeDocument(result, cursor);
                 }
             } else {
@@ -909,6 +958,7 @@ public class MediaDocumentsProvider extends DocumentsProvider {
         final long fileSizeOver = queryArgs.getLong(DocumentsContract.QUERY_ARG_FILE_SIZE_OVER,
                 -1 /* defaultValue */);
         final String[] mimeTypes = queryArgs.getStringArray(DocumentsContract.QUERY_ARG_MIME_TYPES);
+        final int limit = queryArgs.getInt(ContentResolver.QUERY_ARG_LIMIT, -1);
         final ArrayList<String> matchedMimeTypes = new ArrayList<>();
 
         Cursor cursor = null;
@@ -928,8 +978,8 @@ public class MediaDocumentsProvider extends DocumentsProvider {
 
                     cursor = resolver.query(Images.Media.EXTERNAL_CONTENT_URI,
                             ImageQuery.PROJECTION,
-                            selectionPair.first, selectionPair.second,
-                            ImageColumns.DATE_MODIFIED + " DESC");
+                            buildQueryArgs(selectionPair, ImageColumns.DATE_MODIFIED, limit),
+                            null);
 
                     result.setNotificationUri(resolver, Images.Media.EXTERNAL_CONTENT_URI);
                     while (cursor.moveToNext()) {
@@ -948,8 +998,8 @@ public class MediaDocumentsProvider extends DocumentsProvider {
                             fileSizeOver, VideoColumns.DISPLAY_NAME, VideoColumns.MIME_TYPE,
                             VideoColumns.DATE_MODIFIED, VideoColumns.SIZE);
                     cursor = resolver.query(Video.Media.EXTERNAL_CONTENT_URI, VideoQuery.PROJECTION,
-                            selectionPair.first, selectionPair.second,
-                            VideoColumns.DATE_MODIFIED + " DESC");
+                            buildQueryArgs(selectionPair, VideoColumns.DATE_MODIFIED, limit),
+                            null);
                     result.setNotificationUri(resolver, Video.Media.EXTERNAL_CONTENT_URI);
                     while (cursor.moveToNext()) {
                         includeVideo(result, cursor);
@@ -968,8 +1018,8 @@ public class MediaDocumentsProvider extends DocumentsProvider {
                             AudioColumns.DATE_MODIFIED, AudioColumns.SIZE);
 
                     cursor = resolver.query(Audio.Media.EXTERNAL_CONTENT_URI, SongQuery.PROJECTION,
-                            selectionPair.first, selectionPair.second,
-                            AudioColumns.DATE_MODIFIED + " DESC");
+                            buildQueryArgs(selectionPair, AudioColumns.DATE_MODIFIED, limit),
+                            null);
                     result.setNotificationUri(resolver, Audio.Media.EXTERNAL_CONTENT_URI);
                     while (cursor.moveToNext()) {
                         includeAudio(result, cursor);
@@ -984,8 +1034,8 @@ public class MediaDocumentsProvider extends DocumentsProvider {
                         initialSelectionPair.first, initialSelectionPair.second);
 
                 cursor = resolver.query(Files.EXTERNAL_CONTENT_URI, DocumentQuery.PROJECTION,
-                        selectionPair.first, selectionPair.second,
-                        FileColumns.DATE_MODIFIED + " DESC");
+                        buildQueryArgs(selectionPair, FileColumns.DATE_MODIFIED, limit),
+                        null);
                 result.setNotificationUri(resolver, Files.EXTERNAL_CONTENT_URI);
                 while (cursor.moveToNext()) {
                     includeDocument(result, cursor);
@@ -1034,6 +1084,10 @@ public class MediaDocumentsProvider extends DocumentsProvider {
         if (queryArgs.keySet().contains(QUERY_ARG_MIME_TYPES)) {
             args.add(QUERY_ARG_MIME_TYPES);
         }
+
+        if (queryArgs.keySet().contains(ContentResolver.QUERY_ARG_LIMIT)) {
+            args.add(ContentResolver.QUERY_ARG_LIMIT);
+        }
         return args.toArray(new String[0]);
     }
 
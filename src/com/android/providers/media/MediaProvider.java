@@ -27,10 +27,6 @@ import static android.content.pm.PackageManager.PERMISSION_GRANTED;
 import static android.database.Cursor.FIELD_TYPE_BLOB;
 import static android.provider.CloudMediaProviderContract.EXTRA_ASYNC_CONTENT_PROVIDER;
 import static android.provider.CloudMediaProviderContract.METHOD_GET_ASYNC_CONTENT_PROVIDER;
-import static android.provider.MediaStore.Files.FileColumns.MEDIA_TYPE;
-import static android.provider.MediaStore.Files.FileColumns.MEDIA_TYPE_IMAGE;
-import static android.provider.MediaStore.Files.FileColumns._SPECIAL_FORMAT;
-import static android.provider.MediaStore.Files.FileColumns._SPECIAL_FORMAT_NONE;
 import static android.provider.MediaStore.MATCH_DEFAULT;
 import static android.provider.MediaStore.MATCH_EXCLUDE;
 import static android.provider.MediaStore.MATCH_INCLUDE;
@@ -135,9 +131,11 @@ import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.content.UriMatcher;
 import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageInstaller.SessionInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.pm.PackageManager.OnPermissionsChangedListener;
 import android.content.pm.PermissionGroupInfo;
 import android.content.pm.ProviderInfo;
 import android.content.res.AssetFileDescriptor;
@@ -147,6 +145,7 @@ import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.drawable.Icon;
@@ -168,6 +167,7 @@ import android.os.Parcelable;
 import android.os.Process;
 import android.os.RemoteException;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.Trace;
 import android.os.UserHandle;
 import android.os.UserManager;
@@ -237,14 +237,15 @@ import com.android.providers.media.util.DatabaseUtils;
 import com.android.providers.media.util.FileUtils;
 import com.android.providers.media.util.ForegroundThread;
 import com.android.providers.media.util.IsoInterface;
+import com.android.providers.media.util.LatencyRecorder;
 import com.android.providers.media.util.Logging;
 import com.android.providers.media.util.LongArray;
 import com.android.providers.media.util.Metrics;
 import com.android.providers.media.util.MimeUtils;
+import com.android.providers.media.util.PermissionGrantCache;
 import com.android.providers.media.util.PermissionUtils;
 import com.android.providers.media.util.Preconditions;
 import com.android.providers.media.util.SQLiteQueryBuilder;
-import com.android.providers.media.util.SpecialFormatDetector;
 import com.android.providers.media.util.StringUtils;
 import com.android.providers.media.util.UserCache;
 import com.android.providers.media.util.XAttrUtils;
@@ -269,6 +270,8 @@ import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -377,6 +380,36 @@ public class MediaProvider extends ContentProvider {
      */
     private static final int IDLE_MAINTENANCE_ROWS_LIMIT = 1000;
 
+    /**
+     * Maximum number of ids returned by a single {@link MediaStore#GET_DELETED_IDS_CALL}.
+     */
+    private static final int DELETED_IDS_PAGE_SIZE = 5000;
+
+    /**
+     * Number of files whose access attributes are kept in memory for FUSE file opens.
+     */
+    private static final int FILE_ATTRIBUTES_CACHE_SIZE = 1000;
+
+    /**
+     * Key of the {@code _id} from which {@link #detectSpecialFormat} resumes after an interrupted
+     * idle pass.
+     */
+    private static final String SPECIAL_FORMAT_RESUME_ID_KEY = "special_format_resume_id";
+
+    /**
+     * Maximum number of expired items {@link #deleteOrExtendExpiredItems} handles in one idle
+     * pass; the rest are picked up by later passes.
+     */
+    private static final int EXPIRED_ITEMS_PER_PASS_LIMIT = 10 * IDLE_MAINTENANCE_ROWS_LIMIT;
+
+    /**
+     * Keys of the position from which {@link #deleteOrExtendExpiredItems} resumes after a bounded
+     * or interrupted idle pass.
+     */
+    private static final String EXPIRED_ITEMS_RESUME_DATE_EXPIRES_KEY =
+            "expired_items_resume_date_expires";
+    private static final String EXPIRED_ITEMS_RESUME_ID_KEY = "expired_items_resume_id";
+
     /**
      * Where clause to match pending files from FUSE. Pending files from FUSE will not have
      * PATTERN_PENDING_FILEPATH_FOR_SQL pattern.
@@ -497,6 +530,7 @@ public class MediaProvider extends ContentProvider {
     private PickerUriResolver mPickerUriResolver;
 
     private UserCache mUserCache;
+    private PackageSetCache mPackageSetCache;
     private VolumeCache mVolumeCache;
 
     private int mExternalStorageAuthorityAppId;
@@ -533,8 +567,21 @@ public class MediaProvider extends ContentProvider {
     private final SparseArray<LocalCallingIdentity> mCachedCallingIdentityForFuse =
             new SparseArray<>();
 
+    /**
+     * Permission grants and app-op modes shared by all permission checks of this process,
+     * invalidated whenever the permissions, app-ops or packages of a UID change. Only the app-ops
+     * watched by {@link #mModeListener} may be looked up through it.
+     */
+    private final PermissionGrantCache mPermissionGrantCache = new PermissionGrantCache();
+
+    /** Time taken to create and resolve a {@link LocalCallingIdentity} for FUSE. */
+    private final LatencyRecorder mIdentityResolveLatency = new LatencyRecorder();
+
     private OnOpChangedListener mModeListener =
-            (op, packageName) -> invalidateLocalCallingIdentityCache(packageName, "op " + op);
+            (op, packageName) -> invalidatePermissionDecisions(packageName, "op " + op);
+
+    private final OnPermissionsChangedListener mPermissionsListener =
+            (uid) -> invalidatePermissionDecisions(uid, "permissions");
 
     /**
      * Retrieves a cached calling identity or creates a new one. Also, always sets the app-op
@@ -545,7 +592,10 @@ public class MediaProvider extends ContentProvider {
             PermissionUtils.setOpDescription("via FUSE");
             LocalCallingIdentity identity = mCachedCallingIdentityForFuse.get(uid);
             if (identity == null) {
+               final long startTime = SystemClock.elapsedRealtimeNanos();
                identity = LocalCallingIdentity.fromExternal(getContext(), mUserCache, uid);
+               identity.resolveCommonPermissions();
+               mIdentityResolveLatency.record(SystemClock.elapsedRealtimeNanos() - startTime);
                if (uidToUserId(uid) == sUserId) {
                    mCachedCallingIdentityForFuse.put(uid, identity);
                } else {
@@ -619,10 +669,15 @@ public class MediaProvider extends ContentProvider {
                     Uri uri = intent.getData();
                     String pkg = uri != null ? uri.getSchemeSpecificPart() : null;
                     if (pkg != null) {
-                        invalidateLocalCallingIdentityCache(pkg, "package " + intent.getAction());
+                        invalidatePermissionDecisions(pkg, "package " + intent.getAction());
                         if (Intent.ACTION_PACKAGE_REMOVED.equals(intent.getAction())) {
                             mUserCache.invalidateWorkProfileOwnerApps(pkg);
                             mPickerSyncController.notifyPackageRemoval(pkg);
+                            if (!intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)) {
+                                mPackageSetCache.onPackageRemoved(pkg, sUserId);
+                            }
+                        } else {
+                            mPackageSetCache.onPackageAdded(pkg, sUserId);
                         }
                     } else {
                         Log.w(TAG, "Failed to retrieve package from intent: " + intent.getAction());
@@ -670,6 +725,34 @@ public class MediaProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Invalidates both the {@link LocalCallingIdentity} cache and the shared permission decisions
+     * of {@code packageName}, for when its permissions, app-ops or packages have changed.
+     */
+    private void invalidatePermissionDecisions(String packageName, String reason) {
+        synchronized (mCachedCallingIdentityForFuse) {
+            try {
+                Log.i(TAG, "Invalidating permission decisions for package " + packageName
+                        + ". Reason: " + reason);
+                final int uid = getContext().getPackageManager().getPackageUid(packageName, 0);
+                mCachedCallingIdentityForFuse.remove(uid);
+                mPermissionGrantCache.invalidate(uid);
+            } catch (NameNotFoundException ignored) {
+                // The package is gone, so we can't tell which UID its decisions were stored for
+                mPermissionGrantCache.invalidateAll();
+            }
+        }
+    }
+
+    private void invalidatePermissionDecisions(int uid, String reason) {
+        synchronized (mCachedCallingIdentityForFuse) {
+            Log.i(TAG, "Invalidating permission decisions for uid " + uid
+                    + ". Reason: " + reason);
+            mCachedCallingIdentityForFuse.remove(uid);
+            mPermissionGrantCache.invalidate(uid);
+        }
+    }
+
     private final void updateQuotaTypeForUri(@NonNull Uri uri, int mediaType) {
         Trace.beginSection("updateQuotaTypeForUri");
         File file;
@@ -732,65 +815,30 @@ public class MediaProvider extends ContentProvider {
         @Override
         public void onInsert(@NonNull DatabaseHelper helper, @NonNull FileRow insertedRow) {
             handleInsertedRowForFuse(insertedRow.getId());
+            mFileAttributesCache.onFilesChanged(helper, null, insertedRow);
             acceptWithExpansion(helper::notifyInsert, insertedRow.getVolumeName(),
                     insertedRow.getId(), insertedRow.getMediaType(), insertedRow.isDownload());
             updateNextRowIdXattr(helper, insertedRow.getId());
-            helper.postBackground(() -> {
-                if (helper.isExternal()) {
-                    // Update the quota type on the filesystem
-                    Uri fileUri = MediaStore.Files.getContentUri(insertedRow.getVolumeName(),
-                            insertedRow.getId());
-                    updateQuotaTypeForUri(fileUri, insertedRow.getMediaType());
-                }
-
-                // Tell our SAF provider so it knows when views are no longer empty
-                MediaDocumentsProvider.onMediaStoreInsert(getContext(), insertedRow.getVolumeName(),
-                        insertedRow.getMediaType(), insertedRow.getId());
-
-                if (mExternalDbFacade.onFileInserted(insertedRow.getMediaType(),
-                        insertedRow.isPending())) {
-                    mPickerSyncController.notifyMediaEvent();
-                }
-            });
+            mFileChangeBuffer.onInsert(helper, insertedRow);
         }
 
         @Override
         public void onUpdate(@NonNull DatabaseHelper helper, @NonNull FileRow oldRow,
                 @NonNull FileRow newRow) {
             final boolean isDownload = oldRow.isDownload() || newRow.isDownload();
-            final Uri fileUri = MediaStore.Files.getContentUri(oldRow.getVolumeName(),
-                    oldRow.getId());
             handleUpdatedRowForFuse(oldRow.getPath(), oldRow.getOwnerPackageName(), oldRow.getId(),
                     newRow.getId());
             handleOwnerPackageNameChange(oldRow.getPath(), oldRow.getOwnerPackageName(),
                     newRow.getOwnerPackageName());
+            mFileAttributesCache.onFilesChanged(helper, oldRow, newRow);
             acceptWithExpansion(helper::notifyUpdate, oldRow.getVolumeName(), oldRow.getId(),
                     oldRow.getMediaType(), isDownload);
             updateNextRowIdXattr(helper, newRow.getId());
-            helper.postBackground(() -> {
-                if (helper.isExternal()) {
-                    // Update the quota type on the filesystem
-                    updateQuotaTypeForUri(fileUri, newRow.getMediaType());
-                }
-
-                if (mExternalDbFacade.onFileUpdated(oldRow.getId(),
-                        oldRow.getMediaType(), newRow.getMediaType(),
-                        oldRow.isTrashed(), newRow.isTrashed(),
-                        oldRow.isPending(), newRow.isPending(),
-                        oldRow.isFavorite(), newRow.isFavorite(),
-                        oldRow.getSpecialFormat(), newRow.getSpecialFormat())) {
-                    mPickerSyncController.notifyMediaEvent();
-                }
-            });
+            mFileChangeBuffer.onUpdate(helper, oldRow, newRow);
 
             if (newRow.getMediaType() != oldRow.getMediaType()) {
                 acceptWithExpansion(helper::notifyUpdate, oldRow.getVolumeName(), oldRow.getId(),
                         newRow.getMediaType(), isDownload);
-
-                helper.postBackground(() -> {
-                    // Invalidate any thumbnails when the media type changes
-                    invalidateThumbnails(fileUri);
-                });
             }
         }
 
@@ -798,47 +846,99 @@ public class MediaProvider extends ContentProvider {
         public void onDelete(@NonNull DatabaseHelper helper, @NonNull FileRow deletedRow) {
             handleDeletedRowForFuse(deletedRow.getPath(), deletedRow.getOwnerPackageName(),
                     deletedRow.getId());
+            mFileAttributesCache.onFilesChanged(helper, deletedRow, null);
             acceptWithExpansion(helper::notifyDelete, deletedRow.getVolumeName(),
                     deletedRow.getId(), deletedRow.getMediaType(), deletedRow.isDownload());
             // Remove cached transcoded file if any
             mTranscodeHelper.deleteCachedTranscodeFile(deletedRow.getId());
+            mFileChangeBuffer.onDelete(helper, deletedRow);
+        }
+    };
 
-            helper.postBackground(() -> {
+    /**
+     * Applies the side effects of the changes collected by {@link #mFilesListener} in background,
+     * once for every batch drained by {@link #mFileChangeBuffer}.
+     */
+    private void onFilesChangedInBackground(@NonNull DatabaseHelper helper,
+            @NonNull List<FileChangeBuffer.Change> changes) {
+        for (FileChangeBuffer.Change change : changes) {
+            final FileRow row = change.getLastRow();
+            final Uri fileUri = MediaStore.Files.getContentUri(row.getVolumeName(),
+                    change.getId());
+            if (change.isDeleted()) {
                 // Item no longer exists, so revoke all access to it
                 Trace.beginSection("revokeUriPermission");
                 try {
                     acceptWithExpansion((uri) -> {
                         getContext().revokeUriPermission(uri, ~0);
-                    },
-                            deletedRow.getVolumeName(), deletedRow.getId(),
-                            deletedRow.getMediaType(), deletedRow.isDownload());
+                    }, row.getVolumeName(), change.getId(), row.getMediaType(), row.isDownload());
                 } finally {
                     Trace.endSection();
                 }
 
-                switch (deletedRow.getMediaType()) {
+                switch (row.getMediaType()) {
                     case FileColumns.MEDIA_TYPE_PLAYLIST:
                     case FileColumns.MEDIA_TYPE_AUDIO:
                         if (helper.isExternal()) {
-                            removePlaylistMembers(deletedRow.getMediaType(), deletedRow.getId());
+                            removePlaylistMembers(row.getMediaType(), change.getId());
                         }
                 }
 
                 // Invalidate any thumbnails now that media is gone
-                invalidateThumbnails(MediaStore.Files.getContentUri(deletedRow.getVolumeName(),
-                        deletedRow.getId()));
+                invalidateThumbnails(fileUri);
 
                 // Tell our SAF provider so it can revoke too
-                MediaDocumentsProvider.onMediaStoreDelete(getContext(), deletedRow.getVolumeName(),
-                        deletedRow.getMediaType(), deletedRow.getId());
+                MediaDocumentsProvider.onMediaStoreDelete(getContext(), row.getVolumeName(),
+                        row.getMediaType(), change.getId());
+                continue;
+            }
 
-                if (mExternalDbFacade.onFileDeleted(deletedRow.getId(),
-                        deletedRow.getMediaType())) {
-                    mPickerSyncController.notifyMediaEvent();
+            if (helper.isExternal()) {
+                // Update the quota type on the filesystem
+                updateQuotaTypeForUri(fileUri, row.getMediaType());
+            }
+
+            if (change.isInserted()) {
+                // Tell our SAF provider so it knows when views are no longer empty
+                MediaDocumentsProvider.onMediaStoreInsert(getContext(), row.getVolumeName(),
+                        row.getMediaType(), change.getId());
+            } else if (change.isMediaTypeChanged()) {
+                // Invalidate any thumbnails when the media type changes
+                invalidateThumbnails(fileUri);
+            }
+        }
+
+        if (!helper.isExternal()) {
+            return;
+        }
+        // The picker only needs to hear about the whole batch once, and its own bookkeeping of
+        // deleted media is written in a single transaction
+        final boolean notifyPicker = helper.runWithTransaction((db) -> {
+            boolean notify = false;
+            for (FileChangeBuffer.Change change : changes) {
+                final FileRow oldRow = change.getOldRow();
+                final FileRow row = change.getLastRow();
+                if (change.isDeleted()) {
+                    notify |= mExternalDbFacade.onFileDeleted(change.getId(),
+                            row.getMediaType());
+                } else if (oldRow == null) {
+                    notify |= mExternalDbFacade.onFileInserted(row.getMediaType(),
+                            row.isPending());
+                } else {
+                    notify |= mExternalDbFacade.onFileUpdated(change.getId(),
+                            oldRow.getMediaType(), row.getMediaType(),
+                            oldRow.isTrashed(), row.isTrashed(),
+                            oldRow.isPending(), row.isPending(),
+                            oldRow.isFavorite(), row.isFavorite(),
+                            oldRow.getSpecialFormat(), row.getSpecialFormat());
                 }
-            });
+            }
+            return notify;
+        });
+        if (notifyPicker) {
+            mPickerSyncController.notifyMediaEvent();
         }
-    };
+    }
 
     protected void updateNextRowIdXattr(DatabaseHelper helper, long id) {
         if (!helper.isNextRowIdBackupEnabled()) {
@@ -1043,6 +1143,17 @@ public class MediaProvider extends ContentProvider {
         final Context context = getContext();
 
         mUserCache = new UserCache(context);
+        PermissionUtils.setGrantCache(mPermissionGrantCache);
+        mPackageSetCache = new PackageSetCache((userId) -> {
+            final PackageManager pm = mUserCache.getContextForUser(UserHandle.of(userId))
+                    .getPackageManager();
+            final Set<String> packages = new ArraySet<>();
+            for (PackageInfo info : pm.getInstalledPackages(
+                    PackageManager.MATCH_UNINSTALLED_PACKAGES)) {
+                packages.add(info.packageName);
+            }
+            return packages;
+        });
 
         // Shift call statistics back to the original caller
         Binder.setProxyTransactListener(mTransactListener);
@@ -1068,6 +1179,11 @@ public class MediaProvider extends ContentProvider {
                 Column.class, ExportedSince.class, Metrics::logSchemaChange, mFilesListener,
                 MIGRATION_LISTENER, mIdGenerator, true);
         mExternalDbFacade = new ExternalDbFacade(getContext(), mExternalDatabase, mVolumeCache);
+        mSpecialFormatBackfill = new SpecialFormatBackfill(mExternalDatabase,
+                IDLE_MAINTENANCE_ROWS_LIMIT);
+        mExpiredItemSweeper = new ExpiredItemSweeper(mExternalDatabase,
+                IDLE_MAINTENANCE_ROWS_LIMIT, EXPIRED_ITEMS_PER_PASS_LIMIT,
+                System::currentTimeMillis, mExpiredItemCallback);
         mPickerDbFacade = new PickerDbFacade(context);
 
         final String localPickerProvider = PickerSyncController.LOCAL_PICKER_PROVIDER_AUTHORITY;
@@ -1156,6 +1272,11 @@ public class MediaProvider extends ContentProvider {
                 null /* all packages */, mModeListener);
         mAppOpsManager.startWatchingMode(AppOpsManager.OPSTR_WRITE_MEDIA_VIDEO,
                 null /* all packages */, mModeListener);
+        // Installers
+        mAppOpsManager.startWatchingMode(AppOpsManager.OPSTR_REQUEST_INSTALL_PACKAGES,
+                null /* all packages */, mModeListener);
+        // Runtime permission grants and revocations
+        mPackageManager.addOnPermissionsChangeListener(mPermissionsListener);
         try {
             // Here we are forced to depend on the non-public API of AppOpsManager. If
             // OPSTR_NO_ISOLATED_STORAGE app op is not defined in AppOpsManager, then this call will
@@ -1220,6 +1341,11 @@ public class MediaProvider extends ContentProvider {
     }
 
     private boolean isPackageKnown(@NonNull String packageName, int userId) {
+        // Most owners are still installed, which the cached set answers without any IPC
+        if (mPackageSetCache.contains(packageName, userId)) {
+            return true;
+        }
+
         final Context context = mUserCache.getContextForUser(UserHandle.of(userId));
         final PackageManager pm = context.getPackageManager();
 
@@ -1292,6 +1418,12 @@ public class MediaProvider extends ContentProvider {
         // Populate _SPECIAL_FORMAT column for files which have column value as NULL
         detectSpecialFormat(signal);
 
+        // Forget the oldest deletions, which clients are unlikely to still need
+        final int prunedDeletions = mExternalDatabase.pruneDeletionLog(
+                DatabaseHelper.DELETION_LOG_MAX_ENTRIES)
+                + mInternalDatabase.pruneDeletionLog(DatabaseHelper.DELETION_LOG_MAX_ENTRIES);
+        Log.d(TAG, "Pruned " + prunedDeletions + " deletion log entries");
+
         final long durationMillis = (SystemClock.elapsedRealtime() - startTime);
         Metrics.logIdleMaintenance(MediaStore.VOLUME_EXTERNAL, itemCount,
                 durationMillis, staleThumbnails, deletedExpiredMedia);
@@ -1335,20 +1467,20 @@ public class MediaProvider extends ContentProvider {
     }
 
     private void pruneStalePackages(CancellationSignal signal) {
+        // We only hear about package changes of our own user, so other users are reloaded on
+        // every pass
+        for (UserHandle user : mUserManager.getEnabledProfiles()) {
+            if (user.getIdentifier() != sUserId) {
+                mPackageSetCache.invalidate(user.getIdentifier());
+            }
+        }
+
+        final long startTime = SystemClock.elapsedRealtime();
         final int stalePackages = mExternalDatabase.runWithTransaction((db) -> {
             final ArraySet<Pair<String, Integer>> unknownPackages = new ArraySet<>();
-            try (Cursor c = db.query(true, "files",
-                    new String[] { "owner_package_name", "_user_id" },
-                    null, null, null, null, null, null, signal)) {
-                while (c.moveToNext()) {
-                    final String packageName = c.getString(0);
-                    if (TextUtils.isEmpty(packageName)) continue;
-
-                    final int userId = c.getInt(1);
-
-                    if (!isPackageKnown(packageName, userId)) {
-                        unknownPackages.add(Pair.create(packageName, userId));
-                    }
+            for (Pair<String, Integer> owner : queryOwnerPackages(db, signal)) {
+                if (!isPackageKnown(owner.first, owner.second)) {
+                    unknownPackages.add(owner);
                 }
             }
             for (Pair<String, Integer> pair : unknownPackages) {
@@ -1356,7 +1488,41 @@ public class MediaProvider extends ContentProvider {
             }
             return unknownPackages.size();
         });
-        Log.d(TAG, "Pruned " + stalePackages + " unknown packages");
+        Log.d(TAG, "Pruned " + stalePackages + " unknown packages in "
+                + (SystemClock.elapsedRealtime() - startTime) + "ms");
+    }
+
+    /**
+     * Returns the distinct non-empty owner package and user pairs of the files table.
+     * <p>
+     * Rather than visiting every row, this skips from one owner to the next through
+     * {@code owner_package_name_index}, so it costs one lookup per owner.
+     */
+    @VisibleForTesting
+    static @NonNull List<Pair<String, Integer>> queryOwnerPackages(@NonNull SQLiteDatabase db,
+            @Nullable CancellationSignal signal) {
+        final List<Pair<String, Integer>> owners = new ArrayList<>();
+        final String[] projection = new String[] {
+                FileColumns.OWNER_PACKAGE_NAME, FileColumns._USER_ID };
+        final String selection = "(" + FileColumns.OWNER_PACKAGE_NAME + ","
+                + FileColumns._USER_ID + ")>(?,?)";
+        final String orderBy = FileColumns.OWNER_PACKAGE_NAME + "," + FileColumns._USER_ID;
+        String packageName = "";
+        long userId = Long.MIN_VALUE;
+        while (true) {
+            try (Cursor c = db.query(/* distinct */ false, "files", projection, selection,
+                    new String[] { packageName, String.valueOf(userId) }, null, null, orderBy,
+                    "1", signal)) {
+                if (!c.moveToFirst()) {
+                    return owners;
+                }
+                packageName = c.getString(0);
+                userId = c.getLong(1);
+            }
+            if (!TextUtils.isEmpty(packageName)) {
+                owners.add(Pair.create(packageName, (int) userId));
+            }
+        }
     }
 
     private void deleteStaleVolumes(CancellationSignal signal) {
@@ -1394,95 +1560,20 @@ public class MediaProvider extends ContentProvider {
 
     @VisibleForTesting
     void detectSpecialFormat(@NonNull CancellationSignal signal) {
-        mExternalDatabase.runWithTransaction((db) -> {
-            updateSpecialFormatColumn(db, signal);
-            return null;
-        });
-    }
-
-    private void updateSpecialFormatColumn(SQLiteDatabase db, @NonNull CancellationSignal signal) {
-        // This is to ensure we only do a bounded iteration over the rows as updates can fail, and
-        // we don't want to keep running the query/update indefinitely.
-        final int totalRowsToUpdate = getPendingSpecialFormatRowsCount(db,signal);
-        for (int i = 0 ; i < totalRowsToUpdate ; i += IDLE_MAINTENANCE_ROWS_LIMIT) {
-            updateSpecialFormatForLimitedRows(db, signal);
-        }
-    }
-
-    private int getPendingSpecialFormatRowsCount(SQLiteDatabase db,
-            @NonNull CancellationSignal signal) {
-        try (Cursor c = queryForPendingSpecialFormatColumns(db, /* limit */ null, signal)) {
-            if (c == null) {
-                return 0;
-            }
-            return c.getCount();
-        }
-    }
-
-    private void updateSpecialFormatForLimitedRows(SQLiteDatabase db,
-            @NonNull CancellationSignal signal) {
-        final SQLiteQueryBuilder qbForUpdate = getQueryBuilder(TYPE_UPDATE, FILES,
-                Files.getContentUri(VOLUME_EXTERNAL), Bundle.EMPTY, null);
-        // Accumulate all the new SPECIAL_FORMAT updates with their ids
-        ArrayMap<Long, Integer> newSpecialFormatValues = new ArrayMap<>();
-        final String limit = String.valueOf(IDLE_MAINTENANCE_ROWS_LIMIT);
-        try (Cursor c = queryForPendingSpecialFormatColumns(db, limit, signal)) {
-            while (c.moveToNext() && !signal.isCanceled()) {
-                final long id = c.getLong(0);
-                final String path = c.getString(1);
-                newSpecialFormatValues.put(id, getSpecialFormatValue(path));
-            }
-        }
-
-        // Now, update all the new SPECIAL_FORMAT values.
-        final ContentValues values = new ContentValues();
-        int count = 0;
-        for (long id: newSpecialFormatValues.keySet()) {
-            if (signal.isCanceled()) {
-                return;
-            }
-
-            values.clear();
-            values.put(_SPECIAL_FORMAT, newSpecialFormatValues.get(id));
-            final String selection = MediaColumns._ID + "=?";
-            final String[] selectionArgs = new String[]{String.valueOf(id)};
-            if (qbForUpdate.update(db, values, selection, selectionArgs) == 1) {
-                count++;
-            } else {
-                Log.e(TAG, "Unable to update _SPECIAL_FORMAT for id = " + id);
-            }
-        }
-        Log.d(TAG, "Updated _SPECIAL_FORMAT for " + count + " items");
-    }
-
-    private int getSpecialFormatValue(String path) {
-        final File file = new File(path);
-        if (!file.exists()) {
-            // We always update special format to none if the file is not found or there is an
-            // error, this is so that we do not repeat over the same column again and again.
-            return _SPECIAL_FORMAT_NONE;
-        }
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getContext());
+        final long resumeId = prefs.getLong(SPECIAL_FORMAT_RESUME_ID_KEY, 0);
+        final SpecialFormatBackfill.Result result = mSpecialFormatBackfill.run(resumeId, signal);
+        prefs.edit().putLong(SPECIAL_FORMAT_RESUME_ID_KEY, result.resumeId).apply();
 
-        try {
-            return SpecialFormatDetector.detect(file);
-        } catch (Exception e) {
-            // we tried our best, no need to run special detection again and again if it
-            // throws exception once, it is likely to do so everytime.
-            Log.d(TAG, "Failed to detect special format for file: " + file, e);
-            return _SPECIAL_FORMAT_NONE;
+        if (result.updatedCount > 0) {
+            // Per-row callbacks were suppressed for these internal writes, so tell interested
+            // parties once for the whole pass; picker syncs pick up the bumped generation.
+            mExternalDatabase.notifyUpdate(
+                    MediaStore.Images.Media.getContentUri(MediaStore.VOLUME_EXTERNAL));
+            mPickerSyncController.notifyMediaEvent();
         }
     }
 
-    private Cursor queryForPendingSpecialFormatColumns(SQLiteDatabase db, String limit,
-            @NonNull CancellationSignal signal) {
-        // Run special detection for images only
-        final String selection = _SPECIAL_FORMAT + " IS NULL AND "
-                + MEDIA_TYPE + "=" + MEDIA_TYPE_IMAGE;
-        final String[] projection = new String[] { MediaColumns._ID, MediaColumns.DATA };
-        return db.query(/* distinct */ true, "files", projection, selection, null, null, null,
-                null, limit, signal);
-    }
-
     /**
      * Delete any expired content on mounted volumes. The expired content on unmounted
      * volumes will be deleted when we forget any stale volumes; we're cautious about
@@ -1490,50 +1581,44 @@ public class MediaProvider extends ContentProvider {
      * If the items are expired more than one week, extend the expired time of them
      * another one week to avoid data loss with incorrect time zone data. We will
      * delete it when it is expired next time.
+     * <p>
+     * Each pass handles a bounded number of items, see {@link ExpiredItemSweeper}.
      *
      * @param signal the cancellation signal
      * @return the integer array includes total deleted count and total extended count
      */
     @NonNull
     private int[] deleteOrExtendExpiredItems(@NonNull CancellationSignal signal) {
-        final long expiredOneWeek =
-                ((System.currentTimeMillis() - DateUtils.WEEK_IN_MILLIS) / 1000);
-        final long now = (System.currentTimeMillis() / 1000);
-        final Long expiredTime = now + (FileUtils.DEFAULT_DURATION_EXTENDED / 1000);
-        final int result[] = mExternalDatabase.runWithTransaction((db) -> {
-            String selection = FileColumns.DATE_EXPIRES + " < " + now;
-            selection += " AND volume_name in " + bindList(MediaStore.getExternalVolumeNames(
-                    getContext()).toArray());
-            String[] projection = new String[]{"volume_name", "_id",
-                    FileColumns.DATE_EXPIRES, FileColumns.DATA};
-            try (Cursor c = db.query(true, "files", projection, selection, null, null, null, null,
-                    null, signal)) {
-                int totalDeleteCount = 0;
-                int totalExtendedCount = 0;
-                int index = 0;
-                while (c.moveToNext()) {
-                    final String volumeName = c.getString(0);
-                    final long id = c.getLong(1);
-                    final long dateExpires = c.getLong(2);
-                    // we only delete the items that expire in one week
-                    if (dateExpires > expiredOneWeek) {
-                        totalDeleteCount += delete(Files.getContentUri(volumeName, id), null, null);
-                    } else {
-                        final String oriPath = c.getString(3);
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getContext());
+        final ExpiredItemSweeper.Result result = mExpiredItemSweeper.run(
+                prefs.getLong(EXPIRED_ITEMS_RESUME_DATE_EXPIRES_KEY, 0),
+                prefs.getLong(EXPIRED_ITEMS_RESUME_ID_KEY, 0),
+                MediaStore.getExternalVolumeNames(getContext()), signal);
+        prefs.edit()
+                .putLong(EXPIRED_ITEMS_RESUME_DATE_EXPIRES_KEY, result.resumeDateExpires)
+                .putLong(EXPIRED_ITEMS_RESUME_ID_KEY, result.resumeId)
+                .apply();
+        return new int[]{result.deletedCount, result.extendedCount};
+    }
+
+    private final ExpiredItemSweeper.Callback mExpiredItemCallback =
+            new ExpiredItemSweeper.Callback() {
+        @Override
+        public int deleteItems(String volumeName, LongArray ids) {
+            final Bundle extras = new Bundle();
+            extras.putString(QUERY_ARG_SQL_SELECTION, FileColumns._ID + " IN "
+                    + bindList(Arrays.stream(ids.toArray()).boxed().toArray()));
+            extras.putInt(QUERY_ARG_MATCH_PENDING, MATCH_INCLUDE);
+            extras.putInt(QUERY_ARG_MATCH_TRASHED, MATCH_INCLUDE);
+            return delete(Files.getContentUri(volumeName), extras);
+        }
 
-                        final boolean success = extendExpiredItem(db, oriPath, id, expiredTime,
-                                expiredTime + index);
-                        if (success) {
-                            totalExtendedCount++;
-                        }
-                        index++;
-                    }
-                }
-                return new int[]{totalDeleteCount, totalExtendedCount};
-            }
-        });
-        return result;
-    }
+        @Override
+        public boolean extendItem(SQLiteDatabase db, String path, long id, long expiredTime,
+                long adjustedExpiredTime) {
+            return extendExpiredItem(db, path, id, expiredTime, adjustedExpiredTime);
+        }
+    };
 
     /**
      * Extend the expired items by renaming the file to new path with new timestamp and updating the
@@ -1644,6 +1729,9 @@ public class MediaProvider extends ContentProvider {
         orphanEntries(db, packageName, userId);
     }
 
+    /** Number of missing Android/media items deleted by each statement when orphaning. */
+    private static final int ANDROID_MEDIA_DELETE_BATCH_SIZE = 500;
+
     private void deleteAndroidMediaEntries(SQLiteDatabase db, String packageName, int userId) {
         String relativePath = "Android/media/" + DatabaseUtils.escapeForLike(packageName) + "/%";
         try (Cursor cursor = db.query(
@@ -1655,7 +1743,7 @@ public class MediaProvider extends ContentProvider {
                 /* having= */ null,
                 /* orderBy= */null,
                 /* limit= */ null)) {
-            int countDeleted = 0;
+            final ArrayList<Long> missingIds = new ArrayList<>();
             if (cursor != null) {
                 while (cursor.moveToNext()) {
                     File file = new File(cursor.getString(1));
@@ -1663,11 +1751,18 @@ public class MediaProvider extends ContentProvider {
                     // This can happen even if the pair (package, userid) is unknown,
                     // since some framework implementations may rely on special userids.
                     if (!file.exists()) {
-                        countDeleted +=
-                                db.delete("files", "_id=?", new String[]{cursor.getString(0)});
+                        missingIds.add(cursor.getLong(0));
                     }
                 }
             }
+            int countDeleted = 0;
+            for (int start = 0; start < missingIds.size();
+                    start += ANDROID_MEDIA_DELETE_BATCH_SIZE) {
+                final List<Long> batch = missingIds.subList(start,
+                        Math.min(missingIds.size(), start + ANDROID_MEDIA_DELETE_BATCH_SIZE));
+                countDeleted += db.delete("files",
+                        MediaColumns._ID + " IN " + bindList(batch.toArray()), null);
+            }
             Log.d(TAG, "Deleted " + countDeleted + " Android/media items belonging to "
                     + packageName + " on " + db.getPath());
         }
@@ -1698,6 +1793,10 @@ public class MediaProvider extends ContentProvider {
         return mMediaScanner.scanFile(file, reason, ownerPackage);
     }
 
+    public List<Uri> scanFiles(List<File> files, int reason) {
+        return mMediaScanner.scanFiles(files, reason, null);
+    }
+
     private Uri scanFileAsMediaProvider(File file, int reason) {
         final LocalCallingIdentity tokenInner = clearLocalCallingIdentity();
         try {
@@ -1901,6 +2000,32 @@ public class MediaProvider extends ContentProvider {
         return new FileLookupResult(/* transforms */ 0, uid, /* ioPath */ "");
     }
 
+    /**
+     * Called from FUSE to get {@link FileLookupResult} for many {@code paths} on behalf of the
+     * same {@code uid} in a single upcall, such as all entries returned by one readdirplus.
+     *
+     * A failure while looking up one path only invalidates the result for that path.
+     *
+     * @param paths file paths to get transforms for
+     * @param uid app requesting IO form kernel
+     * @param tid FUSE thread id handling IO request from kernel
+     *
+     * Called from JNI in jni/MediaProviderWrapper.cpp
+     */
+    @Keep
+    @NonNull
+    public FileLookupBatchResult onFileLookupBatchForFuse(String[] paths, int uid, int tid) {
+        final FileLookupResult[] results = new FileLookupResult[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            try {
+                results[i] = onFileLookupForFuse(paths[i], uid, tid);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Failed to lookup transforms for " + paths[i], e);
+            }
+        }
+        return FileLookupBatchResult.pack(results);
+    }
+
     private FileLookupResult handleTranscodedFileLookup(String path, int uid, int tid) {
         final int transformsReason;
         final PendingOpenInfo info;
@@ -2496,17 +2621,11 @@ public class MediaProvider extends ContentProvider {
             // Return media and non-media files visible to the calling package.
             ArrayList<String> fileNamesList = new ArrayList<>();
 
-            // Only FileColumns.DATA contains actual name of the file.
-            String[] projection = {MediaColumns.DATA};
-
-            Bundle queryArgs = new Bundle();
-            queryArgs.putString(QUERY_ARG_SQL_SELECTION, MediaColumns.RELATIVE_PATH +
-                    " =? and mime_type not like 'null'");
-            queryArgs.putStringArray(QUERY_ARG_SQL_SELECTION_ARGS, new String[] {relativePath});
             // Get database entries for files from MediaProvider database with
             // MediaColumns.RELATIVE_PATH as the given path.
-            try (final Cursor cursor = query(FileUtils.getContentUriForPath(path), projection,
-                    queryArgs, null)) {
+            try (final Cursor cursor = query(FileUtils.getContentUriForPath(path),
+                    FILES_IN_DIRECTORY_PROJECTION, getFilesInDirectoryQueryArgs(relativePath),
+                    null)) {
                 while(cursor.moveToNext()) {
                     fileNamesList.add(extractDisplayName(cursor.getString(0)));
                 }
@@ -2517,6 +2636,39 @@ public class MediaProvider extends ContentProvider {
         }
     }
 
+    /** Only FileColumns.DATA contains actual name of the file. */
+    private static final String[] FILES_IN_DIRECTORY_PROJECTION = { MediaColumns.DATA };
+
+    private static @NonNull Bundle getFilesInDirectoryQueryArgs(@NonNull String relativePath) {
+        final Bundle queryArgs = new Bundle();
+        queryArgs.putString(QUERY_ARG_SQL_SELECTION, MediaColumns.RELATIVE_PATH +
+                " =? and mime_type not like 'null'");
+        queryArgs.putStringArray(QUERY_ARG_SQL_SELECTION_ARGS, new String[] {relativePath});
+        return queryArgs;
+    }
+
+    /**
+     * Returns the SQL that {@link #getFilesInDirectoryForFuse} runs to list {@code path} for
+     * {@code uid}, including the filters that the query builder adds for that caller. The only
+     * argument to bind is the relative path of {@code path}.
+     */
+    @VisibleForTesting
+    @NonNull String buildFilesInDirectoryQueryForFuse(@NonNull String path, int uid) {
+        final LocalCallingIdentity token =
+                clearLocalCallingIdentity(getCachedCallingIdentityForFuse(uid));
+        try {
+            final Uri uri = FileUtils.getContentUriForPath(path);
+            final Bundle queryArgs =
+                    getFilesInDirectoryQueryArgs(extractRelativePathWithDisplayName(path));
+            final SQLiteQueryBuilder qb = getQueryBuilder(TYPE_QUERY,
+                    matchUri(uri, isCallingPackageAllowedHidden()), uri, queryArgs, null);
+            return qb.buildQuery(FILES_IN_DIRECTORY_PROJECTION,
+                    queryArgs.getString(QUERY_ARG_SQL_SELECTION), null, null, null, null);
+        } finally {
+            restoreLocalCallingIdentity(token);
+        }
+    }
+
     /**
      * Scan files during directory renames for the following reasons:
      * <ul>
@@ -2822,6 +2974,144 @@ public class MediaProvider extends ContentProvider {
         return fileList;
     }
 
+    /**
+     * Columns that {@link #getContentValuesForFuseRename} may derive for a file besides the ones
+     * {@link #updateDatabaseForFuseRenameDirectory} rewrites in SQL.
+     */
+    private static final String[] RENAME_DIRECTORY_DERIVED_COLUMNS = new String[] {
+            MediaColumns.MIME_TYPE, FileColumns.MEDIA_TYPE, MediaColumns.VOLUME_NAME,
+            MediaColumns.DISPLAY_NAME, MediaColumns.IS_PENDING, MediaColumns.IS_TRASHED,
+            MediaColumns.DATE_EXPIRES };
+
+    /** Number of ids to move with each set-based update of a directory rename. */
+    private static final int RENAME_DIRECTORY_BATCH_SIZE = 500;
+
+    /**
+     * Moves the database entries of the files in {@code fileList}, given relative to the
+     * {@code oldPath} directory, to {@code newPath} with set-based updates, rewriting
+     * {@code _data} and {@code relative_path} by swapping their prefix and recomputing the bucket
+     * columns that depend on the parent directory.
+     * <p>
+     * Only entries of {@code fileList}, which the caller has already been checked against, are
+     * moved, and only if no other column {@link #getContentValuesForFuseRename} derives for them
+     * would change. Everything else is left for the per-row path.
+     *
+     * @return files of {@code fileList} that still need to be moved, or {@code null} if the new
+     *         paths conflict with existing entries, in which case nothing was updated.
+     */
+    private @Nullable List<String> updateDatabaseForFuseRenameDirectory(
+            @NonNull DatabaseHelper helper, @NonNull String oldPath, @NonNull String newPath,
+            @NonNull List<String> fileList, boolean wasHidden, boolean isHidden) {
+        final String oldRelativePath = extractRelativePathWithDisplayName(oldPath) + "/";
+        final String newRelativePath = extractRelativePathWithDisplayName(newPath) + "/";
+        final String oldPrefix = oldPath + "/";
+        // Every path in a tree sorts between these two bounds, using the NOCASE collation of
+        // _data, which lets us walk a range of path_index instead of matching a LIKE pattern.
+        final String rangeSelection = FileColumns.DATA + ">=? AND " + FileColumns.DATA + "<?";
+
+        // Offsets are computed by SQLite, since its substr() and length() count characters
+        // rather than the UTF-16 code units of String.length()
+        final String sql = "UPDATE files SET "
+                + FileColumns.DATA + "=?1||substr(" + FileColumns.DATA + ",length(?2)+1),"
+                + FileColumns.RELATIVE_PATH + "=?3||substr(" + FileColumns.RELATIVE_PATH
+                + ",length(?4)+1),"
+                + FileColumns.BUCKET_ID + "=_BUCKET_ID(?1||substr(" + FileColumns.DATA
+                + ",length(?2)+1)),"
+                + FileColumns.BUCKET_DISPLAY_NAME + "=CASE WHEN length("
+                + FileColumns.RELATIVE_PATH + ")=length(?4) THEN ?5 ELSE "
+                + FileColumns.BUCKET_DISPLAY_NAME + " END,"
+                + FileColumns.GENERATION_MODIFIED + "=("
+                + DatabaseHelper.CURRENT_GENERATION_CLAUSE + ")"
+                + " WHERE " + FileColumns._ID + " IN ";
+
+        return helper.runWithTransaction((db) -> {
+            try (Cursor c = db.query("files", new String[] { FileColumns._ID }, rangeSelection,
+                    new String[] { newPath + "/", newPath + "0" }, null, null, null, "1")) {
+                if (c.moveToFirst()) {
+                    // Stale entries under the new path are replaced by the per-row path
+                    return null;
+                }
+            }
+
+            final Set<String> remaining = new ArraySet<>(fileList);
+            final List<Long> ids = new ArrayList<>();
+            final String[] projection = new String[RENAME_DIRECTORY_DERIVED_COLUMNS.length + 2];
+            projection[0] = FileColumns._ID;
+            projection[1] = FileColumns.DATA;
+            System.arraycopy(RENAME_DIRECTORY_DERIVED_COLUMNS, 0, projection, 2,
+                    RENAME_DIRECTORY_DERIVED_COLUMNS.length);
+            try (Cursor c = db.query("files", projection, rangeSelection + " AND "
+                            + FileColumns.MIME_TYPE + " NOT LIKE 'null'",
+                    new String[] { oldPrefix, oldPath + "0" }, null, null, null)) {
+                while (c.moveToNext()) {
+                    final String path = c.getString(1);
+                    if (!path.startsWith(oldPrefix)) continue;
+                    final String filePath = path.substring(oldPrefix.length());
+                    if (!remaining.contains(filePath)) continue;
+
+                    final String newFilePath = newPath + "/" + filePath;
+                    final ContentValues values = getContentValuesForFuseRename(newFilePath,
+                            MimeUtils.resolveMimeType(new File(newFilePath)), wasHidden,
+                            isHidden, /* isSameMimeType */ true);
+                    if (isRenameDirectoryUpdateSetBased(c, values)) {
+                        ids.add(c.getLong(0));
+                        remaining.remove(filePath);
+                    }
+                }
+            }
+
+            for (int start = 0; start < ids.size(); start += RENAME_DIRECTORY_BATCH_SIZE) {
+                final List<Long> batch = ids.subList(start,
+                        Math.min(ids.size(), start + RENAME_DIRECTORY_BATCH_SIZE));
+                try (SQLiteStatement statement = db.compileStatement(
+                        sql + bindList(batch.toArray()))) {
+                    statement.bindString(1, newPath);
+                    statement.bindString(2, oldPath);
+                    statement.bindString(3, newRelativePath);
+                    statement.bindString(4, oldRelativePath);
+                    statement.bindString(5, extractDisplayName(newPath));
+                    statement.executeUpdateDelete();
+                } catch (SQLiteConstraintException e) {
+                    // Not expected after the check above; the per-row path then fails for the
+                    // entries already moved, which rolls back the whole rename
+                    Log.w(TAG, "Set-based database update failed while renaming " + oldPath, e);
+                    return null;
+                }
+            }
+
+            final List<String> result = new ArrayList<>();
+            for (String filePath : fileList) {
+                if (remaining.contains(filePath)) {
+                    result.add(filePath);
+                }
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Returns {@code true} if the only columns that {@code values} would change for the entry at
+     * the current position of {@code c} are the ones rewritten in SQL by
+     * {@link #updateDatabaseForFuseRenameDirectory}.
+     */
+    private static boolean isRenameDirectoryUpdateSetBased(@NonNull Cursor c,
+            @NonNull ContentValues values) {
+        for (String column : values.keySet()) {
+            switch (column) {
+                case MediaColumns.DATA:
+                case MediaColumns.RELATIVE_PATH:
+                case MediaColumns.BUCKET_ID:
+                case MediaColumns.BUCKET_DISPLAY_NAME:
+                    continue;
+            }
+            final int index = c.getColumnIndex(column);
+            if (index == -1 || !Objects.equals(c.getString(index), values.getAsString(column))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private int renameInLowerFs(String oldPath, String newPath) {
         try {
             Os.rename(oldPath, newPath);
@@ -2841,7 +3131,10 @@ public class MediaProvider extends ContentProvider {
      * top level directory of new path. Renaming a directory is split into three steps:
      * 1. Check calling package's permissions for all files in the given directory tree. Also check
      *    file type support for all files in the {@code newPath}.
-     * 2. Try updating database for all files in the directory.
+     * 2. Try updating database for all files in the directory. Files whose other derived
+     *    columns don't change are moved with set-based updates, unless the rename changes
+     *    whether the directory is hidden or conflicts with existing database entries; all
+     *    other files are updated one at a time.
      * 3. Rename the directory in lower file system. If rename in the lower file system is
      *    successful, commit database update.
      *
@@ -2884,12 +3177,20 @@ public class MediaProvider extends ContentProvider {
                     getIncludedDefaultDirectories());
             final boolean wasHidden = FileUtils.shouldDirBeHidden(new File(oldPath));
             final boolean isHidden = FileUtils.shouldDirBeHidden(new File(newPath));
-            for (String filePath : fileList) {
+            List<String> remaining = null;
+            if (wasHidden == isHidden) {
+                remaining = updateDatabaseForFuseRenameDirectory(helper, oldPath, newPath,
+                        fileList, wasHidden, isHidden);
+            }
+            if (remaining == null) {
+                remaining = fileList;
+            }
+            for (String filePath : remaining) {
                 final String newFilePath = newPath + "/" + filePath;
                 final String mimeType = MimeUtils.resolveMimeType(new File(newFilePath));
-                if(!updateDatabaseForFuseRename(helper, oldPath + "/" + filePath, newFilePath,
-                        getContentValuesForFuseRename(newFilePath, mimeType, wasHidden, isHidden,
-                                /* isSameMimeType */ true),
+                if (!updateDatabaseForFuseRename(helper, oldPath + "/" + filePath,
+                        newFilePath, getContentValuesForFuseRename(newFilePath, mimeType,
+                                wasHidden, isHidden, /* isSameMimeType */ true),
                         qbExtras)) {
                     Log.e(TAG, "Calling package doesn't have write permission to rename file.");
                     return OsConstants.EPERM;
@@ -4139,6 +4440,15 @@ public class MediaProvider extends ContentProvider {
             return e.translateForUpdateDelete(targetSdkVersion);
         }
 
+        switch (match) {
+            case IMAGES_MEDIA:
+            case AUDIO_MEDIA:
+            case VIDEO_MEDIA:
+            case FILES:
+            case DOWNLOADS:
+                return bulkInsertMedia(uri, match, helper, values);
+        }
+
         helper.beginTransaction();
         try {
             final int result = super.bulkInsert(uri, values);
@@ -4149,6 +4459,59 @@ public class MediaProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Inserts all {@code values} into one of the generic media tables. Unlike inserting them one
+     * at a time, the caller is resolved and all values are sanitized once up front, and the rows
+     * are then inserted through a single query builder within a single transaction, so change
+     * notifications are only sent once it commits.
+     */
+    private int bulkInsertMedia(@NonNull Uri uri, int match, @NonNull DatabaseHelper helper,
+            @NonNull ContentValues[] values) {
+        Trace.beginSection("bulkInsertMedia");
+        try {
+            PulledMetrics.logVolumeAccessViaMediaProvider(getCallingUidOrSelf(),
+                    getVolumeName(uri));
+            final int targetSdkVersion = getCallingPackageTargetSdkVersion();
+
+            final ContentValues[] rows = new ContentValues[values.length];
+            final String[] owners = new String[values.length];
+            final List<String> nomediaPaths = new ArrayList<>();
+            for (int i = 0; i < values.length; i++) {
+                rows[i] = new ContentValues(values[i]);
+                owners[i] = prepareInsertValues(rows[i]);
+
+                final String path = rows[i].getAsString(MediaColumns.DATA);
+                if (path != null && path.toLowerCase(Locale.ROOT).endsWith("/.nomedia")) {
+                    nomediaPaths.add(path);
+                }
+            }
+
+            final Bundle extras = new Bundle();
+            final SQLiteQueryBuilder qb = getQueryBuilder(TYPE_INSERT, match, uri, extras, null);
+            helper.runWithTransaction((db) -> {
+                for (int i = 0; i < rows.length; i++) {
+                    try {
+                        insertMediaRow(qb, helper, match, uri, extras, rows[i], owners[i]);
+                    } catch (SQLiteConstraintException e) {
+                        if (targetSdkVersion >= Build.VERSION_CODES.R) {
+                            throw e;
+                        }
+                    } catch (FallbackException e) {
+                        e.translateForInsert(targetSdkVersion);
+                    }
+                }
+                return null;
+            });
+
+            for (String path : nomediaPaths) {
+                scanFileAsMediaProvider(new File(path).getParentFile(), REASON_DEMAND);
+            }
+            return values.length;
+        } finally {
+            Trace.endSection();
+        }
+    }
+
     private int bulkInsertPlaylist(@NonNull Uri uri, @NonNull ContentValues[] values) {
         Trace.beginSection("bulkInsertPlaylist");
         try {
@@ -4728,105 +5091,41 @@ public class MediaProvider extends ContentProvider {
                 final Uri audioUri = ContentUris.withAppendedId(
                         MediaStore.Audio.Media.getContentUri(audioVolumeName), audioId);
 
-                // Require that caller has write access to underlying media
-                enforceCallingPermission(playlistUri, Bundle.EMPTY, true);
-                enforceCallingPermission(audioUri, Bundle.EMPTY, false);
-
-                // Playlist contents are always persisted directly into playlist
-                // files on disk to ensure that we can reliably migrate between
-                // devices and recover from database corruption
-                final long id = addPlaylistMembers(playlistUri, initialValues);
-                acceptWithExpansion(helper::notifyInsert, resolvedVolumeName, playlistId,
-                        FileColumns.MEDIA_TYPE_PLAYLIST, false);
-                return ContentUris.withAppendedId(MediaStore.Audio.Playlists.Members
-                        .getContentUri(originalVolumeName, playlistId), id);
-            }
-        }
-
-        String path = null;
-        String ownerPackageName = null;
-        if (initialValues != null) {
-            // IDs are forever; nobody should be editing them
-            initialValues.remove(MediaColumns._ID);
-
-            // Expiration times are hard-coded; let's derive them
-            FileUtils.computeDateExpires(initialValues);
-
-            // Ignore or augment incoming raw filesystem paths
-            for (String column : sDataColumns.keySet()) {
-                if (!initialValues.containsKey(column)) continue;
-
-                if (isCallingPackageSelf() || isCallingPackageLegacyWrite()) {
-                    // Mutation allowed
-                } else if (isCallingPackageManager()) {
-                    // Apps with MANAGE_EXTERNAL_STORAGE have all files access, hence they are
-                    // allowed to insert files anywhere.
-                } else {
-                    Log.w(TAG, "Ignoring mutation of  " + column + " from "
-                            + getCallingPackageOrSelf());
-                    initialValues.remove(column);
-                }
-            }
-
-            path = initialValues.getAsString(MediaStore.MediaColumns.DATA);
-
-            if (!isCallingPackageSelf()) {
-                initialValues.remove(FileColumns.IS_DOWNLOAD);
-            }
-
-            // We no longer track location metadata
-            if (initialValues.containsKey(ImageColumns.LATITUDE)) {
-                initialValues.putNull(ImageColumns.LATITUDE);
-            }
-            if (initialValues.containsKey(ImageColumns.LONGITUDE)) {
-                initialValues.putNull(ImageColumns.LONGITUDE);
-            }
-            if (getCallingPackageTargetSdkVersion() <= Build.VERSION_CODES.Q) {
-                // These columns are removed in R.
-                if (initialValues.containsKey("primary_directory")) {
-                    initialValues.remove("primary_directory");
-                }
-                if (initialValues.containsKey("secondary_directory")) {
-                    initialValues.remove("secondary_directory");
-                }
-            }
-
-            if (isCallingPackageSelf() || isCallingPackageShell()) {
-                // When media inserted by ourselves during a scan, or by the
-                // shell, the best we can do is guess ownership based on path
-                // when it's not explicitly provided
-                ownerPackageName = initialValues.getAsString(FileColumns.OWNER_PACKAGE_NAME);
-                if (TextUtils.isEmpty(ownerPackageName)) {
-                    ownerPackageName = extractPathOwnerPackageName(path);
-                }
-            } else if (isCallingPackageDelegator()) {
-                // When caller is a delegator, we handle ownership as a hybrid
-                // of the two other cases: we're willing to accept any ownership
-                // transfer attempted during insert, but we fall back to using
-                // the Binder identity if they don't request a specific owner
-                ownerPackageName = initialValues.getAsString(FileColumns.OWNER_PACKAGE_NAME);
-                if (TextUtils.isEmpty(ownerPackageName)) {
-                    ownerPackageName = getCallingPackageOrSelf();
-                }
-            } else {
-                // Remote callers have no direct control over owner column; we force
-                // it be whoever is creating the content.
-                initialValues.remove(FileColumns.OWNER_PACKAGE_NAME);
-                ownerPackageName = getCallingPackageOrSelf();
+                // Require that caller has write access to underlying media
+                enforceCallingPermission(playlistUri, Bundle.EMPTY, true);
+                enforceCallingPermission(audioUri, Bundle.EMPTY, false);
+
+                // Playlist contents are always persisted directly into playlist
+                // files on disk to ensure that we can reliably migrate between
+                // devices and recover from database corruption
+                final long id = addPlaylistMembers(playlistUri, initialValues);
+                acceptWithExpansion(helper::notifyInsert, resolvedVolumeName, playlistId,
+                        FileColumns.MEDIA_TYPE_PLAYLIST, false);
+                return ContentUris.withAppendedId(MediaStore.Audio.Playlists.Members
+                        .getContentUri(originalVolumeName, playlistId), id);
             }
         }
 
+        String path = null;
+        String ownerPackageName = null;
+        if (initialValues != null) {
+            ownerPackageName = prepareInsertValues(initialValues);
+            path = initialValues.getAsString(MediaStore.MediaColumns.DATA);
+        }
+
         long rowId = -1;
         Uri newUri = null;
 
         final SQLiteQueryBuilder qb = getQueryBuilder(TYPE_INSERT, match, uri, extras, null);
 
         switch (match) {
-            case IMAGES_MEDIA: {
-                maybePut(initialValues, FileColumns.OWNER_PACKAGE_NAME, ownerPackageName);
-                final boolean isDownload = maybeMarkAsDownload(initialValues);
-                newUri = insertFile(qb, helper, match, uri, extras, initialValues,
-                        FileColumns.MEDIA_TYPE_IMAGE);
+            case IMAGES_MEDIA:
+            case AUDIO_MEDIA:
+            case VIDEO_MEDIA:
+            case FILES:
+            case DOWNLOADS: {
+                newUri = insertMediaRow(qb, helper, match, uri, extras, initialValues,
+                        ownerPackageName);
                 break;
             }
 
@@ -4874,14 +5173,6 @@ public class MediaProvider extends ContentProvider {
                 break;
             }
 
-            case AUDIO_MEDIA: {
-                maybePut(initialValues, FileColumns.OWNER_PACKAGE_NAME, ownerPackageName);
-                final boolean isDownload = maybeMarkAsDownload(initialValues);
-                newUri = insertFile(qb, helper, match, uri, extras, initialValues,
-                        FileColumns.MEDIA_TYPE_AUDIO);
-                break;
-            }
-
             case AUDIO_MEDIA_ID_GENRES: {
                 throw new FallbackException("Genres are read-only", Build.VERSION_CODES.R);
             }
@@ -4923,14 +5214,6 @@ public class MediaProvider extends ContentProvider {
                 break;
             }
 
-            case VIDEO_MEDIA: {
-                maybePut(initialValues, FileColumns.OWNER_PACKAGE_NAME, ownerPackageName);
-                final boolean isDownload = maybeMarkAsDownload(initialValues);
-                newUri = insertFile(qb, helper, match, uri, extras, initialValues,
-                        FileColumns.MEDIA_TYPE_VIDEO);
-                break;
-            }
-
             case AUDIO_ALBUMART: {
                 if (helper.isInternal()) {
                     throw new UnsupportedOperationException("no internal album art allowed");
@@ -4945,23 +5228,6 @@ public class MediaProvider extends ContentProvider {
                 break;
             }
 
-            case FILES: {
-                maybePut(initialValues, FileColumns.OWNER_PACKAGE_NAME, ownerPackageName);
-                final boolean isDownload = maybeMarkAsDownload(initialValues);
-                final String mimeType = initialValues.getAsString(MediaColumns.MIME_TYPE);
-                final int mediaType = MimeUtils.resolveMediaType(mimeType);
-                newUri = insertFile(qb, helper, match, uri, extras, initialValues,
-                        mediaType);
-                break;
-            }
-
-            case DOWNLOADS:
-                maybePut(initialValues, FileColumns.OWNER_PACKAGE_NAME, ownerPackageName);
-                initialValues.put(FileColumns.IS_DOWNLOAD, 1);
-                newUri = insertFile(qb, helper, match, uri, extras, initialValues,
-                        FileColumns.MEDIA_TYPE_NONE);
-                break;
-
             default:
                 throw new UnsupportedOperationException("Invalid URI " + uri);
         }
@@ -4977,6 +5243,125 @@ public class MediaProvider extends ContentProvider {
         return newUri;
     }
 
+    /**
+     * Inserts a single item into one of the generic media tables, with {@code values} already
+     * sanitized by {@link #prepareInsertValues}.
+     */
+    private @Nullable Uri insertMediaRow(@NonNull SQLiteQueryBuilder qb,
+            @NonNull DatabaseHelper helper, int match, @NonNull Uri uri, @NonNull Bundle extras,
+            @NonNull ContentValues values, @Nullable String ownerPackageName)
+            throws VolumeArgumentException, VolumeNotFoundException {
+        maybePut(values, FileColumns.OWNER_PACKAGE_NAME, ownerPackageName);
+        switch (match) {
+            case IMAGES_MEDIA: {
+                maybeMarkAsDownload(values);
+                return insertFile(qb, helper, match, uri, extras, values,
+                        FileColumns.MEDIA_TYPE_IMAGE);
+            }
+            case AUDIO_MEDIA: {
+                maybeMarkAsDownload(values);
+                return insertFile(qb, helper, match, uri, extras, values,
+                        FileColumns.MEDIA_TYPE_AUDIO);
+            }
+            case VIDEO_MEDIA: {
+                maybeMarkAsDownload(values);
+                return insertFile(qb, helper, match, uri, extras, values,
+                        FileColumns.MEDIA_TYPE_VIDEO);
+            }
+            case FILES: {
+                maybeMarkAsDownload(values);
+                final String mimeType = values.getAsString(MediaColumns.MIME_TYPE);
+                final int mediaType = MimeUtils.resolveMediaType(mimeType);
+                return insertFile(qb, helper, match, uri, extras, values, mediaType);
+            }
+            case DOWNLOADS: {
+                values.put(FileColumns.IS_DOWNLOAD, 1);
+                return insertFile(qb, helper, match, uri, extras, values,
+                        FileColumns.MEDIA_TYPE_NONE);
+            }
+            default:
+                throw new UnsupportedOperationException("Invalid URI " + uri);
+        }
+    }
+
+    /**
+     * Sanitizes the caller supplied {@code values} of a new item in place.
+     *
+     * @return the package that should own the new item.
+     */
+    private @Nullable String prepareInsertValues(@NonNull ContentValues values) {
+        // IDs are forever; nobody should be editing them
+        values.remove(MediaColumns._ID);
+
+        // Expiration times are hard-coded; let's derive them
+        FileUtils.computeDateExpires(values);
+
+        // Ignore or augment incoming raw filesystem paths
+        for (String column : sDataColumns.keySet()) {
+            if (!values.containsKey(column)) continue;
+
+            if (isCallingPackageSelf() || isCallingPackageLegacyWrite()) {
+                // Mutation allowed
+            } else if (isCallingPackageManager()) {
+                // Apps with MANAGE_EXTERNAL_STORAGE have all files access, hence they are
+                // allowed to insert files anywhere.
+            } else {
+                Log.w(TAG, "Ignoring mutation of  " + column + " from "
+                        + getCallingPackageOrSelf());
+                values.remove(column);
+            }
+        }
+
+        final String path = values.getAsString(MediaStore.MediaColumns.DATA);
+
+        if (!isCallingPackageSelf()) {
+            values.remove(FileColumns.IS_DOWNLOAD);
+        }
+
+        // We no longer track location metadata
+        if (values.containsKey(ImageColumns.LATITUDE)) {
+            values.putNull(ImageColumns.LATITUDE);
+        }
+        if (values.containsKey(ImageColumns.LONGITUDE)) {
+            values.putNull(ImageColumns.LONGITUDE);
+        }
+        if (getCallingPackageTargetSdkVersion() <= Build.VERSION_CODES.Q) {
+            // These columns are removed in R.
+            if (values.containsKey("primary_directory")) {
+                values.remove("primary_directory");
+            }
+            if (values.containsKey("secondary_directory")) {
+                values.remove("secondary_directory");
+            }
+        }
+
+        String ownerPackageName;
+        if (isCallingPackageSelf() || isCallingPackageShell()) {
+            // When media inserted by ourselves during a scan, or by the
+            // shell, the best we can do is guess ownership based on path
+            // when it's not explicitly provided
+            ownerPackageName = values.getAsString(FileColumns.OWNER_PACKAGE_NAME);
+            if (TextUtils.isEmpty(ownerPackageName)) {
+                ownerPackageName = extractPathOwnerPackageName(path);
+            }
+        } else if (isCallingPackageDelegator()) {
+            // When caller is a delegator, we handle ownership as a hybrid
+            // of the two other cases: we're willing to accept any ownership
+            // transfer attempted during insert, but we fall back to using
+            // the Binder identity if they don't request a specific owner
+            ownerPackageName = values.getAsString(FileColumns.OWNER_PACKAGE_NAME);
+            if (TextUtils.isEmpty(ownerPackageName)) {
+                ownerPackageName = getCallingPackageOrSelf();
+            }
+        } else {
+            // Remote callers have no direct control over owner column; we force
+            // it be whoever is creating the content.
+            values.remove(FileColumns.OWNER_PACKAGE_NAME);
+            ownerPackageName = getCallingPackageOrSelf();
+        }
+        return ownerPackageName;
+    }
+
     @Override
     public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
                 throws OperationApplicationException {
@@ -5016,6 +5401,107 @@ public class MediaProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Number of items changed by each statement of {@link #applyApprovedRequest}.
+     */
+    private static final int APPROVED_REQUEST_BATCH_SIZE = 500;
+
+    /**
+     * Applies a favorite, trash or delete request which the user approved in
+     * {@link PermissionActivity} to all of the requested items together.
+     * <p>
+     * Items are grouped by volume, and the changes to each volume are made in a
+     * single transaction, so change notifications are coalesced. Favorite
+     * changes and deletions are applied with one update or delete per batch of
+     * ids, instead of running the whole update or delete path for each item.
+     * Trash changes still update items one at a time, since each of them is
+     * renamed on disk. When a batch fails, such as because one of its items
+     * is invalid, its items are retried one at a time. As with the individual
+     * operations this replaces, failures are logged and don't stop the
+     * remaining items.
+     */
+    public void applyApprovedRequest(@NonNull String method, @NonNull List<Uri> uris,
+            @Nullable ContentValues values) {
+        final ArrayMap<String, List<Uri>> urisByVolume = new ArrayMap<>();
+        for (Uri uri : uris) {
+            urisByVolume.computeIfAbsent(MediaStore.getVolumeName(uri),
+                    (volumeName) -> new ArrayList<>()).add(uri);
+        }
+
+        final LocalCallingIdentity token = clearLocalCallingIdentity();
+        try {
+            for (int i = 0; i < urisByVolume.size(); i++) {
+                final String volumeName = urisByVolume.keyAt(i);
+                final List<Uri> volumeUris = urisByVolume.valueAt(i);
+                try {
+                    getDatabaseForUri(Files.getContentUri(volumeName)).runWithTransaction((db) -> {
+                        applyApprovedRequestForVolume(method, volumeName, volumeUris, values);
+                        return null;
+                    });
+                } catch (VolumeNotFoundException e) {
+                    Log.w(TAG, "Failed to apply " + method + " to " + volumeUris.size()
+                            + " items on " + volumeName, e);
+                }
+            }
+        } finally {
+            restoreLocalCallingIdentity(token);
+        }
+    }
+
+    private void applyApprovedRequestForVolume(@NonNull String method, @NonNull String volumeName,
+            @NonNull List<Uri> uris, @Nullable ContentValues values) {
+        if (MediaStore.CREATE_TRASH_REQUEST_CALL.equals(method)) {
+            for (Uri uri : uris) {
+                applyApprovedRequestForItem(method, uri, values);
+            }
+            return;
+        }
+
+        final Uri filesUri = Files.getContentUri(volumeName);
+        for (int start = 0; start < uris.size(); start += APPROVED_REQUEST_BATCH_SIZE) {
+            final List<Uri> batch = uris.subList(start,
+                    Math.min(uris.size(), start + APPROVED_REQUEST_BATCH_SIZE));
+            try {
+                final Bundle extras = new Bundle();
+                extras.putString(QUERY_ARG_SQL_SELECTION, FileColumns._ID + " IN "
+                        + bindList(batch.stream().map(ContentUris::parseId).toArray()));
+                extras.putInt(QUERY_ARG_MATCH_PENDING, MATCH_INCLUDE);
+                extras.putInt(QUERY_ARG_MATCH_TRASHED, MATCH_INCLUDE);
+                if (MediaStore.CREATE_DELETE_REQUEST_CALL.equals(method)) {
+                    delete(filesUri, extras);
+                } else {
+                    update(filesUri, new ContentValues(values), extras);
+                }
+            } catch (Exception e) {
+                // Don't let a single bad item fail the rest of its batch
+                Log.w(TAG, "Failed to apply " + method + " to " + batch.size() + " items on "
+                        + volumeName + ", retrying them one at a time", e);
+                for (Uri uri : batch) {
+                    applyApprovedRequestForItem(method, uri, values);
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies an approved request to the single item {@code uri} through the regular update or
+     * delete path, the same way as the individual operation would have.
+     */
+    private void applyApprovedRequestForItem(@NonNull String method, @NonNull Uri uri,
+            @Nullable ContentValues values) {
+        try {
+            if (MediaStore.CREATE_DELETE_REQUEST_CALL.equals(method)) {
+                delete(uri, new Bundle());
+            } else {
+                final Bundle extras = new Bundle();
+                extras.putBoolean(MediaStore.QUERY_ARG_ALLOW_MOVEMENT, true);
+                update(uri, new ContentValues(values), extras);
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to apply " + method + " to " + uri, e);
+        }
+    }
+
     private void appendWhereStandaloneMatch(@NonNull SQLiteQueryBuilder qb,
             @NonNull String column, /* @Match */ int match, Uri uri) {
         switch (match) {
@@ -6049,60 +6535,188 @@ public class MediaProvider extends ContentProvider {
     @Nullable
     @VisibleForTesting
     Uri getRedactedUri(@NonNull Uri uri) {
-        if (!isUriSupportedForRedaction(uri)) {
-            return null;
+        return getRedactedUri(Collections.singletonList(uri)).get(0);
+    }
+
+    /**
+     * Returns the redacted uri for each of the given {@code uris}, in order, creating redacted ids
+     * for items which don't have one yet. An entry is {@code null} if its uri doesn't support
+     * redaction or doesn't match any item.
+     */
+    @NonNull
+    @VisibleForTesting
+    List<Uri> getRedactedUri(@NonNull List<Uri> uris) {
+        final Uri[] redactedUris = new Uri[uris.size()];
+
+        // Group uris by the database holding them, so that each database is only queried and
+        // updated once however many volumes are mixed in the list
+        final ArrayMap<DatabaseHelper, LongArray> positionsByHelper = new ArrayMap<>();
+        for (int i = 0; i < uris.size(); i++) {
+            final Uri uri = uris.get(i);
+            if (!isUriSupportedForRedaction(uri)) {
+                continue;
+            }
+
+            final DatabaseHelper helper;
+            try {
+                helper = getDatabaseForUri(uri);
+            } catch (VolumeNotFoundException e) {
+                throw e.rethrowAsIllegalArgumentException();
+            }
+            LongArray positions = positionsByHelper.get(helper);
+            if (positions == null) {
+                positions = new LongArray();
+                positionsByHelper.put(helper, positions);
+            }
+            positions.add(i);
         }
 
-        DatabaseHelper helper;
-        try {
-            helper = getDatabaseForUri(uri);
-        } catch (VolumeNotFoundException e) {
-            throw e.rethrowAsIllegalArgumentException();
+        for (int i = 0; i < positionsByHelper.size(); i++) {
+            getRedactedUri(positionsByHelper.keyAt(i), uris, positionsByHelper.valueAt(i),
+                    redactedUris);
         }
+        return new ArrayList<>(Arrays.asList(redactedUris));
+    }
 
-        try (final Cursor c = helper.runWithoutTransaction(
-                (db) -> db.query("files",
-                        new String[]{FileColumns.REDACTED_URI_ID}, FileColumns._ID + "=?",
-                        new String[]{uri.getLastPathSegment()}, null, null, null))) {
-            // Database entry for uri not found.
-            if (!c.moveToFirst()) return null;
-
-            String redactedUriID = c.getString(c.getColumnIndex(FileColumns.REDACTED_URI_ID));
-            if (redactedUriID == null) {
-                // No redacted has even been created for this uri. Create a new redacted URI ID for
-                // the uri and store it in the DB.
-                redactedUriID = REDACTED_URI_ID_PREFIX + UUID.randomUUID().toString().replace("-",
-                        "");
-
-                ContentValues cv = new ContentValues();
-                cv.put(FileColumns.REDACTED_URI_ID, redactedUriID);
-                int rowsAffected = helper.runWithTransaction(
-                        (db) -> db.update("files", cv, FileColumns._ID + "=?",
-                                new String[]{uri.getLastPathSegment()}));
-                if (rowsAffected == 0) {
-                    // this shouldn't happen ideally, only reason this might happen is if the db
-                    // entry got deleted in b/w in which case we should return null.
-                    return null;
-                }
+    /**
+     * Fills {@code redactedUris} at the given {@code positions} of {@code uris}, all of which are
+     * stored in {@code helper}. Existing redacted ids are read with a single query, and all
+     * missing ones are then written in a single transaction.
+     */
+    private void getRedactedUri(@NonNull DatabaseHelper helper, @NonNull List<Uri> uris,
+            @NonNull LongArray positions, @NonNull Uri[] redactedUris) {
+        final ArraySet<Long> ids = new ArraySet<>();
+        for (int i = 0; i < positions.size(); i++) {
+            final Long id = parseRedactionCandidateId(uris.get((int) positions.get(i)));
+            if (id != null) {
+                ids.add(id);
             }
+        }
+        if (ids.isEmpty()) {
+            return;
+        }
 
-            // Create and return a uri with ID = redactedUriID.
-            final Uri.Builder builder = ContentUris.removeId(uri).buildUpon();
-            builder.appendPath(redactedUriID);
+        // Database entries for ids which aren't in this map weren't found
+        final HashMap<Long, String> redactedIds = queryRedactedUriIds(helper, ids);
 
-            return builder.build();
+        final LongArray missingIds = new LongArray();
+        for (Map.Entry<Long, String> entry : redactedIds.entrySet()) {
+            if (entry.getValue() == null) {
+                missingIds.add(entry.getKey());
+            }
+        }
+
+        if (missingIds.size() > 0) {
+            // No redacted uri has ever been created for these items, so create new redacted
+            // ids and store them in the database.
+            final ArraySet<Long> conflictingIds = new ArraySet<>();
+            helper.runWithTransaction((db) -> {
+                try (SQLiteStatement statement = db.compileStatement("UPDATE files SET "
+                        + FileColumns.REDACTED_URI_ID + "=? WHERE " + FileColumns._ID
+                        + "=? AND " + FileColumns.REDACTED_URI_ID + " IS NULL")) {
+                    for (int i = 0; i < missingIds.size(); i++) {
+                        final long id = missingIds.get(i);
+                        final String redactedUriId = REDACTED_URI_ID_PREFIX
+                                + UUID.randomUUID().toString().replace("-", "");
+                        statement.bindString(1, redactedUriId);
+                        statement.bindLong(2, id);
+                        if (statement.executeUpdateDelete() == 1) {
+                            redactedIds.put(id, redactedUriId);
+                        } else {
+                            conflictingIds.add(id);
+                        }
+                        statement.clearBindings();
+                    }
+                }
+                return null;
+            });
+
+            if (!conflictingIds.isEmpty()) {
+                // The entry got deleted or another caller created its redacted id in between;
+                // in the latter case, use theirs.
+                final HashMap<Long, String> reread = queryRedactedUriIds(helper, conflictingIds);
+                for (Long id : conflictingIds) {
+                    redactedIds.put(id, reread.get(id));
+                }
+            }
+        }
+
+        for (int i = 0; i < positions.size(); i++) {
+            final int position = (int) positions.get(i);
+            final Uri uri = uris.get(position);
+            final Long id = parseRedactionCandidateId(uri);
+            final String redactedUriId = (id != null) ? redactedIds.get(id) : null;
+            if (redactedUriId != null) {
+                // Create a uri with ID = redactedUriID.
+                redactedUris[position] = ContentUris.removeId(uri).buildUpon()
+                        .appendPath(redactedUriId).build();
+            }
         }
     }
 
+    /**
+     * @return map from each of the given ids found in {@code helper} to its redacted uri id,
+     *         which is {@code null} if none has been created yet.
+     */
     @NonNull
-    @VisibleForTesting
-    List<Uri> getRedactedUri(@NonNull List<Uri> uris) {
-        ArrayList<Uri> redactedUris = new ArrayList<>();
-        for (Uri uri : uris) {
-            redactedUris.add(getRedactedUri(uri));
+    private static HashMap<Long, String> queryRedactedUriIds(@NonNull DatabaseHelper helper,
+            @NonNull Collection<Long> ids) {
+        final HashMap<Long, String> redactedIds = new HashMap<>();
+        helper.runWithoutTransaction((db) -> {
+            try (Cursor c = db.query("files",
+                    new String[] { FileColumns._ID, FileColumns.REDACTED_URI_ID },
+                    FileColumns._ID + " IN " + bindList(ids.toArray()), null, null, null, null)) {
+                while (c.moveToNext()) {
+                    redactedIds.put(c.getLong(0), c.getString(1));
+                }
+            }
+            return null;
+        });
+        return redactedIds;
+    }
+
+    @Nullable
+    private static Long parseRedactionCandidateId(@NonNull Uri uri) {
+        try {
+            return Long.parseLong(uri.getLastPathSegment());
+        } catch (NumberFormatException e) {
+            return null;
         }
+    }
 
-        return redactedUris;
+    /**
+     * Return the next page of ids deleted from {@code volumeName} after {@code generation},
+     * starting after the deletion log entry {@code pageToken}. The result has no ids if the
+     * deletion log no longer covers {@code generation}.
+     */
+    private static Bundle getDeletedIds(@NonNull SQLiteDatabase db, @NonNull String volumeName,
+            long generation, long pageToken) {
+        final LongArray ids = new LongArray();
+        long lastLogId = -1;
+        final String selection = "generation_modified>? AND _id>?"
+                + (MediaStore.VOLUME_EXTERNAL.equals(volumeName) ? "" : " AND volume_name=?");
+        final String[] selectionArgs = MediaStore.VOLUME_EXTERNAL.equals(volumeName)
+                ? new String[] { String.valueOf(generation), String.valueOf(pageToken) }
+                : new String[] { String.valueOf(generation), String.valueOf(pageToken),
+                        volumeName };
+        try (Cursor c = db.query("deletion_log", new String[] { "_id", "old_id" }, selection,
+                selectionArgs, null, null, "_id", String.valueOf(DELETED_IDS_PAGE_SIZE + 1))) {
+            while (c.moveToNext() && ids.size() < DELETED_IDS_PAGE_SIZE) {
+                lastLogId = c.getLong(0);
+                ids.add(c.getLong(1));
+            }
+            if (c.getCount() <= DELETED_IDS_PAGE_SIZE) {
+                lastLogId = -1;
+            }
+        }
+
+        final Bundle res = new Bundle();
+        // Checked after reading the page, so that a concurrent prune is never missed
+        if (generation >= DatabaseHelper.getDeletionLogGeneration(db)) {
+            res.putLongArray(MediaStore.EXTRA_RESULT, ids.toArray());
+            res.putLong(MediaStore.EXTRA_PAGE_TOKEN, lastLogId);
+        }
+        return res;
     }
 
     @Override
@@ -6163,6 +6777,7 @@ public class MediaProvider extends ContentProvider {
                 return null;
             }
             case MediaStore.SCAN_FILE_CALL:
+            case MediaStore.SCAN_FILES_CALL:
             case MediaStore.SCAN_VOLUME_CALL: {
                 final int userId = uidToUserId(Binder.getCallingUid());
                 final LocalCallingIdentity token = clearLocalCallingIdentity();
@@ -6175,6 +6790,17 @@ public class MediaProvider extends ContentProvider {
                             res.putParcelable(Intent.EXTRA_STREAM, scanFile(file, REASON_DEMAND));
                             break;
                         }
+                        case MediaStore.SCAN_FILES_CALL: {
+                            final ArrayList<String> paths =
+                                    extras.getStringArrayList(Intent.EXTRA_TEXT);
+                            final List<File> files = new ArrayList<>(paths.size());
+                            for (String path : paths) {
+                                files.add(new File(path));
+                            }
+                            res.putParcelableArrayList(Intent.EXTRA_STREAM,
+                                    new ArrayList<>(scanFiles(files, REASON_DEMAND)));
+                            break;
+                        }
                         case MediaStore.SCAN_VOLUME_CALL: {
                             final String volumeName = arg;
                             try {
@@ -6231,6 +6857,28 @@ public class MediaProvider extends ContentProvider {
                 res.putLong(Intent.EXTRA_INDEX, generation);
                 return res;
             }
+            case MediaStore.GET_DELETED_IDS_CALL: {
+                // Deleted ids of every app's media are only for callers that can already see
+                // all of it
+                if (!isCallingPackageSelf() && !isCallingPackageManager()) {
+                    throw new SecurityException(getCallingPackageOrSelf()
+                            + " has no access to deleted media ids");
+                }
+                final String volumeName = extras.getString(Intent.EXTRA_TEXT);
+                final long generation = extras.getLong(Intent.EXTRA_INDEX);
+                final long pageToken = extras.getLong(MediaStore.EXTRA_PAGE_TOKEN, -1);
+
+                final DatabaseHelper helper;
+                try {
+                    helper = getDatabaseForUri(MediaStore.Files.getContentUri(volumeName));
+                } catch (VolumeNotFoundException e) {
+                    throw e.rethrowAsIllegalArgumentException();
+                }
+
+                return helper.runWithoutTransaction((db) -> {
+                    return getDeletedIds(db, volumeName, generation, pageToken);
+                });
+            }
             case MediaStore.GET_DOCUMENT_URI_CALL: {
                 final Uri mediaUri = extras.getParcelable(MediaStore.EXTRA_URI);
                 enforceCallingPermission(mediaUri, extras, false);
@@ -8996,21 +9644,7 @@ public class MediaProvider extends ContentProvider {
                         mediaCapabilitiesUid, new long[0]);
             }
             // TODO: Fetch owner id from Android/media directory and check if caller is owner
-            FileAccessAttributes fileAttributes = null;
-            if (XAttrUtils.ENABLE_XATTR_METADATA_FOR_FUSE) {
-                Optional<FileAccessAttributes> fileAttributesThroughXattr =
-                        XAttrUtils.getFileAttributesFromXAttr(path,
-                                XAttrUtils.FILE_ACCESS_XATTR_KEY);
-                if (fileAttributesThroughXattr.isPresent()) {
-                    fileAttributes = fileAttributesThroughXattr.get();
-                }
-            }
-
-            // FileAttributes will be null if the xattr call failed or the flag to enable xattr
-            // metadata support is not set
-            if (fileAttributes == null)  {
-                fileAttributes = queryForFileAttributes(path);
-            }
+            final FileAccessAttributes fileAttributes = mFileAttributesCache.get(path);
             checkIfFileOpenIsPermitted(path, fileAttributes, redactedUriId, forWrite);
             isSuccess = true;
             return new FileOpenResult(0 /* status */, originalUid, mediaCapabilitiesUid,
@@ -10290,6 +10924,25 @@ public class MediaProvider extends ContentProvider {
     private DatabaseHelper mExternalDatabase;
     private PickerDbFacade mPickerDbFacade;
     private ExternalDbFacade mExternalDbFacade;
+    private SpecialFormatBackfill mSpecialFormatBackfill;
+    private ExpiredItemSweeper mExpiredItemSweeper;
+
+    /**
+     * Attributes checked on every FUSE file open, kept consistent with the database through
+     * {@link #mFilesListener}.
+     */
+    private final FileAttributesCache mFileAttributesCache = new FileAttributesCache(
+            FILE_ATTRIBUTES_CACHE_SIZE, this::queryForFileAttributes,
+            XAttrUtils.ENABLE_XATTR_METADATA_FOR_FUSE
+                    ? FileAttributesCache.FILE_ACCESS_XATTR_STORE : null,
+            SystemProperties.getBoolean("persist.sys.fuse.perf.fattr_verify_enabled", false));
+
+    /**
+     * Side effects of {@link #mFilesListener} callbacks, collected per transaction and applied
+     * in background batches.
+     */
+    private final FileChangeBuffer mFileChangeBuffer = new FileChangeBuffer(
+            this::onFilesChangedInBackground, BackgroundThread.getExecutor());
     private PickerDataLayer mPickerDataLayer;
     private PickerSyncController mPickerSyncController;
     private TranscodeHelper mTranscodeHelper;
@@ -10663,6 +11316,25 @@ public class MediaProvider extends ContentProvider {
         mTranscodeHelper.dump(writer);
         writer.println();
 
+        mSpecialFormatBackfill.dump(writer);
+        writer.println();
+
+        mExpiredItemSweeper.dump(writer);
+        writer.println();
+
+        mPackageSetCache.dump(writer);
+        writer.println();
+
+        mPermissionGrantCache.dump(writer);
+        writer.println("  FUSE identity: " + mIdentityResolveLatency);
+        writer.println();
+
+        mFileAttributesCache.dump(writer);
+        writer.println();
+
+        mFileChangeBuffer.dump(writer);
+        writer.println();
+
         Logging.dumpPersistent(writer);
     }
 }
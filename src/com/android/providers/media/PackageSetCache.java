@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media;
+
+import android.util.ArraySet;
+import android.util.SparseArray;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.NonNull;
+
+import java.io.PrintWriter;
+import java.util.Set;
+
+/**
+ * Set of the packages installed for each user, loaded once per user and then kept up to date
+ * from package broadcasts, so that checking many packages doesn't cost one
+ * {@link android.content.pm.PackageManager} call each.
+ * <p>
+ * Membership only proves that a package was installed; callers needing to know that a package
+ * is gone must confirm a miss with the authoritative source, since packages may be added without
+ * us hearing about it, such as for users whose broadcasts we don't receive.
+ */
+public class PackageSetCache {
+    /**
+     * Source of the packages installed for a user.
+     */
+    public interface Loader {
+        @NonNull
+        Set<String> getInstalledPackages(int userId);
+    }
+
+    private final Loader mLoader;
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final SparseArray<Set<String>> mPackages = new SparseArray<>();
+    @GuardedBy("mLock")
+    private int mLoads;
+
+    public PackageSetCache(@NonNull Loader loader) {
+        mLoader = loader;
+    }
+
+    /**
+     * Returns {@code true} if {@code packageName} is known to be installed for {@code userId}.
+     */
+    public boolean contains(@NonNull String packageName, int userId) {
+        synchronized (mLock) {
+            return getOrLoadLocked(userId).contains(packageName);
+        }
+    }
+
+    public void onPackageAdded(@NonNull String packageName, int userId) {
+        synchronized (mLock) {
+            final Set<String> packages = mPackages.get(userId);
+            if (packages != null) {
+                packages.add(packageName);
+            }
+        }
+    }
+
+    public void onPackageRemoved(@NonNull String packageName, int userId) {
+        synchronized (mLock) {
+            final Set<String> packages = mPackages.get(userId);
+            if (packages != null) {
+                packages.remove(packageName);
+            }
+        }
+    }
+
+    /**
+     * Forgets the packages of {@code userId}, so they're loaded again on next use.
+     */
+    public void invalidate(int userId) {
+        synchronized (mLock) {
+            mPackages.remove(userId);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private @NonNull Set<String> getOrLoadLocked(int userId) {
+        Set<String> packages = mPackages.get(userId);
+        if (packages == null) {
+            packages = new ArraySet<>(mLoader.getInstalledPackages(userId));
+            mPackages.put(userId, packages);
+            mLoads++;
+        }
+        return packages;
+    }
+
+    public void dump(@NonNull PrintWriter writer) {
+        synchronized (mLock) {
+            writer.print("Package set cache: loads=" + mLoads);
+            for (int i = 0; i < mPackages.size(); i++) {
+                writer.print(" u" + mPackages.keyAt(i) + "=" + mPackages.valueAt(i).size());
+            }
+            writer.println();
+        }
+    }
+}
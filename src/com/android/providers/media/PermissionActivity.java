@@ -35,6 +35,7 @@ import static com.android.providers.media.util.PermissionUtils.checkPermissionRe
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
+import android.content.ContentProviderClient;
 import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
@@ -321,26 +322,21 @@ public class PermissionActivity extends Activity {
                             break;
                         }
                         case MediaStore.CREATE_TRASH_REQUEST_CALL:
-                        case MediaStore.CREATE_FAVORITE_REQUEST_CALL: {
-                            final ArrayList<ContentProviderOperation> ops = new ArrayList<>();
-                            for (Uri uri : uris) {
-                                ops.add(ContentProviderOperation.newUpdate(uri)
-                                        .withValues(values)
-                                        .withExtra(MediaStore.QUERY_ARG_ALLOW_MOVEMENT, true)
-                                        .withExceptionAllowed(true)
-                                        .build());
-                            }
-                            getContentResolver().applyBatch(MediaStore.AUTHORITY, ops);
-                            break;
-                        }
+                        case MediaStore.CREATE_FAVORITE_REQUEST_CALL:
                         case MediaStore.CREATE_DELETE_REQUEST_CALL: {
-                            final ArrayList<ContentProviderOperation> ops = new ArrayList<>();
-                            for (Uri uri : uris) {
-                                ops.add(ContentProviderOperation.newDelete(uri)
-                                        .withExceptionAllowed(true)
-                                        .build());
+                            // We run in the same process as MediaProvider, so we can apply the
+                            // whole request at once rather than operation by operation
+                            try (ContentProviderClient cpc = getContentResolver()
+                                    .acquireContentProviderClient(MediaStore.AUTHORITY)) {
+                                if (cpc != null && cpc.getLocalContentProvider()
+                                        instanceof MediaProvider) {
+                                    ((MediaProvider) cpc.getLocalContentProvider())
+                                            .applyApprovedRequest(getIntent().getAction(), uris,
+                                                    values);
+                                } else {
+                                    applyApprovedRequestBatch(getIntent().getAction());
+                                }
                             }
-                            getContentResolver().applyBatch(MediaStore.AUTHORITY, ops);
                             break;
                         }
                     }
@@ -376,6 +372,28 @@ public class PermissionActivity extends Activity {
         }.execute();
     }
 
+    /**
+     * Applies the approved request operation by operation, for when MediaProvider isn't
+     * available in this process.
+     */
+    private void applyApprovedRequestBatch(@NonNull String method) throws Exception {
+        final ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+        for (Uri uri : uris) {
+            if (MediaStore.CREATE_DELETE_REQUEST_CALL.equals(method)) {
+                ops.add(ContentProviderOperation.newDelete(uri)
+                        .withExceptionAllowed(true)
+                        .build());
+            } else {
+                ops.add(ContentProviderOperation.newUpdate(uri)
+                        .withValues(values)
+                        .withExtra(MediaStore.QUERY_ARG_ALLOW_MOVEMENT, true)
+                        .withExceptionAllowed(true)
+                        .build());
+            }
+        }
+        getContentResolver().applyBatch(MediaStore.AUTHORITY, ops);
+    }
+
     private void onNegativeAction(DialogInterface dialog, int which) {
         new AsyncTask<Void, Void, Void>() {
             @Override
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media;
+
+import static android.provider.MediaStore.Files.FileColumns.MEDIA_TYPE;
+import static android.provider.MediaStore.Files.FileColumns.MEDIA_TYPE_IMAGE;
+import static android.provider.MediaStore.Files.FileColumns._SPECIAL_FORMAT;
+import static android.provider.MediaStore.Files.FileColumns._SPECIAL_FORMAT_NONE;
+
+import static com.android.providers.media.util.Logging.TAG;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
+import android.os.CancellationSignal;
+import android.os.SystemClock;
+import android.provider.MediaStore.MediaColumns;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
+import com.android.providers.media.util.LongArray;
+import com.android.providers.media.util.SpecialFormatDetector;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Populates {@link android.provider.MediaStore.Files.FileColumns#_SPECIAL_FORMAT} for images
+ * which haven't been through special format detection yet, such as items indexed before the
+ * column existed.
+ * <p>
+ * Work is done in chunks walking up the {@code _id} space. Each chunk is read in a short query,
+ * formats are detected outside of any transaction since that requires file I/O, and results are
+ * then written back with a single compiled statement inside one transaction. Since these writes
+ * are internal bookkeeping, per-row {@link DatabaseHelper.OnFilesChangeListener} callbacks are
+ * suppressed and the caller is told once per pass instead.
+ */
+public class SpecialFormatBackfill {
+    private static final String UPDATE_SQL = "UPDATE files SET " + _SPECIAL_FORMAT + "=?,"
+            + MediaColumns.GENERATION_MODIFIED + "=(" + DatabaseHelper.CURRENT_GENERATION_CLAUSE
+            + ") WHERE " + MediaColumns._ID + "=? AND " + _SPECIAL_FORMAT + " IS NULL";
+
+    private static final String PENDING_SELECTION = _SPECIAL_FORMAT + " IS NULL AND "
+            + MEDIA_TYPE + "=" + MEDIA_TYPE_IMAGE + " AND " + MediaColumns._ID + ">?";
+
+    private final DatabaseHelper mHelper;
+    private final int mChunkSize;
+
+    private final Object mLock = new Object();
+    private long mLastRows;
+    private long mLastDurationMillis;
+
+    public SpecialFormatBackfill(@NonNull DatabaseHelper helper, int chunkSize) {
+        mHelper = helper;
+        mChunkSize = chunkSize;
+    }
+
+    /**
+     * Result of a single {@link #run} pass.
+     */
+    public static class Result {
+        /** Number of rows whose special format was written. */
+        public final int updatedCount;
+        /** {@code _id} to resume from on the next pass, or {@code 0} if the pass completed. */
+        public final long resumeId;
+        public final boolean complete;
+        public final long durationMillis;
+
+        Result(int updatedCount, long resumeId, boolean complete, long durationMillis) {
+            this.updatedCount = updatedCount;
+            this.resumeId = resumeId;
+            this.complete = complete;
+            this.durationMillis = durationMillis;
+        }
+
+        public long getRowsPerSecond() {
+            return (durationMillis > 0) ? (updatedCount * 1000L / durationMillis) : updatedCount;
+        }
+    }
+
+    /**
+     * Detect and persist special formats for all pending images with an {@code _id} greater than
+     * {@code startId}, stopping early if {@code signal} is canceled.
+     *
+     * @return result describing the work done, including the {@code _id} from which a later pass
+     *         should resume if this one was interrupted.
+     */
+    public @NonNull Result run(long startId, @NonNull CancellationSignal signal) {
+        final long startTime = SystemClock.elapsedRealtime();
+        long cursorId = startId;
+        int updatedCount = 0;
+        boolean complete = false;
+        while (!signal.isCanceled()) {
+            final LongArray ids = new LongArray();
+            final LongArray formats = new LongArray();
+            final boolean exhausted = readChunk(cursorId, ids, formats, signal);
+            if (ids.size() > 0) {
+                updatedCount += writeChunk(ids, formats);
+                cursorId = ids.get(ids.size() - 1);
+            }
+            if (exhausted) {
+                complete = true;
+                break;
+            }
+        }
+
+        final long durationMillis = SystemClock.elapsedRealtime() - startTime;
+        final Result result = new Result(updatedCount, complete ? 0 : cursorId, complete,
+                durationMillis);
+        synchronized (mLock) {
+            mLastRows = updatedCount;
+            mLastDurationMillis = durationMillis;
+        }
+        Log.d(TAG, String.format(Locale.ROOT,
+                "Updated _SPECIAL_FORMAT for %d items in %dms (%d rows/s), resume id %d",
+                updatedCount, durationMillis, result.getRowsPerSecond(), result.resumeId));
+        return result;
+    }
+
+    /**
+     * Read the next chunk of pending rows after {@code afterId} and detect their special format.
+     *
+     * @return {@code true} if every pending row after {@code afterId} has been detected.
+     */
+    private boolean readChunk(long afterId, @NonNull LongArray ids, @NonNull LongArray formats,
+            @NonNull CancellationSignal signal) {
+        final LongArray pendingIds = new LongArray();
+        final ArrayList<String> pendingPaths = new ArrayList<>();
+        mHelper.runWithoutTransaction((db) -> {
+            try (Cursor c = db.query(/* distinct */ false, "files",
+                    new String[] { MediaColumns._ID, MediaColumns.DATA },
+                    PENDING_SELECTION, new String[] { String.valueOf(afterId) },
+                    null, null, MediaColumns._ID, String.valueOf(mChunkSize), signal)) {
+                while (c.moveToNext()) {
+                    pendingIds.add(c.getLong(0));
+                    pendingPaths.add(c.getString(1));
+                }
+            }
+            return null;
+        });
+
+        for (int i = 0; i < pendingIds.size() && !signal.isCanceled(); i++) {
+            ids.add(pendingIds.get(i));
+            formats.add(detectSpecialFormat(pendingPaths.get(i)));
+        }
+        return !signal.isCanceled() && pendingIds.size() < mChunkSize;
+    }
+
+    private int writeChunk(@NonNull LongArray ids, @NonNull LongArray formats) {
+        return mHelper.runWithTransactionWithoutFilesListener((db) -> {
+            int count = 0;
+            try (SQLiteStatement statement = db.compileStatement(UPDATE_SQL)) {
+                for (int i = 0; i < ids.size(); i++) {
+                    statement.bindLong(1, formats.get(i));
+                    statement.bindLong(2, ids.get(i));
+                    if (statement.executeUpdateDelete() == 1) {
+                        count++;
+                    }
+                    statement.clearBindings();
+                }
+            }
+            return count;
+        });
+    }
+
+    @VisibleForTesting
+    static int detectSpecialFormat(String path) {
+        final File file = new File(path);
+        if (!file.exists()) {
+            // We always update special format to none if the file is not found or there is an
+            // error, this is so that we do not repeat over the same column again and again.
+            return _SPECIAL_FORMAT_NONE;
+        }
+
+        try {
+            return SpecialFormatDetector.detect(file);
+        } catch (Exception e) {
+            // we tried our best, no need to run special detection again and again if it
+            // throws exception once, it is likely to do so everytime.
+            Log.d(TAG, "Failed to detect special format for file: " + file, e);
+            return _SPECIAL_FORMAT_NONE;
+        }
+    }
+
+    public void dump(@NonNull PrintWriter writer) {
+        synchronized (mLock) {
+            writer.println("Special format backfill: last pass updated " + mLastRows
+                    + " rows in " + mLastDurationMillis + "ms");
+        }
+    }
+}
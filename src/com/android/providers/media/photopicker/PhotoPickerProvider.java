@@ -19,6 +19,7 @@ package com.android.providers.media.photopicker;
 import static android.provider.CloudMediaProviderContract.EXTRA_AUTHORITY;
 import static android.provider.CloudMediaProviderContract.EXTRA_LOOPING_PLAYBACK_ENABLED;
 import static android.provider.CloudMediaProviderContract.EXTRA_MEDIASTORE_THUMB;
+import static android.provider.CloudMediaProviderContract.EXTRA_PAGE_SIZE;
 import static android.provider.CloudMediaProviderContract.EXTRA_SURFACE_CONTROLLER_AUDIO_MUTE_ENABLED;
 
 import android.content.ContentProviderClient;
@@ -52,6 +53,9 @@ import java.io.FileNotFoundException;
  */
 public class PhotoPickerProvider extends CloudMediaProvider {
     private static final String TAG = "PhotoPickerProvider";
+    // Keeps each page of a local sync within a single CursorWindow
+    private static final int MEDIA_PAGE_SIZE = 5000;
+    private static final int MEDIA_PAGE_SIZE_MAX = 10000;
 
     private MediaProvider mMediaProvider;
     private ExternalDbFacade mDbFacade;
@@ -65,12 +69,21 @@ public class PhotoPickerProvider extends CloudMediaProvider {
 
     @Override
     public Cursor onQueryMedia(@Nullable Bundle extras) {
-        // TODO(b/190713331): Handle extra_page
         final CloudProviderQueryExtras queryExtras =
                 CloudProviderQueryExtras.fromCloudMediaBundle(extras);
 
-        return mDbFacade.queryMedia(queryExtras.getGeneration(), queryExtras.getAlbumId(),
-                queryExtras.getMimeType());
+        final boolean hasPageSizeHint = queryExtras.getPageSize() > 0;
+        final int pageSize = hasPageSizeHint
+                ? Math.min(queryExtras.getPageSize(), MEDIA_PAGE_SIZE_MAX) : MEDIA_PAGE_SIZE;
+
+        final Cursor cursor = mDbFacade.queryMedia(queryExtras.getGeneration(),
+                queryExtras.getAlbumId(), queryExtras.getMimeType(), queryExtras.getPageToken(),
+                pageSize);
+        if (hasPageSizeHint) {
+            cursor.getExtras().getStringArrayList(ContentResolver.EXTRA_HONORED_ARGS)
+                    .add(EXTRA_PAGE_SIZE);
+        }
+        return cursor;
     }
 
     @Override
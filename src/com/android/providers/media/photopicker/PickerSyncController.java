@@ -19,6 +19,7 @@ package com.android.providers.media.photopicker;
 import static android.content.ContentResolver.EXTRA_HONORED_ARGS;
 import static android.provider.CloudMediaProviderContract.EXTRA_ALBUM_ID;
 import static android.provider.CloudMediaProviderContract.EXTRA_MEDIA_COLLECTION_ID;
+import static android.provider.CloudMediaProviderContract.EXTRA_PAGE_SIZE;
 import static android.provider.CloudMediaProviderContract.EXTRA_PAGE_TOKEN;
 import static android.provider.CloudMediaProviderContract.EXTRA_SYNC_GENERATION;
 import static android.provider.CloudMediaProviderContract.MediaCollectionInfo;
@@ -36,14 +37,19 @@ import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.ProviderInfo;
 import android.content.pm.ResolveInfo;
+import android.database.AbstractWindowedCursor;
 import android.database.Cursor;
+import android.database.CursorWindow;
+import android.database.CursorWrapper;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Process;
+import android.os.SystemClock;
 import android.os.storage.StorageManager;
 import android.provider.CloudMediaProvider;
 import android.provider.CloudMediaProviderContract;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
 import android.widget.Toast;
@@ -65,6 +71,13 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Syncs the local and currently enabled cloud {@link CloudMediaProvider} instances on the device
@@ -81,6 +94,7 @@ public class PickerSyncController {
             "cloud_provider_pending_notification";
     private static final String PREFS_KEY_CLOUD_PREFIX = "cloud_provider:";
     private static final String PREFS_KEY_LOCAL_PREFIX = "local_provider:";
+    private static final String PREFS_KEY_ALBUM_PREFIX = "album:";
 
     private static final String PICKER_USER_PREFS_FILE_NAME = "picker_user_prefs";
     public static final String PICKER_SYNC_PREFS_FILE_NAME = "picker_sync_prefs";
@@ -113,6 +127,14 @@ public class PickerSyncController {
 
     @GuardedBy("mLock")
     private CloudProviderInfo mCloudProviderInfo;
+    // Fetches the next page of a paged sync while the current one is applied
+    private final Executor mPrefetchExecutor = new ThreadPoolExecutor(/* corePoolSize */ 0,
+            /* maximumPoolSize */ Integer.MAX_VALUE, /* keepAliveTime */ 30, TimeUnit.SECONDS,
+            new SynchronousQueue<>(), r -> new Thread(r, "PickerSyncPrefetch"));
+    private volatile boolean mPipelinedSync = true;
+    // Page size hints carried over between syncs, keyed by query uri
+    @GuardedBy("mPageSizeHints")
+    private final ArrayMap<Uri, PageSizeHint> mPageSizeHints = new ArrayMap<>();
 
     public PickerSyncController(Context context, PickerDbFacade dbFacade,
             String localProvider, String allowedCloudProviders, long syncDelayMs) {
@@ -156,8 +178,9 @@ public class PickerSyncController {
 
             syncAllMediaFromProvider(cloudProvider, /* retryOnFailure */ true);
 
-            // Reset the album_media table every time we sync all media
-            resetAlbumMedia();
+            // Local albums are synced in full on every open anyway. Cloud album_media is kept
+            // across syncs and only reset along with the cloud media, see resetAllMedia
+            executeSyncAlbumReset(mLocalProvider, /* albumId */ null);
 
             // Set the latest cloud provider on the facade
             mDbFacade.setCloudProvider(cloudProvider);
@@ -173,22 +196,15 @@ public class PickerSyncController {
             syncAlbumMediaFromProvider(mLocalProvider, albumId);
         } else {
             synchronized (mLock) {
-                syncAlbumMediaFromProvider(mCloudProviderInfo.authority, albumId);
+                syncCloudAlbumMediaFromProvider(mCloudProviderInfo.authority, albumId,
+                        /* retryOnFailure */ true);
             }
         }
     }
 
-    private void resetAlbumMedia() {
-        executeSyncAlbumReset(mLocalProvider, /* albumId */ null);
-
-        synchronized (mLock) {
-            final String cloudProvider = mCloudProviderInfo.authority;
-            executeSyncAlbumReset(cloudProvider, /* albumId */ null);
-        }
-    }
-
     private void resetAllMedia(String authority) {
         executeSyncReset(authority);
+        executeSyncAlbumReset(authority, /* albumId */ null);
         resetCachedMediaCollectionInfo(authority);
     }
 
@@ -205,6 +221,14 @@ public class PickerSyncController {
         return CloudProviderInfo.EMPTY;
     }
 
+    /**
+     * Enables or disables fetching the next page of a sync while the current one is applied.
+     */
+    @VisibleForTesting
+    void setPipelinedSync(boolean pipelined) {
+        mPipelinedSync = pipelined;
+    }
+
     /**
      * Returns the supported cloud {@link CloudMediaProvider} authorities.
      */
@@ -426,16 +450,91 @@ public class PickerSyncController {
             executeSyncAlbumReset(authority, albumId);
 
             if (authority != null) {
-                executeSyncAddAlbum(authority, albumId, queryArgs);
+                executeSyncAddAlbum(authority, albumId, /* expectedMediaCollectionId */ null,
+                        /* isIncrementalSync */ false, queryArgs);
             }
         } catch (RuntimeException e) {
             // Unlike syncAllMediaFromProvider, we don't retry here because any errors would have
-            // occurred in fetching all the album_media since incremental sync is not supported.
-            // A full sync is therefore unlikely to resolve any issue
+            // occurred in fetching all the album_media since local albums are always synced in
+            // full. A full sync is therefore unlikely to resolve any issue
             Log.e(TAG, "Failed to sync album media", e);
         }
     }
 
+    /**
+     * Syncs cloud album_media incrementally from the generation cached for {@code albumId}, so
+     * reopening an album only fetches what changed since it was last opened.
+     * <p>
+     * Additions and updates are queried with both {@link CloudMediaProviderContract#EXTRA_ALBUM_ID}
+     * and {@link CloudMediaProviderContract#EXTRA_SYNC_GENERATION}, and deletions are applied from
+     * the deleted media of the whole collection. The contract has no way to report items that
+     * merely left an album, so those remain until the album is reset along with the cloud media
+     * or the media collection id changes.
+     */
+    private void syncCloudAlbumMediaFromProvider(String authority, String albumId,
+            boolean retryOnFailure) {
+        boolean isIncrementalSync = false;
+        try {
+            final SyncRequestParams params = getSyncRequestParams(authority,
+                    getCachedAlbumMediaCollectionInfo(authority, albumId));
+
+            switch (params.syncType) {
+                case SYNC_TYPE_MEDIA_RESET:
+                    // Can only happen when |authority| has been set to null
+                    executeSyncAlbumReset(authority, albumId);
+                    break;
+                case SYNC_TYPE_MEDIA_FULL:
+                    resetAlbumMedia(authority, albumId);
+
+                    final Bundle fullQueryArgs = new Bundle();
+                    fullQueryArgs.putString(EXTRA_ALBUM_ID, albumId);
+                    executeSyncAddAlbum(authority, albumId, params.getMediaCollectionId(),
+                            /* isIncrementalSync */ false, fullQueryArgs);
+
+                    // Commit sync position
+                    cacheAlbumMediaCollectionInfo(authority, albumId,
+                            params.latestMediaCollectionInfo);
+                    break;
+                case SYNC_TYPE_MEDIA_INCREMENTAL:
+                    isIncrementalSync = true;
+
+                    final Bundle queryArgs = new Bundle();
+                    queryArgs.putString(EXTRA_ALBUM_ID, albumId);
+                    queryArgs.putLong(EXTRA_SYNC_GENERATION, params.syncGeneration);
+                    executeSyncAddAlbum(authority, albumId, params.getMediaCollectionId(),
+                            /* isIncrementalSync */ true, queryArgs);
+
+                    final Bundle deletedQueryArgs = new Bundle();
+                    deletedQueryArgs.putLong(EXTRA_SYNC_GENERATION, params.syncGeneration);
+                    executeSyncRemoveAlbum(authority, albumId, params.getMediaCollectionId(),
+                            deletedQueryArgs);
+
+                    // Commit sync position
+                    cacheAlbumMediaCollectionInfo(authority, albumId,
+                            params.latestMediaCollectionInfo);
+                    break;
+                case SYNC_TYPE_NONE:
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unexpected sync type: " + params.syncType);
+            }
+        } catch (RuntimeException e) {
+            resetAlbumMedia(authority, albumId);
+
+            // Only an incremental sync can fail in ways a full sync might not, see
+            // syncAlbumMediaFromProvider
+            Log.e(TAG, "Failed to sync cloud album media. Incremental: " + isIncrementalSync, e);
+            if (retryOnFailure && isIncrementalSync) {
+                syncCloudAlbumMediaFromProvider(authority, albumId, /* retryOnFailure */ false);
+            }
+        }
+    }
+
+    private void resetAlbumMedia(String authority, String albumId) {
+        executeSyncAlbumReset(authority, albumId);
+        cacheAlbumMediaCollectionInfo(authority, albumId, /* bundle */ null);
+    }
+
     private void syncAllMediaFromProvider(String authority, boolean retryOnFailure) {
         try {
             final SyncRequestParams params = getSyncRequestParams(authority);
@@ -528,16 +627,32 @@ public class PickerSyncController {
         }
     }
 
-    private void executeSyncAddAlbum(String authority, String albumId, Bundle queryArgs) {
+    private void executeSyncAddAlbum(String authority, String albumId,
+            String expectedMediaCollectionId, boolean isIncrementalSync, Bundle queryArgs) {
         final Uri uri = getMediaUri(authority);
+        final List<String> expectedHonoredArgs = new ArrayList<>();
+        expectedHonoredArgs.add(EXTRA_ALBUM_ID);
+        if (isIncrementalSync) {
+            expectedHonoredArgs.add(EXTRA_SYNC_GENERATION);
+        }
 
         Log.i(TAG, "Executing SyncAddAlbum. authority: " + authority + ". albumId: " + albumId);
         try (PickerDbFacade.DbWriteOperation operation =
                      mDbFacade.beginAddAlbumMediaOperation(authority, albumId)) {
+            executePagedSync(uri, expectedMediaCollectionId, expectedHonoredArgs, queryArgs,
+                    operation);
+        }
+    }
+
+    private void executeSyncRemoveAlbum(String authority, String albumId,
+            String mediaCollectionId, Bundle queryArgs) {
+        final Uri uri = getDeletedMediaUri(authority);
 
-            // We don't need to validate the mediaCollectionId for album_media sync since it's
-            // always a full sync
-            executePagedSync(uri, /* mediaCollectionId */ null, Arrays.asList(EXTRA_ALBUM_ID),
+        Log.i(TAG, "Executing SyncRemoveAlbum. authority: " + authority + ". albumId: "
+                + albumId);
+        try (PickerDbFacade.DbWriteOperation operation =
+                     mDbFacade.beginRemoveAlbumMediaOperation(authority, albumId)) {
+            executePagedSync(uri, mediaCollectionId, Arrays.asList(EXTRA_SYNC_GENERATION),
                     queryArgs, operation);
         }
     }
@@ -612,17 +727,65 @@ public class PickerSyncController {
 
     private void resetCachedMediaCollectionInfo(String authority) {
         cacheMediaCollectionInfo(authority, /* bundle */ null);
+
+        // Page sizes learned from the previous provider or collection don't carry over
+        synchronized (mPageSizeHints) {
+            mPageSizeHints.clear();
+        }
+
+        if (authority == null) {
+            return;
+        }
+
+        // Album sync positions are only valid as long as the album_media they describe
+        final String albumPrefix = getPrefsKey(authority, PREFS_KEY_ALBUM_PREFIX);
+        final SharedPreferences.Editor editor = mSyncPrefs.edit();
+        for (String key : mSyncPrefs.getAll().keySet()) {
+            if (key.startsWith(albumPrefix)) {
+                editor.remove(key);
+            }
+        }
+        editor.apply();
+    }
+
+    private void cacheAlbumMediaCollectionInfo(String authority, String albumId, Bundle bundle) {
+        final SharedPreferences.Editor editor = mSyncPrefs.edit();
+
+        if (bundle == null) {
+            editor.remove(getAlbumPrefsKey(authority, albumId,
+                    MediaCollectionInfo.MEDIA_COLLECTION_ID));
+            editor.remove(getAlbumPrefsKey(authority, albumId,
+                    MediaCollectionInfo.LAST_MEDIA_SYNC_GENERATION));
+        } else {
+            editor.putString(getAlbumPrefsKey(authority, albumId,
+                    MediaCollectionInfo.MEDIA_COLLECTION_ID),
+                    bundle.getString(MediaCollectionInfo.MEDIA_COLLECTION_ID));
+            editor.putLong(getAlbumPrefsKey(authority, albumId,
+                    MediaCollectionInfo.LAST_MEDIA_SYNC_GENERATION),
+                    bundle.getLong(MediaCollectionInfo.LAST_MEDIA_SYNC_GENERATION));
+        }
+
+        editor.apply();
+    }
+
+    private Bundle getCachedAlbumMediaCollectionInfo(String authority, String albumId) {
+        return getCachedMediaCollectionInfo(
+                getAlbumPrefsKey(authority, albumId, MediaCollectionInfo.MEDIA_COLLECTION_ID),
+                getAlbumPrefsKey(authority, albumId,
+                        MediaCollectionInfo.LAST_MEDIA_SYNC_GENERATION));
     }
 
     private Bundle getCachedMediaCollectionInfo(String authority) {
+        return getCachedMediaCollectionInfo(
+                getPrefsKey(authority, MediaCollectionInfo.MEDIA_COLLECTION_ID),
+                getPrefsKey(authority, MediaCollectionInfo.LAST_MEDIA_SYNC_GENERATION));
+    }
+
+    private Bundle getCachedMediaCollectionInfo(String collectionIdKey, String generationKey) {
         final Bundle bundle = new Bundle();
 
-        final String collectionId = mSyncPrefs.getString(
-                getPrefsKey(authority, MediaCollectionInfo.MEDIA_COLLECTION_ID),
-                /* default */ null);
-        final long generation = mSyncPrefs.getLong(
-                getPrefsKey(authority, MediaCollectionInfo.LAST_MEDIA_SYNC_GENERATION),
-                /* default */ -1);
+        final String collectionId = mSyncPrefs.getString(collectionIdKey, /* default */ null);
+        final long generation = mSyncPrefs.getLong(generationKey, /* default */ -1);
 
         bundle.putString(MediaCollectionInfo.MEDIA_COLLECTION_ID, collectionId);
         bundle.putLong(MediaCollectionInfo.LAST_MEDIA_SYNC_GENERATION, generation);
@@ -638,13 +801,18 @@ public class PickerSyncController {
 
     @SyncType
     private SyncRequestParams getSyncRequestParams(String authority) {
+        return getSyncRequestParams(authority, getCachedMediaCollectionInfo(authority));
+    }
+
+    @SyncType
+    private SyncRequestParams getSyncRequestParams(String authority,
+            Bundle cachedMediaCollectionInfo) {
         if (authority == null) {
             // Only cloud authority can be null
             Log.d(TAG, "Fetching SyncRequestParams. Null cloud authority. Result: SYNC_TYPE_RESET");
             return SyncRequestParams.forResetMedia();
         }
 
-        final Bundle cachedMediaCollectionInfo = getCachedMediaCollectionInfo(authority);
         final Bundle latestMediaCollectionInfo = getLatestMediaCollectionInfo(authority);
 
         final String latestCollectionId =
@@ -685,6 +853,11 @@ public class PickerSyncController {
         return (isLocal(authority) ? PREFS_KEY_LOCAL_PREFIX : PREFS_KEY_CLOUD_PREFIX) + key;
     }
 
+    private String getAlbumPrefsKey(String authority, String albumId, String key) {
+        // Album ids are opaque, so keep them last
+        return getPrefsKey(authority, PREFS_KEY_ALBUM_PREFIX + key + ":" + albumId);
+    }
+
     private boolean isLocal(String authority) {
         return mLocalProvider.equals(authority);
     }
@@ -694,36 +867,145 @@ public class PickerSyncController {
                 /* cancellationSignal */ null);
     }
 
+    /**
+     * Fetches pages from {@code uri} and applies them with {@code dbWriteOperation}, in order.
+     * <p>
+     * When pipelining is enabled, the next page is fetched on {@link #mPrefetchExecutor} while
+     * the current one is written, so provider latency overlaps with database writes. At most one
+     * page is fetched ahead, and pages are still applied on the calling thread, in the
+     * transaction of {@code dbWriteOperation}. Failures of either stage are rethrown here after
+     * any prefetched page is released.
+     */
     private void executePagedSync(Uri uri, String expectedMediaCollectionId,
             List<String> expectedHonoredArgs, Bundle queryArgs,
             PickerDbFacade.DbWriteOperation dbWriteOperation) {
         int cursorCount = 0;
         int totalRowcount = 0;
-        // Set to check the uniqueness of tokens across pages.
+        // Set to check the uniqueness of tokens across pages. Only touched by one fetch at a time.
         Set<String> tokens = new ArraySet<>();
 
-        String nextPageToken = null;
-        do {
-            if (nextPageToken != null) {
-                queryArgs.putString(EXTRA_PAGE_TOKEN, nextPageToken);
-            }
+        final PageSizeHint pageSizeHint = getPageSizeHint(uri);
+        final boolean pipelined = mPipelinedSync;
 
-            try (Cursor cursor = query(uri, queryArgs)) {
-                nextPageToken = validateCursor(cursor, expectedMediaCollectionId,
-                        expectedHonoredArgs, tokens);
+        Future<Page> nextPage = fetchPage(uri, /* pageToken */ null, queryArgs, pageSizeHint,
+                expectedMediaCollectionId, expectedHonoredArgs, tokens, pipelined);
+        try {
+            do {
+                final Page page = getPage(nextPage);
+                nextPage = null;
+
+                try (Cursor cursor = page.cursor) {
+                    if (page.nextPageToken != null) {
+                        nextPage = fetchPage(uri, page.nextPageToken, queryArgs, pageSizeHint,
+                                expectedMediaCollectionId, expectedHonoredArgs, tokens,
+                                pipelined);
+                    }
 
-                int writeCount = dbWriteOperation.execute(cursor);
+                    int writeCount = dbWriteOperation.execute(cursor);
 
-                totalRowcount += writeCount;
-                cursorCount += cursor.getCount();
+                    totalRowcount += writeCount;
+                    cursorCount += cursor.getCount();
+                }
+            } while (nextPage != null);
+        } finally {
+            if (nextPage != null) {
+                // Only reached on failure; don't leak the page fetched ahead
+                releasePage(nextPage);
             }
-        } while (nextPageToken != null);
+        }
 
         dbWriteOperation.setSuccess();
         Log.i(TAG, "Paged sync successful. QueryArgs: " + queryArgs + ". Result count: "
                 + totalRowcount + ". Cursor count: " + cursorCount);
     }
 
+    private Future<Page> fetchPage(Uri uri, String pageToken, Bundle queryArgs,
+            PageSizeHint pageSizeHint, String expectedMediaCollectionId,
+            List<String> expectedHonoredArgs, Set<String> tokens, boolean pipelined) {
+        final FutureTask<Page> task = new FutureTask<>(() -> {
+            if (pageToken != null) {
+                queryArgs.putString(EXTRA_PAGE_TOKEN, pageToken);
+            }
+            queryArgs.putInt(EXTRA_PAGE_SIZE, pageSizeHint.get());
+
+            final long startMillis = SystemClock.elapsedRealtime();
+            final Cursor cursor = query(uri, queryArgs);
+            try {
+                final int rowsInFirstWindow = getRowsInFirstWindow(cursor);
+                pageSizeHint.onPageFetched(cursor.getCount(), rowsInFirstWindow,
+                        SystemClock.elapsedRealtime() - startMillis);
+
+                final String nextPageToken = validateCursor(cursor, expectedMediaCollectionId,
+                        expectedHonoredArgs, tokens);
+                return new Page(cursor, nextPageToken);
+            } catch (RuntimeException e) {
+                cursor.close();
+                throw e;
+            }
+        });
+
+        if (pipelined) {
+            mPrefetchExecutor.execute(task);
+        } else {
+            task.run();
+        }
+        return task;
+    }
+
+    private static Page getPage(Future<Page> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void releasePage(Future<Page> future) {
+        try {
+            future.get().cursor.close();
+        } catch (RuntimeException | ExecutionException | InterruptedException e) {
+            Log.w(TAG, "Failed to release prefetched page", e);
+        }
+    }
+
+    private PageSizeHint getPageSizeHint(Uri uri) {
+        synchronized (mPageSizeHints) {
+            PageSizeHint hint = mPageSizeHints.get(uri);
+            if (hint == null) {
+                hint = new PageSizeHint();
+                mPageSizeHints.put(uri, hint);
+            }
+            return hint;
+        }
+    }
+
+    /**
+     * Returns the number of rows held by the first {@link CursorWindow} of {@code cursor}, or
+     * {@code -1} if it isn't backed by windows. Leaves the cursor before the first row.
+     */
+    private static int getRowsInFirstWindow(Cursor cursor) {
+        Cursor unwrapped = cursor;
+        while (unwrapped instanceof CursorWrapper) {
+            unwrapped = ((CursorWrapper) unwrapped).getWrappedCursor();
+        }
+
+        int rows = -1;
+        if (unwrapped instanceof AbstractWindowedCursor && cursor.moveToFirst()) {
+            final CursorWindow window = ((AbstractWindowedCursor) unwrapped).getWindow();
+            if (window != null) {
+                rows = window.getNumRows();
+            }
+        }
+        cursor.moveToPosition(-1);
+        return rows;
+    }
+
     private CloudProviderInfo getDefaultCloudProviderInfo(String cachedProvider) {
         final List<CloudProviderInfo> infos =
                 getSupportedCloudProviders(/* ignoreAllowList */ false);
@@ -861,6 +1143,54 @@ public class PickerSyncController {
         }
     }
 
+    /**
+     * Adapts the {@link CloudMediaProviderContract#EXTRA_PAGE_SIZE} hint sent to a provider from
+     * the pages it returned so far.
+     * <p>
+     * Pages spilling over a single {@link CursorWindow} cost an extra round trip for each window
+     * and risk failing binder transactions, so the hint shrinks to what fitted in the first
+     * window. Slow pages halve it, and full pages fetched well within the target latency double
+     * it to save round trips.
+     */
+    @VisibleForTesting
+    static class PageSizeHint {
+        static final int MIN = 100;
+        static final int DEFAULT = 1000;
+        static final int MAX = 10000;
+        static final long TARGET_LATENCY_MS = 1000;
+
+        private int mPageSize = DEFAULT;
+
+        synchronized int get() {
+            return mPageSize;
+        }
+
+        synchronized void onPageFetched(int rowCount, int rowsInFirstWindow, long latencyMs) {
+            if (rowsInFirstWindow >= 0 && rowsInFirstWindow < rowCount) {
+                // Leave some room for rows larger than the ones seen so far
+                mPageSize = clamp(rowsInFirstWindow * 3 / 4);
+            } else if (latencyMs > TARGET_LATENCY_MS) {
+                mPageSize = clamp(mPageSize / 2);
+            } else if (rowCount >= mPageSize && latencyMs < TARGET_LATENCY_MS / 4) {
+                mPageSize = clamp(mPageSize * 2);
+            }
+        }
+
+        private static int clamp(int pageSize) {
+            return Math.max(MIN, Math.min(MAX, pageSize));
+        }
+    }
+
+    private static class Page {
+        final Cursor cursor;
+        final String nextPageToken;
+
+        Page(Cursor cursor, String nextPageToken) {
+            this.cursor = cursor;
+            this.nextPageToken = nextPageToken;
+        }
+    }
+
     private static class SyncRequestParams {
         private static final SyncRequestParams SYNC_REQUEST_NONE =
                 new SyncRequestParams(SYNC_TYPE_NONE);
@@ -26,9 +26,15 @@ import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.util.Log;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
 import com.android.providers.media.photopicker.data.UnreliableVolumeDatabaseHelper;
+import com.android.providers.media.scan.UnreliableVolumeScanner;
 import com.android.providers.media.util.SQLiteQueryBuilder;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.List;
 
 public class UnreliableVolumeFacade {
@@ -38,6 +44,9 @@ public class UnreliableVolumeFacade {
     private static final int FAIL = -1;
     private static final int SUCCESS = 1;
 
+    /** Number of items written per transaction by {@link #scanAndInsertMedia}. */
+    public static final int SCAN_BATCH_SIZE = 500;
+
     private SQLiteDatabase mDatabase;
     private SQLiteQueryBuilder mQueryBuilder;
 
@@ -109,6 +118,29 @@ public class UnreliableVolumeFacade {
         return numberItemsInserted;
     }
 
+    /**
+     * Scans the unreliable volume {@code path} with {@code scanner} and inserts the media found
+     * one batch of {@link #SCAN_BATCH_SIZE} items at a time, so that the picker can show the
+     * first items while the rest of the volume is still being scanned.
+     *
+     * @param parallelism see {@link UnreliableVolumeScanner#scanUnreliableVolume}.
+     * @param onFirstBatchInserted run once the first batch is committed, typically to notify the
+     *            picker.
+     * @return number of items inserted
+     */
+    public int scanAndInsertMedia(@NonNull UnreliableVolumeScanner scanner, @NonNull Path path,
+            int parallelism, @Nullable Runnable onFirstBatchInserted) throws IOException {
+        final int[] numberItemsInserted = new int[1];
+        scanner.scanUnreliableVolume(path, SCAN_BATCH_SIZE, parallelism, batch -> {
+            final boolean isFirstBatch = (numberItemsInserted[0] == 0);
+            numberItemsInserted[0] += insertMedia(batch);
+            if (isFirstBatch && numberItemsInserted[0] > 0 && onFirstBatchInserted != null) {
+                onFirstBatchInserted.run();
+            }
+        });
+        return numberItemsInserted[0];
+    }
+
     public void deleteMedia() {
         mDatabase.delete(TABLE_NAME, /* whereClause */null, /* whereArgs */null);
     }
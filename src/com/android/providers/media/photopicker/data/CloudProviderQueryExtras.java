@@ -16,6 +16,7 @@
 package com.android.providers.media.photopicker.data;
 
 import static com.android.providers.media.photopicker.data.PickerDbFacade.QueryFilterBuilder.BOOLEAN_DEFAULT;
+import static com.android.providers.media.photopicker.data.PickerDbFacade.QueryFilterBuilder.INT_DEFAULT;
 import static com.android.providers.media.photopicker.data.PickerDbFacade.QueryFilterBuilder.LIMIT_DEFAULT;
 import static com.android.providers.media.photopicker.data.PickerDbFacade.QueryFilterBuilder.LONG_DEFAULT;
 import static com.android.providers.media.photopicker.data.PickerDbFacade.QueryFilterBuilder.STRING_DEFAULT;
@@ -37,6 +38,8 @@ public class CloudProviderQueryExtras {
     private final int mLimit;
     private final boolean mIsFavorite;
     private final boolean mIsVideo;
+    private final String mPageToken;
+    private final int mPageSize;
 
     private CloudProviderQueryExtras() {
         mAlbumId = STRING_DEFAULT;
@@ -47,10 +50,13 @@ public class CloudProviderQueryExtras {
         mLimit = LIMIT_DEFAULT;
         mIsFavorite = BOOLEAN_DEFAULT;
         mIsVideo = BOOLEAN_DEFAULT;
+        mPageToken = STRING_DEFAULT;
+        mPageSize = INT_DEFAULT;
     }
 
     private CloudProviderQueryExtras (String albumId, String albumAuthority, String mimeType,
-            long sizeBytes, long generation, int limit, boolean isFavorite, boolean isVideo) {
+            long sizeBytes, long generation, int limit, boolean isFavorite, boolean isVideo,
+            String pageToken, int pageSize) {
         mAlbumId = albumId;
         mAlbumAuthority = albumAuthority;
         mMimeType = mimeType;
@@ -59,6 +65,8 @@ public class CloudProviderQueryExtras {
         mLimit = limit;
         mIsFavorite = isFavorite;
         mIsVideo = isVideo;
+        mPageToken = pageToken;
+        mPageSize = pageSize;
     }
 
     public static CloudProviderQueryExtras fromMediaStoreBundle(Bundle bundle,
@@ -80,9 +88,11 @@ public class CloudProviderQueryExtras {
                 && AlbumColumns.ALBUM_ID_FAVORITES.equals(albumId);
         final boolean isVideo = localProvider.equals(albumAuthority)
                 && AlbumColumns.ALBUM_ID_VIDEOS.equals(albumId);
+        final String pageToken = STRING_DEFAULT;
+        final int pageSize = INT_DEFAULT;
 
         return new CloudProviderQueryExtras(albumId, albumAuthority, mimeType, sizeBytes,
-                generation, limit, isFavorite, isVideo);
+                generation, limit, isFavorite, isVideo, pageToken, pageSize);
     }
 
     public static CloudProviderQueryExtras fromCloudMediaBundle(Bundle bundle) {
@@ -103,9 +113,13 @@ public class CloudProviderQueryExtras {
 
         final boolean isFavorite = BOOLEAN_DEFAULT;
         final boolean isVideo = BOOLEAN_DEFAULT;
+        final String pageToken = bundle.getString(CloudMediaProviderContract.EXTRA_PAGE_TOKEN,
+                STRING_DEFAULT);
+        final int pageSize = bundle.getInt(CloudMediaProviderContract.EXTRA_PAGE_SIZE,
+                INT_DEFAULT);
 
         return new CloudProviderQueryExtras(albumId, albumAuthority, mimeType, sizeBytes,
-                generation, limit, isFavorite, isVideo);
+                generation, limit, isFavorite, isVideo, pageToken, pageSize);
     }
 
     public PickerDbFacade.QueryFilter toQueryFilter() {
@@ -154,4 +168,12 @@ public class CloudProviderQueryExtras {
     public boolean isVideo() {
         return mIsVideo;
     }
+
+    public String getPageToken() {
+        return mPageToken;
+    }
+
+    public int getPageSize() {
+        return mPageSize;
+    }
 }
@@ -23,6 +23,7 @@ import static android.provider.CloudMediaProviderContract.AlbumColumns.ALBUM_ID_
 import static android.provider.CloudMediaProviderContract.AlbumColumns.ALBUM_ID_SCREENSHOTS;
 import static android.provider.CloudMediaProviderContract.EXTRA_ALBUM_ID;
 import static android.provider.CloudMediaProviderContract.EXTRA_MEDIA_COLLECTION_ID;
+import static android.provider.CloudMediaProviderContract.EXTRA_PAGE_TOKEN;
 import static android.provider.CloudMediaProviderContract.EXTRA_SYNC_GENERATION;
 import static android.provider.CloudMediaProviderContract.MediaCollectionInfo;
 
@@ -48,6 +49,7 @@ import android.provider.MediaStore.MediaColumns;
 import android.text.TextUtils;
 import android.util.Log;
 
+import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 
 import com.android.providers.media.DatabaseHelper;
@@ -111,6 +113,11 @@ public class ExternalDbFacade {
     private static final String WHERE_NOT_PENDING = MediaColumns.IS_PENDING + " = 0";
     private static final String WHERE_GREATER_GENERATION =
             MediaColumns.GENERATION_MODIFIED + " > ?";
+    private static final String WHERE_AFTER_PAGE_TOKEN =
+            String.format("%s > ? OR (%s = ? AND %s > ?)", MediaColumns.GENERATION_MODIFIED,
+                    MediaColumns.GENERATION_MODIFIED, MediaColumns._ID);
+    private static final String ORDER_BY_PAGE_KEY =
+            MediaColumns.GENERATION_MODIFIED + "," + MediaColumns._ID;
     private static final String WHERE_RELATIVE_PATH = MediaStore.MediaColumns.RELATIVE_PATH
             + " LIKE ?";
     private static final String WHERE_MIME_TYPE = MediaStore.MediaColumns.MIME_TYPE
@@ -292,6 +299,75 @@ public class ExternalDbFacade {
         return cursor;
     }
 
+    /**
+     * Returns up to {@code pageSize} items from the files table where
+     * {@link MediaColumns#GENERATION_MODIFIED} is greater than {@code generation}, starting
+     * after {@code pageToken}.
+     *
+     * Pages are ordered by ({@link MediaColumns#GENERATION_MODIFIED}, {@link MediaColumns#_ID})
+     * rather than by date taken, so each page is a range of the generation index and items
+     * modified while paging move past the current page instead of being skipped. If the page is
+     * full, the cursor extras carry the {@link CloudMediaProviderContract#EXTRA_PAGE_TOKEN} to
+     * pass to fetch the next page. Tokens only encode a position in that order, so a token from
+     * an interrupted sync can still be used to resume it later.
+     */
+    public Cursor queryMedia(long generation, String albumId, String mimeType,
+            @Nullable String pageToken, int pageSize) {
+        final List<String> selectionArgs = new ArrayList<>();
+
+        final Cursor cursor = mDatabaseHelper.runWithTransaction(db -> {
+                SQLiteQueryBuilder qb = createMediaQueryBuilder();
+                qb.appendWhereStandalone(WHERE_GREATER_GENERATION);
+                selectionArgs.add(String.valueOf(generation));
+
+                if (pageToken != null) {
+                    final long[] position = parsePageToken(pageToken);
+                    qb.appendWhereStandalone(WHERE_AFTER_PAGE_TOKEN);
+                    selectionArgs.add(String.valueOf(position[0]));
+                    selectionArgs.add(String.valueOf(position[0]));
+                    selectionArgs.add(String.valueOf(position[1]));
+                }
+
+                selectionArgs.addAll(appendWhere(qb, albumId, mimeType));
+
+                return qb.query(db, PROJECTION_MEDIA_COLUMNS, /* select */ null,
+                        selectionArgs.toArray(new String[selectionArgs.size()]), /* groupBy */ null,
+                        /* having */ null, ORDER_BY_PAGE_KEY, String.valueOf(pageSize));
+            });
+
+        final Bundle extras = getCursorExtras(generation, albumId);
+        if (pageToken != null) {
+            extras.getStringArrayList(EXTRA_HONORED_ARGS).add(EXTRA_PAGE_TOKEN);
+        }
+        if (cursor.getCount() == pageSize && cursor.moveToLast()) {
+            extras.putString(EXTRA_PAGE_TOKEN, buildPageToken(
+                    getCursorLong(cursor, CloudMediaProviderContract.MediaColumns.SYNC_GENERATION),
+                    getCursorLong(cursor, CloudMediaProviderContract.MediaColumns.ID)));
+        }
+        cursor.moveToPosition(-1);
+        cursor.setExtras(extras);
+        return cursor;
+    }
+
+    @VisibleForTesting
+    static String buildPageToken(long generation, long id) {
+        return generation + ":" + id;
+    }
+
+    private static long[] parsePageToken(String pageToken) {
+        final int split = pageToken.indexOf(':');
+        try {
+            if (split > 0) {
+                return new long[] {
+                    Long.parseLong(pageToken.substring(0, split)),
+                    Long.parseLong(pageToken.substring(split + 1))
+                };
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        throw new IllegalArgumentException("Invalid page token: " + pageToken);
+    }
+
     private Bundle getCursorExtras(long generation, String albumId) {
         final Bundle bundle = new Bundle();
         final ArrayList<String> honoredArgs = new ArrayList<>();
@@ -37,7 +37,7 @@ public class PickerDatabaseHelper extends SQLiteOpenHelper {
     @VisibleForTesting
     static final String PICKER_DATABASE_NAME = "picker.db";
 
-    private static final int VERSION_T = 7;
+    private static final int VERSION_T = 8;
     private static final int VERSION_LATEST = VERSION_T;
 
     final Context mContext;
@@ -146,17 +146,17 @@ public class PickerDatabaseHelper extends SQLiteOpenHelper {
 
         db.execSQL("CREATE INDEX local_id_index on media(local_id)");
         db.execSQL("CREATE INDEX cloud_id_index on media(cloud_id)");
-        db.execSQL("CREATE INDEX is_visible_index on media(is_visible)");
-        db.execSQL("CREATE INDEX date_taken_index on media(date_taken_ms)");
-        db.execSQL("CREATE INDEX size_index on media(size_bytes)");
-        db.execSQL("CREATE INDEX mime_type_index on media(mime_type)");
-        db.execSQL("CREATE INDEX is_favorite_index on media(is_favorite)");
 
         db.execSQL("CREATE INDEX local_id_album_index on album_media(local_id)");
         db.execSQL("CREATE INDEX cloud_id_album_index on album_media(cloud_id)");
-        db.execSQL("CREATE INDEX date_taken_album_index on album_media(date_taken_ms)");
-        db.execSQL("CREATE INDEX size_album_index on album_media(size_bytes)");
-        db.execSQL("CREATE INDEX mime_type_album_index on album_media(mime_type)");
+
+        // The UI pages through media newest first, filtering on the trailing columns. Leading
+        // with the equality column followed by the sort order lets SQLite walk the index in order
+        // and stop at the LIMIT, evaluating the filters on the index before touching the table.
+        db.execSQL("CREATE INDEX visible_date_taken_index on media(is_visible, date_taken_ms, _id,"
+                + " cloud_id, mime_type, size_bytes, is_favorite)");
+        db.execSQL("CREATE INDEX album_date_taken_index on album_media(album_id, date_taken_ms,"
+                + " _id, local_id, cloud_id, mime_type, size_bytes)");
     }
 
     private static void clearPickerPrefs(Context context) {
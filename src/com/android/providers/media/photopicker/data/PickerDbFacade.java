@@ -226,6 +226,14 @@ public class PickerDbFacade {
         return new RemoveMediaOperation(mDatabase, isLocal(authority));
     }
 
+    /**
+     * Returns {@link DbWriteOperation} to remove album_media belonging to {@code authority} from
+     * the given album in the picker db.
+     */
+    public DbWriteOperation beginRemoveAlbumMediaOperation(String authority, String albumId) {
+        return new RemoveAlbumMediaOperation(mDatabase, isLocal(authority), albumId);
+    }
+
     /**
      * Returns {@link DbWriteOperation} to clear local media or all cloud media from the picker
      * db.
@@ -569,6 +577,7 @@ public class PickerDbFacade {
         public static final long LONG_DEFAULT = -1;
         public static final String STRING_DEFAULT = null;
         public static final boolean BOOLEAN_DEFAULT = false;
+        public static final int INT_DEFAULT = -1;
 
         public static final int LIMIT_DEFAULT = 1000;
 
@@ -1045,6 +1054,17 @@ public class PickerDbFacade {
         return qb;
     }
 
+    /**
+     * Matches a single album_media row by album id and local or cloud id, in that order.
+     */
+    private static SQLiteQueryBuilder createAlbumMediaMatchQueryBuilder(boolean isLocal) {
+        SQLiteQueryBuilder qb = createAlbumMediaQueryBuilder(isLocal);
+        qb.appendWhereStandalone(WHERE_ALBUM_ID);
+        qb.appendWhereStandalone(isLocal ? WHERE_LOCAL_ID : WHERE_CLOUD_ID);
+
+        return qb;
+    }
+
     private static SQLiteQueryBuilder createLocalOnlyMediaQueryBuilder() {
         SQLiteQueryBuilder qb = createLocalMediaQueryBuilder();
         qb.appendWhereStandalone(WHERE_NULL_CLOUD_ID);
@@ -1128,6 +1148,7 @@ public class PickerDbFacade {
             final boolean isLocal = isLocal();
             final String albumId = albumId();
             final SQLiteQueryBuilder qb = createAlbumMediaQueryBuilder(isLocal);
+            final SQLiteQueryBuilder qbMatch = createAlbumMediaMatchQueryBuilder(isLocal);
             int counter = 0;
 
             while (cursor.moveToNext()) {
@@ -1139,7 +1160,41 @@ public class PickerDbFacade {
                         Log.d(TAG, "Failed to insert album_media. ContentValues: " + values);
                     }
                 } catch (SQLiteConstraintException e) {
-                    Log.d(TAG, "Failed to insert album_media. ContentValues: " + values, e);
+                    // Incremental syncs return items already in the album when they change.
+                    // Attempt equivalent of CONFLICT_REPLACE resolution
+                    Log.d(TAG, "Retrying failed album_media insert as update. ContentValues: "
+                            + values);
+                    final String[] updateArgs = {albumId,
+                            values.getAsString(isLocal ? KEY_LOCAL_ID : KEY_CLOUD_ID)};
+                    if (updateMedia(qbMatch, values, updateArgs) == SUCCESS) {
+                        counter++;
+                    }
+                }
+            }
+
+            return counter;
+        }
+    }
+
+    private static final class RemoveAlbumMediaOperation extends DbWriteOperation {
+        private RemoveAlbumMediaOperation(SQLiteDatabase database, boolean isLocal,
+                String albumId) {
+            super(database, isLocal, albumId);
+            if(TextUtils.isEmpty(albumId)) {
+                throw new IllegalArgumentException("Missing albumId.");
+            }
+        }
+
+        @Override
+        int executeInternal(@Nullable Cursor cursor) {
+            final SQLiteQueryBuilder qb = createAlbumMediaMatchQueryBuilder(isLocal());
+            final int idIndex = cursor.getColumnIndex(CloudMediaProviderContract.MediaColumns.ID);
+            int counter = 0;
+
+            while (cursor.moveToNext()) {
+                final String[] deleteArgs = {albumId(), cursor.getString(idIndex)};
+                if (qb.delete(getDatabase(), /* selection */ null, deleteArgs) > 0) {
+                    counter++;
                 }
             }
 
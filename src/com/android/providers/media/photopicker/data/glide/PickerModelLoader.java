@@ -21,6 +21,7 @@ import static com.android.providers.media.photopicker.ui.ImageLoader.THUMBNAIL_R
 import android.content.Context;
 import android.content.UriMatcher;
 import android.net.Uri;
+import android.os.CancellationSignal;
 import android.os.ParcelFileDescriptor;
 import android.provider.CloudMediaProviderContract;
 
@@ -42,8 +43,10 @@ public final class PickerModelLoader implements ModelLoader<Uri, ParcelFileDescr
     public LoadData<ParcelFileDescriptor> buildLoadData(Uri model, int width, int height,
             Options options) {
         final boolean isThumbRequest = Boolean.TRUE.equals(options.get(THUMBNAIL_REQUEST));
+        // Each fetch gets its own signal since Glide cancels them individually
         return new LoadData<>(new ObjectKey(model),
-                new PickerThumbnailFetcher(mContext, model, width, height, isThumbRequest));
+                new PickerThumbnailFetcher(mContext, model, width, height, isThumbRequest,
+                        new CancellationSignal()));
     }
 
     @Override
@@ -22,6 +22,8 @@ import android.content.res.AssetFileDescriptor;
 import android.graphics.Point;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 import android.os.ParcelFileDescriptor;
 import android.provider.CloudMediaProviderContract;
 
@@ -43,14 +45,17 @@ public class PickerThumbnailFetcher implements DataFetcher<ParcelFileDescriptor>
     private final int mWidth;
     private final int mHeight;
     private final boolean mIsThumbRequest;
+    // Cancels the provider call once the request is no longer needed, e.g. scrolled off-screen
+    private final CancellationSignal mCancellationSignal;
 
     PickerThumbnailFetcher(Context context, Uri model, int width, int height,
-            boolean isThumbRequest) {
+            boolean isThumbRequest, CancellationSignal cancellationSignal) {
         mContext = context;
         mModel = model;
         mWidth = width;
         mHeight = height;
         mIsThumbRequest = isThumbRequest;
+        mCancellationSignal = cancellationSignal;
     }
 
     @Override
@@ -65,7 +70,7 @@ public class PickerThumbnailFetcher implements DataFetcher<ParcelFileDescriptor>
         }
 
         try (AssetFileDescriptor afd = contentResolver.openTypedAssetFileDescriptor(mModel,
-                /* mimeType */ "image/*", opts, /* cancellationSignal */ null)) {
+                /* mimeType */ "image/*", opts, mCancellationSignal)) {
             if (afd == null) {
                 final String err = "Failed to load data for " + mModel;
                 callback.onLoadFailed(new FileNotFoundException(err));
@@ -74,6 +79,9 @@ public class PickerThumbnailFetcher implements DataFetcher<ParcelFileDescriptor>
             callback.onDataReady(afd.getParcelFileDescriptor());
         } catch (IOException e) {
             callback.onLoadFailed(e);
+        } catch (OperationCanceledException e) {
+            // Glide ignores the result of cancelled requests, but still expects a callback
+            callback.onLoadFailed(new IOException("Cancelled loading data for " + mModel, e));
         }
     }
 
@@ -85,7 +93,8 @@ public class PickerThumbnailFetcher implements DataFetcher<ParcelFileDescriptor>
 
     @Override
     public void cancel() {
-        // Intentionally empty.
+        // Called from a different thread than loadData, possibly before it even started
+        mCancellationSignal.cancel();
     }
 
     @Override
@@ -31,6 +31,7 @@ import com.android.providers.media.photopicker.data.model.Category;
 import com.android.providers.media.photopicker.data.model.Item;
 
 import com.bumptech.glide.Glide;
+import com.bumptech.glide.Priority;
 import com.bumptech.glide.load.Option;
 import com.bumptech.glide.request.RequestOptions;
 import com.bumptech.glide.signature.ObjectKey;
@@ -72,8 +73,10 @@ public class ImageLoader {
      *
      * @param item      the photo item
      * @param imageView the imageView shows the thumbnail
+     * @param priority  the priority of the load relative to other thumbnails in the grid
      */
-    public void loadPhotoThumbnail(@NonNull Item item, @NonNull ImageView imageView) {
+    public void loadPhotoThumbnail(@NonNull Item item, @NonNull ImageView imageView,
+            @NonNull Priority priority) {
         Uri uri = item.getContentUri();
         // Always show all thumbnails as bitmap images instead of drawables
         // This is to ensure that we do not animate any thumbnail (for eg GIF)
@@ -81,11 +84,21 @@ public class ImageLoader {
         Glide.with(mContext)
                 .asBitmap()
                 .load(uri)
+                .priority(priority)
                 .signature(getGlideSignature(item, /* prefix */ ""))
                 .apply(RequestOptions.option(THUMBNAIL_REQUEST, true))
                 .into(imageView);
     }
 
+    /**
+     * Cancel any pending load into {@code imageView}, e.g. once its item is scrolled off-screen
+     *
+     * @param imageView the imageView to clear
+     */
+    public void clear(@NonNull ImageView imageView) {
+        Glide.with(mContext).clear(imageView);
+    }
+
     /**
      * Load the image of the photo item {@code item} and set it on the {@code imageView}
      *
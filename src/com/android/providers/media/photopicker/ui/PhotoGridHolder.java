@@ -27,6 +27,8 @@ import androidx.annotation.NonNull;
 import com.android.providers.media.R;
 import com.android.providers.media.photopicker.data.model.Item;
 
+import com.bumptech.glide.Priority;
+
 /**
  * ViewHolder of a photo item within a RecyclerView.
  */
@@ -40,6 +42,7 @@ public class PhotoGridHolder extends BaseViewHolder {
     private final TextView mVideoDuration;
     private final View mOverlayGradient;
     private final boolean mCanSelectMultiple;
+    private Priority mThumbnailPriority = Priority.NORMAL;
 
     public PhotoGridHolder(@NonNull Context context, @NonNull ViewGroup parent,
             @NonNull ImageLoader imageLoader, boolean canSelectMultiple) {
@@ -61,10 +64,24 @@ public class PhotoGridHolder extends BaseViewHolder {
         }
     }
 
+    /**
+     * Sets the priority of the thumbnail load started by the next {@link #bind()}.
+     */
+    public void setThumbnailPriority(@NonNull Priority priority) {
+        mThumbnailPriority = priority;
+    }
+
+    /**
+     * Cancels the thumbnail load of the item bound last, if still in progress.
+     */
+    public void unbind() {
+        mImageLoader.clear(mIconThumb);
+    }
+
     @Override
     public void bind() {
         final Item item = (Item) itemView.getTag();
-        mImageLoader.loadPhotoThumbnail(item, mIconThumb);
+        mImageLoader.loadPhotoThumbnail(item, mIconThumb, mThumbnailPriority);
 
         mIconGif.setVisibility(item.isGifOrAnimatedWebp() ? View.VISIBLE : View.GONE);
         mIconMotionPhoto.setVisibility(item.isMotionPhoto() ? View.VISIBLE : View.GONE);
@@ -21,7 +21,10 @@ import android.view.View;
 import android.view.ViewGroup;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 import androidx.recyclerview.widget.GridLayoutManager;
+import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.android.providers.media.R;
@@ -29,6 +32,8 @@ import com.android.providers.media.R;
 import com.android.providers.media.photopicker.data.Selection;
 import com.android.providers.media.photopicker.data.model.Item;
 
+import com.bumptech.glide.Priority;
+
 import java.util.ArrayList;
 import java.util.List;
 
@@ -47,6 +52,8 @@ public class PhotosTabAdapter extends RecyclerView.Adapter<BaseViewHolder> {
     private final View.OnClickListener mOnClickListener;
     private final View.OnLongClickListener mOnLongClickListener;
     private final Selection mSelection;
+    @Nullable
+    private RecyclerView mRecyclerView;
 
     public PhotosTabAdapter(@NonNull Selection selection, @NonNull ImageLoader imageLoader,
             @NonNull View.OnClickListener onClickListener,
@@ -89,10 +96,30 @@ public class PhotosTabAdapter extends RecyclerView.Adapter<BaseViewHolder> {
                 itemHolder.itemView.setStateDescription(
                         isSelected ? null : context.getString(R.string.not_selected));
             }
+
+            ((PhotoGridHolder) itemHolder).setThumbnailPriority(getThumbnailPriority(position));
         }
         itemHolder.bind();
     }
 
+    @Override
+    public void onViewRecycled(@NonNull BaseViewHolder itemHolder) {
+        // Don't keep fetching thumbnails of items scrolled off-screen, e.g. during a fling
+        if (itemHolder instanceof PhotoGridHolder) {
+            ((PhotoGridHolder) itemHolder).unbind();
+        }
+    }
+
+    @Override
+    public void onAttachedToRecyclerView(@NonNull RecyclerView recyclerView) {
+        mRecyclerView = recyclerView;
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(@NonNull RecyclerView recyclerView) {
+        mRecyclerView = null;
+    }
+
     @Override
     public int getItemCount() {
         return mItemList.size();
@@ -116,6 +143,47 @@ public class PhotosTabAdapter extends RecyclerView.Adapter<BaseViewHolder> {
         notifyDataSetChanged();
     }
 
+    @NonNull
+    private Priority getThumbnailPriority(int position) {
+        final RecyclerView.LayoutManager layoutManager =
+                (mRecyclerView != null) ? mRecyclerView.getLayoutManager() : null;
+        if (!(layoutManager instanceof LinearLayoutManager)) {
+            return Priority.NORMAL;
+        }
+        final LinearLayoutManager linearLayoutManager = (LinearLayoutManager) layoutManager;
+        return getThumbnailPriority(position,
+                linearLayoutManager.findFirstVisibleItemPosition(),
+                linearLayoutManager.findLastVisibleItemPosition());
+    }
+
+    /**
+     * Returns the priority of loading the thumbnail at {@code position}, highest for items on
+     * screen and decreasing with the distance from it.
+     */
+    @VisibleForTesting
+    @NonNull
+    public static Priority getThumbnailPriority(int position, int firstVisiblePosition,
+            int lastVisiblePosition) {
+        if (firstVisiblePosition == RecyclerView.NO_POSITION) {
+            // Nothing laid out yet, so this is the first screen
+            return Priority.HIGH;
+        }
+
+        // Items entering the screen are bound before the visible positions are updated, so
+        // allow for a row on either side
+        if (position >= firstVisiblePosition - COLUMN_COUNT
+                && position <= lastVisiblePosition + COLUMN_COUNT) {
+            return Priority.HIGH;
+        }
+
+        final int screenSize = lastVisiblePosition - firstVisiblePosition + 1;
+        if (position >= firstVisiblePosition - screenSize
+                && position <= lastVisiblePosition + screenSize) {
+            return Priority.NORMAL;
+        }
+        return Priority.LOW;
+    }
+
     @NonNull
     public GridLayoutManager.SpanSizeLookup createSpanSizeLookup(
             @NonNull GridLayoutManager layoutManager) {
@@ -24,6 +24,7 @@ import androidx.annotation.Nullable;
 import com.android.providers.media.MediaVolume;
 
 import java.io.File;
+import java.util.List;
 
 @Deprecated
 public class LegacyMediaScanner implements MediaScanner {
@@ -53,6 +54,11 @@ public class LegacyMediaScanner implements MediaScanner {
         throw new UnsupportedOperationException();
     }
 
+    @Override
+    public List<Uri> scanFiles(List<File> files, int reason, @Nullable String ownerPackage) {
+        throw new UnsupportedOperationException();
+    }
+
     @Override
     public void onDetachVolume(MediaVolume volume) {
         throw new UnsupportedOperationException();
@@ -29,6 +29,7 @@ import androidx.annotation.Nullable;
 import com.android.providers.media.MediaVolume;
 
 import java.io.File;
+import java.util.List;
 
 public interface MediaScanner {
     public static final int REASON_UNKNOWN = MEDIA_PROVIDER_SCAN_OCCURRED__REASON__UNKNOWN;
@@ -40,6 +41,7 @@ public interface MediaScanner {
     public void scanDirectory(File file, int reason);
     public Uri scanFile(File file, int reason);
     public Uri scanFile(File file, int reason, @Nullable String ownerPackage);
+    public List<Uri> scanFiles(List<File> files, int reason, @Nullable String ownerPackage);
     public void onDetachVolume(MediaVolume volume);
     public void onIdleScanStopped();
     public void onDirectoryDirty(File file);
@@ -111,12 +111,14 @@ import java.io.IOException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.FileVisitor;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
@@ -175,6 +177,9 @@ public class ModernMediaScanner implements MediaScanner {
     // See SQLITE_MAX_EXPR_DEPTH in sqlite3.c
     @VisibleForTesting(otherwise = VisibleForTesting.PRIVATE)
     static final int MAX_EXCLUDE_DIRS = 450;
+    // Number of paths looked up per query when resolving the results of a batched scan, which
+    // keeps us under SQLITE_MAX_VARIABLE_NUMBER
+    private static final int MAX_RESULT_PATHS = 500;
 
     private static final Pattern PATTERN_YEAR = Pattern.compile("([1-9][0-9][0-9][0-9])");
 
@@ -263,6 +268,72 @@ public class ModernMediaScanner implements MediaScanner {
         }
     }
 
+    @Override
+    public List<Uri> scanFiles(List<File> files, int reason, @Nullable String ownerPackage) {
+        final Uri[] results = new Uri[files.size()];
+        final boolean[] batched = new boolean[files.size()];
+
+        // Group regular files by volume and then by parent directory, so that each volume is
+        // handled by a single scan which only does the per-directory work once
+        final ArrayMap<String, ArrayMap<File, List<File>>> filesByVolume = new ArrayMap<>();
+        final ArrayMap<File, String> volumeNames = new ArrayMap<>();
+        for (int i = 0; i < files.size(); i++) {
+            final File file = files.get(i);
+            final File dir = file.getParentFile();
+            String volumeName = null;
+            if (dir != null && file.isFile()) {
+                volumeName = volumeNames.get(dir);
+                if (volumeName == null) {
+                    try {
+                        volumeName = FileUtils.getVolumeName(mContext, dir);
+                        volumeNames.put(dir, volumeName);
+                    } catch (FileNotFoundException e) {
+                        volumeName = null;
+                    }
+                }
+            }
+            if (volumeName == null) {
+                // Directories and missing files need to be reconciled against the database,
+                // which only a regular scan of that path does
+                results[i] = scanFile(file, reason, ownerPackage);
+                continue;
+            }
+
+            ArrayMap<File, List<File>> filesByDir = filesByVolume.get(volumeName);
+            if (filesByDir == null) {
+                filesByDir = new ArrayMap<>();
+                filesByVolume.put(volumeName, filesByDir);
+            }
+            List<File> dirFiles = filesByDir.get(dir);
+            if (dirFiles == null) {
+                dirFiles = new ArrayList<>();
+                filesByDir.put(dir, dirFiles);
+            }
+            dirFiles.add(file);
+            batched[i] = true;
+        }
+
+        final ArrayMap<String, Uri> urisByPath = new ArrayMap<>();
+        for (int i = 0; i < filesByVolume.size(); i++) {
+            final ArrayMap<File, List<File>> filesByDir = filesByVolume.valueAt(i);
+            try (Scan scan = new Scan(filesByDir.keyAt(0), reason, ownerPackage)) {
+                scan.runBatch(filesByDir);
+                urisByPath.putAll(scan.getBatchResults());
+            } catch (OperationCanceledException ignored) {
+            } catch (FileNotFoundException e) {
+                Log.e(TAG, "Couldn't find files to scan", e);
+            }
+        }
+
+        for (int i = 0; i < files.size(); i++) {
+            if (batched[i]) {
+                results[i] = urisByPath.get(
+                        files.get(i).getAbsolutePath().toLowerCase(Locale.ROOT));
+            }
+        }
+        return Arrays.asList(results);
+    }
+
     @Override
     public void onDetachVolume(MediaVolume volume) {
         synchronized (mActiveScans) {
@@ -327,6 +398,8 @@ public class ModernMediaScanner implements MediaScanner {
         private final boolean mSingleFile;
         private final Set<Path> mAcquiredDirectoryLocks = new ArraySet<>();
         private final ArrayList<ContentProviderOperation> mPending = new ArrayList<>();
+        /** Files visited by {@link #runBatch}, whose results are resolved by path. */
+        private final ArrayList<File> mBatchFiles = new ArrayList<>();
         private LongArray mScannedIds = new LongArray();
         private LongArray mUnknownIds = new LongArray();
 
@@ -413,6 +486,57 @@ public class ModernMediaScanner implements MediaScanner {
             }
         }
 
+        /**
+         * Scan the given regular files, grouped by parent directory, instead of
+         * {@link #mRoot}. Each directory is checked and locked only once for
+         * all of its files, and changes are applied in shared batches.
+         * <p>
+         * Nothing needs reconciling, since every file was found on disk.
+         */
+        public void runBatch(@NonNull Map<File, List<File>> filesByDir) {
+            addActiveScan(this);
+            try {
+                for (Map.Entry<File, List<File>> entry : filesByDir.entrySet()) {
+                    visitFiles(entry.getKey(), entry.getValue());
+                }
+                resolvePlaylists();
+            } finally {
+                removeActiveScan(this);
+            }
+        }
+
+        private void visitFiles(@NonNull File dir, @NonNull List<File> files) {
+            mSignal.throwIfCanceled();
+            final Pair<Boolean, Boolean> isDirScannableAndHidden =
+                    shouldScanPathAndIsPathHidden(dir);
+            if (!isDirScannableAndHidden.first) {
+                return;
+            }
+
+            Trace.beginSection("visitFiles");
+            mHiddenDirCount = isDirScannableAndHidden.second ? 1 : 0;
+            acquireDirectoryLock(dir.toPath());
+            try {
+                for (File file : files) {
+                    final Path path = file.toPath();
+                    try {
+                        visitFile(path, Files.readAttributes(path, BasicFileAttributes.class,
+                                LinkOption.NOFOLLOW_LINKS));
+                        mBatchFiles.add(file);
+                    } catch (IOException e) {
+                        Log.w(TAG, "Failed to visit " + path + ": " + e);
+                    }
+                }
+
+                // We need to drain all pending changes related to this directory
+                // before releasing our lock below
+                applyPending();
+            } finally {
+                releaseDirectoryLock(dir.toPath());
+                Trace.endSection();
+            }
+        }
+
         private void walkFileTree() {
             mSignal.throwIfCanceled();
             final Pair<Boolean, Boolean> isDirScannableAndHidden =
@@ -953,24 +1077,69 @@ public class ModernMediaScanner implements MediaScanner {
             try (Cursor c = mResolver.query(fileUri,
                     new String[] { FileColumns.MEDIA_TYPE }, null, null)) {
                 if (c.moveToFirst()) {
-                    switch (c.getInt(0)) {
-                        case FileColumns.MEDIA_TYPE_AUDIO:
-                            return MediaStore.Audio.Media.getContentUri(mVolumeName, mFirstId);
-                        case FileColumns.MEDIA_TYPE_VIDEO:
-                            return MediaStore.Video.Media.getContentUri(mVolumeName, mFirstId);
-                        case FileColumns.MEDIA_TYPE_IMAGE:
-                            return MediaStore.Images.Media.getContentUri(mVolumeName, mFirstId);
-                        case FileColumns.MEDIA_TYPE_PLAYLIST:
-                            return ContentUris.withAppendedId(
-                                    MediaStore.Audio.Playlists.getContentUri(mVolumeName),
-                                    mFirstId);
-                    }
+                    return getContentUri(c.getInt(0), mFirstId);
                 }
             }
 
             // Worst case, we can always use generic collection
             return fileUri;
         }
+
+        /**
+         * Return the items found in the database for the files scanned by
+         * {@link #runBatch}, keyed by their lowercased path, resolved like
+         * {@link #getFirstResult()}.
+         */
+        public @NonNull Map<String, Uri> getBatchResults() {
+            final ArrayMap<String, Uri> results = new ArrayMap<>();
+            for (int start = 0; start < mBatchFiles.size(); start += MAX_RESULT_PATHS) {
+                final List<File> files = mBatchFiles.subList(start,
+                        Math.min(mBatchFiles.size(), start + MAX_RESULT_PATHS));
+                final String[] paths = new String[files.size()];
+                for (int i = 0; i < paths.length; i++) {
+                    paths[i] = files.get(i).getAbsolutePath();
+                }
+
+                final Bundle queryArgs = new Bundle();
+                queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SELECTION,
+                        FileColumns.DATA + " IN ("
+                                + TextUtils.join(",", Collections.nCopies(paths.length, "?"))
+                                + ")");
+                queryArgs.putStringArray(ContentResolver.QUERY_ARG_SQL_SELECTION_ARGS, paths);
+                queryArgs.putInt(MediaStore.QUERY_ARG_MATCH_PENDING, MediaStore.MATCH_INCLUDE);
+                queryArgs.putInt(MediaStore.QUERY_ARG_MATCH_TRASHED, MediaStore.MATCH_INCLUDE);
+                queryArgs.putInt(MediaStore.QUERY_ARG_MATCH_FAVORITE, MediaStore.MATCH_INCLUDE);
+                try (Cursor c = mResolver.query(mFilesUri, new String[] {
+                        FileColumns._ID, FileColumns.DATA, FileColumns.MEDIA_TYPE },
+                        queryArgs, mSignal)) {
+                    while (c.moveToNext()) {
+                        results.put(c.getString(1).toLowerCase(Locale.ROOT),
+                                getContentUri(c.getInt(2), c.getLong(0)));
+                    }
+                }
+            }
+            return results;
+        }
+
+        /**
+         * Return the uri of the given item in the media collection matching
+         * its {@link FileColumns#MEDIA_TYPE}.
+         */
+        private @NonNull Uri getContentUri(int mediaType, long id) {
+            switch (mediaType) {
+                case FileColumns.MEDIA_TYPE_AUDIO:
+                    return MediaStore.Audio.Media.getContentUri(mVolumeName, id);
+                case FileColumns.MEDIA_TYPE_VIDEO:
+                    return MediaStore.Video.Media.getContentUri(mVolumeName, id);
+                case FileColumns.MEDIA_TYPE_IMAGE:
+                    return MediaStore.Images.Media.getContentUri(mVolumeName, id);
+                case FileColumns.MEDIA_TYPE_PLAYLIST:
+                    return ContentUris.withAppendedId(
+                            MediaStore.Audio.Playlists.getContentUri(mVolumeName), id);
+                default:
+                    return MediaStore.Files.getContentUri(mVolumeName, id);
+            }
+        }
     }
 
     /**
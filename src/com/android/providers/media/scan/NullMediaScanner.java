@@ -26,6 +26,8 @@ import androidx.annotation.Nullable;
 import com.android.providers.media.MediaVolume;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Null scanner that ignores all scanning requests. Can be useful when running
@@ -62,6 +64,12 @@ public class NullMediaScanner implements MediaScanner {
         return null;
     }
 
+    @Override
+    public List<Uri> scanFiles(List<File> files, int reason, @Nullable String ownerPackage) {
+        Log.w(TAG, "Ignoring scan request for " + files);
+        return Arrays.asList(new Uri[files.size()]);
+    }
+
     @Override
     public void onDetachVolume(MediaVolume volume) {
         // Ignored
@@ -39,11 +39,27 @@ import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class UnreliableVolumeScanner {
     private final String TAG = "UnreliableVolumeScanner";
 
+    /**
+     * Receives the file info of an unreliable volume in bounded batches while it is scanned.
+     */
+    public interface BatchCallback {
+        /**
+         * Called with at most {@code batchSize} items. Calls are never concurrent, even when
+         * subtrees are scanned in parallel.
+         */
+        void onBatch(@NonNull List<ContentValues> batch);
+    }
+
     private boolean isAllowedMimeType(String mimeType) {
         return (isImageMimeType(mimeType) || isVideoMimeType(mimeType));
     }
@@ -65,22 +81,140 @@ public class UnreliableVolumeScanner {
     public @NonNull List<ContentValues> scanAndGetUnreliableVolFileInfo(Path path)
             throws IOException {
         List<ContentValues> unreliableVolumeData = new ArrayList<>();
-        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
-            @Override
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
-                String mimeType = resolveMimeType(file.toFile());
-                if (isAllowedMimeType(mimeType)) {
-                    unreliableVolumeData.add(addDataFromFile(file.toFile(), mimeType));
-                }
-                return FileVisitResult.CONTINUE;
+        scanUnreliableVolume(path, Integer.MAX_VALUE, /* parallelism */ 1,
+                unreliableVolumeData::addAll);
+        return unreliableVolumeData;
+    }
+
+    /**
+     * Scans the unreliable volume {@code path} and hands image and video data to
+     * {@code callback} in batches of {@code batchSize} as the walk progresses, so that callers
+     * never hold the whole volume in memory.
+     *
+     * @param parallelism number of threads walking the top level directories of {@code path},
+     *            {@code 1} to walk the whole volume on the calling thread.
+     * @return number of items handed to {@code callback}
+     */
+    public int scanUnreliableVolume(@NonNull Path path, int batchSize, int parallelism,
+            @NonNull BatchCallback callback) throws IOException {
+        if (batchSize <= 0 || parallelism <= 0) {
+            throw new IllegalArgumentException("Invalid batch size " + batchSize
+                    + " or parallelism " + parallelism);
+        }
+
+        final BatchCollector root = new BatchCollector(batchSize, callback);
+        if (parallelism == 1) {
+            Files.walkFileTree(path, new Visitor(root));
+            return root.finish();
+        }
+
+        // Files directly under the root are scanned here, directories are handed to the pool
+        final List<Path> subtrees = new ArrayList<>();
+        Files.walkFileTree(path, Collections.emptySet(), /* maxDepth */ 1,
+                new Visitor(root) {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                        if (attrs.isDirectory()) {
+                            subtrees.add(file);
+                            return FileVisitResult.CONTINUE;
+                        }
+                        return super.visitFile(file, attrs);
+                    }
+                });
+
+        final ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            final List<Future<Integer>> results = new ArrayList<>();
+            for (Path subtree : subtrees) {
+                results.add(executor.submit(() -> {
+                    final BatchCollector collector = new BatchCollector(batchSize, root);
+                    Files.walkFileTree(subtree, new Visitor(collector));
+                    return collector.finish();
+                }));
             }
+            for (Future<Integer> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while scanning " + path, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to scan " + path, e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return root.finish();
+    }
+
+    private class Visitor extends SimpleFileVisitor<Path> {
+        private final BatchCollector mCollector;
 
-            @Override
-            public FileVisitResult visitFileFailed(Path file, IOException exc) {
-                Log.w(TAG, "File read failed for: " + file.toString());
-                return FileVisitResult.CONTINUE;
+        Visitor(BatchCollector collector) {
+            mCollector = collector;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+            String mimeType = resolveMimeType(file.toFile());
+            if (isAllowedMimeType(mimeType)) {
+                mCollector.add(addDataFromFile(file.toFile(), mimeType));
             }
-        });
-        return unreliableVolumeData;
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(Path file, IOException exc) {
+            Log.w(TAG, "File read failed for: " + file.toString());
+            return FileVisitResult.CONTINUE;
+        }
+    }
+
+    /**
+     * Buffers the items found by one walker and flushes them once {@code batchSize} is reached.
+     * Collectors of parallel walkers flush into the root collector, which serializes the calls
+     * to the {@link BatchCallback}.
+     */
+    private static class BatchCollector implements BatchCallback {
+        private final int mBatchSize;
+        private final BatchCallback mCallback;
+        private List<ContentValues> mBatch = new ArrayList<>();
+        private int mCount;
+
+        BatchCollector(int batchSize, BatchCallback callback) {
+            mBatchSize = batchSize;
+            mCallback = callback;
+        }
+
+        void add(ContentValues values) {
+            mBatch.add(values);
+            if (mBatch.size() >= mBatchSize) {
+                flush();
+            }
+        }
+
+        @Override
+        public synchronized void onBatch(@NonNull List<ContentValues> batch) {
+            mCount += batch.size();
+            mCallback.onBatch(batch);
+        }
+
+        int finish() {
+            flush();
+            synchronized (this) {
+                return mCount;
+            }
+        }
+
+        private void flush() {
+            if (mBatch.isEmpty()) {
+                return;
+            }
+            final List<ContentValues> batch = mBatch;
+            mBatch = new ArrayList<>();
+            onBatch(batch);
+        }
     }
-}
\ No newline at end of file
+}
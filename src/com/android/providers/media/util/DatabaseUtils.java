@@ -471,7 +471,7 @@ public class DatabaseUtils {
         }
     }
 
-    private static void bindArgs(@NonNull SQLiteStatement st, @Nullable Object[] bindArgs) {
+    public static void bindArgs(@NonNull SQLiteStatement st, @Nullable Object[] bindArgs) {
         if (bindArgs == null) return;
 
         for (int i = 0; i < bindArgs.length; i++) {
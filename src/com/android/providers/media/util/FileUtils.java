@@ -1326,7 +1326,6 @@ public class FileUtils {
         if (TextUtils.isEmpty(data)) return;
 
         final File file = new File(data);
-        final File fileLower = new File(data.toLowerCase(Locale.ROOT));
 
         values.put(MediaColumns.VOLUME_NAME, extractVolumeName(data));
         values.put(MediaColumns.RELATIVE_PATH, extractRelativePath(data));
@@ -1354,9 +1353,9 @@ public class FileUtils {
         }
 
         // Buckets are the parent directory
-        final String parent = fileLower.getParent();
-        if (parent != null) {
-            values.put(MediaColumns.BUCKET_ID, parent.hashCode());
+        final Integer bucketId = extractBucketId(data);
+        if (bucketId != null) {
+            values.put(MediaColumns.BUCKET_ID, bucketId);
             // The relative path for files in the top directory is "/"
             if (!"/".equals(values.getAsString(MediaColumns.RELATIVE_PATH))) {
                 values.put(MediaColumns.BUCKET_DISPLAY_NAME, file.getParentFile().getName());
@@ -1366,6 +1365,15 @@ public class FileUtils {
         }
     }
 
+    /**
+     * Returns the {@link MediaColumns#BUCKET_ID} of the file at {@code data}, which is derived
+     * from its parent directory, or {@code null} if it has no parent.
+     */
+    public static @Nullable Integer extractBucketId(@NonNull String data) {
+        final String parent = new File(data.toLowerCase(Locale.ROOT)).getParent();
+        return (parent != null) ? parent.hashCode() : null;
+    }
+
     /**
      * Compute {@link MediaColumns#DATA} from several scattered
      * {@link MediaColumns} values.  This method performs no enforcement of
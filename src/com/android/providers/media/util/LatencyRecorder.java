@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media.util;
+
+import androidx.annotation.GuardedBy;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Keeps the most recent latency samples of an operation to report percentiles from.
+ */
+public class LatencyRecorder {
+    private static final int SAMPLE_COUNT = 1024;
+
+    @GuardedBy("this")
+    private final long[] mSamples = new long[SAMPLE_COUNT];
+    @GuardedBy("this")
+    private long mCount;
+
+    public synchronized void record(long nanos) {
+        mSamples[(int) (mCount % SAMPLE_COUNT)] = nanos;
+        mCount++;
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final int size = (int) Math.min(mCount, SAMPLE_COUNT);
+        if (size == 0) {
+            return "count=0";
+        }
+        final long[] sorted = Arrays.copyOf(mSamples, size);
+        Arrays.sort(sorted);
+        return String.format(Locale.ROOT, "count=%d p50=%dus p90=%dus p99=%dus", mCount,
+                percentile(sorted, 50) / 1000, percentile(sorted, 90) / 1000,
+                percentile(sorted, 99) / 1000);
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)];
+    }
+}
@@ -19,6 +19,7 @@ package com.android.providers.media.util;
 import static java.nio.file.StandardOpenOption.APPEND;
 import static java.nio.file.StandardOpenOption.CREATE;
 
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.text.format.DateUtils;
 import android.util.Log;
@@ -26,6 +27,7 @@ import android.util.Log;
 import androidx.annotation.GuardedBy;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
 import java.io.File;
 import java.io.IOException;
@@ -34,9 +36,14 @@ import java.io.Writer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.stream.Stream;
 
 public class Logging {
@@ -52,6 +59,14 @@ public class Logging {
     private static final int PERSISTENT_SIZE = 32 * 1024;
     private static final int PERSISTENT_COUNT = 4;
     private static final long PERSISTENT_AGE = DateUtils.WEEK_IN_MILLIS;
+    /** Number of pending messages buffered before new messages are dropped */
+    private static final int PERSISTENT_BUFFER_SIZE = 1024;
+    /** Maximum number of messages written to disk in one batch */
+    private static final int PERSISTENT_BATCH_SIZE = 128;
+    /** Idle interval after which the writer thread rechecks the buffer */
+    private static final long PERSISTENT_IDLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+    /** Longest time {@link #flushPersistent()} will wait for pending writes */
+    private static final long PERSISTENT_FLUSH_TIMEOUT_MILLIS = 5 * DateUtils.SECOND_IN_MILLIS;
     private static final SimpleDateFormat DATE_FORMAT =
             new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
     private static final Object LOCK = new Object();
@@ -61,48 +76,194 @@ public class Logging {
     @GuardedBy("LOCK")
     private static Path sPersistentFile;
     @GuardedBy("LOCK")
+    private static long sPersistentFileSize;
+    @GuardedBy("LOCK")
+    private static long sPersistentFileMillis;
+    @GuardedBy("LOCK")
     private static Writer sWriter;
 
+    /**
+     * Messages waiting to be written by {@link #sWriterThread}. Callers on hot
+     * paths (such as FUSE operations) only pay the cost of a lock-free enqueue.
+     */
+    private static final RingBuffer<PersistentEntry> sBuffer =
+            new RingBuffer<>(PERSISTENT_BUFFER_SIZE);
+    /** Number of messages dropped because {@link #sBuffer} was full */
+    private static final AtomicLong sDroppedCount = new AtomicLong();
+    /** Number of dropped messages already reported in the persistent logs */
+    @GuardedBy("LOCK")
+    private static long sReportedDroppedCount;
+    /** Number of messages taken from {@link #sBuffer} and written to disk */
+    @GuardedBy("FLUSH_LOCK")
+    private static long sFlushedCount;
+    private static final Object FLUSH_LOCK = new Object();
+
+    private static volatile Thread sWriterThread;
+
+    private static class PersistentEntry {
+        final long timeMillis;
+        final String msg;
+
+        PersistentEntry(long timeMillis, String msg) {
+            this.timeMillis = timeMillis;
+            this.msg = msg;
+        }
+    }
+
     /**
      * Initialize persistent logging which is then available through
      * {@link #logPersistent(String)} and {@link #dumpPersistent(PrintWriter)}.
      */
     public static void initPersistent(@NonNull File persistentDir) {
+        // Make sure anything logged so far lands in the previous location
+        flushPersistent();
+
         synchronized (LOCK) {
             sPersistentDir = persistentDir.toPath();
             closeWriterAndUpdatePathLocked(null);
+
+            if (sWriterThread == null) {
+                final Thread thread = new Thread(Logging::runWriter, "MediaProviderLogWriter");
+                thread.setDaemon(true);
+                thread.start();
+                sWriterThread = thread;
+                installFlushOnDeath();
+            }
         }
     }
 
     /**
      * Write the given message to persistent logs.
+     * <p>
+     * The message is buffered and written to disk asynchronously; if the
+     * buffer is full the message only makes it to logcat, and the number of
+     * dropped messages is recorded in persistent logs once there is room.
      */
     public static void logPersistent(@NonNull String msg) {
         Log.i(TAG, msg);
 
-        synchronized (LOCK) {
-            if (sPersistentDir == null) return;
+        final Thread writerThread = sWriterThread;
+        if (writerThread == null) return;
 
-            try {
-                Path path = resolveCurrentPersistentFileLocked();
-                if (!path.equals(sPersistentFile)) {
-                    closeWriterAndUpdatePathLocked(path);
-                }
+        if (sBuffer.offer(new PersistentEntry(System.currentTimeMillis(), msg))) {
+            LockSupport.unpark(writerThread);
+        } else {
+            sDroppedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Block until all messages logged before this call have been written to
+     * disk, or until a timeout elapses.
+     */
+    public static void flushPersistent() {
+        final Thread writerThread = sWriterThread;
+        if (writerThread == null || Thread.currentThread() == writerThread) return;
 
-                if (sWriter == null) {
-                    sWriter = Files.newBufferedWriter(path, CREATE, APPEND);
+        final long target = sBuffer.getProducedCount();
+        final long deadline = SystemClock.uptimeMillis() + PERSISTENT_FLUSH_TIMEOUT_MILLIS;
+        synchronized (FLUSH_LOCK) {
+            while (sFlushedCount < target) {
+                final long remaining = deadline - SystemClock.uptimeMillis();
+                if (remaining <= 0) {
+                    Log.w(TAG, "Timed out flushing persistent logs");
+                    return;
+                }
+                LockSupport.unpark(writerThread);
+                try {
+                    FLUSH_LOCK.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
                 }
+            }
+        }
+    }
+
+    @VisibleForTesting
+    static long getPersistentDroppedCount() {
+        return sDroppedCount.get();
+    }
 
-                sWriter.write(DATE_FORMAT.format(new Date()) + " " + msg + "\n");
-                // Flush to guarantee that all our writes have been sent to the filesystem
-                sWriter.flush();
-            } catch (IOException e) {
-                closeWriterAndUpdatePathLocked(null);
-                Log.w(TAG, "Failed to write: " + sPersistentFile, e);
+    /**
+     * Body of {@link #sWriterThread}, which drains {@link #sBuffer} in batches
+     * so that many messages cost a single flush to the filesystem.
+     */
+    private static void runWriter() {
+        final ArrayList<PersistentEntry> batch = new ArrayList<>(PERSISTENT_BATCH_SIZE);
+        while (true) {
+            if (sBuffer.drainTo(batch, PERSISTENT_BATCH_SIZE) == 0) {
+                LockSupport.parkNanos(PERSISTENT_IDLE_NANOS);
+                continue;
+            }
+
+            synchronized (LOCK) {
+                writeBatchLocked(batch);
             }
+            batch.clear();
+
+            synchronized (FLUSH_LOCK) {
+                sFlushedCount = sBuffer.getConsumedCount();
+                FLUSH_LOCK.notifyAll();
+            }
+        }
+    }
+
+    @GuardedBy("LOCK")
+    private static void writeBatchLocked(@NonNull List<PersistentEntry> batch) {
+        if (sPersistentDir == null) return;
+
+        try {
+            final long droppedCount = sDroppedCount.get();
+            if (droppedCount > sReportedDroppedCount) {
+                writeEntryLocked(new PersistentEntry(System.currentTimeMillis(),
+                        "Dropped " + (droppedCount - sReportedDroppedCount)
+                                + " persistent log messages"));
+                sReportedDroppedCount = droppedCount;
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                writeEntryLocked(batch.get(i));
+            }
+            // Flush to guarantee that all our writes have been sent to the filesystem
+            sWriter.flush();
+        } catch (IOException e) {
+            closeWriterAndUpdatePathLocked(null);
+            Log.w(TAG, "Failed to write: " + sPersistentFile, e);
         }
     }
 
+    @GuardedBy("LOCK")
+    private static void writeEntryLocked(@NonNull PersistentEntry entry) throws IOException {
+        if (sWriter == null || sPersistentFileSize >= PERSISTENT_SIZE) {
+            final Path path = resolveCurrentPersistentFileLocked(entry.timeMillis);
+            if (!path.equals(sPersistentFile) || sWriter == null) {
+                closeWriterAndUpdatePathLocked(path);
+                sPersistentFileSize = path.toFile().length();
+                sWriter = Files.newBufferedWriter(path, CREATE, APPEND);
+            }
+        }
+
+        final String line = DATE_FORMAT.format(new Date(entry.timeMillis)) + " " + entry.msg
+                + "\n";
+        sWriter.write(line);
+        sPersistentFileSize += line.length();
+    }
+
+    /**
+     * Make a best-effort attempt at writing any buffered messages before the
+     * process goes away, either because of a crash or an orderly shutdown.
+     */
+    private static void installFlushOnDeath() {
+        final Thread.UncaughtExceptionHandler next = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler((thread, throwable) -> {
+            flushPersistent();
+            if (next != null) {
+                next.uncaughtException(thread, throwable);
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(new Thread(Logging::flushPersistent));
+    }
+
     @GuardedBy("LOCK")
     private static void closeWriterAndUpdatePathLocked(@Nullable Path newPath) {
         if (sWriter != null) {
@@ -120,6 +281,8 @@ public class Logging {
      * Trim any persistent logs, typically called during idle maintenance.
      */
     public static void trimPersistent() {
+        flushPersistent();
+
         File persistentDir = null;
         synchronized (LOCK) {
             if (sPersistentDir == null) return;
@@ -135,12 +298,16 @@ public class Logging {
      * Dump any persistent logs.
      */
     public static void dumpPersistent(@NonNull PrintWriter pw) {
+        flushPersistent();
+
         Path persistentDir = null;
         synchronized (LOCK) {
             if (sPersistentDir == null) return;
             persistentDir = sPersistentDir;
         }
 
+        pw.println("Persistent log messages dropped: " + sDroppedCount.get());
+
         try (Stream<Path> stream = Files.list(persistentDir)) {
             stream.sorted().forEach((path) -> {
                 dumpPersistentFile(path, pw);
@@ -170,11 +337,16 @@ public class Logging {
      * {@link #PERSISTENT_SIZE}.
      */
     @GuardedBy("LOCK")
-    private static @NonNull Path resolveCurrentPersistentFileLocked() throws IOException {
-        if (sPersistentFile != null && sPersistentFile.toFile().length() < PERSISTENT_SIZE) {
+    private static @NonNull Path resolveCurrentPersistentFileLocked(long timeMillis)
+            throws IOException {
+        if (sPersistentFile != null && sPersistentFile.toFile().length() < PERSISTENT_SIZE
+                && sPersistentFileSize < PERSISTENT_SIZE) {
             return sPersistentFile;
         }
 
-        return sPersistentDir.resolve(String.valueOf(System.currentTimeMillis()));
+        // Several files can be started within a single batch, so make sure
+        // each one gets a distinct name that still sorts chronologically
+        sPersistentFileMillis = Math.max(timeMillis, sPersistentFileMillis + 1);
+        return sPersistentDir.resolve(String.valueOf(sPersistentFileMillis));
     }
 }
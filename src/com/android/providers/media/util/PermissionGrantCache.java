@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media.util;
+
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.SparseArray;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.NonNull;
+
+import java.io.PrintWriter;
+import java.util.function.IntSupplier;
+
+/**
+ * Process-wide cache of the grant state that {@link PermissionUtils} looks up without noting:
+ * the result of {@link android.content.Context#checkPermission} keyed by UID, and the raw app-op
+ * modes of {@link android.app.AppOpsManager#unsafeCheckOpRawNoThrow} keyed by UID and package.
+ * <p>
+ * Noting an app-op is never cached, so access is still reported for every caller.
+ * <p>
+ * Grants are kept until they're explicitly invalidated, so owners must invalidate a UID whenever
+ * its permissions, watched app-ops or packages change. A grant looked up concurrently with an
+ * invalidation is returned to its caller but never stored.
+ */
+public class PermissionGrantCache {
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final SparseArray<Entry> mEntries = new SparseArray<>();
+    /** Bumped on every invalidation, to drop grants that raced with it. */
+    @GuardedBy("mLock")
+    private long mGeneration;
+    @GuardedBy("mLock")
+    private long mHits;
+    @GuardedBy("mLock")
+    private long mMisses;
+    @GuardedBy("mLock")
+    private long mInvalidations;
+
+    private final LatencyRecorder mLookupLatency = new LatencyRecorder();
+
+    /**
+     * Returns the result of checking {@code permission} for {@code uid}, asking {@code check}
+     * only if it isn't cached yet.
+     */
+    public int checkPermission(int uid, @NonNull String permission, @NonNull IntSupplier check) {
+        return lookup(uid, null, permission, check);
+    }
+
+    /**
+     * Returns the raw mode of {@code op} for {@code packageName} running as {@code uid}, asking
+     * {@code check} only if it isn't cached yet.
+     */
+    public int checkOpRaw(int uid, @NonNull String packageName, @NonNull String op,
+            @NonNull IntSupplier check) {
+        return lookup(uid, packageName, op, check);
+    }
+
+    private int lookup(int uid, String packageName, @NonNull String key,
+            @NonNull IntSupplier check) {
+        final long generation;
+        synchronized (mLock) {
+            generation = mGeneration;
+            final Entry entry = mEntries.get(uid);
+            final ArrayMap<String, Integer> grants = (entry != null)
+                    ? entry.getGrants(packageName, false) : null;
+            final Integer result = (grants != null) ? grants.get(key) : null;
+            if (result != null) {
+                mHits++;
+                return result;
+            }
+            mMisses++;
+        }
+
+        final long startTime = SystemClock.elapsedRealtimeNanos();
+        final int result = check.getAsInt();
+        mLookupLatency.record(SystemClock.elapsedRealtimeNanos() - startTime);
+
+        synchronized (mLock) {
+            if (generation == mGeneration) {
+                Entry entry = mEntries.get(uid);
+                if (entry == null) {
+                    entry = new Entry();
+                    mEntries.put(uid, entry);
+                }
+                entry.getGrants(packageName, true).put(key, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Forgets the grants looked up for {@code uid}.
+     */
+    public void invalidate(int uid) {
+        synchronized (mLock) {
+            mEntries.remove(uid);
+            mGeneration++;
+            mInvalidations++;
+        }
+    }
+
+    /**
+     * Forgets all grants, for changes that can't be attributed to a single UID.
+     */
+    public void invalidateAll() {
+        synchronized (mLock) {
+            mEntries.clear();
+            mGeneration++;
+            mInvalidations++;
+        }
+    }
+
+    public void dump(@NonNull PrintWriter writer) {
+        synchronized (mLock) {
+            writer.println("Permission grant cache: uids=" + mEntries.size() + " hits=" + mHits
+                    + " misses=" + mMisses + " invalidations=" + mInvalidations);
+        }
+        writer.println("  lookup: " + mLookupLatency);
+    }
+
+    private static class Entry {
+        /** Permission grants of the UID, which don't depend on the package. */
+        final ArrayMap<String, Integer> permissions = new ArrayMap<>();
+        /** App-op modes of each package of the UID. */
+        final ArrayMap<String, ArrayMap<String, Integer>> ops = new ArrayMap<>();
+
+        ArrayMap<String, Integer> getGrants(String packageName, boolean create) {
+            if (packageName == null) {
+                return permissions;
+            }
+            ArrayMap<String, Integer> grants = ops.get(packageName);
+            if (grants == null && create) {
+                grants = new ArrayMap<>();
+                ops.put(packageName, grants);
+            }
+            return grants;
+        }
+    }
+}
@@ -66,6 +66,65 @@ public class PermissionUtils {
 
     public static void clearOpDescription() { sOpDescription.set(null); }
 
+    private static volatile @Nullable PermissionGrantCache sGrantCache;
+
+    /**
+     * Sets the process-wide cache that permission grants and app-op modes are looked up through,
+     * or {@code null} to look them up on every check. Noted app-ops never go through the cache.
+     * The owner of the cache is responsible for invalidating it.
+     */
+    public static void setGrantCache(@Nullable PermissionGrantCache cache) {
+        sGrantCache = cache;
+    }
+
+    /**
+     * Returns the cache to look up grants of {@code uid} through, if any. Our own and shell
+     * grants aren't cached, since they depend on state we don't get invalidation events for.
+     */
+    private static @Nullable PermissionGrantCache getGrantCache(int uid) {
+        final PermissionGrantCache cache = sGrantCache;
+        if (cache == null || checkPermissionSelf(null, 0, uid)
+                || checkPermissionShell(null, 0, uid)) {
+            return null;
+        }
+        return cache;
+    }
+
+    private static int checkGrant(@NonNull Context context, @NonNull String permission, int pid,
+            int uid) {
+        final PermissionGrantCache cache = getGrantCache(uid);
+        if (cache == null) {
+            return context.checkPermission(permission, pid, uid);
+        }
+        return cache.checkPermission(uid, permission,
+                () -> context.checkPermission(permission, pid, uid));
+    }
+
+    private static int checkOpRawNoThrow(@NonNull Context context, @NonNull String op, int uid,
+            @NonNull String packageName) {
+        final AppOpsManager appOps = context.getSystemService(AppOpsManager.class);
+        final PermissionGrantCache cache = getGrantCache(uid);
+        if (cache == null) {
+            return appOps.unsafeCheckOpRawNoThrow(op, uid, packageName);
+        }
+        return cache.checkOpRaw(uid, packageName, op,
+                () -> appOps.unsafeCheckOpRawNoThrow(op, uid, packageName));
+    }
+
+    /**
+     * Same as {@link AppOpsManager#unsafeCheckOpNoThrow}, answered from the raw mode unless it
+     * depends on whether the app is in the foreground.
+     */
+    private static int checkOpNoThrow(@NonNull Context context, @NonNull String op, int uid,
+            @NonNull String packageName) {
+        final int mode = checkOpRawNoThrow(context, op, uid, packageName);
+        if (mode == AppOpsManager.MODE_FOREGROUND) {
+            return context.getSystemService(AppOpsManager.class)
+                    .unsafeCheckOpNoThrow(op, uid, packageName);
+        }
+        return mode;
+    }
+
     public static boolean checkPermissionSelf(@NonNull Context context, int pid, int uid) {
         return UserHandle.getAppId(android.os.Process.myUid()) == UserHandle.getAppId(uid);
     }
@@ -104,8 +163,8 @@ public class PermissionUtils {
      * finished downloads to the app that originally requested them.
      */
     public static boolean checkPermissionDelegator(@NonNull Context context, int pid, int uid) {
-        return (context.checkPermission(BACKUP, pid, uid) == PERMISSION_GRANTED)
-                || (context.checkPermission(UPDATE_DEVICE_STATS, pid, uid) == PERMISSION_GRANTED);
+        return (checkGrant(context, BACKUP, pid, uid) == PERMISSION_GRANTED)
+                || (checkGrant(context, UPDATE_DEVICE_STATS, pid, uid) == PERMISSION_GRANTED);
     }
 
     public static boolean checkPermissionWriteStorage(@NonNull Context context, int pid, int uid,
@@ -144,9 +203,13 @@ public class PermissionUtils {
 
     public static boolean checkIsLegacyStorageGranted(@NonNull Context context, int uid,
             String packageName, @Nullable String attributionTag) {
-        if (context.getSystemService(AppOpsManager.class)
-                .unsafeCheckOp(OPSTR_LEGACY_STORAGE, uid, packageName) == MODE_ALLOWED) {
+        final int mode = checkOpNoThrow(context, OPSTR_LEGACY_STORAGE, uid, packageName);
+        if (mode == MODE_ALLOWED) {
             return true;
+        } else if (mode == AppOpsManager.MODE_ERRORED) {
+            // Throws if the package doesn't belong to the UID
+            context.getSystemService(AppOpsManager.class)
+                    .unsafeCheckOp(OPSTR_LEGACY_STORAGE, uid, packageName);
         }
         // Check OPSTR_NO_ISOLATED_STORAGE app op.
         return checkNoIsolatedStorageGranted(context, uid, packageName, attributionTag);
@@ -309,10 +372,8 @@ public class PermissionUtils {
      */
     private static boolean checkPermissionAllowingNonLegacy(@NonNull Context context,
             @NonNull String permission, int pid, int uid, @NonNull String packageName) {
-        final AppOpsManager appOps = context.getSystemService(AppOpsManager.class);
-
         // Allowing non legacy apps to bypass this check
-        if (appOps.unsafeCheckOpNoThrow(OPSTR_LEGACY_STORAGE, uid,
+        if (checkOpNoThrow(context, OPSTR_LEGACY_STORAGE, uid,
                 packageName) != AppOpsManager.MODE_ALLOWED) return true;
 
         // Seems like it's a legacy app, so it has to pass the permission check
@@ -356,7 +417,7 @@ public class PermissionUtils {
             case AppOpsManager.MODE_ERRORED:
                 // Legacy apps technically have the access granted by this op,
                 // even when the op is denied
-                if ((appOps.unsafeCheckOpNoThrow(OPSTR_LEGACY_STORAGE, uid,
+                if ((checkOpNoThrow(context, OPSTR_LEGACY_STORAGE, uid,
                         packageName) == AppOpsManager.MODE_ALLOWED)) return true;
 
                 return false;
@@ -457,7 +518,7 @@ public class PermissionUtils {
                     attributionTag, message, forDataDelivery);
         }
 
-        return context.checkPermission(permission, pid, uid) == PERMISSION_GRANTED;
+        return checkGrant(context, permission, pid, uid) == PERMISSION_GRANTED;
     }
 
     private static boolean isAppOpPermission(String permission) {
@@ -493,14 +554,14 @@ public class PermissionUtils {
         final AppOpsManager appOpsManager = context.getSystemService(AppOpsManager.class);
         final int opMode = (forDataDelivery)
                 ? appOpsManager.noteOpNoThrow(op, uid, packageName, attributionTag, message)
-                : appOpsManager.unsafeCheckOpRawNoThrow(op, uid, packageName);
+                : checkOpRawNoThrow(context, op, uid, packageName);
 
         switch (opMode) {
             case AppOpsManager.MODE_ALLOWED:
             case AppOpsManager.MODE_FOREGROUND:
                 return true;
             case AppOpsManager.MODE_DEFAULT:
-                return context.checkPermission(permission, pid, uid) == PERMISSION_GRANTED;
+                return checkGrant(context, permission, pid, uid) == PERMISSION_GRANTED;
             default:
                 return false;
         }
@@ -509,7 +570,7 @@ public class PermissionUtils {
     private static boolean checkRuntimePermission(@NonNull Context context,
             @NonNull String permission, int pid, int uid, @Nullable String packageName,
             @Nullable String attributionTag, @Nullable String message, boolean forDataDelivery) {
-        if (context.checkPermission(permission, pid, uid) == PackageManager.PERMISSION_DENIED) {
+        if (checkGrant(context, permission, pid, uid) == PackageManager.PERMISSION_DENIED) {
             return false;
         }
 
@@ -521,7 +582,7 @@ public class PermissionUtils {
         final AppOpsManager appOpsManager = context.getSystemService(AppOpsManager.class);
         final int opMode = (forDataDelivery)
                 ? appOpsManager.noteOpNoThrow(op, uid, packageName, attributionTag, message)
-                : appOpsManager.unsafeCheckOpRawNoThrow(op, uid, packageName);
+                : checkOpRawNoThrow(context, op, uid, packageName);
 
         switch (opMode) {
             case AppOpsManager.MODE_ALLOWED:
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media.util;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free queue backed by a fixed-size ring of slots, where each
+ * slot carries a sequence number that tells producers and consumers whose
+ * turn it is to touch it.
+ * <p>
+ * Any number of threads may {@link #offer} concurrently without blocking
+ * each other; when the ring is full, {@link #offer} fails immediately
+ * instead of waiting, leaving the caller to decide how to handle overflow.
+ */
+public class RingBuffer<E> {
+    private final int mMask;
+    private final AtomicReferenceArray<E> mElements;
+    private final AtomicLongArray mSequences;
+
+    /** Position of the next slot to be consumed. */
+    private final AtomicLong mHead = new AtomicLong();
+    /** Position of the next slot to be produced. */
+    private final AtomicLong mTail = new AtomicLong();
+
+    /**
+     * @param capacity maximum number of elements held, which must be a power
+     *            of two.
+     */
+    public RingBuffer(int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        mMask = capacity - 1;
+        mElements = new AtomicReferenceArray<>(capacity);
+        mSequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            mSequences.set(i, i);
+        }
+    }
+
+    public int capacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * Insert the given element if there is room.
+     *
+     * @return {@code false} if the buffer was full and the element was not
+     *         inserted.
+     */
+    public boolean offer(@NonNull E element) {
+        long pos = mTail.get();
+        int index;
+        while (true) {
+            index = (int) (pos & mMask);
+            final long diff = mSequences.get(index) - pos;
+            if (diff == 0) {
+                if (mTail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = mTail.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                pos = mTail.get();
+            }
+        }
+        mElements.set(index, element);
+        mSequences.set(index, pos + 1);
+        return true;
+    }
+
+    /**
+     * Remove and return the oldest element, or {@code null} if the buffer is
+     * empty or the oldest slot hasn't finished being published.
+     */
+    public @Nullable E poll() {
+        long pos = mHead.get();
+        int index;
+        while (true) {
+            index = (int) (pos & mMask);
+            final long diff = mSequences.get(index) - (pos + 1);
+            if (diff == 0) {
+                if (mHead.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = mHead.get();
+            } else if (diff < 0) {
+                return null;
+            } else {
+                pos = mHead.get();
+            }
+        }
+        final E element = mElements.getAndSet(index, null);
+        mSequences.set(index, pos + mMask + 1);
+        return element;
+    }
+
+    /**
+     * Remove up to {@code maxElements} elements into the given collection.
+     *
+     * @return number of elements removed.
+     */
+    public int drainTo(@NonNull Collection<? super E> out, int maxElements) {
+        int count = 0;
+        E element;
+        while (count < maxElements && (element = poll()) != null) {
+            out.add(element);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Total number of elements ever accepted by {@link #offer}.
+     */
+    public long getProducedCount() {
+        return mTail.get();
+    }
+
+    /**
+     * Total number of elements ever returned by {@link #poll}.
+     */
+    public long getConsumedCount() {
+        return mHead.get();
+    }
+
+    public boolean isEmpty() {
+        return mHead.get() >= mTail.get();
+    }
+}
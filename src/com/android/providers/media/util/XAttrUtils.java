@@ -25,6 +25,7 @@ import android.os.Trace;
 import android.os.UserHandle;
 import android.system.ErrnoException;
 import android.system.Os;
+import android.system.OsConstants;
 import android.util.Log;
 
 import com.android.providers.media.FileAccessAttributes;
@@ -46,6 +47,13 @@ public class XAttrUtils {
     static final String DATA_MEDIA_XATTR_DIRECTORY_PATH = String.format(
             "/data/media/%s", UserHandle.myUserId());
 
+    /**
+     * Prefix of the paths for which {@link XAttrUtils#DATA_MEDIA_XATTR_DIRECTORY_PATH} is the
+     * backing directory.
+     */
+    private static final String PRIMARY_EMULATED_PATH_PREFIX = String.format(
+            "/storage/emulated/%s/", UserHandle.myUserId());
+
     static final int SIZE_OF_FILE_ATTRIBUTES = 18;
 
     /**
@@ -60,11 +68,19 @@ public class XAttrUtils {
      */
     public static final String FILE_ACCESS_XATTR_KEY = "user.fattr";
 
+    /**
+     * Returns {@code true} if the file access attributes of {@code path} can be stored in and read
+     * from an xattr, which is only the case for files on the primary emulated volume.
+     */
+    public static boolean isFileAccessXAttrSupported(String path) {
+        return path != null && path.regionMatches(/* ignoreCase */ true, 0,
+                PRIMARY_EMULATED_PATH_PREFIX, 0, PRIMARY_EMULATED_PATH_PREFIX.length());
+    }
+
     public static Optional<FileAccessAttributes> getFileAttributesFromXAttr(String path,
             String key) {
         Trace.beginSection("getFileAttributesFromXAttr");
-        String relativePathWithDisplayName = DATA_MEDIA_XATTR_DIRECTORY_PATH + "/"
-                + extractRelativePath(path) + extractDisplayName(path);
+        String relativePathWithDisplayName = getXAttrPath(path);
         try {
             return Optional.of(deserializeFileAccessAttributes(
                     Os.getxattr(relativePathWithDisplayName, key)));
@@ -78,6 +94,51 @@ public class XAttrUtils {
         }
     }
 
+    /**
+     * Stores the given file access attributes in the xattr {@code key} of {@code path}.
+     *
+     * @return {@code true} if the xattr was written.
+     */
+    public static boolean setFileAttributesToXAttr(String path, String key,
+            FileAccessAttributes fileAccessAttributes) {
+        Trace.beginSection("setFileAttributesToXAttr");
+        try {
+            Os.setxattr(getXAttrPath(path), key,
+                    serializeFileAccessAttributes(fileAccessAttributes), 0);
+            return true;
+        } catch (ErrnoException e) {
+            // Rows can be inserted before their file is created on the lower filesystem
+            if (e.errno != OsConstants.ENOENT) {
+                Log.w(TAG, String.format(
+                        "Exception encountered while writing xattr:%s to path:%s.", key, path));
+            }
+            return false;
+        } finally {
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * Removes the xattr {@code key} of {@code path}, if any.
+     */
+    public static void removeFileAttributesXAttr(String path, String key) {
+        Trace.beginSection("removeFileAttributesXAttr");
+        try {
+            Os.removexattr(getXAttrPath(path), key);
+        } catch (ErrnoException e) {
+            // Either the file or the xattr is already gone, which is what we wanted
+            Log.v(TAG,
+                    String.format("Couldn't remove xattr:%s from path:%s.", key, path));
+        } finally {
+            Trace.endSection();
+        }
+    }
+
+    private static String getXAttrPath(String path) {
+        return DATA_MEDIA_XATTR_DIRECTORY_PATH + "/" + extractRelativePath(path)
+                + extractDisplayName(path);
+    }
+
     /**
      * Serializes file access attributes into byte array that will be stored in the xattr.
      * This method serializes only the id, mediaType, isPending, isTrashed and ownerId fields.
@@ -229,6 +229,75 @@ public class PerformanceTest {
         MediaStore.waitForIdle(resolver);
     }
 
+    /**
+     * Verify per-row cost of large inserts, comparing {@link ContentResolver#bulkInsert} with
+     * inserting the same rows through {@link ContentResolver#applyBatch}.
+     */
+    @Test
+    public void testBulkInsert_1000() throws Exception {
+        testBulkInsert_size(1000);
+    }
+
+    @Test
+    public void testBulkInsert_10000() throws Exception {
+        testBulkInsert_size(10000);
+    }
+
+    private void testBulkInsert_size(int size) throws Exception {
+        final Timer bulkInsertTimer = new Timer("bulk_insert_" + size);
+        final Timer batchInsertTimer = new Timer("batch_insert_" + size);
+        for (int i = 0; i < COUNT_REPEAT; i++) {
+            doBulkInsert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, size,
+                    bulkInsertTimer, batchInsertTimer);
+        }
+
+        // The numbers dumped by the timers are monitored using crystalball and regressions are
+        // reported from there.
+        bulkInsertTimer.dumpResults();
+        bulkInsertTimer.dumpPerItemResults(size);
+        batchInsertTimer.dumpResults();
+        batchInsertTimer.dumpPerItemResults(size);
+    }
+
+    private void doBulkInsert(Uri collection, int size, Timer bulkInsertTimer,
+            Timer batchInsertTimer) throws Exception {
+        final ContentResolver resolver = InstrumentationRegistry.getContext().getContentResolver();
+        final String prefix = "bulk_insert_" + System.nanoTime() + "_";
+        try {
+            MediaStore.waitForIdle(resolver);
+            {
+                final ContentValues[] values = new ContentValues[size];
+                for (int i = 0; i < size; i++) {
+                    values[i] = new ContentValues();
+                    values[i].put(MediaColumns.DISPLAY_NAME, prefix + "a" + i + ".jpg");
+                    values[i].put(MediaColumns.MIME_TYPE, "image/jpeg");
+                }
+
+                bulkInsertTimer.start();
+                assertEquals(size, resolver.bulkInsert(collection, values));
+                bulkInsertTimer.stop();
+            }
+            MediaStore.waitForIdle(resolver);
+            {
+                final ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+                for (int i = 0; i < size; i++) {
+                    ops.add(ContentProviderOperation.newInsert(collection)
+                            .withValue(MediaColumns.DISPLAY_NAME, prefix + "b" + i + ".jpg")
+                            .withValue(MediaColumns.MIME_TYPE, "image/jpeg")
+                            .build());
+                }
+
+                batchInsertTimer.start();
+                resolver.applyBatch(collection.getAuthority(), ops);
+                batchInsertTimer.stop();
+            }
+        } finally {
+            MediaStore.waitForIdle(resolver);
+            resolver.delete(collection, MediaColumns.DISPLAY_NAME + " LIKE ?",
+                    new String[] {prefix + "%"});
+        }
+    }
+
     @Test
     public void testDirOperations_10() throws Exception {
         testDirOperations_size(10);
@@ -339,6 +408,176 @@ public class PerformanceTest {
         }
     }
 
+    @Test
+    public void testRenameDirectory_100() throws Exception {
+        testRenameDirectory_size(100);
+    }
+
+    @Test
+    public void testRenameDirectory_1000() throws Exception {
+        testRenameDirectory_size(1000);
+    }
+
+    @Test
+    public void testRenameDirectory_10000() throws Exception {
+        testRenameDirectory_size(10000);
+    }
+
+    /**
+     * Renames a tree of indexed images spread over a few subdirectories back and forth, which
+     * requires moving the database entries of every file in the tree.
+     */
+    private void testRenameDirectory_size(int size) throws Exception {
+        final Timer renameDirTimer = new Timer("renamedir_tree_" + size);
+        final File picturesDir = new File(Environment.getExternalStorageDirectory(),
+                Environment.DIRECTORY_PICTURES);
+        File testDir = new File(picturesDir, "test_tree_" + System.nanoTime());
+        final int subdirCount = 10;
+        for (int i = 0; i < size; i++) {
+            final File subdir = new File(testDir, "sub_" + (i % subdirCount));
+            subdir.mkdirs();
+            assertThat(new File(subdir, "image_" + i + ".jpg").createNewFile()).isTrue();
+        }
+
+        try {
+            for (int i = 0; i < COUNT_REPEAT; i++) {
+                final File renamedDir = new File(picturesDir, "renamed_tree_" + System.nanoTime());
+                renameDirTimer.start();
+                assertThat(testDir.renameTo(renamedDir)).isTrue();
+                renameDirTimer.stop();
+                testDir = renamedDir;
+            }
+        } finally {
+            for (int i = 0; i < subdirCount; i++) {
+                final File subdir = new File(testDir, "sub_" + i);
+                final File[] files = subdir.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        file.delete();
+                    }
+                }
+                subdir.delete();
+            }
+            testDir.delete();
+        }
+
+        // The numbers dumped by the timers are monitored using crystalball and regressions are
+        // reported from there.
+        renameDirTimer.dumpResults();
+    }
+
+    @Test
+    public void testReaddirTranscodeSupported_100() throws Exception {
+        testReaddirTranscodeSupported_size(100);
+    }
+
+    @Test
+    public void testReaddirTranscodeSupported_1000() throws Exception {
+        testReaddirTranscodeSupported_size(1000);
+    }
+
+    /**
+     * Lists a directory of videos under DCIM/Camera, where the FUSE daemon needs transform info
+     * from MediaProvider for every entry of each readdirplus reply.
+     */
+    private void testReaddirTranscodeSupported_size(int size) throws Exception {
+        final Timer readdirTimer = new Timer("readdir_transcode_" + size);
+        final File testDir = new File(new File(Environment.getExternalStorageDirectory(),
+                "DCIM/Camera"), "test_dir_" + System.nanoTime());
+        assertThat(testDir.mkdirs()).isTrue();
+        final List<File> files = new ArrayList<>();
+        try {
+            for (int i = 0; i < size; i++) {
+                final File file = new File(testDir, "video_" + System.nanoTime() + ".mp4");
+                assertThat(file.createNewFile()).isTrue();
+                files.add(file);
+            }
+
+            for (int i = 0; i < COUNT_REPEAT; i++) {
+                // Drop cache so that every entry is looked up again by readdirplus
+                executeDropCachesImpl();
+                readdirTimer.start();
+                final File[] result = testDir.listFiles();
+                readdirTimer.stop();
+                assertThat(result.length).isEqualTo(size);
+            }
+        } finally {
+            for (File file : files) {
+                file.delete();
+            }
+            testDir.delete();
+        }
+
+        // The numbers dumped by the timers are monitored using crystalball and regressions are
+        // reported from there.
+        readdirTimer.dumpResults();
+    }
+
+    @Test
+    public void testGetRedactedUri_10() throws Exception {
+        testGetRedactedUri_size(10);
+    }
+
+    @Test
+    public void testGetRedactedUri_100() throws Exception {
+        testGetRedactedUri_size(100);
+    }
+
+    @Test
+    public void testGetRedactedUri_1000() throws Exception {
+        testGetRedactedUri_size(1000);
+    }
+
+    /**
+     * Requests redacted uris for a batch of images, first when every redacted id still has to be
+     * minted and then again when they can all be read back.
+     */
+    private void testGetRedactedUri_size(int size) throws Exception {
+        final Timer mintTimer = new Timer("redacted_uri_mint_" + size);
+        final Timer lookupTimer = new Timer("redacted_uri_lookup_" + size);
+        final ContentResolver resolver = InstrumentationRegistry.getContext().getContentResolver();
+        final Uri collection = MediaStore.Images.Media.EXTERNAL_CONTENT_URI;
+
+        for (int i = 0; i < COUNT_REPEAT; i++) {
+            final ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+            for (int j = 0; j < size; j++) {
+                ops.add(ContentProviderOperation.newInsert(collection)
+                        .withValue(MediaColumns.DISPLAY_NAME, System.nanoTime() + ".jpg")
+                        .withValue(MediaColumns.MIME_TYPE, "image/jpeg")
+                        .build());
+            }
+            final ContentProviderResult[] res = resolver.applyBatch(collection.getAuthority(),
+                    ops);
+            final List<Uri> uris = new ArrayList<>();
+            for (ContentProviderResult result : res) {
+                uris.add(result.uri);
+            }
+
+            try {
+                mintTimer.start();
+                final List<Uri> minted = MediaStore.getRedactedUri(resolver, uris);
+                mintTimer.stop();
+
+                lookupTimer.start();
+                final List<Uri> lookedUp = MediaStore.getRedactedUri(resolver, uris);
+                lookupTimer.stop();
+
+                assertThat(lookedUp).isEqualTo(minted);
+            } finally {
+                final ArrayList<ContentProviderOperation> deleteOps = new ArrayList<>();
+                for (Uri uri : uris) {
+                    deleteOps.add(ContentProviderOperation.newDelete(uri).build());
+                }
+                resolver.applyBatch(collection.getAuthority(), deleteOps);
+            }
+        }
+
+        // The numbers dumped by the timers are monitored using crystalball and regressions are
+        // reported from there.
+        mintTimer.dumpResults();
+        lookupTimer.dumpResults();
+    }
+
     private static Set<Uri> asSet(Collection<Uri> uris) {
         return new HashSet<>(uris);
     }
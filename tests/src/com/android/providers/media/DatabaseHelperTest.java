@@ -33,17 +33,28 @@ import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
 
 import android.Manifest;
+import android.content.ContentProviderClient;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.ContextWrapper;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.CancellationSignal;
 import android.os.UserHandle;
 import android.provider.Column;
 import android.provider.ExportedSince;
+import android.provider.MediaStore;
 import android.provider.MediaStore.Audio;
 import android.provider.MediaStore.Audio.AudioColumns;
 import android.provider.MediaStore.Files.FileColumns;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -51,7 +62,10 @@ import androidx.collection.ArraySet;
 import androidx.test.InstrumentationRegistry;
 import androidx.test.runner.AndroidJUnit4;
 
+import com.android.providers.media.DatabaseHelper.MigrationCheckpoint;
 import com.android.providers.media.scan.MediaScannerTest.IsolatedContext;
+import com.android.providers.media.tests.utils.Timer;
+import com.android.providers.media.util.FileUtils;
 
 import com.google.common.collect.ImmutableSet;
 
@@ -59,6 +73,10 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
 import java.util.Set;
 
 @RunWith(AndroidJUnit4.class)
@@ -566,6 +584,295 @@ public class DatabaseHelperTest {
         }
     }
 
+    @Test
+    public void testFilesFts() throws Exception {
+        try (DatabaseHelper helper = new DatabaseHelperT(sIsolatedContext, TEST_CLEAN_DB)) {
+            final SQLiteDatabase db = helper.getWritableDatabaseForTest();
+            final ContentValues values = new ContentValues();
+            values.put(FileColumns.DATA, "/storage/emulated/0/DCIM/Holiday_Beach.jpg");
+            values.put(FileColumns.DISPLAY_NAME, "Holiday_Beach.jpg");
+            final long id = db.insert("files", FileColumns.DATA, values);
+
+            assertThat(queryFts(db, "holi*")).containsExactly(id);
+            assertThat(queryFts(db, "beach* holiday*")).containsExactly(id);
+
+            values.clear();
+            values.put(FileColumns.DISPLAY_NAME, "Mountains.jpg");
+            db.update("files", values, "_id=" + id, null);
+            assertThat(queryFts(db, "holi*")).isEmpty();
+            assertThat(queryFts(db, "mount*")).containsExactly(id);
+
+            db.delete("files", "_id=" + id, null);
+            assertThat(queryFts(db, "mount*")).isEmpty();
+            assertEquals(0, DatabaseUtils.queryNumEntries(db, "files_fts"));
+        }
+    }
+
+    @Test
+    public void testFilesFts_searchLatency() throws Exception {
+        final int count = 200_000;
+        final String[] words = { "holiday", "beach", "mountain", "birthday", "screenshot",
+                "invoice", "report", "family", "concert", "receipt" };
+        try (DatabaseHelper helper = new DatabaseHelperT(sIsolatedContext, TEST_CLEAN_DB)) {
+            final SQLiteDatabase db = helper.getWritableDatabaseForTest();
+            db.beginTransaction();
+            try (SQLiteStatement insert = db.compileStatement("INSERT INTO files"
+                    + " (_data,_display_name,date_modified) VALUES (?,?,?)")) {
+                for (int i = 0; i < count; i++) {
+                    final String name = words[i % words.length] + "_" + i + ".jpg";
+                    insert.bindString(1, "/storage/emulated/0/DCIM/" + name);
+                    insert.bindString(2, name);
+                    insert.bindLong(3, i);
+                    insert.executeInsert();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            final String sortAndLimit = " ORDER BY date_modified DESC LIMIT 64";
+            final Timer like = new Timer("files_search_like_" + count);
+            final Timer fts = new Timer("files_search_fts_" + count);
+            for (int i = 0; i < 10; i++) {
+                final String word = words[i % words.length];
+                like.start();
+                final int likeCount = countQuery(db, "SELECT _id FROM files"
+                        + " WHERE _display_name LIKE ?" + sortAndLimit, "%" + word + "%");
+                like.stop();
+                fts.start();
+                final int ftsCount = countQuery(db, "SELECT _id FROM files WHERE _id IN"
+                        + " (SELECT docid FROM files_fts WHERE files_fts MATCH ?)"
+                        + sortAndLimit, word + "*");
+                fts.stop();
+                assertEquals(likeCount, ftsCount);
+            }
+            like.dumpResults();
+            fts.dumpResults();
+        }
+    }
+
+    @Test
+    public void testRecentsQuery() throws Exception {
+        final int count = 200_000;
+        final int limit = 64;
+        final int[] mediaTypes = { FileColumns.MEDIA_TYPE_IMAGE, FileColumns.MEDIA_TYPE_VIDEO,
+                FileColumns.MEDIA_TYPE_DOCUMENT, FileColumns.MEDIA_TYPE_NONE };
+        try (DatabaseHelper helper = new DatabaseHelperT(sIsolatedContext, TEST_CLEAN_DB)) {
+            final SQLiteDatabase db = helper.getWritableDatabaseForTest();
+            db.beginTransaction();
+            try (SQLiteStatement insert = db.compileStatement("INSERT INTO files"
+                    + " (_data,media_type,date_modified) VALUES (?,?,?)")) {
+                for (int i = 0; i < count; i++) {
+                    insert.bindString(1, "/storage/emulated/0/DCIM/" + i + ".jpg");
+                    insert.bindLong(2, mediaTypes[i % mediaTypes.length]);
+                    // Spread modification times so they don't follow insertion order
+                    insert.bindLong(3, (i * 7919L) % count);
+                    insert.executeInsert();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            // Recents walk the index backwards instead of sorting every item of the type
+            final String selection = "media_type=" + FileColumns.MEDIA_TYPE_IMAGE;
+            final String sortOrder = " ORDER BY date_modified DESC";
+            final StringBuilder plan = new StringBuilder();
+            try (Cursor c = db.rawQuery("EXPLAIN QUERY PLAN SELECT _id FROM files WHERE "
+                    + selection + sortOrder + " LIMIT " + limit, null)) {
+                while (c.moveToNext()) {
+                    plan.append(c.getString(c.getColumnIndexOrThrow("detail"))).append('\n');
+                }
+            }
+            assertThat(plan.toString()).contains("media_type_date_modified_index");
+            assertThat(plan.toString()).doesNotContain("TEMP B-TREE");
+
+            // Compare with sorting the whole collection and copying the first rows out, as
+            // recents used to do
+            final Timer sorted = new Timer("recents_sorted_" + count);
+            final Timer indexed = new Timer("recents_indexed_" + count);
+            for (int i = 0; i < 10; i++) {
+                sorted.start();
+                long sortedFirst = -1;
+                try (Cursor c = db.rawQuery("SELECT date_modified FROM files NOT INDEXED WHERE "
+                        + selection + sortOrder, null)) {
+                    for (int j = 0; j < limit && c.moveToNext(); j++) {
+                        if (j == 0) {
+                            sortedFirst = c.getLong(0);
+                        }
+                    }
+                }
+                sorted.stop();
+                indexed.start();
+                long indexedFirst = -1;
+                try (Cursor c = db.rawQuery("SELECT date_modified FROM files WHERE "
+                        + selection + sortOrder + " LIMIT " + limit, null)) {
+                    assertEquals(limit, c.getCount());
+                    assertTrue(c.moveToFirst());
+                    indexedFirst = c.getLong(0);
+                }
+                indexed.stop();
+                assertEquals(sortedFirst, indexedFirst);
+            }
+            sorted.dumpResults();
+            indexed.dumpResults();
+        }
+    }
+
+    @Test
+    public void testDirectoryListing() throws Exception {
+        final int[] sizes = { 1_000, 10_000 };
+        final int otherCount = 50_000;
+        try (DatabaseHelper helper = new DatabaseHelperT(sIsolatedContext, TEST_CLEAN_DB)) {
+            final SQLiteDatabase db = helper.getWritableDatabaseForTest();
+            db.beginTransaction();
+            try (SQLiteStatement insert = db.compileStatement("INSERT INTO files"
+                    + " (_data,volume_name,relative_path,_display_name,mime_type)"
+                    + " VALUES (?,?,?,?,?)")) {
+                for (int size : sizes) {
+                    for (int i = 0; i < size; i++) {
+                        insertChild(insert, "DCIM/Dir" + size + "/", i);
+                    }
+                }
+                // Spread the rest of the library over other directories
+                for (int i = 0; i < otherCount; i++) {
+                    insertChild(insert, "Pictures/Other" + (i % 100) + "/", i);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            // Core of the listing MediaProvider.getFilesInDirectoryForFuse() runs, without the
+            // caller filters; the plan of the full query is checked by MediaProviderForFuseTest
+            final String listing = "SELECT _data FROM %s WHERE volume_name IN (?)"
+                    + " AND relative_path=? AND mime_type NOT LIKE 'null'";
+
+            for (int size : sizes) {
+                final String[] args = { VOLUME_EXTERNAL_PRIMARY, "DCIM/Dir" + size + "/" };
+                final Timer scanned = new Timer("readdir_scanned_" + size);
+                final Timer indexed = new Timer("readdir_indexed_" + size);
+                for (int i = 0; i < 10; i++) {
+                    scanned.start();
+                    try (Cursor c = db.rawQuery(String.format(listing, "files NOT INDEXED"),
+                            args)) {
+                        assertEquals(size, c.getCount());
+                    }
+                    scanned.stop();
+                    indexed.start();
+                    try (Cursor c = db.rawQuery(String.format(listing, "files"), args)) {
+                        assertEquals(size, c.getCount());
+                    }
+                    indexed.stop();
+                }
+                scanned.dumpResults();
+                indexed.dumpResults();
+            }
+        }
+    }
+
+    @Test
+    public void testMigrateFromLegacy_checkpoints() throws Exception {
+        final LegacyMigrationContext context = new LegacyMigrationContext(5_000);
+        try (DatabaseHelper helper = new MigrationDatabaseHelper(context)) {
+            final SQLiteDatabase db = helper.getWritableDatabaseForTest();
+            assertEquals(5_000, DatabaseUtils.queryNumEntries(db, "files"));
+            assertEquals(6, DatabaseUtils.queryNumEntries(db, "sqlite_master", "type='trigger'"));
+            assertEquals(1, DatabaseUtils.queryNumEntries(db, "files",
+                    FileColumns.IS_FAVORITE + "=1 AND " + FileColumns._ID + "=10"));
+        }
+
+        // Each batch is committed before its checkpoint is saved
+        assertThat(context.mCheckpoints).containsExactly(2_000L, 4_000L).inOrder();
+        assertFalse(context.getMigrationFile().exists());
+    }
+
+    @Test
+    public void testMigrateFromLegacy_resumesFromCheckpoint() throws Exception {
+        final LegacyMigrationContext context = new LegacyMigrationContext(4_000);
+        try (DatabaseHelper helper = new MigrationDatabaseHelper(context)) {
+            helper.getWritableDatabaseForTest();
+        }
+
+        // Pretend we died right after committing the first 4,000 rows
+        context.mProvider.mCount = 6_000;
+        FileUtils.writeString(context.getMigrationFile(), Optional.of("4000:1"));
+        try (DatabaseHelper helper = new MigrationDatabaseHelper(context)) {
+            final SQLiteDatabase db = helper.getWritableDatabaseForTest();
+            assertEquals(6_000, DatabaseUtils.queryNumEntries(db, "files"));
+        }
+        assertEquals(4_000, context.mProvider.mLastAfterId);
+        assertEquals(2_000, context.mProvider.mLastQueryCount);
+        assertFalse(context.getMigrationFile().exists());
+    }
+
+    @Test
+    public void testMigrateFromLegacy_givesUp() throws Exception {
+        final LegacyMigrationContext context = new LegacyMigrationContext(100);
+        try (DatabaseHelper helper = new MigrationDatabaseHelper(context)) {
+            helper.getWritableDatabaseForTest();
+        }
+
+        context.mProvider.mCount = 200;
+        context.mProvider.mLastQueryCount = 0;
+        FileUtils.writeString(context.getMigrationFile(),
+                Optional.of("100:" + DatabaseHelper.MIGRATION_MAX_ATTEMPTS));
+        try (DatabaseHelper helper = new MigrationDatabaseHelper(context)) {
+            final SQLiteDatabase db = helper.getWritableDatabaseForTest();
+            assertEquals(100, DatabaseUtils.queryNumEntries(db, "files"));
+            assertEquals(6, DatabaseUtils.queryNumEntries(db, "sqlite_master", "type='trigger'"));
+        }
+        assertEquals(0, context.mProvider.mLastQueryCount);
+        assertFalse(context.getMigrationFile().exists());
+    }
+
+    @Test
+    public void testMigrateFromLegacy_benchmark() throws Exception {
+        final int count = 20_000;
+        final LegacyMigrationContext context = new LegacyMigrationContext(count);
+        final Timer timer = new Timer("legacy_migration_" + count);
+        try (DatabaseHelper helper = new MigrationDatabaseHelper(context)) {
+            timer.start();
+            final SQLiteDatabase db = helper.getWritableDatabaseForTest();
+            timer.stop();
+            assertEquals(count, DatabaseUtils.queryNumEntries(db, "files"));
+        }
+        timer.dumpResults();
+
+        final long rowsPerSecond = count * 1000L / Math.max(1, timer.getMaxDurationMillis());
+        Log.v(TAG, "Migrated " + count + " rows at " + rowsPerSecond + " rows/s");
+        final Bundle results = new Bundle();
+        results.putLong("legacy_migration_rate (rows/s)", rowsPerSecond);
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, results);
+    }
+
+    private static void insertChild(SQLiteStatement insert, String relativePath, int index) {
+        final String displayName = "IMG_" + index + ".jpg";
+        insert.bindString(1, "/storage/emulated/0/" + relativePath + displayName);
+        insert.bindString(2, VOLUME_EXTERNAL_PRIMARY);
+        insert.bindString(3, relativePath);
+        insert.bindString(4, displayName);
+        insert.bindString(5, "image/jpeg");
+        insert.executeInsert();
+    }
+
+    private static List<Long> queryFts(SQLiteDatabase db, String match) {
+        final List<Long> ids = new ArrayList<>();
+        try (Cursor c = db.rawQuery("SELECT docid FROM files_fts WHERE files_fts MATCH ?",
+                new String[] { match })) {
+            while (c.moveToNext()) {
+                ids.add(c.getLong(0));
+            }
+        }
+        return ids;
+    }
+
+    private static int countQuery(SQLiteDatabase db, String sql, String arg) {
+        try (Cursor c = db.rawQuery(sql, new String[] { arg })) {
+            return c.getCount();
+        }
+    }
+
     private static String normalize(String sql) {
         return sql != null ? sql.replace(", ", ",") : null;
     }
@@ -582,6 +889,124 @@ public class DatabaseHelperTest {
         }
     }
 
+    private static class MigrationDatabaseHelper extends DatabaseHelper {
+        MigrationDatabaseHelper(LegacyMigrationContext context) {
+            super(context, TEST_CLEAN_DB, DatabaseHelper.VERSION_LATEST, false, false,
+                    Column.class, ExportedSince.class, null, null, context, null, false);
+        }
+    }
+
+    /**
+     * Isolated context serving {@link MediaStore#AUTHORITY_LEGACY} from a
+     * {@link FakeLegacyProvider}, and recording migration checkpoints.
+     */
+    private static class LegacyMigrationContext extends ContextWrapper
+            implements DatabaseHelper.OnLegacyMigrationListener {
+        private final File mDir;
+        private final MockContentResolver mResolver;
+        final FakeLegacyProvider mProvider;
+        final List<Long> mCheckpoints = new ArrayList<>();
+
+        LegacyMigrationContext(int count) {
+            super(InstrumentationRegistry.getTargetContext());
+            mDir = new File(getBaseContext().getFilesDir(), TAG + "_migration");
+            mDir.mkdirs();
+            FileUtils.deleteContents(mDir);
+
+            mProvider = new FakeLegacyProvider(count);
+            mResolver = new MockContentResolver(this);
+            mResolver.addProvider(MediaStore.AUTHORITY_LEGACY, mProvider);
+        }
+
+        File getMigrationFile() {
+            return new File(mDir, "." + MediaStore.VOLUME_EXTERNAL);
+        }
+
+        @Override
+        public File getDatabasePath(String name) {
+            return new File(mDir, name);
+        }
+
+        @Override
+        public File getFilesDir() {
+            return mDir;
+        }
+
+        @Override
+        public ContentResolver getContentResolver() {
+            return mResolver;
+        }
+
+        @Override
+        public void onStarted(ContentProviderClient client, String volumeName) {
+        }
+
+        @Override
+        public void onProgress(ContentProviderClient client, String volumeName, long progress,
+                long total) {
+            mCheckpoints.add(MigrationCheckpoint.read(getMigrationFile()).lastMigratedId);
+        }
+
+        @Override
+        public void onFinished(ContentProviderClient client, String volumeName) {
+        }
+    }
+
+    /**
+     * Legacy provider with {@code mCount} images, honoring the {@code _id>?}
+     * selection used to resume a migration.
+     */
+    private static class FakeLegacyProvider extends MockContentProvider {
+        int mCount;
+        long mLastAfterId;
+        int mLastQueryCount;
+
+        FakeLegacyProvider(int count) {
+            mCount = count;
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, Bundle queryArgs,
+                CancellationSignal cancellationSignal) {
+            final String[] selectionArgs = queryArgs
+                    .getStringArray(ContentResolver.QUERY_ARG_SQL_SELECTION_ARGS);
+            mLastAfterId = (selectionArgs != null) ? Long.parseLong(selectionArgs[0]) : 0;
+
+            final MatrixCursor cursor = new MatrixCursor(projection);
+            for (long id = mLastAfterId + 1; id <= mCount; id++) {
+                final Object[] row = new Object[projection.length];
+                for (int i = 0; i < projection.length; i++) {
+                    switch (projection[i]) {
+                        case FileColumns._ID:
+                            row[i] = id;
+                            break;
+                        case FileColumns.DATA:
+                            row[i] = "/storage/emulated/0/DCIM/Camera/IMG_" + id + ".jpg";
+                            break;
+                        case FileColumns.VOLUME_NAME:
+                            row[i] = MediaStore.VOLUME_EXTERNAL_PRIMARY;
+                            break;
+                        case FileColumns.MEDIA_TYPE:
+                            row[i] = FileColumns.MEDIA_TYPE_IMAGE;
+                            break;
+                        case FileColumns.IS_FAVORITE:
+                            row[i] = (id % 10 == 0) ? 1 : 0;
+                            break;
+                        case FileColumns.DATE_ADDED:
+                            row[i] = 1_600_000_000L + id;
+                            break;
+                        default:
+                            row[i] = null;
+                            break;
+                    }
+                }
+                cursor.addRow(row);
+            }
+            mLastQueryCount = cursor.getCount();
+            return cursor;
+        }
+    }
+
     private static class DatabaseHelperO extends DatabaseHelper {
         public DatabaseHelperO(Context context, String name) {
             super(context, name, DatabaseHelper.VERSION_O, false, false, Column.class,
@@ -630,6 +1055,65 @@ public class DatabaseHelperTest {
         }
     }
 
+    @Test
+    public void testDeletionLog() throws Exception {
+        final int count = 100_000;
+        try (DatabaseHelper helper = new DatabaseHelperT(sIsolatedContext, TEST_CLEAN_DB)) {
+            final SQLiteDatabase db = helper.getWritableDatabaseForTest();
+            db.beginTransaction();
+            try (SQLiteStatement insert = db.compileStatement("INSERT INTO files"
+                    + " (_data,volume_name,generation_modified) VALUES (?,?,?)")) {
+                for (int i = 0; i < count; i++) {
+                    insert.bindString(1, "/storage/emulated/0/DCIM/" + i + ".jpg");
+                    insert.bindString(2, VOLUME_EXTERNAL_PRIMARY);
+                    insert.bindLong(3, 1);
+                    insert.executeInsert();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            db.execSQL("UPDATE local_metadata SET generation=5");
+
+            // Changed rows are found through the index rather than by scanning every row
+            db.execSQL("UPDATE files SET generation_modified=5 WHERE _id<=10");
+            final String changedSelection = FileColumns.GENERATION_MODIFIED + ">1";
+            try (Cursor c = db.rawQuery("EXPLAIN QUERY PLAN SELECT _id FROM files WHERE "
+                    + changedSelection, null)) {
+                assertTrue(c.moveToFirst());
+                assertThat(c.getString(c.getColumnIndexOrThrow("detail")))
+                        .contains("generation_modified_index");
+            }
+            try (Cursor c = db.query("files", new String[] { "_id" }, changedSelection,
+                    null, null, null, null)) {
+                assertEquals(10, c.getCount());
+            }
+
+            // Trashing an item doesn't log it, but deleting items of any media type does
+            db.execSQL("UPDATE files SET is_trashed=1 WHERE _id=" + (count - 3));
+            db.execSQL("UPDATE files SET media_type=" + FileColumns.MEDIA_TYPE_AUDIO
+                    + " WHERE _id=" + count);
+            assertEquals(0, DatabaseUtils.queryNumEntries(db, "deletion_log"));
+            assertEquals(3, db.delete("files", "_id>?", new String[] { "" + (count - 3) }));
+            try (Cursor c = db.query("deletion_log",
+                    new String[] { "old_id", "generation_modified" }, "generation_modified>1",
+                    null, null, null, "_id")) {
+                assertEquals(3, c.getCount());
+                for (int i = count - 2; i <= count; i++) {
+                    assertTrue(c.moveToNext());
+                    assertEquals(i, c.getLong(0));
+                    assertEquals(5, c.getLong(1));
+                }
+            }
+
+            // Pruning remembers up to which generation deletions were dropped
+            assertEquals(0, DatabaseHelper.getDeletionLogGeneration(db));
+            assertEquals(2, helper.pruneDeletionLog(1));
+            assertEquals(5, DatabaseHelper.getDeletionLogGeneration(db));
+            assertEquals(1, DatabaseUtils.queryNumEntries(db, "deletion_log"));
+        }
+    }
+
     private static class DatabaseHelperS extends DatabaseHelper {
         public DatabaseHelperS(Context context, String name) {
             super(context, name, VERSION_S, false, false, Column.class, ExportedSince.class, null,
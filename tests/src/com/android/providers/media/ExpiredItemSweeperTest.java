@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media;
+
+import static android.provider.MediaStore.VOLUME_EXTERNAL_PRIMARY;
+
+import static com.android.providers.media.DatabaseHelper.TEST_CLEAN_DB;
+import static com.android.providers.media.util.DatabaseUtils.bindList;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.CancellationSignal;
+import android.provider.Column;
+import android.provider.ExportedSince;
+import android.provider.MediaStore.Files.FileColumns;
+import android.text.format.DateUtils;
+
+import androidx.annotation.NonNull;
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.providers.media.scan.MediaScannerTest.IsolatedContext;
+import com.android.providers.media.tests.utils.Timer;
+import com.android.providers.media.util.LongArray;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+public class ExpiredItemSweeperTest {
+    private static final String TAG = "ExpiredItemSweeperTest";
+    private static final String VOLUME_UNMOUNTED = "0000-0000";
+    private static final List<String> VOLUMES = Collections.singletonList(
+            VOLUME_EXTERNAL_PRIMARY);
+
+    /** Fake wall clock, in milliseconds. */
+    private long mNowMillis;
+
+    private Context mIsolatedContext;
+
+    @Before
+    public void setUp() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        mIsolatedContext = new IsolatedContext(context, TAG, /*asFuseThread*/ false);
+        mNowMillis = 1_000_000L * DateUtils.SECOND_IN_MILLIS;
+    }
+
+    @Test
+    public void testRun_deletesRecentAndExtendsOld() throws Exception {
+        try (DatabaseHelper helper = newHelper()) {
+            final SQLiteDatabase db = helper.getWritableDatabaseForTest();
+            final long now = mNowMillis / 1000;
+            final long weekAgo = now - DateUtils.WEEK_IN_MILLIS / 1000;
+            final long recent1 = insert(db, VOLUME_EXTERNAL_PRIMARY, now - 10);
+            final long recent2 = insert(db, VOLUME_EXTERNAL_PRIMARY, now - 20);
+            final long old = insert(db, VOLUME_EXTERNAL_PRIMARY, weekAgo - 10);
+            final long future = insert(db, VOLUME_EXTERNAL_PRIMARY, now + 10);
+            final long unmounted = insert(db, VOLUME_UNMOUNTED, now - 10);
+            final long neverExpires = insert(db, VOLUME_EXTERNAL_PRIMARY, null);
+
+            final FakeCallback callback = new FakeCallback(db);
+            final ExpiredItemSweeper sweeper = newSweeper(helper, 10, 100, callback);
+            final ExpiredItemSweeper.Result result = sweeper.run(0, 0, VOLUMES,
+                    new CancellationSignal());
+
+            assertThat(result.deletedCount).isEqualTo(2);
+            assertThat(result.extendedCount).isEqualTo(1);
+            assertThat(result.handledCount).isEqualTo(3);
+            assertThat(result.complete).isTrue();
+            assertThat(result.resumeDateExpires).isEqualTo(0);
+            assertThat(result.resumeId).isEqualTo(0);
+
+            // Recently expired items are deleted in a single call for their volume
+            assertThat(callback.mDeleteCalls).isEqualTo(1);
+            assertThat(callback.mDeletedIds).containsExactly(recent1, recent2);
+            assertThat(callback.mExtendedIds).containsExactly(old);
+            assertThat(queryIds(db)).containsExactly(old, future, unmounted, neverExpires);
+
+            // Extended items are out of the queue until they expire again
+            final ExpiredItemSweeper.Result again = sweeper.run(0, 0, VOLUMES,
+                    new CancellationSignal());
+            assertThat(again.handledCount).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void testRun_boundedPassesResume() throws Exception {
+        try (DatabaseHelper helper = newHelper()) {
+            final SQLiteDatabase db = helper.getWritableDatabaseForTest();
+            final long now = mNowMillis / 1000;
+            final long weekAgo = now - DateUtils.WEEK_IN_MILLIS / 1000;
+            for (int i = 0; i < 30; i++) {
+                // Several items share an expiry time, so the _id breaks ties
+                insert(db, VOLUME_EXTERNAL_PRIMARY, weekAgo - 100 + (i / 4));
+            }
+
+            // Extending keeps failing, so items stay in the queue
+            final FakeCallback callback = new FakeCallback(db);
+            callback.mFailExtend = true;
+            final ExpiredItemSweeper sweeper = newSweeper(helper, 10, 25, callback);
+
+            final ExpiredItemSweeper.Result first = sweeper.run(0, 0, VOLUMES,
+                    new CancellationSignal());
+            assertThat(first.handledCount).isEqualTo(25);
+            assertThat(first.complete).isFalse();
+
+            // The next pass picks up where the previous one stopped rather than retrying the
+            // same failing items
+            final ExpiredItemSweeper.Result second = sweeper.run(first.resumeDateExpires,
+                    first.resumeId, VOLUMES, new CancellationSignal());
+            assertThat(second.handledCount).isEqualTo(5);
+            assertThat(second.complete).isTrue();
+            assertThat(callback.mExtendAttempts).isEqualTo(30);
+            assertThat(callback.mAttemptedIds).containsNoDuplicates();
+
+            // Once exhausted, the queue is walked from the start again
+            final ExpiredItemSweeper.Result third = sweeper.run(second.resumeDateExpires,
+                    second.resumeId, VOLUMES, new CancellationSignal());
+            assertThat(third.handledCount).isEqualTo(25);
+        }
+    }
+
+    @Test
+    public void testRun_canceled() throws Exception {
+        try (DatabaseHelper helper = newHelper()) {
+            final SQLiteDatabase db = helper.getWritableDatabaseForTest();
+            insert(db, VOLUME_EXTERNAL_PRIMARY, mNowMillis / 1000 - 10);
+
+            final CancellationSignal signal = new CancellationSignal();
+            signal.cancel();
+            final ExpiredItemSweeper sweeper = newSweeper(helper, 10, 100,
+                    new FakeCallback(db));
+            final ExpiredItemSweeper.Result result = sweeper.run(0, 0, VOLUMES, signal);
+            assertThat(result.handledCount).isEqualTo(0);
+            assertThat(result.complete).isFalse();
+        }
+    }
+
+    @Test
+    public void testRun_largeLibrary() throws Exception {
+        final int count = 100_000;
+        final int expiredCount = 1_000;
+        try (DatabaseHelper helper = newHelper()) {
+            final SQLiteDatabase db = helper.getWritableDatabaseForTest();
+            final long now = mNowMillis / 1000;
+            db.beginTransaction();
+            try (SQLiteStatement insert = db.compileStatement("INSERT INTO files"
+                    + " (_data,volume_name,date_expires) VALUES (?,?,?)")) {
+                for (int i = 0; i < count; i++) {
+                    insert.bindString(1, "/storage/emulated/0/DCIM/" + TAG + i + ".jpg");
+                    insert.bindString(2, VOLUME_EXTERNAL_PRIMARY);
+                    if (i % (count / expiredCount) == 0) {
+                        insert.bindLong(3, now - 10 - (i % 7));
+                    } else {
+                        insert.bindNull(3);
+                    }
+                    insert.executeInsert();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            // Expired items are looked up through the index rather than by scanning every row
+            final StringBuilder plan = new StringBuilder();
+            try (Cursor c = db.rawQuery("EXPLAIN QUERY PLAN SELECT _id FROM files WHERE "
+                    + ExpiredItemSweeper.buildSelection(bindList(VOLUME_EXTERNAL_PRIMARY))
+                    + " ORDER BY date_expires,_id LIMIT 10",
+                    new String[] { "0", String.valueOf(now), "0", "0" })) {
+                while (c.moveToNext()) {
+                    plan.append(c.getString(c.getColumnIndexOrThrow("detail"))).append('\n');
+                }
+            }
+            assertThat(plan.toString()).contains("date_expires_index");
+            assertThat(plan.toString()).doesNotContain("TEMP B-TREE");
+
+            final FakeCallback callback = new FakeCallback(db);
+            final ExpiredItemSweeper sweeper = newSweeper(helper, 100, count, callback);
+            final Timer timer = new Timer("expired_items_sweep_" + count);
+            timer.start();
+            final ExpiredItemSweeper.Result result = sweeper.run(0, 0, VOLUMES,
+                    new CancellationSignal());
+            timer.stop();
+            timer.dumpResults();
+
+            assertThat(result.deletedCount).isEqualTo(expiredCount);
+            assertThat(result.complete).isTrue();
+            assertThat(callback.mDeleteCalls).isEqualTo(expiredCount / 100);
+            assertThat(queryIds(db)).hasSize(count - expiredCount);
+        }
+    }
+
+    private ExpiredItemSweeper newSweeper(DatabaseHelper helper, int batchSize,
+            int maxItemsPerPass, FakeCallback callback) {
+        return new ExpiredItemSweeper(helper, batchSize, maxItemsPerPass, () -> mNowMillis,
+                callback);
+    }
+
+    private DatabaseHelper newHelper() {
+        return new DatabaseHelper(mIsolatedContext, TEST_CLEAN_DB, DatabaseHelper.VERSION_LATEST,
+                false, false, Column.class, ExportedSince.class, null, null,
+                MediaProvider.MIGRATION_LISTENER, null, false);
+    }
+
+    private static long insert(SQLiteDatabase db, String volumeName, Long dateExpires) {
+        final ContentValues values = new ContentValues();
+        values.put(FileColumns.VOLUME_NAME, volumeName);
+        values.put(FileColumns.DATA,
+                "/storage/emulated/0/DCIM/" + TAG + System.nanoTime() + ".jpg");
+        values.put(FileColumns.DATE_EXPIRES, dateExpires);
+        return db.insert("files", FileColumns.DATA, values);
+    }
+
+    private static List<Long> queryIds(SQLiteDatabase db) {
+        final List<Long> ids = new ArrayList<>();
+        try (Cursor c = db.query("files", new String[] { FileColumns._ID }, null, null, null,
+                null, null)) {
+            while (c.moveToNext()) {
+                ids.add(c.getLong(0));
+            }
+        }
+        return ids;
+    }
+
+    private static class FakeCallback implements ExpiredItemSweeper.Callback {
+        private final SQLiteDatabase mDb;
+        boolean mFailExtend;
+        int mDeleteCalls;
+        int mExtendAttempts;
+        final List<Long> mDeletedIds = new ArrayList<>();
+        final List<Long> mExtendedIds = new ArrayList<>();
+        final List<Long> mAttemptedIds = new ArrayList<>();
+
+        FakeCallback(SQLiteDatabase db) {
+            mDb = db;
+        }
+
+        @Override
+        public int deleteItems(@NonNull String volumeName, @NonNull LongArray ids) {
+            mDeleteCalls++;
+            for (long id : ids.toArray()) {
+                mDeletedIds.add(id);
+            }
+            return mDb.delete("files", FileColumns._ID + " IN "
+                    + bindList(Arrays.stream(ids.toArray()).boxed().toArray()), null);
+        }
+
+        @Override
+        public boolean extendItem(@NonNull SQLiteDatabase db, @NonNull String path, long id,
+                long expiredTime, long adjustedExpiredTime) {
+            mExtendAttempts++;
+            mAttemptedIds.add(id);
+            if (mFailExtend) {
+                return false;
+            }
+            final ContentValues values = new ContentValues();
+            values.put(FileColumns.DATE_EXPIRES, expiredTime);
+            mExtendedIds.add(id);
+            return db.update("files", values, FileColumns._ID + "=" + id, null) == 1;
+        }
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media;
+
+import static com.android.providers.media.DatabaseHelper.TEST_CLEAN_DB;
+import static com.android.providers.media.FileAttributesCache.TIER_DATABASE;
+import static com.android.providers.media.FileAttributesCache.TIER_MEMORY;
+import static com.android.providers.media.FileAttributesCache.TIER_XATTR;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.provider.Column;
+import android.provider.ExportedSince;
+import android.provider.MediaStore.Files.FileColumns;
+
+import androidx.annotation.NonNull;
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.providers.media.dao.FileRow;
+import com.android.providers.media.scan.MediaScannerTest.IsolatedContext;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+
+@RunWith(AndroidJUnit4.class)
+public class FileAttributesCacheTest {
+    private static final String TAG = "FileAttributesCacheTest";
+    private static final String PATH = "/storage/emulated/0/DCIM/" + TAG + ".jpg";
+    private static final String RENAMED_PATH =
+            "/storage/emulated/0/DCIM/" + TAG + ":\uD83D\uDCF7.jpg";
+    private static final String PACKAGE = "com.example";
+
+    private Context mIsolatedContext;
+    private final FakeDatabase mDatabase = new FakeDatabase();
+    private final FakeXAttrStore mXAttrStore = new FakeXAttrStore();
+
+    @Before
+    public void setUp() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        mIsolatedContext = new IsolatedContext(context, TAG, /*asFuseThread*/ false);
+    }
+
+    @Test
+    public void testGet_tiers() throws Exception {
+        final FileAttributesCache cache = new FileAttributesCache(10, mDatabase, mXAttrStore,
+                false);
+        mDatabase.put(PATH, attributes(1, false, false, PACKAGE));
+
+        assertThat(cache.get(PATH).getOwnerPackageName()).isEqualTo(PACKAGE);
+        assertThat(cache.get(PATH.toUpperCase(Locale.ROOT)).getId()).isEqualTo(1);
+        assertThat(cache.getLookupCount(TIER_DATABASE)).isEqualTo(1);
+        assertThat(cache.getLookupCount(TIER_MEMORY)).isEqualTo(1);
+
+        cache.invalidate(PATH);
+        mXAttrStore.write(PATH, attributes(1, false, false, null));
+        assertThat(cache.get(PATH).getId()).isEqualTo(1);
+        assertThat(cache.getLookupCount(TIER_XATTR)).isEqualTo(1);
+        assertThat(mDatabase.mLoads).isEqualTo(1);
+    }
+
+    @Test
+    public void testGet_xattrNotUsedWhenOwnershipIsChecked() throws Exception {
+        final FileAttributesCache cache = new FileAttributesCache(10, mDatabase, mXAttrStore,
+                false);
+        mDatabase.put(PATH, attributes(1, true, false, PACKAGE));
+        mXAttrStore.write(PATH, attributes(1, true, false, null));
+
+        assertThat(cache.get(PATH).getOwnerPackageName()).isEqualTo(PACKAGE);
+        assertThat(cache.getLookupCount(TIER_XATTR)).isEqualTo(0);
+        assertThat(cache.getLookupCount(TIER_DATABASE)).isEqualTo(1);
+    }
+
+    @Test
+    public void testGet_missing() throws Exception {
+        final FileAttributesCache cache = new FileAttributesCache(10, mDatabase, null, false);
+        assertThrows(FileNotFoundException.class, () -> cache.get(PATH));
+    }
+
+    @Test
+    public void testOnFilesChanged_invalidatesAfterCommit() throws Exception {
+        final FileAttributesCache cache = new FileAttributesCache(10, mDatabase, mXAttrStore,
+                Runnable::run, false);
+        mDatabase.put(PATH, attributes(1, false, false, PACKAGE));
+        cache.get(PATH);
+
+        final FileRow oldRow = row(1, false);
+        final FileRow newRow = row(1, true);
+        try (DatabaseHelper helper = newHelper()) {
+            helper.runWithTransaction((db) -> {
+                cache.onFilesChanged(helper, oldRow, newRow);
+                // Other connections still see the old row until we commit
+                try {
+                    assertThat(cache.get(PATH).isTrashed()).isFalse();
+                } catch (FileNotFoundException e) {
+                    throw new AssertionError(e);
+                }
+                assertThat(mXAttrStore.mAttributes).doesNotContainKey(PATH);
+                return 0;
+            });
+        }
+        mDatabase.put(PATH, attributes(1, false, true, PACKAGE));
+
+        assertThat(cache.get(PATH).isTrashed()).isTrue();
+        assertThat(mXAttrStore.mAttributes.get(PATH).isTrashed()).isTrue();
+    }
+
+    @Test
+    public void testOnFilesChanged_delete() throws Exception {
+        final FileAttributesCache cache = new FileAttributesCache(10, mDatabase, mXAttrStore,
+                Runnable::run, false);
+        mDatabase.put(PATH, attributes(1, false, false, PACKAGE));
+        mXAttrStore.write(PATH, attributes(1, false, false, null));
+        cache.get(PATH);
+
+        try (DatabaseHelper helper = newHelper()) {
+            cache.onFilesChanged(helper, row(1, false), null);
+        }
+        mDatabase.mAttributes.clear();
+
+        assertThat(mXAttrStore.mAttributes).doesNotContainKey(PATH);
+        assertThrows(FileNotFoundException.class, () -> cache.get(PATH));
+    }
+
+    @Test
+    public void testOnFilesChanged_triggers() throws Exception {
+        final ManualExecutor executor = new ManualExecutor();
+        final FileAttributesCache cache = new FileAttributesCache(10, mDatabase, mXAttrStore,
+                executor, false);
+        final DatabaseHelper.OnFilesChangeListener listener =
+                new DatabaseHelper.OnFilesChangeListener() {
+            @Override
+            public void onInsert(@NonNull DatabaseHelper helper, @NonNull FileRow insertedRow) {
+                cache.onFilesChanged(helper, null, insertedRow);
+            }
+
+            @Override
+            public void onUpdate(@NonNull DatabaseHelper helper, @NonNull FileRow oldRow,
+                    @NonNull FileRow newRow) {
+                cache.onFilesChanged(helper, oldRow, newRow);
+            }
+
+            @Override
+            public void onDelete(@NonNull DatabaseHelper helper, @NonNull FileRow deletedRow) {
+                cache.onFilesChanged(helper, deletedRow, null);
+            }
+        };
+
+        try (DatabaseHelper helper = newHelper(listener)) {
+            final ContentValues values = new ContentValues();
+            values.put(FileColumns.DATA, PATH);
+            values.put(FileColumns.VOLUME_NAME, "external_primary");
+            values.put(FileColumns.MEDIA_TYPE, FileColumns.MEDIA_TYPE_IMAGE);
+            values.put(FileColumns.OWNER_PACKAGE_NAME, PACKAGE);
+            final long id = helper.runWithTransaction((db) -> {
+                return db.insert("files", null, values);
+            });
+
+            // Xattrs are only written by the executor, and aren't trusted until then
+            assertThat(mXAttrStore.mAttributes).isEmpty();
+            mXAttrStore.write(PATH, attributes(id + 1, false, false, null));
+            mDatabase.put(PATH, attributes(id, false, false, PACKAGE));
+            assertThat(cache.get(PATH).getId()).isEqualTo(id);
+            assertThat(cache.getLookupCount(TIER_XATTR)).isEqualTo(0);
+            assertThat(executor.runAll()).isEqualTo(1);
+            assertThat(mXAttrStore.mAttributes.get(PATH).getId()).isEqualTo(id);
+
+            // Cache something stale for the new path, then rename onto it
+            mDatabase.put(RENAMED_PATH, attributes(id + 1, false, false, PACKAGE));
+            assertThat(cache.get(RENAMED_PATH).getId()).isEqualTo(id + 1);
+            helper.runWithTransaction((db) -> {
+                final ContentValues renamed = new ContentValues();
+                renamed.put(FileColumns.DATA, RENAMED_PATH);
+                return db.update("files", renamed, FileColumns._ID + "=" + id, null);
+            });
+            mDatabase.mAttributes.remove(PATH);
+            mDatabase.put(RENAMED_PATH, attributes(id, false, false, PACKAGE));
+
+            assertThat(cache.get(RENAMED_PATH).getId()).isEqualTo(id);
+            assertThat(executor.runAll()).isEqualTo(1);
+            assertThat(mXAttrStore.mAttributes).doesNotContainKey(PATH);
+            assertThat(mXAttrStore.mAttributes.get(RENAMED_PATH).getId()).isEqualTo(id);
+        }
+    }
+
+    @Test
+    public void testVerify_repairsStaleTier() throws Exception {
+        final FileAttributesCache cache = new FileAttributesCache(10, mDatabase, mXAttrStore,
+                true);
+        mDatabase.put(PATH, attributes(2, false, false, PACKAGE));
+        mXAttrStore.write(PATH, attributes(1, false, false, null));
+
+        assertThat(cache.get(PATH).getId()).isEqualTo(2);
+        assertThat(cache.getMismatchCount()).isEqualTo(1);
+        assertThat(mXAttrStore.mAttributes.get(PATH).getId()).isEqualTo(2);
+
+        assertThat(cache.get(PATH).getId()).isEqualTo(2);
+        assertThat(cache.getMismatchCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testDump() throws Exception {
+        final FileAttributesCache cache = new FileAttributesCache(10, mDatabase, null, false);
+        mDatabase.put(PATH, attributes(1, false, false, PACKAGE));
+        cache.get(PATH);
+        cache.get(PATH);
+
+        final StringWriter out = new StringWriter();
+        cache.dump(new PrintWriter(out));
+        assertThat(out.toString()).contains("memory: count=1 p50=");
+        assertThat(out.toString()).contains("database: count=1 p50=");
+        assertThat(out.toString()).contains("xattr: count=0");
+    }
+
+    private DatabaseHelper newHelper() {
+        return newHelper(null);
+    }
+
+    private DatabaseHelper newHelper(DatabaseHelper.OnFilesChangeListener listener) {
+        return new DatabaseHelper(mIsolatedContext, TEST_CLEAN_DB, DatabaseHelper.VERSION_LATEST,
+                false, false, Column.class, ExportedSince.class, null, listener,
+                MediaProvider.MIGRATION_LISTENER, null, false);
+    }
+
+    private static FileAccessAttributes attributes(long id, boolean pending, boolean trashed,
+            String owner) {
+        return new FileAccessAttributes(id, FileColumns.MEDIA_TYPE_IMAGE, pending, trashed, -1,
+                owner);
+    }
+
+    private static FileRow row(long id, boolean trashed) {
+        return FileRow.newBuilder(id).setPath(PATH).setOwnerPackageName(PACKAGE)
+                .setMediaType(FileColumns.MEDIA_TYPE_IMAGE).setIsTrashed(trashed).build();
+    }
+
+    private static class FakeDatabase implements FileAttributesCache.Loader {
+        final Map<String, FileAccessAttributes> mAttributes = new HashMap<>();
+        int mLoads;
+
+        void put(String path, FileAccessAttributes attributes) {
+            mAttributes.put(path, attributes);
+        }
+
+        @Override
+        public FileAccessAttributes load(@NonNull String path) throws FileNotFoundException {
+            mLoads++;
+            final FileAccessAttributes attributes = mAttributes.get(path);
+            if (attributes == null) {
+                throw new FileNotFoundException(path);
+            }
+            return attributes;
+        }
+    }
+
+    private static class ManualExecutor implements Executor {
+        private final List<Runnable> mTasks = new ArrayList<>();
+
+        @Override
+        public void execute(@NonNull Runnable command) {
+            mTasks.add(command);
+        }
+
+        /**
+         * Runs all pending tasks, returning how many there were.
+         */
+        int runAll() {
+            final List<Runnable> tasks = new ArrayList<>(mTasks);
+            mTasks.clear();
+            for (Runnable task : tasks) {
+                task.run();
+            }
+            return tasks.size();
+        }
+    }
+
+    private static class FakeXAttrStore implements FileAttributesCache.XAttrStore {
+        final Map<String, FileAccessAttributes> mAttributes = new HashMap<>();
+
+        @Override
+        public Optional<FileAccessAttributes> read(@NonNull String path) {
+            return Optional.ofNullable(mAttributes.get(path));
+        }
+
+        @Override
+        public void write(@NonNull String path, @NonNull FileAccessAttributes attributes) {
+            // Owner package isn't persisted in the xattr
+            mAttributes.put(path, new FileAccessAttributes(attributes.getId(),
+                    attributes.getMediaType(), attributes.isPending(), attributes.isTrashed(),
+                    attributes.getOwnerId(), null));
+        }
+
+        @Override
+        public void remove(@NonNull String path) {
+            mAttributes.remove(path);
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media;
+
+import static com.android.providers.media.DatabaseHelper.TEST_CLEAN_DB;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+import android.provider.Column;
+import android.provider.ExportedSince;
+import android.provider.MediaStore.Files.FileColumns;
+
+import androidx.annotation.NonNull;
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.providers.media.dao.FileRow;
+import com.android.providers.media.scan.MediaScannerTest.IsolatedContext;
+import com.android.providers.media.util.ForegroundThread;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+@RunWith(AndroidJUnit4.class)
+public class FileChangeBufferTest {
+    private static final String TAG = "FileChangeBufferTest";
+
+    private DatabaseHelper mHelper;
+    private final ManualExecutor mExecutor = new ManualExecutor();
+    private final List<List<FileChangeBuffer.Change>> mBatches = new ArrayList<>();
+    private final FileChangeBuffer mBuffer = new FileChangeBuffer((helper, changes) -> {
+        assertThat(helper).isSameInstanceAs(mHelper);
+        mBatches.add(changes);
+    }, mExecutor);
+
+    @Before
+    public void setUp() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final Context isolatedContext = new IsolatedContext(context, TAG,
+                /*asFuseThread*/ false);
+        mHelper = new DatabaseHelper(isolatedContext, TEST_CLEAN_DB,
+                DatabaseHelper.VERSION_LATEST, false, false, Column.class, ExportedSince.class,
+                null, null, MediaProvider.MIGRATION_LISTENER, null, false);
+    }
+
+    @After
+    public void tearDown() {
+        if (mHelper != null) {
+            mHelper.close();
+        }
+    }
+
+    @Test
+    public void testDrain_mergesPerId() throws Exception {
+        final FileRow image = row(1, FileColumns.MEDIA_TYPE_IMAGE, true, false);
+        final FileRow video = row(1, FileColumns.MEDIA_TYPE_VIDEO, true, false);
+        final FileRow published = row(1, FileColumns.MEDIA_TYPE_VIDEO, false, false);
+        final FileRow audio = row(2, FileColumns.MEDIA_TYPE_AUDIO, false, false);
+        final FileRow before = row(3, FileColumns.MEDIA_TYPE_IMAGE, false, false);
+        final FileRow trashed = row(3, FileColumns.MEDIA_TYPE_IMAGE, false, true);
+        final FileRow deleted = row(4, FileColumns.MEDIA_TYPE_IMAGE, false, false);
+
+        mBuffer.onInsert(mHelper, image);
+        mBuffer.onUpdate(mHelper, image, video);
+        mBuffer.onUpdate(mHelper, before, trashed);
+        mBuffer.onInsert(mHelper, audio);
+        mBuffer.onUpdate(mHelper, video, published);
+        mBuffer.onDelete(mHelper, audio);
+        mBuffer.onDelete(mHelper, deleted);
+
+        // Nothing happens until the worker runs, and then it runs once for everything
+        assertThat(mBuffer.getQueueLength()).isEqualTo(7);
+        assertThat(mBatches).isEmpty();
+        assertThat(mExecutor.runAll()).isEqualTo(1);
+        assertThat(mBuffer.getQueueLength()).isEqualTo(0);
+        assertThat(mBatches).hasSize(1);
+
+        final List<FileChangeBuffer.Change> changes = mBatches.get(0);
+        assertThat(changes).hasSize(4);
+
+        final FileChangeBuffer.Change first = changes.get(0);
+        assertThat(first.getId()).isEqualTo(1);
+        assertThat(first.isInserted()).isTrue();
+        assertThat(first.isDeleted()).isFalse();
+        assertThat(first.isMediaTypeChanged()).isTrue();
+        assertThat(first.getLastRow()).isSameInstanceAs(published);
+
+        final FileChangeBuffer.Change third = changes.get(1);
+        assertThat(third.getId()).isEqualTo(3);
+        assertThat(third.isInserted()).isFalse();
+        assertThat(third.isDeleted()).isFalse();
+        assertThat(third.isMediaTypeChanged()).isFalse();
+        assertThat(third.getOldRow()).isSameInstanceAs(before);
+        assertThat(third.getLastRow()).isSameInstanceAs(trashed);
+
+        final FileChangeBuffer.Change second = changes.get(2);
+        assertThat(second.getId()).isEqualTo(2);
+        assertThat(second.isInserted()).isTrue();
+        assertThat(second.isDeleted()).isTrue();
+        assertThat(second.getLastRow()).isSameInstanceAs(audio);
+
+        final FileChangeBuffer.Change fourth = changes.get(3);
+        assertThat(fourth.getId()).isEqualTo(4);
+        assertThat(fourth.isInserted()).isFalse();
+        assertThat(fourth.isDeleted()).isTrue();
+        assertThat(fourth.getOldRow()).isSameInstanceAs(deleted);
+    }
+
+    @Test
+    public void testDrain_insertAfterDelete() throws Exception {
+        final FileRow oldRow = row(1, FileColumns.MEDIA_TYPE_IMAGE, false, false);
+        final FileRow newRow = row(1, FileColumns.MEDIA_TYPE_AUDIO, false, false);
+
+        mBuffer.onDelete(mHelper, oldRow);
+        mBuffer.onInsert(mHelper, newRow);
+        mExecutor.runAll();
+
+        // Both side effects are kept, in order
+        final List<FileChangeBuffer.Change> changes = mBatches.get(0);
+        assertThat(changes).hasSize(2);
+        assertThat(changes.get(0).isDeleted()).isTrue();
+        assertThat(changes.get(0).getLastRow()).isSameInstanceAs(oldRow);
+        assertThat(changes.get(1).isInserted()).isTrue();
+        assertThat(changes.get(1).getLastRow()).isSameInstanceAs(newRow);
+    }
+
+    @Test
+    public void testTransaction() throws Exception {
+        mHelper.runWithTransaction((db) -> {
+            for (int i = 1; i <= 1000; i++) {
+                mBuffer.onInsert(mHelper, row(i, FileColumns.MEDIA_TYPE_IMAGE, true, false));
+                mBuffer.onUpdate(mHelper, row(i, FileColumns.MEDIA_TYPE_IMAGE, true, false),
+                        row(i, FileColumns.MEDIA_TYPE_IMAGE, false, false));
+            }
+            // Events are held by the transaction until it has finished
+            assertThat(mBuffer.getQueueLength()).isEqualTo(0);
+            return null;
+        });
+        ForegroundThread.waitForIdle();
+
+        assertThat(mBuffer.getQueueLength()).isEqualTo(2000);
+        assertThat(mExecutor.runAll()).isEqualTo(1);
+        assertThat(mBatches).hasSize(1);
+        assertThat(mBatches.get(0)).hasSize(1000);
+        assertThat(mBuffer.getQueueLength()).isEqualTo(0);
+    }
+
+    @Test
+    public void testTransaction_rolledBack() throws Exception {
+        mHelper.beginTransaction();
+        try {
+            mBuffer.onInsert(mHelper, row(1, FileColumns.MEDIA_TYPE_IMAGE, false, false));
+        } finally {
+            mHelper.endTransaction();
+        }
+        ForegroundThread.waitForIdle();
+
+        assertThat(mBuffer.getQueueLength()).isEqualTo(0);
+        assertThat(mExecutor.runAll()).isEqualTo(0);
+        assertThat(mBatches).isEmpty();
+    }
+
+    @Test
+    public void testDump() throws Exception {
+        final FileRow row = row(1, FileColumns.MEDIA_TYPE_IMAGE, false, false);
+        mBuffer.onInsert(mHelper, row);
+        mBuffer.onDelete(mHelper, row);
+
+        StringWriter out = new StringWriter();
+        mBuffer.dump(new PrintWriter(out));
+        assertThat(out.toString()).contains("queued=2 events=2 changes=0");
+        assertThat(out.toString()).contains("drain: count=0");
+
+        mExecutor.runAll();
+        out = new StringWriter();
+        mBuffer.dump(new PrintWriter(out));
+        assertThat(out.toString()).contains("queued=0 events=2 changes=1");
+        assertThat(out.toString()).contains("drain: count=2 p50=");
+    }
+
+    private static FileRow row(long id, int mediaType, boolean pending, boolean trashed) {
+        return FileRow.newBuilder(id)
+                .setVolumeName("external_primary")
+                .setPath("/storage/emulated/0/DCIM/" + TAG + id)
+                .setMediaType(mediaType)
+                .setIsPending(pending)
+                .setIsTrashed(trashed)
+                .build();
+    }
+
+    private static class ManualExecutor implements Executor {
+        private final List<Runnable> mTasks = new ArrayList<>();
+
+        @Override
+        public synchronized void execute(@NonNull Runnable command) {
+            mTasks.add(command);
+        }
+
+        /**
+         * Runs all pending tasks, returning how many there were.
+         */
+        int runAll() {
+            final List<Runnable> tasks;
+            synchronized (this) {
+                tasks = new ArrayList<>(mTasks);
+                mTasks.clear();
+            }
+            for (Runnable task : tasks) {
+                task.run();
+            }
+            return tasks.size();
+        }
+    }
+}
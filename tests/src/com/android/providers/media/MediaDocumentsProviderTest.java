@@ -20,8 +20,12 @@ import static com.android.providers.media.MediaDocumentsProvider.AUTHORITY;
 import static com.android.providers.media.scan.MediaScanner.REASON_UNKNOWN;
 import static com.android.providers.media.scan.MediaScannerTest.stage;
 
+import static com.google.common.truth.Truth.assertThat;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import android.Manifest;
@@ -36,6 +40,7 @@ import android.provider.DocumentsContract.Document;
 import android.provider.DocumentsContract.Root;
 import android.provider.MediaStore;
 import android.provider.MediaStore.Files.FileColumns;
+import android.text.format.DateUtils;
 import android.util.Pair;
 
 import androidx.test.InstrumentationRegistry;
@@ -224,7 +229,8 @@ public class MediaDocumentsProviderTest {
         final String columnLastModified = "lastModified";
         final String columnFileSize = "fileSize";
         final String resultSelection =
-                "display LIKE ? AND lastModified > 1000 AND fileSize > 1000000 AND (mimeType LIKE"
+                "_id IN (SELECT docid FROM files_fts WHERE files_fts MATCH ?)"
+                        + " AND lastModified > 1000 AND fileSize > 1000000 AND (mimeType LIKE"
                         + " ? OR mimeType LIKE ? OR mimeType IN (?,?))";
 
         final Pair<String, String[]> selectionPair = MediaDocumentsProvider.buildSearchSelection(
@@ -233,13 +239,105 @@ public class MediaDocumentsProviderTest {
 
         assertEquals(resultSelection, selectionPair.first);
         assertEquals(5, selectionPair.second.length);
-        assertEquals("%" + displayName + "%", selectionPair.second[0]);
+        assertEquals(displayName + "*", selectionPair.second[0]);
         assertMimeType(mimeTypes[1], selectionPair.second[1]);
         assertMimeType(mimeTypes[3], selectionPair.second[2]);
         assertMimeType(mimeTypes[0], selectionPair.second[3]);
         assertMimeType(mimeTypes[2], selectionPair.second[4]);
     }
 
+    @Test
+    public void testBuildSearchSelection_noWords() {
+        final Pair<String, String[]> selectionPair = MediaDocumentsProvider.buildSearchSelection(
+                "--", null, -1, -1, "display", "mimeType", "lastModified", "fileSize");
+
+        assertEquals("display LIKE ?", selectionPair.first);
+        assertEquals("%--%", selectionPair.second[0]);
+    }
+
+    @Test
+    public void testBuildDisplayNameMatch() {
+        assertEquals("holiday* photo* 2022*",
+                MediaDocumentsProvider.buildDisplayNameMatch("Holiday photo-2022"));
+        assertEquals("or* near*", MediaDocumentsProvider.buildDisplayNameMatch("\"OR\" NEAR(*"));
+        assertEquals("café*", MediaDocumentsProvider.buildDisplayNameMatch(" Café "));
+        assertNull(MediaDocumentsProvider.buildDisplayNameMatch("*.*"));
+    }
+
+    @Test
+    public void testSearch() throws Exception {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final Context isolatedContext = new IsolatedContext(context, "modern",
+                /*asFuseThread*/ false);
+        final ContentResolver resolver = isolatedContext.getContentResolver();
+
+        final File dir = new File(isolatedContext.getExternalMediaDirs()[0],
+                "test_" + System.nanoTime());
+        dir.mkdirs();
+        stage(R.raw.test_image, new File(dir, "Holiday_Beach.jpg"));
+        stage(R.raw.test_image, new File(dir, "holiday-mountains.jpg"));
+        stage(R.raw.test_image, new File(dir, "workday.jpg"));
+        new ModernMediaScanner(isolatedContext).scanDirectory(dir, REASON_UNKNOWN);
+
+        try (Cursor c = search(resolver, "holi", -1)) {
+            assertEquals(2, c.getCount());
+        }
+        try (Cursor c = search(resolver, "day", -1)) {
+            // Words are matched by prefix rather than anywhere in the name
+            assertEquals(0, c.getCount());
+        }
+        try (Cursor c = search(resolver, "holi", 1)) {
+            assertEquals(1, c.getCount());
+            assertThat(c.getExtras().getStringArray(ContentResolver.EXTRA_HONORED_ARGS))
+                    .asList().contains(ContentResolver.QUERY_ARG_LIMIT);
+        }
+    }
+
+    @Test
+    public void testQueryRecentDocuments() throws Exception {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final Context isolatedContext = new IsolatedContext(context, "modern",
+                /*asFuseThread*/ false);
+        final ContentResolver resolver = isolatedContext.getContentResolver();
+
+        final File dir = new File(isolatedContext.getExternalMediaDirs()[0],
+                "test_" + System.nanoTime());
+        dir.mkdirs();
+        // Modified in the future so they come before anything else in the library
+        final long now = System.currentTimeMillis() + DateUtils.DAY_IN_MILLIS;
+        for (int i = 0; i < 3; i++) {
+            final File file = new File(dir, "recent" + i + ".jpg");
+            stage(R.raw.test_image, file);
+            file.setLastModified(now + i * DateUtils.MINUTE_IN_MILLIS);
+        }
+        new ModernMediaScanner(isolatedContext).scanDirectory(dir, REASON_UNKNOWN);
+
+        final Uri uri = DocumentsContract.buildRecentDocumentsUri(AUTHORITY,
+                MediaDocumentsProvider.TYPE_IMAGES_ROOT);
+        final Bundle queryArgs = new Bundle();
+        queryArgs.putInt(ContentResolver.QUERY_ARG_LIMIT, 2);
+        try (Cursor c = resolver.query(uri, null, queryArgs, null)) {
+            assertEquals(2, c.getCount());
+            assertThat(c.getExtras().getStringArray(ContentResolver.EXTRA_HONORED_ARGS))
+                    .asList().contains(ContentResolver.QUERY_ARG_LIMIT);
+            final int nameIndex = c.getColumnIndexOrThrow(Document.COLUMN_DISPLAY_NAME);
+            assertTrue(c.moveToNext());
+            assertEquals("recent2.jpg", c.getString(nameIndex));
+            assertTrue(c.moveToNext());
+            assertEquals("recent1.jpg", c.getString(nameIndex));
+        }
+    }
+
+    private static Cursor search(ContentResolver resolver, String displayName, int limit) {
+        final Bundle queryArgs = new Bundle();
+        queryArgs.putString(DocumentsContract.QUERY_ARG_DISPLAY_NAME, displayName);
+        if (limit >= 0) {
+            queryArgs.putInt(ContentResolver.QUERY_ARG_LIMIT, limit);
+        }
+        return resolver.query(DocumentsContract.buildSearchDocumentsUri(AUTHORITY,
+                MediaDocumentsProvider.TYPE_IMAGES_ROOT, displayName), null, queryArgs, null);
+    }
+
     @Test
     public void testAddDocumentSelection() {
         final String selection = "";
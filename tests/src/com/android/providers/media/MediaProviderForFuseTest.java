@@ -24,12 +24,14 @@ import static com.android.providers.media.MediaProvider.DIRECTORY_ACCESS_FOR_DEL
 import android.Manifest;
 import android.app.UiAutomation;
 import android.content.ContentResolver;
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
 import android.os.Bundle;
 import android.os.Environment;
 import android.provider.MediaStore;
+import android.provider.MediaStore.MediaColumns;
 import android.system.OsConstants;
 import android.util.Log;
 
@@ -38,6 +40,7 @@ import androidx.test.InstrumentationRegistry;
 import androidx.test.runner.AndroidJUnit4;
 
 import com.android.providers.media.scan.MediaScannerTest.IsolatedContext;
+import com.android.providers.media.util.FileUtils;
 
 import com.google.common.io.ByteStreams;
 import com.google.common.truth.Truth;
@@ -98,6 +101,28 @@ public class MediaProviderForFuseTest {
                 .getUiAutomation().dropShellPermissionIdentity();
     }
 
+    @Test
+    public void testGetFilesInDirectoryForFuse_usesRelativePathIndex() throws Exception {
+        final String sql = sMediaProvider.buildFilesInDirectoryQueryForFuse(
+                sTestDir.getPath(), sTestUid);
+        // The caller can only see its own items, so the listing is filtered by owner
+        Truth.assertThat(sql).contains(MediaColumns.OWNER_PACKAGE_NAME);
+        Truth.assertThat(sql).contains(MediaColumns.IS_PENDING);
+        Truth.assertThat(sql).contains(MediaColumns.IS_TRASHED);
+
+        final DatabaseHelper helper = sMediaProvider.getDatabaseHelper(
+                DatabaseHelper.EXTERNAL_DATABASE_NAME).get();
+        final String[] args = new String[] {
+                FileUtils.extractRelativePathWithDisplayName(sTestDir.getPath()) };
+        final String detail = helper.runWithoutTransaction((db) -> {
+            try (Cursor c = db.rawQuery("EXPLAIN QUERY PLAN " + sql, args)) {
+                Truth.assertThat(c.moveToFirst()).isTrue();
+                return c.getString(c.getColumnIndexOrThrow("detail"));
+            }
+        });
+        Truth.assertThat(detail).contains("relative_path_index");
+    }
+
     @Test
     public void testTypical() throws Exception {
         final File file = new File(sTestDir, "test" + System.nanoTime() + ".jpg");
@@ -137,6 +162,42 @@ public class MediaProviderForFuseTest {
                 sTestDir.getPath(), sTestUid))).doesNotContain(renamed.getName());
     }
 
+    @Test
+    public void testFileLookupBatch() throws Exception {
+        final String[] paths = new String[] {
+                new File(sTestDir, "test" + System.nanoTime() + ".jpg").getPath(),
+                new File(sTestDir, "test" + System.nanoTime() + ".mp4").getPath(),
+        };
+
+        final FileLookupBatchResult batch = sMediaProvider.onFileLookupBatchForFuse(paths,
+                sTestUid, 0 /* tid */);
+        Truth.assertThat(batch.size()).isEqualTo(paths.length);
+        for (int i = 0; i < paths.length; i++) {
+            final FileLookupResult expected = sMediaProvider.onFileLookupForFuse(paths[i],
+                    sTestUid, 0 /* tid */);
+            final FileLookupResult actual = batch.get(i);
+            Truth.assertThat(actual).isNotNull();
+            Truth.assertThat(actual.transforms).isEqualTo(expected.transforms);
+            Truth.assertThat(actual.transformsReason).isEqualTo(expected.transformsReason);
+            Truth.assertThat(actual.uid).isEqualTo(expected.uid);
+            Truth.assertThat(actual.transformsComplete).isEqualTo(expected.transformsComplete);
+            Truth.assertThat(actual.transformsSupported).isEqualTo(expected.transformsSupported);
+            Truth.assertThat(actual.ioPath).isEqualTo(expected.ioPath);
+        }
+    }
+
+    @Test
+    public void testFileLookupBatchResult_failedEntry() throws Exception {
+        final FileLookupBatchResult batch = FileLookupBatchResult.pack(new FileLookupResult[] {
+                new FileLookupResult(0, sTestUid, "/io/path"),
+                null,
+        });
+        Truth.assertThat(batch.size()).isEqualTo(2);
+        Truth.assertThat(batch.get(0).uid).isEqualTo(sTestUid);
+        Truth.assertThat(batch.get(0).ioPath).isEqualTo("/io/path");
+        Truth.assertThat(batch.get(1)).isNull();
+    }
+
     @Test
     public void testRenameDirectory() throws Exception {
         File file = createSubdirWithOneFile(sTestDir);
@@ -157,6 +218,73 @@ public class MediaProviderForFuseTest {
         }
     }
 
+    @Test
+    public void testRenameDirectory_updatesDerivedColumns() throws Exception {
+        final File oldDir = new File(sTestDir, "tree" + System.nanoTime());
+        final File nested = createSubdirWithOneFile(oldDir);
+        final File direct = new File(oldDir, "test" + System.nanoTime() + ".jpg");
+        Truth.assertThat(sMediaProvider.insertFileIfNecessaryForFuse(
+                direct.getPath(), sTestUid)).isEqualTo(0);
+        Truth.assertThat(direct.createNewFile()).isTrue();
+
+        final File renamedDir = new File(sTestDir, "renamed" + System.nanoTime());
+        Truth.assertThat(sMediaProvider.renameForFuse(
+                oldDir.getPath(), renamedDir.getPath(), sTestUid)).isEqualTo(0);
+
+        assertDerivedColumnsAfterRename(renamedDir, nested, direct);
+    }
+
+    @Test
+    public void testRenameDirectory_nonBmpName() throws Exception {
+        // Supplementary characters are two UTF-16 code units but a single SQLite character
+        final File oldDir = new File(sTestDir, "tree\uD83D\uDCF7" + System.nanoTime());
+        final File nested = createSubdirWithOneFile(oldDir);
+        final File direct = new File(oldDir, "test" + System.nanoTime() + ".jpg");
+        Truth.assertThat(sMediaProvider.insertFileIfNecessaryForFuse(
+                direct.getPath(), sTestUid)).isEqualTo(0);
+        Truth.assertThat(direct.createNewFile()).isTrue();
+
+        final File renamedDir = new File(sTestDir,
+                "renamed\uD83C\uDF04\uD83C\uDF05" + System.nanoTime());
+        Truth.assertThat(sMediaProvider.renameForFuse(
+                oldDir.getPath(), renamedDir.getPath(), sTestUid)).isEqualTo(0);
+
+        assertDerivedColumnsAfterRename(renamedDir, nested, direct);
+    }
+
+    /**
+     * Asserts that the entries of {@code nested}, a file in a subdirectory of a renamed
+     * directory, and {@code direct}, a file right in it, match their new paths in
+     * {@code renamedDir}.
+     */
+    private static void assertDerivedColumnsAfterRename(File renamedDir, File nested,
+            File direct) {
+        final String nestedPath = renamedDir.getPath() + "/"
+                + nested.getParentFile().getName() + "/" + nested.getName();
+        final String directPath = renamedDir.getPath() + "/" + direct.getName();
+        for (String path : new String[] { nestedPath, directPath }) {
+            final ContentValues expected = new ContentValues();
+            expected.put(MediaColumns.DATA, path);
+            FileUtils.computeValuesFromData(expected, /* isForFuse */ true);
+
+            try (Cursor cursor = sIsolatedResolver.query(
+                    MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
+                    new String[] { MediaColumns.RELATIVE_PATH, MediaColumns.BUCKET_ID,
+                            MediaColumns.BUCKET_DISPLAY_NAME, MediaColumns.DISPLAY_NAME },
+                    MediaColumns.DATA + "=?", new String[] { path }, null)) {
+                Truth.assertThat(cursor.moveToFirst()).isTrue();
+                Truth.assertThat(cursor.getString(0))
+                        .isEqualTo(expected.getAsString(MediaColumns.RELATIVE_PATH));
+                Truth.assertThat(cursor.getLong(1))
+                        .isEqualTo(expected.getAsLong(MediaColumns.BUCKET_ID));
+                Truth.assertThat(cursor.getString(2))
+                        .isEqualTo(expected.getAsString(MediaColumns.BUCKET_DISPLAY_NAME));
+                Truth.assertThat(cursor.getString(3))
+                        .isEqualTo(expected.getAsString(MediaColumns.DISPLAY_NAME));
+            }
+        }
+    }
+
     @Test
     public void testRenameDirectory_WhenParentDirectoryIsHidden() throws Exception {
         // Create parent dir with nomedia file
@@ -16,6 +16,7 @@
 
 package com.android.providers.media;
 
+import static com.android.providers.media.DatabaseHelper.TEST_CLEAN_DB;
 import static com.android.providers.media.scan.MediaScannerTest.stage;
 import static com.android.providers.media.util.FileUtils.extractDisplayName;
 import static com.android.providers.media.util.FileUtils.extractRelativePath;
@@ -38,6 +39,7 @@ import static org.junit.Assert.fail;
 import android.Manifest;
 import android.content.ContentProviderClient;
 import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
@@ -47,13 +49,18 @@ import android.content.pm.PackageManager;
 import android.content.pm.ProviderInfo;
 import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.CancellationSignal;
 import android.os.Environment;
 import android.os.UserHandle;
+import android.provider.Column;
+import android.provider.ExportedSince;
 import android.provider.MediaStore;
 import android.provider.MediaStore.Audio.AudioColumns;
 import android.provider.MediaStore.Files.FileColumns;
@@ -64,6 +71,7 @@ import android.system.Os;
 import android.system.OsConstants;
 import android.util.ArrayMap;
 import android.util.Log;
+import android.util.Pair;
 
 import androidx.test.InstrumentationRegistry;
 import androidx.test.filters.SdkSuppress;
@@ -73,6 +81,7 @@ import com.android.providers.media.MediaProvider.FallbackException;
 import com.android.providers.media.MediaProvider.VolumeArgumentException;
 import com.android.providers.media.MediaProvider.VolumeNotFoundException;
 import com.android.providers.media.scan.MediaScannerTest.IsolatedContext;
+import com.android.providers.media.tests.utils.Timer;
 import com.android.providers.media.util.FileUtils;
 import com.android.providers.media.util.FileUtilsTest;
 import com.android.providers.media.util.SQLiteQueryBuilder;
@@ -1596,6 +1605,289 @@ public class MediaProviderTest {
         }
     }
 
+    @Test
+    public void testRedactionForRepeatedAndMixedVolumeUris() throws Exception {
+        final File dir = Environment
+                .getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
+        final File file = stage(R.raw.lg_g4_iso_800_jpg,
+                new File(dir, "test" + System.nanoTime() + ".jpg"));
+
+        try (ContentProviderClient cpc = sIsolatedResolver
+                .acquireContentProviderClient(MediaStore.AUTHORITY)) {
+            final MediaProvider mp = (MediaProvider) cpc.getLocalContentProvider();
+            final long id = ContentUris.parseId(MediaStore.scanFile(sIsolatedResolver, file));
+            final List<Uri> uris = new ArrayList<>();
+            uris.add(MediaStore.Images.Media.getContentUri(MediaStore.VOLUME_EXTERNAL, id));
+            uris.add(MediaStore.Images.Media.getContentUri(
+                    MediaStore.VOLUME_EXTERNAL_PRIMARY, id));
+            uris.add(MediaStore.Images.Media.getContentUri(MediaStore.VOLUME_EXTERNAL, id));
+
+            final List<Uri> redactedUris = mp.getRedactedUri(uris);
+            assertEquals(uris.size(), redactedUris.size());
+            final String redactedId = redactedUris.get(0).getLastPathSegment();
+            for (int i = 0; i < uris.size(); i++) {
+                // Each redacted uri keeps the volume it was requested for
+                assertEquals(uris.get(i).getPathSegments().get(0),
+                        redactedUris.get(i).getPathSegments().get(0));
+                assertEquals(redactedId, redactedUris.get(i).getLastPathSegment());
+            }
+
+            // Redacted ids are only created once
+            assertEquals(redactedUris.get(0), mp.getRedactedUri(uris.get(0)));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testGetDeletedIds() throws Exception {
+        final ContentValues values = new ContentValues();
+        values.put(MediaColumns.DISPLAY_NAME, "test" + System.nanoTime() + ".mp3");
+        values.put(MediaColumns.MIME_TYPE, "audio/mpeg");
+        final Uri audioUri = sIsolatedResolver.insert(
+                MediaStore.Audio.Media.getContentUri(MediaStore.VOLUME_EXTERNAL_PRIMARY), values);
+        values.put(MediaColumns.DISPLAY_NAME, "test" + System.nanoTime() + ".jpg");
+        values.put(MediaColumns.MIME_TYPE, "image/jpeg");
+        final Uri imageUri = sIsolatedResolver.insert(
+                MediaStore.Images.Media.getContentUri(MediaStore.VOLUME_EXTERNAL_PRIMARY), values);
+        final long generation = MediaStore.getGeneration(sIsolatedResolver,
+                MediaStore.VOLUME_EXTERNAL_PRIMARY);
+        assertThat(MediaStore.getDeletedIds(sIsolatedResolver,
+                MediaStore.VOLUME_EXTERNAL_PRIMARY, generation)).isEmpty();
+
+        // Trashed items still exist, so only the deleted audio item is reported
+        values.clear();
+        values.put(MediaColumns.IS_TRASHED, 1);
+        assertEquals(1, sIsolatedResolver.update(imageUri, values, null));
+        assertEquals(1, sIsolatedResolver.delete(audioUri, null, null));
+        assertThat(MediaStore.getDeletedIds(sIsolatedResolver,
+                MediaStore.VOLUME_EXTERNAL_PRIMARY, generation)).asList()
+                .containsExactly(ContentUris.parseId(audioUri));
+        assertThat(MediaStore.getDeletedIds(sIsolatedResolver,
+                MediaStore.VOLUME_EXTERNAL, generation)).asList()
+                .containsExactly(ContentUris.parseId(audioUri));
+
+        // Until the trashed item is deleted too
+        final Bundle extras = new Bundle();
+        extras.putInt(MediaStore.QUERY_ARG_MATCH_TRASHED, MediaStore.MATCH_INCLUDE);
+        assertEquals(1, sIsolatedResolver.delete(imageUri, extras));
+        assertThat(MediaStore.getDeletedIds(sIsolatedResolver,
+                MediaStore.VOLUME_EXTERNAL_PRIMARY, generation)).asList()
+                .containsExactly(ContentUris.parseId(audioUri), ContentUris.parseId(imageUri))
+                .inOrder();
+
+        // Deletions from before the log started can't be answered
+        assertNull(MediaStore.getDeletedIds(sIsolatedResolver,
+                MediaStore.VOLUME_EXTERNAL_PRIMARY, -1));
+    }
+
+    @Test
+    public void testOnPackageOrphaned_deletesMissingAndroidMediaInBatches() throws Exception {
+        // More missing items than fit in a single delete statement
+        final int count = 1_200;
+        final String packageName = "com.example.orphaned";
+        try (DatabaseHelper helper = new DatabaseHelper(sIsolatedContext, TEST_CLEAN_DB,
+                DatabaseHelper.VERSION_LATEST, false, false, Column.class, ExportedSince.class,
+                null, null, MediaProvider.MIGRATION_LISTENER, null, false);
+                ContentProviderClient cpc = sIsolatedResolver
+                        .acquireContentProviderClient(MediaStore.AUTHORITY)) {
+            final MediaProvider mp = (MediaProvider) cpc.getLocalContentProvider();
+            final SQLiteDatabase db = helper.getWritableDatabaseForTest();
+            db.beginTransaction();
+            try (SQLiteStatement insert = db.compileStatement("INSERT INTO files"
+                    + " (_data,relative_path,owner_package_name,_user_id) VALUES (?,?,?,0)")) {
+                for (int i = 0; i < count; i++) {
+                    insert.bindString(1, "/storage/emulated/0/Android/media/" + packageName
+                            + "/missing" + i + ".jpg");
+                    insert.bindString(2, "Android/media/" + packageName + "/");
+                    insert.bindString(3, packageName);
+                    insert.executeInsert();
+                }
+                insert.bindString(1, "/storage/emulated/0/DCIM/missing.jpg");
+                insert.bindString(2, "DCIM/");
+                insert.bindString(3, packageName);
+                insert.executeInsert();
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            mp.onPackageOrphaned(db, packageName, 0);
+
+            // Android/media items are deleted, everything else is only orphaned
+            assertEquals(1, DatabaseUtils.queryNumEntries(db, "files",
+                    "relative_path IS NOT NULL"));
+            assertEquals(0, DatabaseUtils.queryNumEntries(db, "files",
+                    "owner_package_name IS NOT NULL"));
+        }
+    }
+
+    @Test
+    public void testQueryOwnerPackages() throws Exception {
+        final int count = 100_000;
+        final int ownerCount = 1_000;
+        try (DatabaseHelper helper = new DatabaseHelper(sIsolatedContext, TEST_CLEAN_DB,
+                DatabaseHelper.VERSION_LATEST, false, false, Column.class, ExportedSince.class,
+                null, null, MediaProvider.MIGRATION_LISTENER, null, false)) {
+            final SQLiteDatabase db = helper.getWritableDatabaseForTest();
+            db.beginTransaction();
+            try (SQLiteStatement insert = db.compileStatement("INSERT INTO files"
+                    + " (_data,owner_package_name,_user_id) VALUES (?,?,?)")) {
+                for (int i = 0; i < count; i++) {
+                    insert.bindString(1, "/storage/emulated/0/DCIM/" + i + ".jpg");
+                    if (i % 10 == 0) {
+                        // Unowned items are never reported
+                        insert.bindNull(2);
+                    } else {
+                        insert.bindString(2, "com.example.owner" + (i % ownerCount));
+                    }
+                    insert.bindLong(3, i % 3 == 0 ? 10 : 0);
+                    insert.executeInsert();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            try (Cursor c = db.rawQuery("EXPLAIN QUERY PLAN SELECT owner_package_name,_user_id"
+                    + " FROM files WHERE (owner_package_name,_user_id)>(?,?)"
+                    + " ORDER BY owner_package_name,_user_id LIMIT 1",
+                    new String[] { "", "0" })) {
+                assertTrue(c.moveToFirst());
+                assertThat(c.getString(c.getColumnIndexOrThrow("detail")))
+                        .contains("owner_package_name_index");
+            }
+
+            // Compare with the distinct scan over every row pruning used to do
+            final Timer scanned = new Timer("owner_packages_scanned_" + count);
+            final Timer skipped = new Timer("owner_packages_skipped_" + count);
+            for (int i = 0; i < 5; i++) {
+                scanned.start();
+                final List<Pair<String, Integer>> expected = new ArrayList<>();
+                try (Cursor c = db.query(true, "files NOT INDEXED",
+                        new String[] { "owner_package_name", "_user_id" },
+                        "owner_package_name IS NOT NULL", null, null, null, null, null)) {
+                    while (c.moveToNext()) {
+                        expected.add(Pair.create(c.getString(0), c.getInt(1)));
+                    }
+                }
+                scanned.stop();
+                skipped.start();
+                final List<Pair<String, Integer>> actual =
+                        MediaProvider.queryOwnerPackages(db, null);
+                skipped.stop();
+                assertThat(actual).containsExactlyElementsIn(expected);
+                // Owners whose items all fall on multiples of 10 were left unowned
+                assertThat(actual).hasSize(ownerCount * 9 / 10 * 2);
+            }
+            scanned.dumpResults();
+            skipped.dumpResults();
+        }
+    }
+
+    @Test
+    public void testApplyApprovedRequest_100() throws Exception {
+        doApplyApprovedRequest(100);
+    }
+
+    @Test
+    public void testApplyApprovedRequest_1000() throws Exception {
+        doApplyApprovedRequest(1_000);
+    }
+
+    @Test
+    public void testApplyApprovedRequest_5000() throws Exception {
+        doApplyApprovedRequest(5_000);
+    }
+
+    /**
+     * Applies approved favorite, trash and delete requests to a batch of images, comparing
+     * favoriting with the per-item operations it replaces.
+     */
+    private void doApplyApprovedRequest(int count) throws Exception {
+        final Uri collection = MediaStore.Images.Media.getContentUri(
+                MediaStore.VOLUME_EXTERNAL_PRIMARY);
+        final ArrayList<ContentProviderOperation> inserts = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            inserts.add(ContentProviderOperation.newInsert(collection)
+                    .withValue(MediaColumns.DISPLAY_NAME, "approved" + System.nanoTime() + ".jpg")
+                    .withValue(MediaColumns.MIME_TYPE, "image/jpeg")
+                    .build());
+        }
+        final List<Uri> uris = new ArrayList<>();
+        for (ContentProviderResult result : sIsolatedResolver.applyBatch(MediaStore.AUTHORITY,
+                inserts)) {
+            uris.add(result.uri);
+        }
+
+        final Timer perItemTimer = new Timer("approved_favorite_per_item_" + count);
+        final Timer favoriteTimer = new Timer("approved_favorite_" + count);
+        final Timer trashTimer = new Timer("approved_trash_" + count);
+        final Timer deleteTimer = new Timer("approved_delete_" + count);
+        try (ContentProviderClient cpc = sIsolatedResolver
+                .acquireContentProviderClient(MediaStore.AUTHORITY)) {
+            final MediaProvider provider = (MediaProvider) cpc.getLocalContentProvider();
+
+            // Baseline of one operation per item, as requests used to be applied
+            final ArrayList<ContentProviderOperation> updates = new ArrayList<>();
+            for (Uri uri : uris) {
+                updates.add(ContentProviderOperation.newUpdate(uri)
+                        .withValue(MediaColumns.IS_FAVORITE, 1)
+                        .withExtra(MediaStore.QUERY_ARG_ALLOW_MOVEMENT, true)
+                        .withExceptionAllowed(true)
+                        .build());
+            }
+            perItemTimer.start();
+            sIsolatedResolver.applyBatch(MediaStore.AUTHORITY, updates);
+            perItemTimer.stop();
+            assertThat(countApproved(uris, MediaColumns.IS_FAVORITE + "=1")).isEqualTo(count);
+
+            final ContentValues unfavorite = new ContentValues();
+            unfavorite.put(MediaColumns.IS_FAVORITE, 0);
+            favoriteTimer.start();
+            provider.applyApprovedRequest(MediaStore.CREATE_FAVORITE_REQUEST_CALL, uris,
+                    unfavorite);
+            favoriteTimer.stop();
+            assertThat(countApproved(uris, MediaColumns.IS_FAVORITE + "=1")).isEqualTo(0);
+
+            final ContentValues trash = new ContentValues();
+            trash.put(MediaColumns.IS_TRASHED, 1);
+            trashTimer.start();
+            provider.applyApprovedRequest(MediaStore.CREATE_TRASH_REQUEST_CALL, uris, trash);
+            trashTimer.stop();
+            assertThat(countApproved(uris, MediaColumns.IS_TRASHED + "=1")).isEqualTo(count);
+
+            deleteTimer.start();
+            provider.applyApprovedRequest(MediaStore.CREATE_DELETE_REQUEST_CALL, uris, null);
+            deleteTimer.stop();
+            assertThat(countApproved(uris, null)).isEqualTo(0);
+        }
+        perItemTimer.dumpResults();
+        favoriteTimer.dumpResults();
+        trashTimer.dumpResults();
+        deleteTimer.dumpResults();
+    }
+
+    private static int countApproved(List<Uri> uris, String selection) {
+        final StringBuilder where = new StringBuilder(FileColumns._ID + " IN (");
+        for (int i = 0; i < uris.size(); i++) {
+            where.append(i == 0 ? "" : ",").append(ContentUris.parseId(uris.get(i)));
+        }
+        where.append(')');
+        if (selection != null) {
+            where.append(" AND ").append(selection);
+        }
+        final Bundle queryArgs = new Bundle();
+        queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SELECTION, where.toString());
+        queryArgs.putInt(MediaStore.QUERY_ARG_MATCH_PENDING, MediaStore.MATCH_INCLUDE);
+        queryArgs.putInt(MediaStore.QUERY_ARG_MATCH_TRASHED, MediaStore.MATCH_INCLUDE);
+        try (Cursor c = sIsolatedResolver.query(MediaStore.Files.getContentUri(
+                MediaStore.VOLUME_EXTERNAL_PRIMARY), new String[] { FileColumns._ID }, queryArgs,
+                null)) {
+            return c.getCount();
+        }
+    }
+
     @Test
     public void testRedactionForFileExtension() throws Exception {
         testRedactionForFileExtension(R.raw.test_audio, ".mp3");
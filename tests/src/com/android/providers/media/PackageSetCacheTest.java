@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+@RunWith(AndroidJUnit4.class)
+public class PackageSetCacheTest {
+    private final Set<String> mInstalled = new HashSet<>(Arrays.asList("com.example.a"));
+    private int mLoads;
+
+    private final PackageSetCache mCache = new PackageSetCache((userId) -> {
+        mLoads++;
+        return (userId == 0) ? mInstalled : new HashSet<>();
+    });
+
+    @Test
+    public void testContains_loadsOncePerUser() throws Exception {
+        assertThat(mCache.contains("com.example.a", 0)).isTrue();
+        assertThat(mCache.contains("com.example.b", 0)).isFalse();
+        assertThat(mCache.contains("com.example.a", 10)).isFalse();
+        assertThat(mLoads).isEqualTo(2);
+    }
+
+    @Test
+    public void testBroadcasts() throws Exception {
+        assertThat(mCache.contains("com.example.b", 0)).isFalse();
+
+        // Changes are picked up from broadcasts rather than by reloading
+        mInstalled.add("com.example.c");
+        mCache.onPackageAdded("com.example.b", 0);
+        mCache.onPackageRemoved("com.example.a", 0);
+        assertThat(mCache.contains("com.example.b", 0)).isTrue();
+        assertThat(mCache.contains("com.example.a", 0)).isFalse();
+        assertThat(mCache.contains("com.example.c", 0)).isFalse();
+        assertThat(mLoads).isEqualTo(1);
+
+        // Broadcasts for users which haven't been loaded yet are ignored
+        mCache.onPackageAdded("com.example.b", 10);
+        assertThat(mCache.contains("com.example.b", 10)).isFalse();
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        assertThat(mCache.contains("com.example.c", 0)).isFalse();
+        mInstalled.add("com.example.c");
+        mCache.invalidate(0);
+        assertThat(mCache.contains("com.example.c", 0)).isTrue();
+        assertThat(mLoads).isEqualTo(2);
+    }
+
+    @Test
+    public void testDump() throws Exception {
+        mCache.contains("com.example.a", 0);
+        final StringWriter out = new StringWriter();
+        mCache.dump(new PrintWriter(out));
+        assertThat(out.toString()).contains("loads=1 u0=1");
+    }
+}
@@ -19,6 +19,8 @@ package com.android.providers.media;
 import static android.provider.CloudMediaProviderContract.AlbumColumns;
 import static android.provider.CloudMediaProviderContract.EXTRA_ALBUM_ID;
 import static android.provider.CloudMediaProviderContract.EXTRA_MEDIA_COLLECTION_ID;
+import static android.provider.CloudMediaProviderContract.EXTRA_PAGE_SIZE;
+import static android.provider.CloudMediaProviderContract.EXTRA_PAGE_TOKEN;
 import static android.provider.CloudMediaProviderContract.EXTRA_SYNC_GENERATION;
 import static android.provider.CloudMediaProviderContract.MediaCollectionInfo;
 import static android.provider.CloudMediaProviderContract.MediaColumns;
@@ -39,6 +41,7 @@ import android.util.Log;
 import com.android.providers.media.photopicker.LocalProvider;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -94,17 +97,55 @@ public class PickerProviderMediaGenerator {
         private Intent mAccountConfigurationIntent;
         private int mCursorExtraQueryCount;
         private Bundle mCursorExtra;
+        private final List<Integer> mRequestedPageSizes = new ArrayList<>();
+        private long mQueryLatencyMs;
 
-        // TODO(b/214592293): Add pagination support for testing purposes.
         public Cursor getMedia(long generation, String albumId, String mimeType, long sizeBytes) {
-            final Cursor cursor = getCursor(mMedia, generation, albumId, mimeType, sizeBytes,
+            return getMedia(generation, albumId, mimeType, sizeBytes, /* pageToken */ null,
+                    /* pageSize */ -1);
+        }
+
+        /**
+         * Returns media paged by position in the list of matching media if {@code pageSize} is
+         * positive, with the position of the next page as the page token.
+         */
+        public Cursor getMedia(long generation, String albumId, String mimeType, long sizeBytes,
+                String pageToken, int pageSize) {
+            if (mQueryLatencyMs > 0) {
+                SystemClock.sleep(mQueryLatencyMs);
+            }
+            Cursor cursor = getCursor(mMedia, generation, albumId, mimeType, sizeBytes,
                     /* isDeleted */ false);
 
+            Bundle extras;
             if (mCursorExtra != null) {
-                cursor.setExtras(mCursorExtra);
+                extras = mCursorExtra;
             } else {
-                cursor.setExtras(buildCursorExtras(mCollectionId, generation > 0, albumId != null));
+                extras = buildCursorExtras(mCollectionId, generation > 0, albumId != null);
+            }
+
+            if (pageSize > 0) {
+                mRequestedPageSizes.add(pageSize);
+                final int start = (pageToken == null) ? 0 : Integer.parseInt(pageToken);
+                final int end = Math.min(cursor.getCount(), start + pageSize);
+
+                extras = new Bundle(extras);
+                final ArrayList<String> honoredArgs = new ArrayList<>(
+                        extras.getStringArrayList(ContentResolver.EXTRA_HONORED_ARGS));
+                honoredArgs.add(EXTRA_PAGE_SIZE);
+                if (pageToken != null) {
+                    honoredArgs.add(EXTRA_PAGE_TOKEN);
+                }
+                extras.putStringArrayList(ContentResolver.EXTRA_HONORED_ARGS, honoredArgs);
+                if (end < cursor.getCount()) {
+                    extras.putString(EXTRA_PAGE_TOKEN, String.valueOf(end));
+                }
+
+                try (Cursor all = cursor) {
+                    cursor = getPage(all, start, end);
+                }
             }
+            cursor.setExtras(extras);
 
             if (--mCursorExtraQueryCount == 0) {
                 clearCursorExtras();
@@ -112,6 +153,20 @@ public class PickerProviderMediaGenerator {
             return cursor;
         }
 
+        /**
+         * Delays every {@link #getMedia} query by {@code latencyMs}, like a remote backend would.
+         */
+        public void setQueryLatencyMs(long latencyMs) {
+            mQueryLatencyMs = latencyMs;
+        }
+
+        /**
+         * Returns the page sizes requested from {@link #getMedia} since the last reset.
+         */
+        public List<Integer> getRequestedPageSizes() {
+            return mRequestedPageSizes;
+        }
+
         public Cursor getAlbums(String mimeType, long sizeBytes, boolean isLocal) {
             final Cursor cursor = getCursor(mAlbums, mimeType, sizeBytes, isLocal);
 
@@ -207,6 +262,32 @@ public class PickerProviderMediaGenerator {
                             sizeBytes, isFavorite));
         }
 
+        /**
+         * Adds {@code count} cloud only items, each with its own generation, as
+         * {@link #addMedia(String, String)} would in a loop.
+         */
+        public void addCloudOnlyMedia(int count) {
+            addCloudOnlyMedia(count, /* albumId */ null);
+        }
+
+        /**
+         * Adds {@code count} cloud only items to {@code albumId}, each with its own generation.
+         */
+        public void addCloudOnlyMedia(int count, String albumId) {
+            // Spread dates explicitly instead of sleeping between items
+            final long dateTakenMs = System.currentTimeMillis();
+            final List<TestMedia> media = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                media.add(new TestMedia(/* localId */ null, String.valueOf(i), albumId,
+                        "image/jpeg", MediaColumns.STANDARD_MIME_TYPE_EXTENSION_NONE,
+                        /* sizeBytes */ 4096, /* durationMs */ 0, ++mLastSyncGeneration,
+                        /* isFavorite */ false, dateTakenMs + i));
+            }
+            // Newest first
+            Collections.reverse(media);
+            mMedia.addAll(0, media);
+        }
+
         public void deleteMedia(String localId, String cloudId) {
             if (mMedia.remove(createPlaceholderMedia(localId, cloudId))) {
                 mDeletedMedia.add(createTestMedia(localId, cloudId));
@@ -221,6 +302,8 @@ public class PickerProviderMediaGenerator {
             mMedia.clear();
             mDeletedMedia.clear();
             mAlbums.clear();
+            mRequestedPageSizes.clear();
+            mQueryLatencyMs = 0;
             clearCursorExtras();
         }
 
@@ -242,7 +325,7 @@ public class PickerProviderMediaGenerator {
         }
         private TestMedia createTestAlbumMedia(String localId, String cloudId, String albumId) {
             // Increase generation
-            return new TestMedia(localId, cloudId, albumId);
+            return new TestMedia(localId, cloudId, albumId, ++mLastSyncGeneration);
         }
 
         private TestMedia createTestMedia(String localId, String cloudId, String albumId,
@@ -271,8 +354,8 @@ public class PickerProviderMediaGenerator {
             }
 
             for (TestMedia media : mediaList) {
-                if (!TextUtils.isEmpty(albumId) && matchesFilter(media,
-                        albumId, mimeType, sizeBytes)) {
+                if (!TextUtils.isEmpty(albumId) && media.generation > generation
+                        && matchesFilter(media, albumId, mimeType, sizeBytes)) {
                     matrix.addRow(media.toAlbumMediaArray());
                 } else if (media.generation > generation
                         && matchesFilter(media, albumId, mimeType, sizeBytes)) {
@@ -282,6 +365,18 @@ public class PickerProviderMediaGenerator {
             return matrix;
         }
 
+        private static Cursor getPage(Cursor cursor, int start, int end) {
+            final MatrixCursor page = new MatrixCursor(cursor.getColumnNames());
+            for (int i = start; i < end && cursor.moveToPosition(i); i++) {
+                final String[] row = new String[cursor.getColumnCount()];
+                for (int j = 0; j < row.length; j++) {
+                    row[j] = cursor.getString(j);
+                }
+                page.addRow(row);
+            }
+            return page;
+        }
+
         private static Cursor getCursor(List<TestAlbum> albumList, String mimeType, long sizeBytes,
                 boolean isLocal) {
             final MatrixCursor matrix = new MatrixCursor(ALBUM_PROJECTION);
@@ -316,27 +411,34 @@ public class PickerProviderMediaGenerator {
         }
 
 
-        public TestMedia(String localId, String cloudId, String albumId) {
+        public TestMedia(String localId, String cloudId, String albumId, long generation) {
             this(localId, cloudId, /* albumId */ albumId, "image/jpeg",
                     /* standardMimeTypeExtension */ MediaColumns.STANDARD_MIME_TYPE_EXTENSION_NONE,
-                    /* sizeBytes */ 4096, /* durationMs */ 0, 0,
+                    /* sizeBytes */ 4096, /* durationMs */ 0, generation,
                     /* isFavorite */ false);
         }
 
         public TestMedia(String localId, String cloudId, String albumId, String mimeType,
                 int standardMimeTypeExtension, long sizeBytes, long durationMs, long generation,
                 boolean isFavorite) {
+            this(localId, cloudId, albumId, mimeType, standardMimeTypeExtension, sizeBytes,
+                    durationMs, generation, isFavorite, System.currentTimeMillis());
+            SystemClock.sleep(1);
+        }
+
+        public TestMedia(String localId, String cloudId, String albumId, String mimeType,
+                int standardMimeTypeExtension, long sizeBytes, long durationMs, long generation,
+                boolean isFavorite, long dateTakenMs) {
             this.localId = localId;
             this.cloudId = cloudId;
             this.albumId = albumId;
             this.mimeType = mimeType;
             this.standardMimeTypeExtension = standardMimeTypeExtension;
             this.sizeBytes = sizeBytes;
-            this.dateTakenMs = System.currentTimeMillis();
+            this.dateTakenMs = dateTakenMs;
             this.durationMs = durationMs;
             this.generation = generation;
             this.isFavorite = isFavorite;
-            SystemClock.sleep(1);
         }
 
         public String[] toArray(boolean isDeleted) {
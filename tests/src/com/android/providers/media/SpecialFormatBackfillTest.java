@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media;
+
+import static android.provider.MediaStore.VOLUME_EXTERNAL_PRIMARY;
+import static android.provider.MediaStore.Files.FileColumns._SPECIAL_FORMAT;
+import static android.provider.MediaStore.Files.FileColumns._SPECIAL_FORMAT_NONE;
+
+import static com.android.providers.media.DatabaseHelper.TEST_CLEAN_DB;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.CancellationSignal;
+import android.provider.Column;
+import android.provider.ExportedSince;
+import android.provider.MediaStore.Files.FileColumns;
+import android.provider.MediaStore.MediaColumns;
+
+import androidx.annotation.NonNull;
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.providers.media.dao.FileRow;
+import com.android.providers.media.scan.MediaScannerTest.IsolatedContext;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(AndroidJUnit4.class)
+public class SpecialFormatBackfillTest {
+    private static final String TAG = "SpecialFormatBackfillTest";
+
+    private Context mIsolatedContext;
+    private final AtomicInteger mUpdateCallbacks = new AtomicInteger();
+
+    private final DatabaseHelper.OnFilesChangeListener mListener =
+            new DatabaseHelper.OnFilesChangeListener() {
+        @Override
+        public void onInsert(@NonNull DatabaseHelper helper, @NonNull FileRow insertedRow) {
+        }
+
+        @Override
+        public void onUpdate(@NonNull DatabaseHelper helper, @NonNull FileRow oldRow,
+                @NonNull FileRow newRow) {
+            mUpdateCallbacks.incrementAndGet();
+        }
+
+        @Override
+        public void onDelete(@NonNull DatabaseHelper helper, @NonNull FileRow deletedRow) {
+        }
+    };
+
+    @Before
+    public void setUp() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        mIsolatedContext = new IsolatedContext(context, TAG, /*asFuseThread*/ false);
+        mUpdateCallbacks.set(0);
+    }
+
+    @Test
+    public void testRun_updatesAllPendingRowsWithoutCallbacks() throws Exception {
+        try (DatabaseHelper helper = newHelper()) {
+            final SQLiteDatabase db = helper.getWritableDatabaseForTest();
+            insertImages(db, 25);
+            insertAudio(db);
+            final long generationBefore = DatabaseHelper.getGeneration(db);
+
+            final SpecialFormatBackfill backfill = new SpecialFormatBackfill(helper, 10);
+            final SpecialFormatBackfill.Result result = backfill.run(0, new CancellationSignal());
+
+            assertThat(result.updatedCount).isEqualTo(25);
+            assertThat(result.complete).isTrue();
+            assertThat(mUpdateCallbacks.get()).isEqualTo(0);
+
+            try (Cursor c = db.query("files",
+                    new String[] { _SPECIAL_FORMAT, MediaColumns.GENERATION_MODIFIED },
+                    FileColumns.MEDIA_TYPE + "=" + FileColumns.MEDIA_TYPE_IMAGE,
+                    null, null, null, null)) {
+                assertThat(c.getCount()).isEqualTo(25);
+                while (c.moveToNext()) {
+                    assertThat(c.getInt(0)).isEqualTo(_SPECIAL_FORMAT_NONE);
+                    assertThat(c.getLong(1)).isGreaterThan(generationBefore);
+                }
+            }
+
+            // Audio is never considered for special format detection
+            try (Cursor c = db.query("files", new String[] { _SPECIAL_FORMAT },
+                    FileColumns.MEDIA_TYPE + "=" + FileColumns.MEDIA_TYPE_AUDIO,
+                    null, null, null, null)) {
+                assertThat(c.moveToFirst()).isTrue();
+                assertThat(c.isNull(0)).isTrue();
+            }
+        }
+    }
+
+    @Test
+    public void testRun_canceledReturnsResumeId() throws Exception {
+        try (DatabaseHelper helper = newHelper()) {
+            final SQLiteDatabase db = helper.getWritableDatabaseForTest();
+            insertImages(db, 5);
+
+            final CancellationSignal signal = new CancellationSignal();
+            signal.cancel();
+            final SpecialFormatBackfill backfill = new SpecialFormatBackfill(helper, 10);
+            final SpecialFormatBackfill.Result canceled = backfill.run(0, signal);
+            assertThat(canceled.updatedCount).isEqualTo(0);
+            assertThat(canceled.complete).isFalse();
+
+            final SpecialFormatBackfill.Result resumed = backfill.run(canceled.resumeId,
+                    new CancellationSignal());
+            assertThat(resumed.updatedCount).isEqualTo(5);
+            assertThat(resumed.complete).isTrue();
+        }
+    }
+
+    @Test
+    public void testRun_skipsRowsBeforeResumeId() throws Exception {
+        try (DatabaseHelper helper = newHelper()) {
+            final SQLiteDatabase db = helper.getWritableDatabaseForTest();
+            final long firstId = insertImages(db, 4);
+
+            final SpecialFormatBackfill backfill = new SpecialFormatBackfill(helper, 10);
+            final SpecialFormatBackfill.Result result = backfill.run(firstId + 1,
+                    new CancellationSignal());
+            assertThat(result.updatedCount).isEqualTo(2);
+        }
+    }
+
+    private DatabaseHelper newHelper() {
+        return new DatabaseHelper(mIsolatedContext, TEST_CLEAN_DB, DatabaseHelper.VERSION_LATEST,
+                false, false, Column.class, ExportedSince.class, null, mListener,
+                MediaProvider.MIGRATION_LISTENER, null, false);
+    }
+
+    /**
+     * Insert {@code count} image rows pointing at files that don't exist.
+     *
+     * @return the {@code _id} of the first inserted row.
+     */
+    private static long insertImages(SQLiteDatabase db, int count) {
+        long firstId = -1;
+        for (int i = 0; i < count; i++) {
+            final ContentValues values = new ContentValues();
+            values.put(FileColumns.MEDIA_TYPE, FileColumns.MEDIA_TYPE_IMAGE);
+            values.put(FileColumns.VOLUME_NAME, VOLUME_EXTERNAL_PRIMARY);
+            values.put(FileColumns.DATA,
+                    "/storage/emulated/0/DCIM/" + TAG + System.nanoTime() + ".jpg");
+            final long id = db.insert("files", FileColumns.DATA, values);
+            if (firstId == -1) {
+                firstId = id;
+            }
+        }
+        return firstId;
+    }
+
+    private static void insertAudio(SQLiteDatabase db) {
+        final ContentValues values = new ContentValues();
+        values.put(FileColumns.MEDIA_TYPE, FileColumns.MEDIA_TYPE_AUDIO);
+        values.put(FileColumns.VOLUME_NAME, VOLUME_EXTERNAL_PRIMARY);
+        values.put(FileColumns.DATA, "/storage/emulated/0/Music/" + TAG + ".mp3");
+        db.insert("files", FileColumns.DATA, values);
+    }
+}
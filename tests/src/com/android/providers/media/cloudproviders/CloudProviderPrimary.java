@@ -54,7 +54,8 @@ public class CloudProviderPrimary extends CloudMediaProvider {
                 CloudProviderQueryExtras.fromCloudMediaBundle(extras);
 
         return mMediaGenerator.getMedia(queryExtras.getGeneration(), queryExtras.getAlbumId(),
-                queryExtras.getMimeType(), queryExtras.getSizeBytes());
+                queryExtras.getMimeType(), queryExtras.getSizeBytes(), queryExtras.getPageToken(),
+                queryExtras.getPageSize());
     }
 
     @Override
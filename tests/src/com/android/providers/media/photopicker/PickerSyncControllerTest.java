@@ -45,6 +45,7 @@ import com.android.providers.media.PickerProviderMediaGenerator;
 import com.android.providers.media.R;
 import com.android.providers.media.photopicker.data.PickerDatabaseHelper;
 import com.android.providers.media.photopicker.data.PickerDbFacade;
+import com.android.providers.media.tests.utils.Timer;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -277,7 +278,7 @@ public class PickerSyncControllerTest {
     }
 
     @Test
-    public void testSyncAllMediaResetsAlbumMedia() {
+    public void testSyncAllMediaResetsAlbumMediaOnNewCollection() {
         // 1. Set primary cloud provider
         setCloudProviderAndSyncAllMedia(CLOUD_PRIMARY_PROVIDER_AUTHORITY);
         assertEmptyCursorFromAlbumMediaQuery(ALBUM_ID_1, false);
@@ -294,11 +295,67 @@ public class PickerSyncControllerTest {
             assertThat(cr.getCount()).isEqualTo(2);
         }
 
-        // 4. Sync all media and assert empty album_media
+        // 4. Sync all media and assert album_media is kept for the same collection
+        mController.syncAllMedia();
+        try (Cursor cr = queryAlbumMedia(ALBUM_ID_1, false)) {
+            assertThat(cr.getCount()).isEqualTo(2);
+        }
+
+        // 5. Sync all media from a new collection and assert empty album_media
+        mCloudPrimaryMediaGenerator.setMediaCollectionId(COLLECTION_2);
         mController.syncAllMedia();
         assertEmptyCursorFromAlbumMediaQuery(ALBUM_ID_1, false);
     }
 
+    @Test
+    public void testSyncAlbumMediaCloudIncremental() {
+        setCloudProviderAndSyncAllMedia(CLOUD_PRIMARY_PROVIDER_AUTHORITY);
+
+        // 1. First open syncs the whole album
+        addAlbumMedia(mCloudPrimaryMediaGenerator, CLOUD_ONLY_1.first, CLOUD_ONLY_1.second,
+                ALBUM_ID_1);
+        addAlbumMedia(mCloudPrimaryMediaGenerator, CLOUD_ONLY_2.first, CLOUD_ONLY_2.second,
+                ALBUM_ID_1);
+        mController.syncAlbumMedia(ALBUM_ID_1, false);
+
+        try (Cursor cr = queryAlbumMedia(ALBUM_ID_1, false)) {
+            assertThat(cr.getCount()).isEqualTo(2);
+
+            assertCursor(cr, CLOUD_ID_2, CLOUD_PRIMARY_PROVIDER_AUTHORITY);
+            assertCursor(cr, CLOUD_ID_1, CLOUD_PRIMARY_PROVIDER_AUTHORITY);
+        }
+
+        // 2. Reopening an unchanged album doesn't query its media
+        mCloudPrimaryMediaGenerator.getRequestedPageSizes().clear();
+        mController.syncAlbumMedia(ALBUM_ID_1, false);
+        assertThat(mCloudPrimaryMediaGenerator.getRequestedPageSizes()).isEmpty();
+
+        // 3. Additions and deletions are applied incrementally
+        addAlbumMedia(mCloudPrimaryMediaGenerator, CLOUD_ONLY_3.first, CLOUD_ONLY_3.second,
+                ALBUM_ID_1);
+        deleteMedia(mCloudPrimaryMediaGenerator, CLOUD_ONLY_1);
+        mController.syncAlbumMedia(ALBUM_ID_1, false);
+
+        try (Cursor cr = queryAlbumMedia(ALBUM_ID_1, false)) {
+            assertThat(cr.getCount()).isEqualTo(2);
+
+            assertCursor(cr, CLOUD_ID_3, CLOUD_PRIMARY_PROVIDER_AUTHORITY);
+            assertCursor(cr, CLOUD_ID_2, CLOUD_PRIMARY_PROVIDER_AUTHORITY);
+        }
+
+        // 4. Falls back to a full sync if the sync generation isn't honored
+        deleteMedia(mCloudPrimaryMediaGenerator, CLOUD_ONLY_3);
+        mCloudPrimaryMediaGenerator.setNextCursorExtras(1, COLLECTION_1,
+                /* honoredSyncGeneration */ false, /* honoredAlbumId */ true);
+        mController.syncAlbumMedia(ALBUM_ID_1, false);
+
+        try (Cursor cr = queryAlbumMedia(ALBUM_ID_1, false)) {
+            assertThat(cr.getCount()).isEqualTo(1);
+
+            assertCursor(cr, CLOUD_ID_2, CLOUD_PRIMARY_PROVIDER_AUTHORITY);
+        }
+    }
+
     @Test
     public void testSyncAllAlbumMediaCloudOnly() {
         // 1. Add media before setting primary cloud provider
@@ -958,6 +1015,158 @@ public class PickerSyncControllerTest {
         assertThat(controller.getCloudProvider()).isEqualTo(CLOUD_PRIMARY_PROVIDER_AUTHORITY);
     }
 
+    @Test
+    public void testSyncAllMedia_pageSizeHint() {
+        final int count = 100_000;
+        mCloudPrimaryMediaGenerator.addCloudOnlyMedia(count);
+
+        final Timer timer = new Timer("cloud_sync_paged_100k");
+        timer.start();
+        setCloudProviderAndSyncAllMedia(CLOUD_PRIMARY_PROVIDER_AUTHORITY);
+        timer.stop();
+        timer.dumpResults();
+
+        try (Cursor cr = mFacade.queryMediaForUi(
+                new PickerDbFacade.QueryFilterBuilder(count).build())) {
+            assertThat(cr.getCount()).isEqualTo(count);
+        }
+
+        final List<Integer> pageSizes = mCloudPrimaryMediaGenerator.getRequestedPageSizes();
+        assertThat(pageSizes.get(0)).isEqualTo(PickerSyncController.PageSizeHint.DEFAULT);
+        for (int pageSize : pageSizes) {
+            assertThat(pageSize).isAtLeast(PickerSyncController.PageSizeHint.MIN);
+            assertThat(pageSize).isAtMost(PickerSyncController.PageSizeHint.MAX);
+        }
+    }
+
+    @Test
+    public void testSyncAllMedia_pageSizeHintResetOnProviderChange() {
+        mCloudPrimaryMediaGenerator.addCloudOnlyMedia(10_000);
+        setCloudProviderAndSyncAllMedia(CLOUD_PRIMARY_PROVIDER_AUTHORITY);
+        assertThat(mCloudPrimaryMediaGenerator.getRequestedPageSizes().size()).isGreaterThan(1);
+
+        // Switching away and back starts over from the default page size
+        setCloudProviderAndSyncAllMedia(/* authority */ null);
+        mCloudPrimaryMediaGenerator.getRequestedPageSizes().clear();
+        setCloudProviderAndSyncAllMedia(CLOUD_PRIMARY_PROVIDER_AUTHORITY);
+
+        final List<Integer> pageSizes = mCloudPrimaryMediaGenerator.getRequestedPageSizes();
+        assertThat(pageSizes).isNotEmpty();
+        assertThat(pageSizes.get(0)).isEqualTo(PickerSyncController.PageSizeHint.DEFAULT);
+    }
+
+    @Test
+    public void testSyncAllMedia_pipelined() {
+        final int count = 20_000;
+        mCloudPrimaryMediaGenerator.addCloudOnlyMedia(count);
+        mCloudPrimaryMediaGenerator.setQueryLatencyMs(100);
+
+        mController.setPipelinedSync(false);
+        final Timer sequential = new Timer("cloud_sync_sequential_20k");
+        sequential.start();
+        setCloudProviderAndSyncAllMedia(CLOUD_PRIMARY_PROVIDER_AUTHORITY);
+        sequential.stop();
+        assertCloudMediaSynced(count);
+
+        // A new collection id forces a full resync
+        mCloudPrimaryMediaGenerator.setMediaCollectionId(COLLECTION_2);
+        mController.setPipelinedSync(true);
+        final Timer pipelined = new Timer("cloud_sync_pipelined_20k");
+        pipelined.start();
+        mController.syncAllMedia();
+        pipelined.stop();
+        assertCloudMediaSynced(count);
+
+        sequential.dumpResults();
+        pipelined.dumpResults();
+    }
+
+    @Test
+    public void testSyncAlbumMedia_reopen() {
+        final int count = 20_000;
+        setCloudProviderAndSyncAllMedia(CLOUD_PRIMARY_PROVIDER_AUTHORITY);
+        mCloudPrimaryMediaGenerator.addCloudOnlyMedia(count, ALBUM_ID_1);
+        mCloudPrimaryMediaGenerator.setQueryLatencyMs(100);
+
+        final Timer firstOpen = new Timer("cloud_album_first_open_20k");
+        firstOpen.start();
+        mController.syncAlbumMedia(ALBUM_ID_1, false);
+        firstOpen.stop();
+        assertCloudAlbumMediaSynced(ALBUM_ID_1, count);
+
+        final Timer reopen = new Timer("cloud_album_reopen_20k");
+        reopen.start();
+        mController.syncAlbumMedia(ALBUM_ID_1, false);
+        reopen.stop();
+        assertCloudAlbumMediaSynced(ALBUM_ID_1, count);
+
+        // Only the new item is fetched
+        addAlbumMedia(mCloudPrimaryMediaGenerator, /* localId */ null, String.valueOf(count),
+                ALBUM_ID_1);
+        final Timer reopenChanged = new Timer("cloud_album_reopen_changed_20k");
+        reopenChanged.start();
+        mController.syncAlbumMedia(ALBUM_ID_1, false);
+        reopenChanged.stop();
+        try (Cursor cr = queryAlbumMedia(ALBUM_ID_1, false)) {
+            assertThat(cr.getCount()).isEqualTo(count + 1);
+        }
+
+        firstOpen.dumpResults();
+        reopen.dumpResults();
+        reopenChanged.dumpResults();
+        assertThat(reopen.getMaxDurationMillis()).isLessThan(firstOpen.getMaxDurationMillis());
+    }
+
+    @Test
+    public void testPageSizeHint() {
+        final PickerSyncController.PageSizeHint hint = new PickerSyncController.PageSizeHint();
+        assertThat(hint.get()).isEqualTo(PickerSyncController.PageSizeHint.DEFAULT);
+
+        // Fast full pages grow, but partial pages don't
+        hint.onPageFetched(/* rowCount */ 1000, /* rowsInFirstWindow */ -1, /* latencyMs */ 10);
+        assertThat(hint.get()).isEqualTo(2000);
+        hint.onPageFetched(/* rowCount */ 500, /* rowsInFirstWindow */ -1, /* latencyMs */ 10);
+        assertThat(hint.get()).isEqualTo(2000);
+
+        // Pages spilling over the first window shrink to fit it
+        hint.onPageFetched(/* rowCount */ 2000, /* rowsInFirstWindow */ 1200, /* latencyMs */ 10);
+        assertThat(hint.get()).isEqualTo(900);
+
+        // Slow pages shrink
+        hint.onPageFetched(/* rowCount */ 900, /* rowsInFirstWindow */ 900, /* latencyMs */ 5000);
+        assertThat(hint.get()).isEqualTo(450);
+
+        for (int i = 0; i < 10; i++) {
+            hint.onPageFetched(hint.get(), -1, /* latencyMs */ 5000);
+        }
+        assertThat(hint.get()).isEqualTo(PickerSyncController.PageSizeHint.MIN);
+        for (int i = 0; i < 10; i++) {
+            hint.onPageFetched(hint.get(), -1, /* latencyMs */ 0);
+        }
+        assertThat(hint.get()).isEqualTo(PickerSyncController.PageSizeHint.MAX);
+    }
+
+    private void assertCloudMediaSynced(int count) {
+        try (Cursor cr = mFacade.queryMediaForUi(
+                new PickerDbFacade.QueryFilterBuilder(count).build())) {
+            assertThat(cr.getCount()).isEqualTo(count);
+
+            // Newest first, so cloud ids count down
+            final int idIndex = cr.getColumnIndexOrThrow(MediaColumns.ID);
+            for (int i = count - 1; cr.moveToNext(); i--) {
+                assertThat(cr.getString(idIndex)).isEqualTo(String.valueOf(i));
+            }
+        }
+    }
+
+    private void assertCloudAlbumMediaSynced(String albumId, int count) {
+        try (Cursor cr = mFacade.queryAlbumMediaForUi(
+                new PickerDbFacade.QueryFilterBuilder(count).setAlbumId(albumId).build(),
+                CLOUD_PRIMARY_PROVIDER_AUTHORITY)) {
+            assertThat(cr.getCount()).isEqualTo(count);
+        }
+    }
+
     private static void waitForIdle() {
         final CountDownLatch latch = new CountDownLatch(1);
         BackgroundThread.getExecutor().execute(() -> {
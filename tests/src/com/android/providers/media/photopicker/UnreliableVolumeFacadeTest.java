@@ -22,17 +22,26 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Bundle;
 
 import static org.junit.Assert.*;
 
 import androidx.test.InstrumentationRegistry;
 
 import com.android.providers.media.photopicker.data.UnreliableVolumeDatabaseHelper;
+import com.android.providers.media.scan.UnreliableVolumeScanner;
+import com.android.providers.media.tests.utils.Timer;
+import com.android.providers.media.util.FileUtils;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -44,17 +53,27 @@ public class UnreliableVolumeFacadeTest {
     private static final String MIME_TYPE = "image/jpg";
     private static final String DATA_PREFIX = "mnt/media_rw/A678954/";
 
+    private static final int TREE_DIR_COUNT = 50;
+    private static final int TREE_FILES_PER_DIR = 1000;
+    private static final int TREE_FILE_COUNT = TREE_DIR_COUNT * TREE_FILES_PER_DIR;
+
     private static UnreliableVolumeFacade mFacade;
+    private static File mTree;
 
     @Before
     public void setUp() {
         Context context = InstrumentationRegistry.getTargetContext();
         mFacade = new UnreliableVolumeFacade(context);
+        mTree = new File(context.getCacheDir(), "unreliable_volume");
     }
 
     @After
     public void tearDown() {
         mFacade.deleteMedia();
+        if (mTree.exists()) {
+            FileUtils.deleteContents(mTree);
+            mTree.delete();
+        }
     }
 
     @Test
@@ -103,6 +122,124 @@ public class UnreliableVolumeFacadeTest {
         }
     }
 
+    @Test
+    public void testScanAndInsertMedia_streaming() throws Exception {
+        createTree();
+        final UnreliableVolumeScanner scanner = new UnreliableVolumeScanner();
+
+        // Baseline: the whole volume is held in memory before anything is written
+        final Timer listFirst = new Timer("unreliable_scan_list_first_item");
+        resetHeap();
+        listFirst.start();
+        final List<ContentValues> all = scanner.scanAndGetUnreliableVolFileInfo(mTree.toPath());
+        final long listPeak = usedHeap();
+        assertEquals(TREE_FILE_COUNT, mFacade.insertMedia(all));
+        listFirst.stop();
+        all.clear();
+        mFacade.deleteMedia();
+
+        final Timer streamingFirst = new Timer("unreliable_scan_streaming_first_item");
+        final Timer streamingTotal = new Timer("unreliable_scan_streaming_total");
+        final long[] streamingPeak = new long[1];
+        final int[] insertedAtFirstBatch = new int[1];
+        resetHeap();
+        streamingFirst.start();
+        streamingTotal.start();
+        final int inserted = mFacade.scanAndInsertMedia(scanner, mTree.toPath(),
+                /* parallelism */ 1, () -> {
+                    streamingFirst.stop();
+                    insertedAtFirstBatch[0] = countMedia();
+                });
+        streamingTotal.stop();
+
+        assertEquals(TREE_FILE_COUNT, inserted);
+        assertEquals(TREE_FILE_COUNT, countMedia());
+        // The picker was notified while the rest of the volume was still being scanned
+        assertThat(insertedAtFirstBatch[0]).isEqualTo(UnreliableVolumeFacade.SCAN_BATCH_SIZE);
+
+        listFirst.dumpResults();
+        streamingFirst.dumpResults();
+        streamingTotal.dumpResults();
+
+        // Peak heap of the streaming scan is sampled on every batch
+        mFacade.deleteMedia();
+        resetHeap();
+        mFacade.scanAndInsertMedia(new UnreliableVolumeScanner() {
+            @Override
+            public int scanUnreliableVolume(Path path, int batchSize,
+                    int parallelism, BatchCallback callback) throws IOException {
+                return super.scanUnreliableVolume(path, batchSize, parallelism, batch -> {
+                    streamingPeak[0] = Math.max(streamingPeak[0], usedHeap());
+                    callback.onBatch(batch);
+                });
+            }
+        }, mTree.toPath(), /* parallelism */ 1, null);
+
+        final Bundle results = new Bundle();
+        results.putLong("unreliable_scan_list_peak_heap (KiB)", listPeak / 1024);
+        results.putLong("unreliable_scan_streaming_peak_heap (KiB)", streamingPeak[0] / 1024);
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, results);
+    }
+
+    @Test
+    public void testScanAndInsertMedia_parallel() throws Exception {
+        createTree();
+        final Timer timer = new Timer("unreliable_scan_parallel_total");
+        final int[] notified = new int[1];
+
+        timer.start();
+        final int inserted = mFacade.scanAndInsertMedia(new UnreliableVolumeScanner(),
+                mTree.toPath(), /* parallelism */ 4, () -> notified[0]++);
+        timer.stop();
+        timer.dumpResults();
+
+        assertEquals(TREE_FILE_COUNT, inserted);
+        assertEquals(1, notified[0]);
+        assertEquals(TREE_FILE_COUNT, countMedia());
+    }
+
+    @Test
+    public void testScanUnreliableVolume_batches() throws Exception {
+        createTree();
+        final List<Integer> batchSizes = new ArrayList<>();
+        final int count = new UnreliableVolumeScanner().scanUnreliableVolume(mTree.toPath(),
+                /* batchSize */ 3000, /* parallelism */ 2, batch -> batchSizes.add(batch.size()));
+
+        assertEquals(TREE_FILE_COUNT, count);
+        int total = 0;
+        for (int size : batchSizes) {
+            assertThat(size).isAtMost(3000);
+            total += size;
+        }
+        assertEquals(TREE_FILE_COUNT, total);
+    }
+
+    private static void createTree() throws IOException {
+        final byte[] content = "x".getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < TREE_DIR_COUNT; i++) {
+            final File dir = new File(mTree, "DCIM" + i);
+            dir.mkdirs();
+            for (int j = 0; j < TREE_FILES_PER_DIR; j++) {
+                Files.write(new File(dir, j + ".jpg").toPath(), content);
+            }
+        }
+    }
+
+    private static int countMedia() {
+        try (Cursor cr = mFacade.queryMediaAll()) {
+            return cr.getCount();
+        }
+    }
+
+    private static void resetHeap() {
+        Runtime.getRuntime().gc();
+    }
+
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
     private static ContentValues generateAndGetContentValues(int index) {
         ContentValues values = new ContentValues();
         values.put(UnreliableVolumeDatabaseHelper.MediaColumns.DATE_MODIFIED, DATE_MODIFIED);
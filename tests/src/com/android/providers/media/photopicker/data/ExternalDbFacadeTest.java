@@ -22,6 +22,7 @@ import static android.provider.CloudMediaProviderContract.AlbumColumns.ALBUM_ID_
 import static android.provider.CloudMediaProviderContract.AlbumColumns.ALBUM_ID_SCREENSHOTS;
 import static android.provider.CloudMediaProviderContract.EXTRA_ALBUM_ID;
 import static android.provider.CloudMediaProviderContract.EXTRA_MEDIA_COLLECTION_ID;
+import static android.provider.CloudMediaProviderContract.EXTRA_PAGE_TOKEN;
 import static android.provider.CloudMediaProviderContract.EXTRA_SYNC_GENERATION;
 import static android.provider.CloudMediaProviderContract.MediaCollectionInfo;
 import static android.provider.MediaStore.Files.FileColumns._SPECIAL_FORMAT_GIF;
@@ -40,6 +41,7 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.os.Bundle;
+import android.os.Debug;
 import android.provider.CloudMediaProviderContract;
 import android.provider.MediaStore;
 import android.provider.MediaStore.Files.FileColumns;
@@ -51,6 +53,7 @@ import androidx.test.runner.AndroidJUnit4;
 import com.android.providers.media.DatabaseHelper;
 import com.android.providers.media.VolumeCache;
 import com.android.providers.media.scan.MediaScannerTest.IsolatedContext;
+import com.android.providers.media.tests.utils.Timer;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -59,6 +62,7 @@ import org.junit.runner.RunWith;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Set;
 
 @RunWith(AndroidJUnit4.class)
 public class ExternalDbFacadeTest {
@@ -463,6 +467,125 @@ public class ExternalDbFacadeTest {
         }
     }
 
+    @Test
+    public void testQueryMedia_paged() throws Exception {
+        try (DatabaseHelper helper = new TestDatabaseHelper(sIsolatedContext)) {
+            ExternalDbFacade facade = new ExternalDbFacade(sIsolatedContext, helper,
+                    mock(VolumeCache.class));
+
+            // Two items share a generation so the page boundary falls inside it
+            helper.runWithTransaction(db -> db.insert(TABLE_FILES, null,
+                    getContentValues(DATE_TAKEN_MS1, GENERATION_MODIFIED1)));
+            helper.runWithTransaction(db -> db.insert(TABLE_FILES, null,
+                    getContentValues(DATE_TAKEN_MS2, GENERATION_MODIFIED2)));
+            helper.runWithTransaction(db -> db.insert(TABLE_FILES, null,
+                    getContentValues(DATE_TAKEN_MS3, GENERATION_MODIFIED2)));
+            helper.runWithTransaction(db -> db.insert(TABLE_FILES, null,
+                    getContentValues(DATE_TAKEN_MS4, GENERATION_MODIFIED3)));
+
+            final String pageToken;
+            try (Cursor cursor = facade.queryMedia(/* generation */ -1, /* albumId */ null,
+                    /* mimeType */ null, /* pageToken */ null, /* pageSize */ 2)) {
+                assertThat(cursor.getCount()).isEqualTo(2);
+                assertCursorExtras(cursor);
+
+                cursor.moveToFirst();
+                assertMediaColumns(facade, cursor, ID1, DATE_TAKEN_MS1);
+                cursor.moveToNext();
+                assertMediaColumns(facade, cursor, ID2, DATE_TAKEN_MS2);
+
+                pageToken = cursor.getExtras().getString(EXTRA_PAGE_TOKEN);
+                assertThat(pageToken).isEqualTo(
+                        ExternalDbFacade.buildPageToken(GENERATION_MODIFIED2, ID2));
+            }
+
+            // Items modified while paging show up again in a later page
+            ContentValues cv = new ContentValues();
+            cv.put(MediaColumns.GENERATION_MODIFIED, GENERATION_MODIFIED4);
+            helper.runWithTransaction(db -> db.update(TABLE_FILES, cv, "_id=" + ID1, null));
+
+            try (Cursor cursor = facade.queryMedia(/* generation */ -1, /* albumId */ null,
+                    /* mimeType */ null, pageToken, /* pageSize */ 2)) {
+                assertThat(cursor.getCount()).isEqualTo(2);
+                assertCursorExtras(cursor, EXTRA_PAGE_TOKEN);
+
+                cursor.moveToFirst();
+                assertMediaColumns(facade, cursor, ID3, DATE_TAKEN_MS3);
+                cursor.moveToNext();
+                assertMediaColumns(facade, cursor, ID4, DATE_TAKEN_MS4);
+
+                try (Cursor last = facade.queryMedia(/* generation */ -1, /* albumId */ null,
+                        /* mimeType */ null, cursor.getExtras().getString(EXTRA_PAGE_TOKEN),
+                        /* pageSize */ 2)) {
+                    assertThat(last.getCount()).isEqualTo(1);
+                    assertThat(last.getExtras().containsKey(EXTRA_PAGE_TOKEN)).isFalse();
+
+                    last.moveToFirst();
+                    assertMediaColumns(facade, last, ID1, DATE_TAKEN_MS1);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testQueryMedia_pagedLargeFixture() throws Exception {
+        final int count = 100_000;
+        final int pageSize = 5000;
+        try (DatabaseHelper helper = new TestDatabaseHelper(sIsolatedContext)) {
+            ExternalDbFacade facade = new ExternalDbFacade(sIsolatedContext, helper,
+                    mock(VolumeCache.class));
+
+            helper.runWithTransaction(db -> {
+                for (int i = 0; i < count; i++) {
+                    db.insert(TABLE_FILES, null, getContentValues(DATE_TAKEN_MS1 + i, i / 10));
+                }
+                return null;
+            });
+
+            final Timer unpagedTimer = new Timer("local_sync_unpaged_first_page_100k");
+            unpagedTimer.start();
+            final long unpagedHeap;
+            final long heapBefore = Debug.getNativeHeapAllocatedSize();
+            try (Cursor cursor = queryAllMedia(facade)) {
+                assertThat(cursor.getCount()).isEqualTo(count);
+                unpagedTimer.stop();
+                unpagedHeap = Debug.getNativeHeapAllocatedSize() - heapBefore;
+            }
+
+            final Timer pagedTimer = new Timer("local_sync_paged_first_page_100k");
+            final Set<Long> ids = new HashSet<>();
+            long pagedHeap = 0;
+            String pageToken = null;
+            do {
+                final long pageHeapBefore = Debug.getNativeHeapAllocatedSize();
+                if (pageToken == null) {
+                    pagedTimer.start();
+                }
+                try (Cursor cursor = facade.queryMedia(/* generation */ -1, /* albumId */ null,
+                        /* mimeType */ null, pageToken, pageSize)) {
+                    assertThat(cursor.getCount()).isAtMost(pageSize);
+                    if (pageToken == null) {
+                        pagedTimer.stop();
+                    }
+                    pagedHeap = Math.max(pagedHeap,
+                            Debug.getNativeHeapAllocatedSize() - pageHeapBefore);
+                    while (cursor.moveToNext()) {
+                        assertThat(ids.add(cursor.getLong(0))).isTrue();
+                    }
+                    pageToken = cursor.getExtras().getString(EXTRA_PAGE_TOKEN);
+                }
+            } while (pageToken != null);
+            assertThat(ids).hasSize(count);
+
+            unpagedTimer.dumpResults();
+            pagedTimer.dumpResults();
+            final Bundle results = new Bundle();
+            results.putLong("local_sync_unpaged_peak_heap_100k (bytes)", unpagedHeap);
+            results.putLong("local_sync_paged_peak_heap_100k (bytes)", pagedHeap);
+            InstrumentationRegistry.getInstrumentation().sendStatus(0, results);
+        }
+    }
+
     @Test
     public void testQueryMedia_noMatch() throws Exception {
         ContentValues cvPending = getContentValues(DATE_TAKEN_MS1, GENERATION_MODIFIED1);
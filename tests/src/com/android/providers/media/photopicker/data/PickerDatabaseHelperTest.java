@@ -22,12 +22,14 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.provider.CloudMediaProviderContract;
 
 import androidx.test.InstrumentationRegistry;
 import androidx.test.runner.AndroidJUnit4;
 
 import com.android.providers.media.scan.MediaScannerTest.IsolatedContext;
+import com.android.providers.media.tests.utils.Timer;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -63,6 +65,15 @@ public class PickerDatabaseHelperTest {
             CloudMediaProviderContract.MediaColumns.STANDARD_MIME_TYPE_EXTENSION_GIF;
     private static final long DURATION_MS = 0;
 
+    private static final String MEDIA_INDEX = "visible_date_taken_index";
+    private static final String ALBUM_MEDIA_INDEX = "album_date_taken_index";
+    private static final String MEDIA_COLUMNS = "local_id,cloud_id,_id,date_taken_ms,"
+            + "sync_generation,size_bytes,duration_ms,mime_type,standard_mime_type_extension";
+    private static final String MEDIA_ORDER = " ORDER BY date_taken_ms DESC,media._id DESC"
+            + " LIMIT 1000";
+    private static final String ALBUM_MEDIA_ORDER =
+            " ORDER BY date_taken_ms DESC,album_media._id DESC LIMIT 1000";
+
     private static Context sIsolatedContext;
 
     @Before
@@ -430,6 +441,128 @@ public class PickerDatabaseHelperTest {
         }
     }
 
+    @Test
+    public void testQueryPlan_media() throws Exception {
+        try (PickerDatabaseHelper helper = new PickerDatabaseHelperT(sIsolatedContext)) {
+            SQLiteDatabase db = helper.getWritableDatabase();
+
+            // Local only, merged local and cloud, and each of the UI filters
+            assertOrderedByIndex(db, MEDIA_TABLE, "is_visible = 1 AND cloud_id IS NULL",
+                    MEDIA_ORDER, MEDIA_INDEX);
+            assertOrderedByIndex(db, MEDIA_TABLE, "is_visible = 1", MEDIA_ORDER, MEDIA_INDEX);
+            assertOrderedByIndex(db, MEDIA_TABLE, "is_visible = 1 AND mime_type LIKE 'image/%'",
+                    MEDIA_ORDER, MEDIA_INDEX);
+            assertOrderedByIndex(db, MEDIA_TABLE, "is_visible = 1 AND size_bytes <= 1000",
+                    MEDIA_ORDER, MEDIA_INDEX);
+            assertOrderedByIndex(db, MEDIA_TABLE, "is_visible = 1 AND is_favorite = 1",
+                    MEDIA_ORDER, MEDIA_INDEX);
+            assertOrderedByIndex(db, MEDIA_TABLE, "is_visible = 1 AND mime_type LIKE 'video/%'"
+                    + " AND size_bytes <= 1000 AND cloud_id IS NULL", MEDIA_ORDER, MEDIA_INDEX);
+
+            // Following pages may be served by more than one range of the index
+            assertThat(explain(db, MEDIA_TABLE, "is_visible = 1 AND (date_taken_ms < 5"
+                    + " OR (date_taken_ms = 5 AND _id < 5))", MEDIA_ORDER))
+                    .contains(MEDIA_INDEX);
+        }
+    }
+
+    @Test
+    public void testQueryPlan_albumMedia() throws Exception {
+        try (PickerDatabaseHelper helper = new PickerDatabaseHelperT(sIsolatedContext)) {
+            SQLiteDatabase db = helper.getWritableDatabase();
+
+            assertOrderedByIndex(db, ALBUM_MEDIA_TABLE, "local_id IS NOT NULL AND album_id = 'a'",
+                    ALBUM_MEDIA_ORDER, ALBUM_MEDIA_INDEX);
+            assertOrderedByIndex(db, ALBUM_MEDIA_TABLE, "cloud_id IS NOT NULL AND album_id = 'a'",
+                    ALBUM_MEDIA_ORDER, ALBUM_MEDIA_INDEX);
+            assertOrderedByIndex(db, ALBUM_MEDIA_TABLE, "cloud_id IS NOT NULL AND album_id = 'a'"
+                    + " AND mime_type LIKE 'image/%' AND size_bytes <= 1000",
+                    ALBUM_MEDIA_ORDER, ALBUM_MEDIA_INDEX);
+        }
+    }
+
+    @Test
+    public void testFirstPageLatency() throws Exception {
+        final int count = 200_000;
+        try (PickerDatabaseHelper helper = new PickerDatabaseHelperT(sIsolatedContext)) {
+            SQLiteDatabase db = helper.getWritableDatabase();
+
+            db.beginTransaction();
+            try (SQLiteStatement media = db.compileStatement("INSERT INTO media (local_id,"
+                    + "cloud_id,is_visible,date_taken_ms,sync_generation,size_bytes,duration_ms,"
+                    + "mime_type,standard_mime_type_extension,is_favorite)"
+                    + " VALUES (?,?,1,?,1,?,0,?,0,?)");
+                 SQLiteStatement albumMedia = db.compileStatement("INSERT INTO album_media"
+                         + " (local_id,album_id,date_taken_ms,sync_generation,size_bytes,"
+                         + "duration_ms,mime_type,standard_mime_type_extension)"
+                         + " VALUES (?,?,?,1,?,0,?,0)")) {
+                for (int i = 0; i < count; i++) {
+                    final String mimeType = (i % 10 == 0) ? "video/mp4" : "image/jpeg";
+                    // Half local-only and half cloud-only, with dates spread out of order
+                    media.clearBindings();
+                    media.bindLong(i % 2 == 0 ? 1 : 2, i);
+                    media.bindLong(3, (i * 7919L) % count);
+                    media.bindLong(4, SIZE_BYTES + i % 1000);
+                    media.bindString(5, mimeType);
+                    media.bindLong(6, (i % 100 == 0) ? 1 : 0);
+                    media.executeInsert();
+
+                    albumMedia.bindLong(1, i);
+                    albumMedia.bindString(2, ALBUM_ID + (i % 10));
+                    albumMedia.bindLong(3, (i * 7919L) % count);
+                    albumMedia.bindLong(4, SIZE_BYTES);
+                    albumMedia.bindString(5, mimeType);
+                    albumMedia.executeInsert();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            assertFirstPage(db, "picker_first_page_200k", MEDIA_TABLE,
+                    "is_visible = 1 AND cloud_id IS NULL", MEDIA_ORDER, 1000);
+            assertFirstPage(db, "picker_first_page_video_200k", MEDIA_TABLE,
+                    "is_visible = 1 AND mime_type LIKE 'video/%'", MEDIA_ORDER, 1000);
+            assertFirstPage(db, "picker_first_page_favorite_200k", MEDIA_TABLE,
+                    "is_visible = 1 AND is_favorite = 1", MEDIA_ORDER, 1000);
+            assertFirstPage(db, "picker_first_page_album_200k", ALBUM_MEDIA_TABLE,
+                    "local_id IS NOT NULL AND album_id = '" + ALBUM_ID + "0'", ALBUM_MEDIA_ORDER,
+                    1000);
+        }
+    }
+
+    private static void assertFirstPage(SQLiteDatabase db, String name, String table,
+            String where, String order, int expectedCount) {
+        final Timer timer = new Timer(name);
+        for (int i = 0; i < 5; i++) {
+            timer.start();
+            try (Cursor c = db.rawQuery("SELECT " + MEDIA_COLUMNS + " FROM " + table + " WHERE "
+                    + where + order, null)) {
+                assertThat(c.getCount()).isEqualTo(expectedCount);
+            }
+            timer.stop();
+        }
+        timer.dumpResults();
+    }
+
+    private static void assertOrderedByIndex(SQLiteDatabase db, String table, String where,
+            String order, String index) {
+        final String plan = explain(db, table, where, order);
+        assertThat(plan).contains(index);
+        assertThat(plan).doesNotContain("TEMP B-TREE");
+    }
+
+    private static String explain(SQLiteDatabase db, String table, String where, String order) {
+        final StringBuilder plan = new StringBuilder();
+        try (Cursor c = db.rawQuery("EXPLAIN QUERY PLAN SELECT " + MEDIA_COLUMNS + " FROM "
+                + table + " WHERE " + where + order, null)) {
+            while (c.moveToNext()) {
+                plan.append(c.getString(c.getColumnIndexOrThrow("detail"))).append('\n');
+            }
+        }
+        return plan.toString();
+    }
+
     private static class PickerDatabaseHelperT extends PickerDatabaseHelper {
         public PickerDatabaseHelperT(Context context) {
             super(context, TEST_PICKER_DB, 1);
@@ -205,6 +205,30 @@ public class PickerDbFacadeTest {
         }
     }
 
+    @Test
+    public void testUpsertAndRemoveCloudAlbumMedia() {
+        Cursor cursor1 = getAlbumMediaCursor(CLOUD_ID, DATE_TAKEN_MS + 1, false);
+        Cursor cursor2 = getAlbumMediaCursor(CLOUD_ID, DATE_TAKEN_MS + 2, false);
+
+        assertAddAlbumMediaOperation(CLOUD_PROVIDER, cursor1, 1, ALBUM_ID);
+
+        // Incremental syncs update rows already in the album
+        assertAddAlbumMediaOperation(CLOUD_PROVIDER, cursor2, 1, ALBUM_ID);
+
+        try (Cursor cr = queryAlbumMedia(ALBUM_ID, false)) {
+            assertThat(cr.getCount()).isEqualTo(1);
+            cr.moveToFirst();
+            assertCloudMediaCursor(cr, CLOUD_ID, DATE_TAKEN_MS + 2);
+        }
+
+        assertRemoveAlbumMediaOperation(CLOUD_PROVIDER, getDeletedMediaCursor(CLOUD_ID), 1,
+                ALBUM_ID);
+
+        try (Cursor cr = queryAlbumMedia(ALBUM_ID, false)) {
+            assertThat(cr.getCount()).isEqualTo(0);
+        }
+    }
+
     @Test
     public void testRemoveLocal() throws Exception {
         Cursor localCursor = getLocalMediaCursor(LOCAL_ID, DATE_TAKEN_MS);
@@ -1041,6 +1065,15 @@ public class PickerDbFacadeTest {
         }
     }
 
+    private void assertRemoveAlbumMediaOperation(String authority, Cursor cursor, int writeCount,
+            String albumId) {
+        try (PickerDbFacade.DbWriteOperation operation =
+                     mFacade.beginRemoveAlbumMediaOperation(authority, albumId)) {
+            assertWriteOperation(operation, cursor, writeCount);
+            operation.setSuccess();
+        }
+    }
+
     private void assertRemoveMediaOperation(String authority, Cursor cursor, int writeCount) {
         try (PickerDbFacade.DbWriteOperation operation =
                      mFacade.beginRemoveMediaOperation(authority)) {
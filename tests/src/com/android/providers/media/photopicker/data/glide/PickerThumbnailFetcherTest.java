@@ -0,0 +1,403 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media.photopicker.data.glide;
+
+import static com.android.providers.media.photopicker.ui.ImageLoader.THUMBNAIL_REQUEST;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.ContentProvider;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.pm.ProviderInfo;
+import android.content.res.AssetFileDescriptor;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.provider.CloudMediaProviderContract;
+import android.test.mock.MockContentResolver;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.providers.media.photopicker.ui.PhotosTabAdapter;
+import com.android.providers.media.tests.utils.Timer;
+import com.android.providers.media.util.FileUtils;
+
+import com.bumptech.glide.Priority;
+import com.bumptech.glide.load.Options;
+import com.bumptech.glide.load.data.DataFetcher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(AndroidJUnit4.class)
+public class PickerThumbnailFetcherTest {
+    private static final String AUTHORITY =
+            "com.android.providers.media.photopicker.tests.thumbnails";
+
+    // Glide decodes on at most 4 source threads
+    private static final int SOURCE_THREAD_COUNT = 4;
+    private static final long FETCH_LATENCY_MS = 200;
+    private static final int ITEMS_PER_SCREEN = 15;
+    private static final int FLING_SCREENS = 20;
+    private static final long FLING_SCREEN_INTERVAL_MS = 50;
+
+    private File mThumbnail;
+    private SlowThumbnailProvider mProvider;
+    private PickerModelLoader mModelLoader;
+
+    @Before
+    public void setUp() throws Exception {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        mThumbnail = new File(context.getCacheDir(), "PickerThumbnailFetcherTest.jpg");
+        try (FileOutputStream out = new FileOutputStream(mThumbnail)) {
+            out.write(new byte[1024]);
+        }
+
+        final ProviderInfo info = new ProviderInfo();
+        info.authority = AUTHORITY;
+        mProvider = new SlowThumbnailProvider(mThumbnail);
+        mProvider.attachInfo(context, info);
+
+        final MockContentResolver resolver = new MockContentResolver(context);
+        resolver.addProvider(AUTHORITY, mProvider);
+        mModelLoader = new PickerModelLoader(new ContextWrapper(context) {
+            @Override
+            public ContentResolver getContentResolver() {
+                return resolver;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mThumbnail.delete();
+    }
+
+    @Test
+    public void testLoadData() throws Exception {
+        final Fetch fetch = new Fetch(0, Priority.HIGH, 0);
+        fetch.run();
+
+        assertThat(fetch.mDone.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(fetch.mLoaded).isTrue();
+        assertThat(mProvider.mCompletedCount.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void testCancel_beforeLoadData() throws Exception {
+        final Fetch fetch = new Fetch(0, Priority.HIGH, 0);
+        fetch.mFetcher.cancel();
+        fetch.run();
+
+        assertThat(fetch.mDone.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(fetch.mLoaded).isFalse();
+        assertThat(mProvider.mCompletedCount.get()).isEqualTo(0);
+    }
+
+    @Test
+    public void testCancel_duringLoadData() throws Exception {
+        // The provider call only returns once it's cancelled
+        mProvider.mGate = new CountDownLatch(1);
+        final Fetch fetch = new Fetch(0, Priority.HIGH, 0);
+        final Thread thread = new Thread(fetch);
+        thread.start();
+        assertThat(mProvider.mStarted.tryAcquire(5, TimeUnit.SECONDS)).isTrue();
+        fetch.mFetcher.cancel();
+
+        assertThat(fetch.mDone.await(5, TimeUnit.SECONDS)).isTrue();
+        thread.join();
+        assertThat(fetch.mLoaded).isFalse();
+        assertThat(mProvider.mCancelledCount.get()).isEqualTo(1);
+        assertThat(mProvider.mCompletedCount.get()).isEqualTo(0);
+    }
+
+    /**
+     * Flings through a grid backed by a provider slower than the fling and compares how many
+     * fetches completed for items already scrolled off-screen, and how long the screen the fling
+     * settles on takes to show, with and without cancelling the provider calls of recycled items.
+     */
+    @Test
+    public void testFling() throws Exception {
+        final Timer ignoredTimer = new Timer("thumbnail_fling_time_to_visible_no_cancel");
+        final int ignoredWasted = simulateFling(/* cancelFetches */ false, ignoredTimer);
+
+        final Timer cancelledTimer = new Timer("thumbnail_fling_time_to_visible_cancel");
+        final int cancelledWasted = simulateFling(/* cancelFetches */ true, cancelledTimer);
+
+        ignoredTimer.dumpResults();
+        cancelledTimer.dumpResults();
+        final Bundle results = new Bundle();
+        results.putLong("thumbnail_fling_wasted_fetches_no_cancel", ignoredWasted);
+        results.putLong("thumbnail_fling_wasted_fetches_cancel", cancelledWasted);
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, results);
+
+        // Without cancellation the fetches stuck on every source thread when the fling started
+        // still complete, while cancelled ones never do
+        assertThat(ignoredWasted).isEqualTo(SOURCE_THREAD_COUNT);
+        assertThat(cancelledWasted).isEqualTo(0);
+    }
+
+    @Test
+    public void testThumbnailPriority() {
+        // Nothing laid out yet
+        assertThat(PhotosTabAdapter.getThumbnailPriority(5, -1, -1)).isEqualTo(Priority.HIGH);
+
+        assertThat(PhotosTabAdapter.getThumbnailPriority(20, 15, 29)).isEqualTo(Priority.HIGH);
+        assertThat(PhotosTabAdapter.getThumbnailPriority(32, 15, 29)).isEqualTo(Priority.HIGH);
+        assertThat(PhotosTabAdapter.getThumbnailPriority(33, 15, 29)).isEqualTo(Priority.NORMAL);
+        assertThat(PhotosTabAdapter.getThumbnailPriority(0, 15, 29)).isEqualTo(Priority.NORMAL);
+        assertThat(PhotosTabAdapter.getThumbnailPriority(45, 15, 29)).isEqualTo(Priority.LOW);
+    }
+
+    /**
+     * Binds one screen ahead of the visible one, like RecyclerView prefetching, and recycles
+     * items as soon as they leave the screen. No provider call completes before the fling
+     * settles.
+     *
+     * @return number of fetches which completed after their item was recycled
+     */
+    private int simulateFling(boolean cancelFetches, Timer timeToVisible) throws Exception {
+        mProvider.mCompletedCount.set(0);
+        mProvider.mCancelledCount.set(0);
+        mProvider.mGate = new CountDownLatch(1);
+
+        // Same ordering as Glide's source executor: by priority, then by submission
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(SOURCE_THREAD_COUNT,
+                SOURCE_THREAD_COUNT, /* keepAliveTime */ 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>());
+        final Map<Integer, Fetch> bound = new TreeMap<>();
+        final List<Fetch> recycled = new ArrayList<>();
+        long order = 0;
+
+        int first = 0;
+        int last = ITEMS_PER_SCREEN - 1;
+        for (int screen = 0; screen < FLING_SCREENS; screen++) {
+            first = screen * ITEMS_PER_SCREEN;
+            last = first + ITEMS_PER_SCREEN - 1;
+
+            for (Iterator<Fetch> it = bound.values().iterator(); it.hasNext(); ) {
+                final Fetch fetch = it.next();
+                if (fetch.mPosition < first) {
+                    fetch.recycle(cancelFetches);
+                    recycled.add(fetch);
+                    it.remove();
+                }
+            }
+            for (int position = first; position <= last + ITEMS_PER_SCREEN; position++) {
+                if (!bound.containsKey(position)) {
+                    final Fetch fetch = new Fetch(position,
+                            PhotosTabAdapter.getThumbnailPriority(position, first, last), order++);
+                    bound.put(position, fetch);
+                    executor.execute(fetch);
+                }
+            }
+
+            if (screen == FLING_SCREENS - 1) {
+                timeToVisible.start();
+                mProvider.mGate.countDown();
+            } else {
+                SystemClock.sleep(FLING_SCREEN_INTERVAL_MS);
+            }
+        }
+
+        for (int position = first; position <= last; position++) {
+            assertThat(bound.get(position).mDone.await(30, TimeUnit.SECONDS)).isTrue();
+        }
+        timeToVisible.stop();
+
+        executor.shutdownNow();
+        assertThat(executor.awaitTermination(30, TimeUnit.SECONDS)).isTrue();
+
+        int wasted = 0;
+        for (Fetch fetch : recycled) {
+            if (fetch.mLoaded) {
+                wasted++;
+            }
+        }
+        return wasted;
+    }
+
+    private class Fetch implements Runnable, Comparable<Fetch>,
+            DataFetcher.DataCallback<ParcelFileDescriptor> {
+        final int mPosition;
+        final Priority mPriority;
+        final long mOrder;
+        final DataFetcher<ParcelFileDescriptor> mFetcher;
+        final CountDownLatch mDone = new CountDownLatch(1);
+        volatile boolean mRecycled;
+        volatile boolean mLoaded;
+
+        Fetch(int position, Priority priority, long order) {
+            mPosition = position;
+            mPriority = priority;
+            mOrder = order;
+
+            final Options options = new Options();
+            options.set(THUMBNAIL_REQUEST, true);
+            final Uri uri = new Uri.Builder().scheme("content").authority(AUTHORITY)
+                    .appendPath(CloudMediaProviderContract.URI_PATH_MEDIA)
+                    .appendPath(String.valueOf(position))
+                    .build();
+            assertThat(mModelLoader.handles(uri)).isTrue();
+            mFetcher = mModelLoader.buildLoadData(uri, 256, 256, options).fetcher;
+        }
+
+        void recycle(boolean cancelFetch) {
+            mRecycled = true;
+            if (cancelFetch) {
+                mFetcher.cancel();
+            }
+        }
+
+        @Override
+        public void run() {
+            // Glide skips jobs cancelled before they start, whether or not fetches are cancelled
+            if (mRecycled) {
+                mDone.countDown();
+                return;
+            }
+            mFetcher.loadData(mPriority, this);
+        }
+
+        @Override
+        public void onDataReady(@Nullable ParcelFileDescriptor data) {
+            FileUtils.closeQuietly(data);
+            mLoaded = true;
+            mDone.countDown();
+        }
+
+        @Override
+        public void onLoadFailed(@NonNull Exception e) {
+            mDone.countDown();
+        }
+
+        @Override
+        public int compareTo(Fetch other) {
+            if (mPriority != other.mPriority) {
+                return mPriority.ordinal() - other.mPriority.ordinal();
+            }
+            return Long.compare(mOrder, other.mOrder);
+        }
+    }
+
+    /**
+     * Serves the same thumbnail for every uri once {@link #mGate} is open and another
+     * {@link #FETCH_LATENCY_MS} have passed, like a remote cloud provider would, unless cancelled
+     * in the meantime.
+     */
+    private static class SlowThumbnailProvider extends ContentProvider {
+        final AtomicInteger mCompletedCount = new AtomicInteger();
+        final AtomicInteger mCancelledCount = new AtomicInteger();
+        /** Released whenever a call starts. */
+        final Semaphore mStarted = new Semaphore(0);
+        /** Holds back all calls until opened, which tests use to order them deterministically. */
+        volatile CountDownLatch mGate = new CountDownLatch(0);
+        private final File mThumbnail;
+
+        SlowThumbnailProvider(File thumbnail) {
+            mThumbnail = thumbnail;
+        }
+
+        @Override
+        public AssetFileDescriptor openTypedAssetFile(Uri uri, String mimeTypeFilter,
+                Bundle opts, CancellationSignal signal) throws FileNotFoundException {
+            final CountDownLatch cancelled = new CountDownLatch(1);
+            if (signal != null) {
+                signal.setOnCancelListener(cancelled::countDown);
+            }
+            mStarted.release();
+            try {
+                // Wait for the gate or cancellation, whichever comes first
+                while (!mGate.await(5, TimeUnit.MILLISECONDS)) {
+                    if (cancelled.getCount() == 0) {
+                        break;
+                    }
+                }
+                cancelled.await(FETCH_LATENCY_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                throw new OperationCanceledException();
+            }
+            if (signal != null && signal.isCanceled()) {
+                mCancelledCount.incrementAndGet();
+                throw new OperationCanceledException();
+            }
+
+            mCompletedCount.incrementAndGet();
+            return new AssetFileDescriptor(ParcelFileDescriptor.open(mThumbnail,
+                    ParcelFileDescriptor.MODE_READ_ONLY), 0, AssetFileDescriptor.UNKNOWN_LENGTH);
+        }
+
+        @Override
+        public boolean onCreate() {
+            return true;
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            return null;
+        }
+
+        @Override
+        public String getType(Uri uri) {
+            return null;
+        }
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) {
+            return null;
+        }
+
+        @Override
+        public int delete(Uri uri, String selection, String[] selectionArgs) {
+            return 0;
+        }
+
+        @Override
+        public int update(Uri uri, ContentValues values, String selection,
+                String[] selectionArgs) {
+            return 0;
+        }
+    }
+}
@@ -91,6 +91,9 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
 import java.util.Optional;
 
@@ -779,6 +782,71 @@ public class ModernMediaScannerTest {
         assertThat(mModern.scanFile(image, REASON_UNKNOWN)).isNull();
     }
 
+    @Test
+    public void testScanFiles() throws Exception {
+        final File dir1 = new File(mDir, "dir1");
+        final File dir2 = new File(mDir, "dir2");
+        dir1.mkdirs();
+        dir2.mkdirs();
+        final File image1 = new File(dir1, "image1.jpg");
+        final File image2 = new File(dir2, "image2.jpg");
+        final File image3 = new File(dir1, "image3.jpg");
+        final File missing = new File(dir2, "missing.jpg");
+        stage(R.raw.test_image, image1);
+        stage(R.raw.test_image, image2);
+        stage(R.raw.test_image, image3);
+
+        final List<Uri> uris = mModern.scanFiles(
+                Arrays.asList(image1, missing, image2, image3, dir1), REASON_UNKNOWN, null);
+        assertThat(uris).hasSize(5);
+        assertThat(uris.get(1)).isNull();
+        assertQueryCount(3, MediaStore.Images.Media.EXTERNAL_CONTENT_URI);
+
+        // Results are in request order, and match what single file scans return
+        assertThat(uris.get(0)).isEqualTo(mModern.scanFile(image1, REASON_UNKNOWN));
+        assertThat(uris.get(2)).isEqualTo(mModern.scanFile(image2, REASON_UNKNOWN));
+        assertThat(uris.get(3)).isEqualTo(mModern.scanFile(image3, REASON_UNKNOWN));
+        assertThat(uris.get(4)).isEqualTo(mModern.scanFile(dir1, REASON_UNKNOWN));
+        assertThat(uris.get(0)).isNotEqualTo(uris.get(3));
+        assertQueryCount(3, MediaStore.Images.Media.EXTERNAL_CONTENT_URI);
+    }
+
+    @Test
+    public void testScanFiles_comparedToSingleScans() throws Exception {
+        final int count = 100;
+        final File singleDir = new File(mDir, "single");
+        final File batchDir = new File(mDir, "batch");
+        singleDir.mkdirs();
+        batchDir.mkdirs();
+        final List<File> singleFiles = new ArrayList<>();
+        final List<File> batchFiles = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final File singleFile = new File(singleDir, "file_" + i + ".txt");
+            final File batchFile = new File(batchDir, "file_" + i + ".txt");
+            assertThat(singleFile.createNewFile()).isTrue();
+            assertThat(batchFile.createNewFile()).isTrue();
+            singleFiles.add(singleFile);
+            batchFiles.add(batchFile);
+        }
+
+        final Timer singleScans = new Timer("scanFile_" + count);
+        singleScans.start();
+        for (File file : singleFiles) {
+            assertNotNull(mModern.scanFile(file, REASON_UNKNOWN));
+        }
+        singleScans.stop();
+        singleScans.dumpResults();
+
+        final Timer batchScan = new Timer("scanFiles_" + count);
+        batchScan.start();
+        final List<Uri> uris = mModern.scanFiles(batchFiles, REASON_UNKNOWN, null);
+        batchScan.stop();
+        batchScan.dumpResults();
+
+        assertThat(uris).hasSize(count);
+        assertThat(uris).doesNotContain(null);
+    }
+
     @Test
     public void testScanFileAndUpdateOwnerPackageName() throws Exception {
         final File image = new File(mDir, "image.jpg");
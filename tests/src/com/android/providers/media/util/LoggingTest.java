@@ -19,7 +19,12 @@ package com.android.providers.media.util;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
 import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.LargeTest;
 import androidx.test.runner.AndroidJUnit4;
 
 import org.junit.Before;
@@ -29,10 +34,19 @@ import org.junit.runner.RunWith;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.PrintWriter;
+import java.nio.file.Files;
 import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 @RunWith(AndroidJUnit4.class)
 public class LoggingTest {
+    private static final String TAG = "LoggingTest";
+
+    private static final int COUNT_THREADS = 8;
+    private static final int COUNT_MESSAGES = 2000;
+
     private File mTarget;
 
     @Before
@@ -71,19 +85,88 @@ public class LoggingTest {
         assertEquals(0, mTarget.listFiles().length);
 
         Logging.logPersistent(msg);
+        Logging.flushPersistent();
         assertEquals(1, mTarget.listFiles().length);
 
         for (int i = 0; i < 32; i++) {
             Logging.logPersistent(msg);
         }
+        Logging.flushPersistent();
         assertEquals(2, mTarget.listFiles().length);
 
         for (int i = 0; i < 32; i++) {
             Logging.logPersistent(msg);
         }
+        Logging.flushPersistent();
         assertEquals(3, mTarget.listFiles().length);
 
         Logging.trimPersistent();
         assertEquals(3, mTarget.listFiles().length);
     }
+
+    /**
+     * Verify that every message logged under contention is either written or
+     * counted as dropped, and report the latency observed by callers.
+     */
+    @Test
+    @LargeTest
+    public void testContention() throws Exception {
+        final String nonce = String.valueOf(System.nanoTime());
+        final long droppedBefore = Logging.getPersistentDroppedCount();
+        final long[] durations = new long[COUNT_THREADS];
+        final long[] maxDurations = new long[COUNT_THREADS];
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] threads = new Thread[COUNT_THREADS];
+        for (int i = 0; i < COUNT_THREADS; i++) {
+            final int thread = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                for (int j = 0; j < COUNT_MESSAGES; j++) {
+                    final long before = SystemClock.elapsedRealtimeNanos();
+                    Logging.logPersistent(nonce + " " + thread + " " + j);
+                    final long duration = SystemClock.elapsedRealtimeNanos() - before;
+                    durations[thread] += duration;
+                    maxDurations[thread] = Math.max(maxDurations[thread], duration);
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Logging.flushPersistent();
+
+        long written = 0;
+        for (File file : mTarget.listFiles()) {
+            try (Stream<String> lines = Files.lines(file.toPath())) {
+                written += lines.filter((line) -> line.contains(nonce)).count();
+            }
+        }
+        final long dropped = Logging.getPersistentDroppedCount() - droppedBefore;
+        assertEquals(COUNT_THREADS * COUNT_MESSAGES, written + dropped);
+
+        long total = 0;
+        long max = 0;
+        for (int i = 0; i < COUNT_THREADS; i++) {
+            total += durations[i];
+            max = Math.max(max, maxDurations[i]);
+        }
+        final long averageMicros = TimeUnit.NANOSECONDS.toMicros(
+                total / (COUNT_THREADS * COUNT_MESSAGES));
+        final long maxMicros = TimeUnit.NANOSECONDS.toMicros(max);
+        Log.v(TAG, "logPersistent with " + COUNT_THREADS + " threads: average " + averageMicros
+                + "us, max " + maxMicros + "us, dropped " + dropped);
+
+        final Bundle results = new Bundle();
+        results.putLong("log_persistent_contended_avg (us)", averageMicros);
+        results.putLong("log_persistent_contended_max (us)", maxMicros);
+        results.putLong("log_persistent_contended_dropped", dropped);
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, results);
+    }
 }
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media.util;
+
+import static android.Manifest.permission.BACKUP;
+import static android.Manifest.permission.READ_MEDIA_IMAGES;
+import static android.app.AppOpsManager.MODE_ALLOWED;
+import static android.app.AppOpsManager.MODE_IGNORED;
+import static android.app.AppOpsManager.OPSTR_LEGACY_STORAGE;
+import static android.app.AppOpsManager.OPSTR_READ_MEDIA_IMAGES;
+import static android.content.pm.PackageManager.PERMISSION_DENIED;
+import static android.content.pm.PackageManager.PERMISSION_GRANTED;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.function.IntSupplier;
+
+@RunWith(AndroidJUnit4.class)
+public class PermissionGrantCacheTest {
+    private static final int UID = 10_123;
+    private static final int OTHER_UID = 10_456;
+    private static final String PACKAGE = "com.example";
+    private static final String OTHER_PACKAGE = "com.example.shared";
+
+    private final PermissionGrantCache mCache = new PermissionGrantCache();
+
+    @Test
+    public void testCheckPermission_cachedPerUid() throws Exception {
+        final FakeCheck check = new FakeCheck(PERMISSION_GRANTED);
+
+        assertThat(mCache.checkPermission(UID, READ_MEDIA_IMAGES, check))
+                .isEqualTo(PERMISSION_GRANTED);
+        assertThat(mCache.checkPermission(UID, READ_MEDIA_IMAGES, check))
+                .isEqualTo(PERMISSION_GRANTED);
+        assertThat(check.mCount).isEqualTo(1);
+
+        // But not for other permissions or other apps
+        mCache.checkPermission(UID, BACKUP, check);
+        mCache.checkPermission(OTHER_UID, READ_MEDIA_IMAGES, check);
+        assertThat(check.mCount).isEqualTo(3);
+    }
+
+    @Test
+    public void testCheckOpRaw_cachedPerPackage() throws Exception {
+        final FakeCheck check = new FakeCheck(MODE_ALLOWED);
+
+        assertThat(mCache.checkOpRaw(UID, PACKAGE, OPSTR_LEGACY_STORAGE, check))
+                .isEqualTo(MODE_ALLOWED);
+        assertThat(mCache.checkOpRaw(UID, PACKAGE, OPSTR_LEGACY_STORAGE, check))
+                .isEqualTo(MODE_ALLOWED);
+        assertThat(check.mCount).isEqualTo(1);
+
+        // Packages sharing the UID may have their own modes
+        check.mResult = MODE_IGNORED;
+        assertThat(mCache.checkOpRaw(UID, OTHER_PACKAGE, OPSTR_LEGACY_STORAGE, check))
+                .isEqualTo(MODE_IGNORED);
+        assertThat(mCache.checkOpRaw(UID, PACKAGE, OPSTR_READ_MEDIA_IMAGES, check))
+                .isEqualTo(MODE_IGNORED);
+        assertThat(check.mCount).isEqualTo(3);
+
+        // Ops and permissions of the same name don't collide
+        mCache.checkPermission(UID, OPSTR_LEGACY_STORAGE, check);
+        assertThat(check.mCount).isEqualTo(4);
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        final FakeCheck check = new FakeCheck(PERMISSION_GRANTED);
+        mCache.checkPermission(UID, READ_MEDIA_IMAGES, check);
+        mCache.checkPermission(OTHER_UID, READ_MEDIA_IMAGES, check);
+
+        // Revoking a permission is seen once the UID is invalidated
+        check.mResult = PERMISSION_DENIED;
+        mCache.invalidate(UID);
+        assertThat(mCache.checkPermission(UID, READ_MEDIA_IMAGES, check))
+                .isEqualTo(PERMISSION_DENIED);
+        assertThat(mCache.checkPermission(OTHER_UID, READ_MEDIA_IMAGES, check))
+                .isEqualTo(PERMISSION_GRANTED);
+
+        mCache.invalidateAll();
+        assertThat(mCache.checkPermission(OTHER_UID, READ_MEDIA_IMAGES, check))
+                .isEqualTo(PERMISSION_DENIED);
+    }
+
+    @Test
+    public void testInvalidate_duringLookup() throws Exception {
+        // Permission is revoked while the old grant is being looked up
+        final FakeCheck check = new FakeCheck(PERMISSION_GRANTED) {
+            @Override
+            public int getAsInt() {
+                final int result = super.getAsInt();
+                mResult = PERMISSION_DENIED;
+                mCache.invalidate(UID);
+                return result;
+            }
+        };
+
+        assertThat(mCache.checkPermission(UID, READ_MEDIA_IMAGES, check))
+                .isEqualTo(PERMISSION_GRANTED);
+        // The stale grant was never stored
+        assertThat(mCache.checkPermission(UID, READ_MEDIA_IMAGES, check))
+                .isEqualTo(PERMISSION_DENIED);
+    }
+
+    @Test
+    public void testDump() throws Exception {
+        final FakeCheck check = new FakeCheck(PERMISSION_GRANTED);
+        mCache.checkPermission(UID, READ_MEDIA_IMAGES, check);
+        mCache.checkPermission(UID, READ_MEDIA_IMAGES, check);
+        mCache.invalidate(OTHER_UID);
+
+        final StringWriter out = new StringWriter();
+        mCache.dump(new PrintWriter(out));
+        assertThat(out.toString()).contains("uids=1 hits=1 misses=1 invalidations=1");
+        assertThat(out.toString()).contains("lookup: count=1 p50=");
+    }
+
+    private static class FakeCheck implements IntSupplier {
+        int mResult;
+        int mCount;
+
+        FakeCheck(int result) {
+            mResult = result;
+        }
+
+        @Override
+        public int getAsInt() {
+            mCount++;
+            return mResult;
+        }
+    }
+}
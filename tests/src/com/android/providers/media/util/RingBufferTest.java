@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+
+@RunWith(AndroidJUnit4.class)
+public class RingBufferTest {
+    @Test
+    public void testCapacity() throws Exception {
+        assertThrows(IllegalArgumentException.class, () -> new RingBuffer<String>(0));
+        assertThrows(IllegalArgumentException.class, () -> new RingBuffer<String>(3));
+        assertEquals(4, new RingBuffer<String>(4).capacity());
+    }
+
+    @Test
+    public void testOfferPoll() throws Exception {
+        final RingBuffer<String> buffer = new RingBuffer<>(2);
+        assertTrue(buffer.isEmpty());
+        assertNull(buffer.poll());
+
+        assertTrue(buffer.offer("a"));
+        assertTrue(buffer.offer("b"));
+        assertFalse(buffer.offer("c"));
+        assertEquals("a", buffer.poll());
+        assertTrue(buffer.offer("d"));
+        assertEquals("b", buffer.poll());
+        assertEquals("d", buffer.poll());
+        assertNull(buffer.poll());
+
+        assertEquals(3, buffer.getProducedCount());
+        assertEquals(3, buffer.getConsumedCount());
+    }
+
+    @Test
+    public void testDrainTo() throws Exception {
+        final RingBuffer<Integer> buffer = new RingBuffer<>(8);
+        for (int i = 0; i < 5; i++) {
+            buffer.offer(i);
+        }
+
+        final ArrayList<Integer> out = new ArrayList<>();
+        assertEquals(3, buffer.drainTo(out, 3));
+        assertEquals(2, buffer.drainTo(out, 3));
+        assertEquals(0, buffer.drainTo(out, 3));
+        assertEquals(5, out.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, (int) out.get(i));
+        }
+    }
+
+    @Test
+    public void testConcurrentProducers() throws Exception {
+        final int threadCount = 8;
+        final int perThread = 10_000;
+        final RingBuffer<Integer> buffer = new RingBuffer<>(64);
+
+        final Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final int base = i * perThread;
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < perThread; j++) {
+                    while (!buffer.offer(base + j)) {
+                        Thread.yield();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+
+        final Set<Integer> seen = new HashSet<>();
+        while (seen.size() < threadCount * perThread) {
+            final Integer value = buffer.poll();
+            if (value != null) {
+                assertTrue(seen.add(value));
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(buffer.isEmpty());
+    }
+}
@@ -79,4 +79,18 @@ public class Timer {
         results.putLong(name + " (ms)", duration);
         InstrumentationRegistry.getInstrumentation().sendStatus(0, results);
     }
+
+    /**
+     * Dumps the average duration of a single item, for timers of operations that each handle
+     * {@code itemCount} items.
+     */
+    public void dumpPerItemResults(int itemCount) {
+        final long perItem = TimeUnit.MICROSECONDS.convert(duration / count / itemCount,
+                TimeUnit.NANOSECONDS);
+        Log.v(TAG, name + " per item: " + perItem + "us");
+
+        final Bundle results = new Bundle();
+        results.putLong(name + "_per_item (us)", perItem);
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, results);
+    }
 }